@@ -23,6 +23,7 @@ import org.mrpdaemon.sec.encfs.EncFSFileProvider;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.util.Log;
 
 // Base class for all account types
@@ -37,6 +38,9 @@ public abstract class Account {
 	// Sleep interval (in ms) between checking authentication thread progress
 	private static final int AUTH_THREAD_CHECK_INTERVAL = 10;
 
+	// Default number of concurrent API requests
+	private static final String DEFAULT_API_CONCURRENCY = "4";
+
 	// Return account name
 	public abstract String getName();
 
@@ -71,6 +75,28 @@ public abstract class Account {
 	// Return an EncFSFileProvider for this account at the given path
 	public abstract EncFSFileProvider getFileProvider(String path);
 
+	// Called when a volume on this account is unlocked
+	public void onVolumeUnlocked() {
+	}
+
+	// Called when a volume on this account is locked
+	public void onVolumeLocked() {
+	}
+
+	// Called when the application moves to or from the foreground
+	public void onForegroundChanged(boolean foreground) {
+	}
+
+	// Return the maximum number of concurrent API requests from preferences
+	protected static int getApiConcurrency(SharedPreferences prefs) {
+		try {
+			return Integer.parseInt(prefs.getString("api_concurrency",
+					DEFAULT_API_CONCURRENCY));
+		} catch (NumberFormatException e) {
+			return Integer.parseInt(DEFAULT_API_CONCURRENCY);
+		}
+	}
+
 	/*
 	 * Common code to link or authenticate the account if needed.
 	 * 
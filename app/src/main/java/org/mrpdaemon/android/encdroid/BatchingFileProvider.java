@@ -0,0 +1,38 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+
+/*
+ * Optional interface for file providers that can group metadata operations
+ * into fewer round trips.
+ *
+ * Between beginBatch() and endBatch() mutations such as delete() and move()
+ * may be queued and report success immediately. Queued operations are sent
+ * no later than endBatch(), which throws if any of them failed.
+ */
+public interface BatchingFileProvider {
+
+	// Start queuing metadata operations
+	public void beginBatch();
+
+	// Send all queued operations and stop batching
+	public void endBatch() throws IOException;
+}
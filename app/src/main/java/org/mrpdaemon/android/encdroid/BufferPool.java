@@ -0,0 +1,86 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/*
+ * Pool of equally sized byte buffers.
+ *
+ * Transfers move large files in big chunks. Allocating a fresh buffer for
+ * each of them churns the heap and triggers garbage collections in the
+ * middle of the transfer, so released buffers are kept for the next one. At
+ * most a fixed number of idle buffers is kept, any more are left to the
+ * garbage collector.
+ */
+public class BufferPool {
+
+	// Default number of idle buffers to keep
+	public final static int DEFAULT_CAPACITY = 4;
+
+	// Shared pools by buffer size
+	private final static HashMap<Integer, BufferPool> pools = new HashMap<Integer, BufferPool>();
+
+	// Size of the buffers
+	private final int bufferSize;
+
+	// Maximum number of idle buffers
+	private final int capacity;
+
+	// Idle buffers
+	private final ArrayDeque<byte[]> free = new ArrayDeque<byte[]>();
+
+	public BufferPool(int bufferSize, int capacity) {
+		this.bufferSize = bufferSize;
+		this.capacity = capacity;
+	}
+
+	// Return the shared pool for the given buffer size
+	public static BufferPool forSize(int bufferSize) {
+		synchronized (pools) {
+			BufferPool pool = pools.get(bufferSize);
+			if (pool == null) {
+				pool = new BufferPool(bufferSize, DEFAULT_CAPACITY);
+				pools.put(bufferSize, pool);
+			}
+			return pool;
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	// Return an idle buffer, or a new one if there is none
+	public synchronized byte[] acquire() {
+		byte[] buf = free.pollFirst();
+		if (buf == null) {
+			buf = new byte[bufferSize];
+		}
+		return buf;
+	}
+
+	// Give back a buffer returned by acquire()
+	public synchronized void release(byte[] buf) {
+		if (buf != null && buf.length == bufferSize && free.size() < capacity) {
+			free.addFirst(buf);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+
+/*
+ * Optional interface for file providers that can operate on a whole
+ * directory tree with a single server side request instead of one request
+ * per file.
+ *
+ * The tree is carried over as is, so callers may only copy or move trees
+ * whose encrypted names and contents don't depend on their location, i.e.
+ * volumes without chained name IV's. Deleting a tree is always safe.
+ */
+public interface BulkFileProvider {
+
+	// Whether bulk operations can be used on this provider
+	public boolean isBulkSupported();
+
+	// Delete the given path and everything under it
+	public boolean deleteTree(String path) throws IOException;
+
+	// Copy the given path and everything under it to a new path
+	public boolean copyTree(String srcPath, String dstPath) throws IOException;
+
+	// Move the given path and everything under it to a new path
+	public boolean moveTree(String srcPath, String dstPath) throws IOException;
+}
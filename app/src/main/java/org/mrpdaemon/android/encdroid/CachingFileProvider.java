@@ -0,0 +1,522 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mrpdaemon.sec.encfs.EncFSFileInfo;
+import org.mrpdaemon.sec.encfs.EncFSFileProvider;
+
+import android.util.Log;
+
+/*
+ * File provider decorator caching metadata of any EncFSFileProvider.
+ *
+ * Results of getFileInfo(), exists(), isDirectory() and listFiles() are kept
+ * in bounded LRU maps for a limited time. A cached listing also answers
+ * metadata queries for the entries in it, including negative ones. Every
+ * operation that modifies a path through this provider drops the cached
+ * entries for the path, everything under it and its parent's listing before
+ * being passed on.
+ *
+ * Batching, ranged reads and bulk tree operations are forwarded to the
+ * wrapped provider when it supports them.
+ */
+public class CachingFileProvider implements EncFSFileProvider,
+		BatchingFileProvider, RangedFileProvider, BulkFileProvider {
+
+	// Logger tag
+	private final static String TAG = "CachingFileProvider";
+
+	// Default maximum number of cached file infos
+	public final static int DEFAULT_INFO_CAPACITY = 1024;
+
+	// Default maximum number of cached directory listings
+	public final static int DEFAULT_LISTING_CAPACITY = 64;
+
+	// Default time to live of cached entries
+	public final static long DEFAULT_TTL_MS = 60 * 1000;
+
+	// A cached value along with its expiry time
+	private static class CacheEntry<T> {
+		final T value;
+		final long expires;
+
+		CacheEntry(T value, long ttl) {
+			this.value = value;
+			this.expires = System.currentTimeMillis() + ttl;
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() > expires;
+		}
+	}
+
+	// Access ordered map evicting its least recently used entries
+	private static class LruMap<V> extends LinkedHashMap<String, V> {
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		LruMap(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	// Output stream invalidating its path once closed or aborted
+	private class InvalidatingOutputStream extends FilterOutputStream
+			implements TransferEngine.Abortable {
+
+		// Path written
+		private final String outputPath;
+
+		InvalidatingOutputStream(OutputStream out, String outputPath) {
+			super(out);
+			this.outputPath = outputPath;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count)
+				throws IOException {
+			out.write(buffer, offset, count);
+		}
+
+		// Size and modification time change again once the stream is closed
+		@Override
+		public void close() throws IOException {
+			try {
+				out.close();
+			} finally {
+				invalidate(outputPath);
+			}
+		}
+
+		@Override
+		public void abort() throws IOException {
+			try {
+				if (out instanceof TransferEngine.Abortable) {
+					((TransferEngine.Abortable) out).abort();
+				} else {
+					out.close();
+				}
+			} finally {
+				invalidate(outputPath);
+			}
+		}
+	}
+
+	// Wrapped file provider
+	private final EncFSFileProvider provider;
+
+	// Time to live of cached entries
+	private final long ttl;
+
+	// File info by path, a null value means the path doesn't exist
+	private final LruMap<CacheEntry<EncFSFileInfo>> infos;
+
+	// Directory listings (name -> info, in listing order) by path
+	private final LruMap<CacheEntry<LinkedHashMap<String, EncFSFileInfo>>> listings;
+
+	/*
+	 * Bumped by every invalidation, results fetched from the wrapped provider
+	 * are only cached if no invalidation happened while they were in flight
+	 */
+	private long generation = 0;
+
+	// Statistics
+	private long hits = 0;
+	private long misses = 0;
+
+	public CachingFileProvider(EncFSFileProvider provider, int infoCapacity,
+			int listingCapacity, long ttl) {
+		this.provider = provider;
+		this.ttl = ttl;
+		this.infos = new LruMap<CacheEntry<EncFSFileInfo>>(infoCapacity);
+		this.listings = new LruMap<CacheEntry<LinkedHashMap<String, EncFSFileInfo>>>(
+				listingCapacity);
+	}
+
+	public CachingFileProvider(EncFSFileProvider provider) {
+		this(provider, DEFAULT_INFO_CAPACITY, DEFAULT_LISTING_CAPACITY,
+				DEFAULT_TTL_MS);
+	}
+
+	// Return the wrapped file provider
+	public EncFSFileProvider getProvider() {
+		return provider;
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	// Strip the trailing '/' from a non-root path
+	private static String normalize(String path) {
+		if (path.length() > 1 && path.endsWith("/")) {
+			return path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+
+	// Return the parent of the given normalized path, null for the root
+	private static String parentOf(String path) {
+		if (path.equals("/")) {
+			return null;
+		}
+		int idx = path.lastIndexOf('/');
+		if (idx <= 0) {
+			return "/";
+		}
+		return path.substring(0, idx);
+	}
+
+	// Return the last element of the given normalized path
+	private static String nameOf(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	/*
+	 * Look up cached info for the given path. Returns a CacheEntry whose value
+	 * is null if the path is known not to exist, or null if nothing is known.
+	 */
+	private synchronized CacheEntry<EncFSFileInfo> lookupInfo(String path) {
+		String normPath = normalize(path);
+
+		CacheEntry<EncFSFileInfo> entry = infos.get(normPath);
+		if (entry != null) {
+			if (!entry.isExpired()) {
+				hits++;
+				return entry;
+			}
+			infos.remove(normPath);
+		}
+
+		// Answer from a fresh listing of the parent, including misses
+		String parent = parentOf(normPath);
+		if (parent != null) {
+			CacheEntry<LinkedHashMap<String, EncFSFileInfo>> listing = listings
+					.get(parent);
+			if (listing != null && !listing.isExpired()) {
+				hits++;
+				return new CacheEntry<EncFSFileInfo>(listing.value
+						.get(nameOf(normPath)), ttl);
+			}
+		}
+
+		misses++;
+		return null;
+	}
+
+	private synchronized long getGeneration() {
+		return generation;
+	}
+
+	// Cache info fetched at the given generation unless since invalidated
+	private synchronized void putInfo(String path, EncFSFileInfo info,
+			long fetchGeneration) {
+		if (fetchGeneration != generation) {
+			return;
+		}
+		infos.put(normalize(path), new CacheEntry<EncFSFileInfo>(info, ttl));
+	}
+
+	// Drop cached data for the given path, anything under it and its parent
+	private synchronized void invalidate(String path) {
+		String normPath = normalize(path);
+		generation++;
+
+		String parent = parentOf(normPath);
+		if (parent != null) {
+			listings.remove(parent);
+		}
+
+		invalidateSubtree(infos, normPath);
+		invalidateSubtree(listings, normPath);
+	}
+
+	private static void invalidateSubtree(Map<String, ?> map, String path) {
+		Iterator<String> iter = map.keySet().iterator();
+		while (iter.hasNext()) {
+			String key = iter.next();
+			if (key.equals(path) || path.equals("/")
+					|| key.startsWith(path + "/")) {
+				iter.remove();
+			}
+		}
+	}
+
+	// Drop all cached data
+	public synchronized void clear() {
+		generation++;
+		infos.clear();
+		listings.clear();
+	}
+
+	@Override
+	public boolean isDirectory(String path) throws IOException {
+		CacheEntry<EncFSFileInfo> entry = lookupInfo(path);
+		if (entry != null) {
+			return entry.value != null && entry.value.isDirectory();
+		}
+
+		return provider.isDirectory(path);
+	}
+
+	@Override
+	public boolean exists(String path) throws IOException {
+		CacheEntry<EncFSFileInfo> entry = lookupInfo(path);
+		if (entry != null) {
+			return entry.value != null;
+		}
+
+		long fetchGeneration = getGeneration();
+		boolean result = provider.exists(path);
+		if (!result) {
+			putInfo(path, null, fetchGeneration);
+		}
+		return result;
+	}
+
+	@Override
+	public String getFilesystemRootPath() {
+		return provider.getFilesystemRootPath();
+	}
+
+	@Override
+	public EncFSFileInfo getFileInfo(String path) throws IOException {
+		CacheEntry<EncFSFileInfo> entry = lookupInfo(path);
+		if (entry != null) {
+			return entry.value;
+		}
+
+		long fetchGeneration = getGeneration();
+		EncFSFileInfo info = provider.getFileInfo(path);
+		putInfo(path, info, fetchGeneration);
+		return info;
+	}
+
+	@Override
+	public List<EncFSFileInfo> listFiles(String path) throws IOException {
+		String normPath = normalize(path);
+		long fetchGeneration;
+
+		synchronized (this) {
+			CacheEntry<LinkedHashMap<String, EncFSFileInfo>> listing = listings
+					.get(normPath);
+			if (listing != null) {
+				if (!listing.isExpired()) {
+					hits++;
+					return new ArrayList<EncFSFileInfo>(listing.value.values());
+				}
+				listings.remove(normPath);
+			}
+			misses++;
+			fetchGeneration = generation;
+		}
+
+		List<EncFSFileInfo> result = provider.listFiles(path);
+		if (result == null) {
+			return null;
+		}
+
+		LinkedHashMap<String, EncFSFileInfo> children = new LinkedHashMap<String, EncFSFileInfo>();
+		for (EncFSFileInfo info : result) {
+			children.put(info.getName(), info);
+		}
+
+		synchronized (this) {
+			// The listing may predate a concurrent change
+			if (fetchGeneration != generation) {
+				Log.v(TAG, "Not caching stale listing of '" + normPath + "'");
+				return result;
+			}
+
+			listings.put(normPath,
+					new CacheEntry<LinkedHashMap<String, EncFSFileInfo>>(
+							children, ttl));
+
+			Log.v(TAG, "Cached listing of '" + normPath + "', hits: " + hits
+					+ " misses: " + misses);
+		}
+
+		return result;
+	}
+
+	@Override
+	public boolean move(String srcPath, String dstPath) throws IOException {
+		try {
+			return provider.move(srcPath, dstPath);
+		} finally {
+			invalidate(srcPath);
+			invalidate(dstPath);
+		}
+	}
+
+	@Override
+	public boolean delete(String path) throws IOException {
+		try {
+			return provider.delete(path);
+		} finally {
+			invalidate(path);
+		}
+	}
+
+	@Override
+	public boolean mkdir(String path) throws IOException {
+		try {
+			return provider.mkdir(path);
+		} finally {
+			invalidate(path);
+		}
+	}
+
+	@Override
+	public boolean mkdirs(String path) throws IOException {
+		try {
+			return provider.mkdirs(path);
+		} finally {
+			// Any of the parents may have been created
+			String normPath = normalize(path);
+			while (normPath != null) {
+				invalidate(normPath);
+				normPath = parentOf(normPath);
+			}
+		}
+	}
+
+	@Override
+	public EncFSFileInfo createFile(String path) throws IOException {
+		try {
+			return provider.createFile(path);
+		} finally {
+			invalidate(path);
+		}
+	}
+
+	@Override
+	public boolean copy(String srcPath, String dstPath) throws IOException {
+		try {
+			return provider.copy(srcPath, dstPath);
+		} finally {
+			invalidate(dstPath);
+		}
+	}
+
+	@Override
+	public InputStream openInputStream(String path) throws IOException {
+		return provider.openInputStream(path);
+	}
+
+	@Override
+	public InputStream openInputStream(String path, long offset, long length)
+			throws IOException {
+		if (provider instanceof RangedFileProvider) {
+			return ((RangedFileProvider) provider).openInputStream(path,
+					offset, length);
+		}
+
+		if (length == 0) {
+			return RangedInputStream.emptyStream();
+		}
+		return new RangedInputStream(provider.openInputStream(path), offset,
+				length);
+	}
+
+	@Override
+	public OutputStream openOutputStream(String path, long length)
+			throws IOException {
+		invalidate(path);
+		return new InvalidatingOutputStream(provider.openOutputStream(path,
+				length), path);
+	}
+
+	@Override
+	public void beginBatch() {
+		if (provider instanceof BatchingFileProvider) {
+			((BatchingFileProvider) provider).beginBatch();
+		}
+	}
+
+	@Override
+	public void endBatch() throws IOException {
+		if (provider instanceof BatchingFileProvider) {
+			((BatchingFileProvider) provider).endBatch();
+		}
+	}
+
+	@Override
+	public boolean isBulkSupported() {
+		return (provider instanceof BulkFileProvider)
+				&& ((BulkFileProvider) provider).isBulkSupported();
+	}
+
+	// Return the wrapped provider's bulk operations
+	private BulkFileProvider bulkProvider() throws IOException {
+		if (!isBulkSupported()) {
+			throw new IOException("Bulk operations not supported");
+		}
+		return (BulkFileProvider) provider;
+	}
+
+	@Override
+	public boolean deleteTree(String path) throws IOException {
+		try {
+			return bulkProvider().deleteTree(path);
+		} finally {
+			invalidate(path);
+		}
+	}
+
+	@Override
+	public boolean copyTree(String srcPath, String dstPath) throws IOException {
+		try {
+			return bulkProvider().copyTree(srcPath, dstPath);
+		} finally {
+			invalidate(dstPath);
+		}
+	}
+
+	@Override
+	public boolean moveTree(String srcPath, String dstPath) throws IOException {
+		try {
+			return bulkProvider().moveTree(srcPath, dstPath);
+		} finally {
+			invalidate(srcPath);
+			invalidate(dstPath);
+		}
+	}
+}
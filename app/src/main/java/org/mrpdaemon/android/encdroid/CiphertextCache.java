@@ -0,0 +1,455 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/*
+ * Size bounded on-disk LRU cache of encrypted file contents.
+ *
+ * Files are stored exactly as read from the file provider, so the cache never
+ * holds any decrypted data. Each cached file is named after a hash of the
+ * provider key and path followed by the modification time and size of the
+ * file it was read from, so a changed file is never served from a stale copy
+ * and the newest copy of a path can still be found when its metadata can't
+ * be fetched, e.g. while offline.
+ *
+ * A file is only added to the cache once it has been read completely.
+ * Evicting a file that is still being read is safe since open files remain
+ * readable after being deleted.
+ */
+public class CiphertextCache {
+
+	// Logger tag
+	private final static String TAG = "CiphertextCache";
+
+	// Suffix of files being written
+	private final static String TMP_SUFFIX = ".tmp";
+
+	// Directory holding the cached files
+	private final File cacheDir;
+
+	// Maximum total size of cached files, 0 disables the cache
+	private long capacity;
+
+	// Total size of cached files
+	private long size = 0;
+
+	// Access ordered map of cached files (name -> length)
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(
+			16, 0.75f, true);
+
+	// Statistics
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public CiphertextCache(File cacheDir, long capacity) {
+		this.cacheDir = cacheDir;
+		this.capacity = capacity;
+
+		if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+			Log.e(TAG, "Failed to create cache directory " + cacheDir);
+		}
+
+		loadEntries();
+	}
+
+	// Rebuild the index from the cache directory, oldest first
+	private synchronized void loadEntries() {
+		File[] files = cacheDir.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long diff = lhs.lastModified() - rhs.lastModified();
+				return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+			}
+		});
+
+		for (File file : files) {
+			if (file.getName().endsWith(TMP_SUFFIX)) {
+				// Left over from an interrupted read
+				file.delete();
+				continue;
+			}
+			entries.put(file.getName(), file.length());
+			size += file.length();
+		}
+
+		Log.d(TAG, "Loaded " + entries.size() + " cached files, " + size
+				+ " bytes");
+
+		trim();
+	}
+
+	// Hash the given provider key and path into the prefix of a file name
+	private static String pathHash(String providerKey, String path) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest((providerKey + "\0" + path)
+					.getBytes("UTF-8"));
+
+			StringBuilder result = new StringBuilder();
+			for (byte b : hash) {
+				result.append(String.format("%02x", b & 0xff));
+			}
+			return result.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Return the cache file name for the given version of a file
+	private static String entryName(String providerKey, String path,
+			long modified, long length) {
+		return pathHash(providerKey, path) + "-" + modified + "-" + length;
+	}
+
+	public synchronized boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	// Change the capacity, evicting files as needed
+	public synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+		trim();
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getFileCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	// Evict least recently used files until we're within capacity
+	private void trim() {
+		Iterator<Map.Entry<String, Long>> iter = entries.entrySet().iterator();
+		while (size > capacity && iter.hasNext()) {
+			Map.Entry<String, Long> entry = iter.next();
+			new File(cacheDir, entry.getKey()).delete();
+			size -= entry.getValue();
+			evictions++;
+			iter.remove();
+		}
+	}
+
+	// Drop the given cached file
+	private void removeEntry(String name) {
+		Long length = entries.remove(name);
+		if (length != null) {
+			size -= length;
+		}
+		new File(cacheDir, name).delete();
+	}
+
+	// Open the given cached file, null if it isn't cached
+	private InputStream openEntry(String name) {
+		// get() rather than containsKey() to move the entry to the MRU end
+		if (entries.get(name) == null) {
+			return null;
+		}
+
+		File file = new File(cacheDir, name);
+		try {
+			InputStream result = new FileInputStream(file);
+			file.setLastModified(System.currentTimeMillis());
+			return result;
+		} catch (FileNotFoundException e) {
+			// Deleted behind our back
+			removeEntry(name);
+			return null;
+		}
+	}
+
+	/*
+	 * Open the cached copy of the given version of a file, null if it isn't
+	 * cached.
+	 */
+	public synchronized InputStream open(String providerKey, String path,
+			long modified, long length) {
+		if (!isEnabled()) {
+			return null;
+		}
+
+		InputStream result = openEntry(entryName(providerKey, path, modified,
+				length));
+		if (result != null) {
+			hits++;
+		} else {
+			misses++;
+		}
+		return result;
+	}
+
+	/*
+	 * Open the most recently cached copy of the given file regardless of its
+	 * version, null if none. Used when the current version can't be
+	 * determined.
+	 */
+	public synchronized InputStream openAnyVersion(String providerKey,
+			String path) {
+		if (!isEnabled()) {
+			return null;
+		}
+
+		String prefix = pathHash(providerKey, path) + "-";
+		String newest = null;
+		for (String name : entries.keySet()) {
+			if (name.startsWith(prefix)) {
+				newest = name;
+			}
+		}
+
+		if (newest == null) {
+			misses++;
+			return null;
+		}
+
+		hits++;
+		return openEntry(newest);
+	}
+
+	/*
+	 * Return a stream reading from the given stream that stores everything
+	 * read into the cache once the whole file of the given length has been
+	 * read. Returns the given stream as is if the file can't be cached.
+	 */
+	public InputStream cacheStream(String providerKey, String path,
+			long modified, long length, InputStream in) {
+		synchronized (this) {
+			if (!isEnabled() || length > capacity) {
+				return in;
+			}
+		}
+
+		String name = entryName(providerKey, path, modified, length);
+		File tmpFile = new File(cacheDir, name + "." + Thread.currentThread().getId()
+				+ TMP_SUFFIX);
+		try {
+			return new CachingInputStream(in, name, tmpFile, length);
+		} catch (IOException e) {
+			Logger.logException(TAG, e);
+			return in;
+		}
+	}
+
+	// Add a completely read file to the cache
+	private synchronized void commit(String name, File tmpFile, long length) {
+		String prefix = name.substring(0, name.indexOf('-') + 1);
+
+		// Drop older versions of the same file
+		Iterator<Map.Entry<String, Long>> iter = entries.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, Long> other = iter.next();
+			if (other.getKey().startsWith(prefix)) {
+				new File(cacheDir, other.getKey()).delete();
+				size -= other.getValue();
+				iter.remove();
+			}
+		}
+
+		if (!tmpFile.renameTo(new File(cacheDir, name))) {
+			tmpFile.delete();
+			return;
+		}
+
+		entries.put(name, length);
+		size += length;
+		trim();
+
+		Log.v(TAG, "Cached " + name + ", total " + size + " bytes");
+	}
+
+	// Delete all cached files
+	public synchronized void purge() {
+		File[] files = cacheDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+
+		entries.clear();
+		size = 0;
+
+		Log.d(TAG, "Cache purged");
+	}
+
+	// Input stream copying everything read into a cache file
+	private class CachingInputStream extends FilterInputStream {
+
+		// Name of the cache entry
+		private final String name;
+
+		// File being written
+		private final File tmpFile;
+
+		// Expected length of the file
+		private final long length;
+
+		// Stream writing the cache file, null once done or failed
+		private FileOutputStream out;
+
+		// Bytes written so far
+		private long written = 0;
+
+		public CachingInputStream(InputStream in, String name, File tmpFile,
+				long length) throws IOException {
+			super(in);
+			this.name = name;
+			this.tmpFile = tmpFile;
+			this.length = length;
+			this.out = new FileOutputStream(tmpFile);
+		}
+
+		// Stop caching and delete the partial file
+		private void abandon() {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					Logger.logException(TAG, e);
+				}
+				out = null;
+				tmpFile.delete();
+			}
+		}
+
+		// Commit the file if we got all of it, otherwise drop it
+		private void finish() {
+			try {
+				out.close();
+				out = null;
+				if (written == length) {
+					commit(name, tmpFile, length);
+				} else {
+					tmpFile.delete();
+				}
+			} catch (IOException e) {
+				Logger.logException(TAG, e);
+				abandon();
+			}
+		}
+
+		// Store the given bytes, count is negative at EOF
+		private void store(byte[] buffer, int offset, int count) {
+			if (out == null) {
+				return;
+			}
+
+			if (count < 0) {
+				finish();
+				return;
+			}
+
+			try {
+				out.write(buffer, offset, count);
+				written += count;
+			} catch (IOException e) {
+				// Out of space or similar, reading goes on without caching
+				Logger.logException(TAG, e);
+				abandon();
+				return;
+			}
+
+			// Readers may stop at the expected length without hitting EOF
+			if (written >= length) {
+				finish();
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			int result = in.read();
+			if (result < 0) {
+				store(null, 0, -1);
+			} else {
+				store(new byte[] { (byte) result }, 0, 1);
+			}
+			return result;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count)
+				throws IOException {
+			int result = in.read(buffer, offset, count);
+			store(buffer, offset, result);
+			return result;
+		}
+
+		@Override
+		public long skip(long byteCount) throws IOException {
+			// Can't cache a file with holes
+			abandon();
+			return in.skip(byteCount);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			// Closed before EOF, don't cache a partial file
+			abandon();
+			super.close();
+		}
+	}
+}
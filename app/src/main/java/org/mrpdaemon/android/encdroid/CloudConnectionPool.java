@@ -0,0 +1,477 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRoute;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import android.util.Log;
+
+/*
+ * Pool of keep-alive HTTP connections for a cloud account, along with the
+ * HTTP client using it.
+ *
+ * Connections are limited per host and in total. They are kept alive for as
+ * long as the server allows, at most KEEP_ALIVE_MS, and idle ones are closed
+ * before the server is likely to drop them. New TLS connections resume
+ * cached sessions where possible instead of doing a full handshake.
+ *
+ * Metadata responses are requested gzip compressed. File contents aren't,
+ * since ciphertext doesn't compress and ranged reads address the unencoded
+ * bytes, so ranged requests and requests to registered content hosts ask
+ * for the identity encoding.
+ *
+ * Requests, new connections, full TLS handshakes and resumed TLS sessions
+ * are counted and logged periodically to check how well connections are
+ * reused.
+ */
+public class CloudConnectionPool {
+
+	// Logger tag
+	private final static String TAG = "CloudConnectionPool";
+
+	// Default number of connections per host
+	public final static int DEFAULT_MAX_PER_HOST = 8;
+
+	// Maximum number of connections in the pool
+	private final static int MAX_TOTAL_CONNECTIONS = 32;
+
+	// Longest time an idle connection is kept alive
+	private final static long KEEP_ALIVE_MS = 30 * 1000;
+
+	// Minimum time between sweeps for expired and idle connections
+	private final static long SWEEP_INTERVAL_MS = 5 * 1000;
+
+	// Connect and socket read timeouts
+	private final static int CONNECT_TIMEOUT_MS = 30 * 1000;
+	private final static int SO_TIMEOUT_MS = 30 * 1000;
+
+	// Socket buffer size
+	private final static int SOCKET_BUFFER_SIZE = 32 * 1024;
+
+	// Number of requests between statistics log messages
+	private final static int STATS_LOG_INTERVAL = 100;
+
+	// Number of TLS session ID's remembered to detect resumed sessions
+	private final static int SESSION_ID_CAPACITY = 64;
+
+	// Name of the pool for log messages
+	private final String name;
+
+	// Connection manager holding the pool
+	private final ClientConnectionManager manager;
+
+	// HTTP client using the pool
+	private final DefaultHttpClient client;
+
+	// Maximum number of connections per host
+	private volatile int maxPerHost;
+
+	// Hosts (and their subdomains) serving file contents
+	private final Set<String> contentHosts = Collections
+			.synchronizedSet(new HashSet<String>());
+
+	// Time of the last sweep for expired and idle connections
+	private long lastSweep = 0;
+
+	// Statistics
+	private long requests = 0;
+	private long connections = 0;
+	private long handshakes = 0;
+	private long resumedSessions = 0;
+
+	// ID's of recently established TLS sessions
+	private final Map<String, Boolean> sessionIds = new LinkedHashMap<String, Boolean>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > SESSION_ID_CAPACITY;
+		}
+	};
+
+	// Socket factory counting the connections it opens
+	private class CountingSocketFactory implements SocketFactory {
+		protected final SocketFactory factory;
+
+		CountingSocketFactory(SocketFactory factory) {
+			this.factory = factory;
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return factory.createSocket();
+		}
+
+		@Override
+		public Socket connectSocket(Socket sock, String host, int port,
+				InetAddress localAddress, int localPort, HttpParams params)
+				throws IOException, UnknownHostException {
+			Socket result = factory.connectSocket(sock, host, port,
+					localAddress, localPort, params);
+			connectionOpened(result);
+			return result;
+		}
+
+		@Override
+		public boolean isSecure(Socket sock) throws IllegalArgumentException {
+			return factory.isSecure(sock);
+		}
+	}
+
+	// Layered socket factory counting the connections it opens
+	private class CountingLayeredSocketFactory extends CountingSocketFactory
+			implements LayeredSocketFactory {
+
+		CountingLayeredSocketFactory(LayeredSocketFactory factory) {
+			super(factory);
+		}
+
+		@Override
+		public Socket createSocket(Socket socket, String host, int port,
+				boolean autoClose) throws IOException, UnknownHostException {
+			// TLS on top of a proxy tunnel, the tunnel was counted already
+			Socket result = ((LayeredSocketFactory) factory).createSocket(
+					socket, host, port, autoClose);
+			tlsEstablished(result);
+			return result;
+		}
+	}
+
+	// Entity decompressing gzip encoded content
+	private static class GzipEntity extends HttpEntityWrapper {
+		GzipEntity(HttpEntity entity) {
+			super(entity);
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new GZIPInputStream(wrappedEntity.getContent());
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+
+		@Override
+		public Header getContentEncoding() {
+			return null;
+		}
+	}
+
+	/*
+	 * Create a pool using the given socket factory for HTTPS connections and
+	 * sending the given user agent, null to leave it to the caller.
+	 */
+	public CloudConnectionPool(String name, SocketFactory sslSocketFactory,
+			String userAgent, int maxPerHost) {
+		this.name = name;
+		this.maxPerHost = maxPerHost;
+
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, "UTF-8");
+		// Don't wait for 100-continue before sending request bodies
+		HttpProtocolParams.setUseExpectContinue(params, false);
+		if (userAgent != null) {
+			HttpProtocolParams.setUserAgent(params, userAgent);
+		}
+		HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT_MS);
+		HttpConnectionParams.setSoTimeout(params, SO_TIMEOUT_MS);
+		HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+		HttpConnectionParams.setTcpNoDelay(params, true);
+		ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRoute() {
+			@Override
+			public int getMaxForRoute(HttpRoute route) {
+				return CloudConnectionPool.this.maxPerHost;
+			}
+		});
+
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", new CountingSocketFactory(
+				PlainSocketFactory.getSocketFactory()), 80));
+		SocketFactory httpsFactory;
+		if (sslSocketFactory instanceof LayeredSocketFactory) {
+			httpsFactory = new CountingLayeredSocketFactory(
+					(LayeredSocketFactory) sslSocketFactory);
+		} else {
+			httpsFactory = new CountingSocketFactory(sslSocketFactory);
+		}
+		registry.register(new Scheme("https", httpsFactory, 443));
+
+		manager = new ThreadSafeClientConnManager(params, registry);
+		client = new DefaultHttpClient(manager, params);
+
+		client.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response,
+					HttpContext context) {
+				return keepAliveDuration(response);
+			}
+		});
+
+		client.addRequestInterceptor(new HttpRequestInterceptor() {
+			@Override
+			public void process(HttpRequest request, HttpContext context)
+					throws HttpException, IOException {
+				HttpHost target = (HttpHost) context
+						.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+
+				if (request.containsHeader("Range")
+						|| (target != null && isContentHost(target
+								.getHostName()))) {
+					request.setHeader("Accept-Encoding", "identity");
+				} else if (!request.containsHeader("Accept-Encoding")) {
+					request.addHeader("Accept-Encoding", "gzip");
+				}
+
+				requestStarted();
+			}
+		});
+
+		client.addResponseInterceptor(new HttpResponseInterceptor() {
+			@Override
+			public void process(HttpResponse response, HttpContext context)
+					throws HttpException, IOException {
+				HttpEntity entity = response.getEntity();
+				if (entity == null || entity.getContentEncoding() == null) {
+					return;
+				}
+				for (HeaderElement codec : entity.getContentEncoding()
+						.getElements()) {
+					if (codec.getName().equalsIgnoreCase("gzip")) {
+						// Hide the encoding so callers don't decode it again
+						response.setEntity(new GzipEntity(entity));
+						response.removeHeaders("Content-Encoding");
+						response.removeHeaders("Content-Length");
+						return;
+					}
+				}
+			}
+		});
+	}
+
+	/*
+	 * Return a socket factory for HTTPS connections that verifies
+	 * certificates against the system trust store and keeps TLS sessions in
+	 * a persistent cache, so they can be resumed across restarts.
+	 */
+	public static SocketFactory createSslSocketFactory(Context context) {
+		return SSLCertificateSocketFactory.getHttpSocketFactory(
+				CONNECT_TIMEOUT_MS, new SSLSessionCache(context));
+	}
+
+	/*
+	 * Number of connections per host needed for the given number of API
+	 * requests in flight, leaving room for uploads, reads and polling.
+	 */
+	public static int connectionsFor(int apiConcurrency) {
+		return Math.max(DEFAULT_MAX_PER_HOST, apiConcurrency * 2);
+	}
+
+	// Return the HTTP client using this pool
+	public HttpClient getHttpClient() {
+		return client;
+	}
+
+	// Change the maximum number of connections per host
+	public void setMaxPerHost(int maxPerHost) {
+		this.maxPerHost = Math.max(1, maxPerHost);
+	}
+
+	/*
+	 * Register a host serving file contents, whose responses aren't
+	 * requested compressed. Subdomains of the host are included.
+	 */
+	public void addContentHost(String host) {
+		contentHosts.add(host.toLowerCase(Locale.US));
+	}
+
+	private boolean isContentHost(String host) {
+		host = host.toLowerCase(Locale.US);
+		synchronized (contentHosts) {
+			for (String contentHost : contentHosts) {
+				if (host.equals(contentHost)
+						|| host.endsWith("." + contentHost)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// How long to keep the connection of the given response alive
+	private static long keepAliveDuration(HttpResponse response) {
+		Header header = response.getFirstHeader("Keep-Alive");
+		if (header != null) {
+			for (HeaderElement element : header.getElements()) {
+				if (element.getName().equalsIgnoreCase("timeout")
+						&& element.getValue() != null) {
+					try {
+						return Math.min(KEEP_ALIVE_MS,
+								Long.parseLong(element.getValue()) * 1000);
+					} catch (NumberFormatException e) {
+						break;
+					}
+				}
+			}
+		}
+		return KEEP_ALIVE_MS;
+	}
+
+	// Account for a new request, sweeping the pool now and then
+	private void requestStarted() {
+		boolean sweep = false;
+		boolean log = false;
+
+		synchronized (this) {
+			requests++;
+
+			long now = System.currentTimeMillis();
+			if (now - lastSweep >= SWEEP_INTERVAL_MS) {
+				lastSweep = now;
+				sweep = true;
+			}
+			log = (requests % STATS_LOG_INTERVAL == 0);
+		}
+
+		if (sweep) {
+			manager.closeExpiredConnections();
+			manager.closeIdleConnections(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+		}
+		if (log) {
+			Log.d(TAG, toString());
+		}
+	}
+
+	private void connectionOpened(Socket socket) {
+		synchronized (this) {
+			connections++;
+		}
+		tlsEstablished(socket);
+	}
+
+	// Record whether a TLS connection resumed a known session
+	private void tlsEstablished(Socket socket) {
+		if (!(socket instanceof SSLSocket)) {
+			return;
+		}
+
+		// The handshake is done by now, this doesn't block
+		byte[] id = ((SSLSocket) socket).getSession().getId();
+		StringBuilder sb = new StringBuilder();
+		for (byte b : id) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		String key = sb.toString();
+
+		synchronized (this) {
+			if (id.length > 0 && sessionIds.containsKey(key)) {
+				resumedSessions++;
+			} else {
+				handshakes++;
+				if (id.length > 0) {
+					sessionIds.put(key, Boolean.TRUE);
+				}
+			}
+		}
+	}
+
+	public synchronized long getRequestCount() {
+		return requests;
+	}
+
+	public synchronized long getConnectionCount() {
+		return connections;
+	}
+
+	public synchronized long getHandshakeCount() {
+		return handshakes;
+	}
+
+	public synchronized long getResumedSessionCount() {
+		return resumedSessions;
+	}
+
+	// Percentage of requests that went over an already open connection
+	public synchronized int getReusePercentage() {
+		if (requests == 0) {
+			return 0;
+		}
+		return (int) (Math.max(0, requests - connections) * 100 / requests);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return name + ": " + requests + " requests over " + connections
+				+ " connections (" + getReusePercentage() + "% reused), "
+				+ handshakes + " full TLS handshakes, " + resumedSessions
+				+ " resumed sessions, " + maxPerHost + " connections per host";
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.mrpdaemon.sec.encfs.EncFSFileInfo;
+import org.mrpdaemon.sec.encfs.EncFSFileProvider;
+
+import android.util.Log;
+
+/*
+ * File provider decorator serving file contents from a CiphertextCache.
+ *
+ * Files are looked up in the cache by their current modification time and
+ * size, and files read in full from the wrapped provider are added to it. If
+ * the file's metadata can't be fetched the newest cached copy is used, which
+ * allows viewing previously opened files while offline.
+ *
+ * The provider key identifies the wrapped provider (account and volume root)
+ * so that equal paths on different volumes don't collide.
+ *
+ * Whole file reads that go to the wrapped provider are read ahead through a
+ * PrefetchInputStream when a prefetch window is given.
+ */
+public class ContentCachingFileProvider implements EncFSFileProvider,
+		BatchingFileProvider, RangedFileProvider, BulkFileProvider {
+
+	// Logger tag
+	private final static String TAG = "ContentCachingFileProvider";
+
+	// Wrapped file provider
+	private final EncFSFileProvider provider;
+
+	// Cache holding file contents
+	private final CiphertextCache cache;
+
+	// Key identifying the wrapped provider in the cache
+	private final String providerKey;
+
+	// Read ahead window in bytes, 0 to disable read ahead
+	private final int prefetchWindow;
+
+	public ContentCachingFileProvider(EncFSFileProvider provider,
+			CiphertextCache cache, String providerKey, int prefetchWindow) {
+		this.provider = provider;
+		this.cache = cache;
+		this.providerKey = providerKey;
+		this.prefetchWindow = prefetchWindow;
+	}
+
+	// Open the given file on the wrapped provider, reading ahead if enabled
+	private InputStream openSource(final String path) throws IOException {
+		InputStream in = provider.openInputStream(path);
+		if (in == null || prefetchWindow <= 0) {
+			return in;
+		}
+
+		// Resume with a range request if the connection drops
+		PrefetchInputStream.Reopener reopener = null;
+		if (provider instanceof RangedFileProvider) {
+			reopener = new PrefetchInputStream.Reopener() {
+				@Override
+				public InputStream reopen(long offset) throws IOException {
+					InputStream result = ((RangedFileProvider) provider)
+							.openInputStream(path, offset, -1);
+					if (result == null) {
+						throw new IOException("Can't reopen '" + path + "'");
+					}
+					return result;
+				}
+			};
+		}
+
+		return new PrefetchInputStream(in, prefetchWindow, reopener);
+	}
+
+	// Return the wrapped file provider
+	public EncFSFileProvider getProvider() {
+		return provider;
+	}
+
+	/*
+	 * Return a stream for the cached copy of the given file, null if it isn't
+	 * cached. Sets info[0] to the file's current info if it could be fetched.
+	 */
+	private InputStream openCached(String path, EncFSFileInfo[] info)
+			throws IOException {
+		try {
+			info[0] = provider.getFileInfo(path);
+		} catch (IOException e) {
+			InputStream cached = cache.openAnyVersion(providerKey, path);
+			if (cached != null) {
+				Log.d(TAG, "Serving cached copy of '" + path
+						+ "' without metadata: " + e.toString());
+				return cached;
+			}
+			throw e;
+		}
+
+		if (info[0] == null || info[0].isDirectory()) {
+			return null;
+		}
+
+		return cache.open(providerKey, path, info[0].getLastModified(),
+				info[0].getSize());
+	}
+
+	@Override
+	public InputStream openInputStream(String path) throws IOException {
+		if (!cache.isEnabled()) {
+			return openSource(path);
+		}
+
+		EncFSFileInfo[] info = new EncFSFileInfo[1];
+		InputStream cached = openCached(path, info);
+		if (cached != null) {
+			Log.v(TAG, "Cache hit for '" + path + "'");
+			return cached;
+		}
+
+		InputStream in = openSource(path);
+		if (in == null || info[0] == null || info[0].isDirectory()) {
+			return in;
+		}
+
+		return cache.cacheStream(providerKey, path, info[0].getLastModified(),
+				info[0].getSize(), in);
+	}
+
+	@Override
+	public InputStream openInputStream(String path, long offset, long length)
+			throws IOException {
+		if (length == 0) {
+			return RangedInputStream.emptyStream();
+		}
+
+		if (cache.isEnabled()) {
+			InputStream cached = openCached(path, new EncFSFileInfo[1]);
+			if (cached != null) {
+				return new RangedInputStream(cached, offset, length);
+			}
+		}
+
+		// Partial reads aren't added to the cache
+		if (provider instanceof RangedFileProvider) {
+			return ((RangedFileProvider) provider).openInputStream(path,
+					offset, length);
+		}
+		return new RangedInputStream(provider.openInputStream(path), offset,
+				length);
+	}
+
+	@Override
+	public boolean isDirectory(String path) throws IOException {
+		return provider.isDirectory(path);
+	}
+
+	@Override
+	public boolean exists(String path) throws IOException {
+		return provider.exists(path);
+	}
+
+	@Override
+	public String getFilesystemRootPath() {
+		return provider.getFilesystemRootPath();
+	}
+
+	@Override
+	public EncFSFileInfo getFileInfo(String path) throws IOException {
+		return provider.getFileInfo(path);
+	}
+
+	@Override
+	public List<EncFSFileInfo> listFiles(String path) throws IOException {
+		return provider.listFiles(path);
+	}
+
+	/*
+	 * Cached copies don't need to be invalidated on modification since they
+	 * are keyed by modification time and size, stale ones age out of the LRU.
+	 */
+
+	@Override
+	public boolean move(String srcPath, String dstPath) throws IOException {
+		return provider.move(srcPath, dstPath);
+	}
+
+	@Override
+	public boolean delete(String path) throws IOException {
+		return provider.delete(path);
+	}
+
+	@Override
+	public boolean mkdir(String path) throws IOException {
+		return provider.mkdir(path);
+	}
+
+	@Override
+	public boolean mkdirs(String path) throws IOException {
+		return provider.mkdirs(path);
+	}
+
+	@Override
+	public EncFSFileInfo createFile(String path) throws IOException {
+		return provider.createFile(path);
+	}
+
+	@Override
+	public boolean copy(String srcPath, String dstPath) throws IOException {
+		return provider.copy(srcPath, dstPath);
+	}
+
+	@Override
+	public OutputStream openOutputStream(String path, long length)
+			throws IOException {
+		return provider.openOutputStream(path, length);
+	}
+
+	@Override
+	public void beginBatch() {
+		if (provider instanceof BatchingFileProvider) {
+			((BatchingFileProvider) provider).beginBatch();
+		}
+	}
+
+	@Override
+	public void endBatch() throws IOException {
+		if (provider instanceof BatchingFileProvider) {
+			((BatchingFileProvider) provider).endBatch();
+		}
+	}
+
+	@Override
+	public boolean isBulkSupported() {
+		return (provider instanceof BulkFileProvider)
+				&& ((BulkFileProvider) provider).isBulkSupported();
+	}
+
+	// Return the wrapped provider's bulk operations
+	private BulkFileProvider bulkProvider() throws IOException {
+		if (!isBulkSupported()) {
+			throw new IOException("Bulk operations not supported");
+		}
+		return (BulkFileProvider) provider;
+	}
+
+	@Override
+	public boolean deleteTree(String path) throws IOException {
+		return bulkProvider().deleteTree(path);
+	}
+
+	@Override
+	public boolean copyTree(String srcPath, String dstPath) throws IOException {
+		return bulkProvider().copyTree(srcPath, dstPath);
+	}
+
+	@Override
+	public boolean moveTree(String srcPath, String dstPath) throws IOException {
+		return bulkProvider().moveTree(srcPath, dstPath);
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Thread pool for encrypting and decrypting file contents, shared by all
+ * transfers. It has a thread per available core since the work is CPU
+ * bound.
+ */
+public class CryptoExecutor {
+
+	// The shared pool, created on first use
+	private static ExecutorService executor = null;
+
+	// Number of threads in the pool
+	public static int getParallelism() {
+		return Math.max(1, Runtime.getRuntime().availableProcessors());
+	}
+
+	// Return the shared pool
+	public static synchronized ExecutorService get() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(getParallelism(),
+					new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "Crypto-"
+									+ count.incrementAndGet());
+							// Don't keep the process alive for idle workers
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return executor;
+	}
+}
@@ -20,10 +20,13 @@ package org.mrpdaemon.android.encdroid;
 
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
@@ -39,7 +42,7 @@ public class DBHelper extends SQLiteOpenHelper {
 	public static final String DB_NAME = "volume.db";
 
 	// Database version
-	public static final int DB_VERSION = 4;
+	public static final int DB_VERSION = 7;
 
 	// Volume table name
 	public static final String DB_TABLE = "volumes";
@@ -52,6 +55,32 @@ public class DBHelper extends SQLiteOpenHelper {
 	public static final String DB_COL_TYPE = "type";
 	public static final String DB_COL_KEY = "key";
 
+	// Google Drive file ID cache table name
+	public static final String DB_DRIVE_ID_TABLE = "drive_file_ids";
+
+	// Google Drive file ID cache column names
+	public static final String DB_COL_ACCOUNT = "account";
+	public static final String DB_COL_FILE_ID = "fileId";
+
+	// Dropbox metadata mirror table names
+	public static final String DB_DROPBOX_MIRROR_TABLE = "dropbox_mirror";
+	public static final String DB_DROPBOX_CURSOR_TABLE = "dropbox_cursors";
+
+	// Dropbox metadata mirror column names
+	public static final String DB_COL_ROOT = "root";
+	public static final String DB_COL_LC_PATH = "lcPath";
+	public static final String DB_COL_LC_PARENT = "lcParent";
+	public static final String DB_COL_IS_DIR = "isDir";
+	public static final String DB_COL_SIZE = "size";
+	public static final String DB_COL_MODIFIED = "modified";
+	public static final String DB_COL_CURSOR = "cursor";
+
+	// Write-back upload journal table name
+	public static final String DB_UPLOAD_JOURNAL_TABLE = "upload_journal";
+
+	// Write-back upload journal column names
+	public static final String DB_COL_STAGING_FILE = "stagingFile";
+
 	private static final String[] NO_ARGS = {};
 
 	// Application object
@@ -71,19 +100,86 @@ public class DBHelper extends SQLiteOpenHelper {
 				+ DB_COL_CONFIGPATH + " text)";
 		Log.d(TAG, "onCreate() executing SQL: " + sqlCmd);
 		db.execSQL(sqlCmd);
+
+		createDriveIdTable(db);
+		createDropboxMirrorTables(db);
+		createUploadJournalTable(db);
+	}
+
+	private void createDriveIdTable(SQLiteDatabase db) {
+		String sqlCmd = "CREATE TABLE IF NOT EXISTS " + DB_DRIVE_ID_TABLE
+				+ " (" + DB_COL_ACCOUNT + " text not null, " + DB_COL_PATH
+				+ " text not null, " + DB_COL_FILE_ID + " text not null, "
+				+ "primary key (" + DB_COL_ACCOUNT + ", " + DB_COL_PATH + "))";
+		Log.d(TAG, "createDriveIdTable() executing SQL: " + sqlCmd);
+		db.execSQL(sqlCmd);
+	}
+
+	private void createDropboxMirrorTables(SQLiteDatabase db) {
+		String sqlCmd = "CREATE TABLE IF NOT EXISTS " + DB_DROPBOX_MIRROR_TABLE
+				+ " (" + DB_COL_ROOT + " text not null, " + DB_COL_LC_PATH
+				+ " text not null, " + DB_COL_PATH + " text not null, "
+				+ DB_COL_LC_PARENT + " text not null, " + DB_COL_IS_DIR
+				+ " int, " + DB_COL_SIZE + " int, " + DB_COL_MODIFIED
+				+ " int, primary key (" + DB_COL_ROOT + ", " + DB_COL_LC_PATH
+				+ "))";
+		Log.d(TAG, "createDropboxMirrorTables() executing SQL: " + sqlCmd);
+		db.execSQL(sqlCmd);
+
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_DROPBOX_MIRROR_TABLE
+				+ "_parent ON " + DB_DROPBOX_MIRROR_TABLE + " (" + DB_COL_ROOT
+				+ ", " + DB_COL_LC_PARENT + ")");
+
+		sqlCmd = "CREATE TABLE IF NOT EXISTS " + DB_DROPBOX_CURSOR_TABLE + " ("
+				+ DB_COL_ROOT + " text primary key, " + DB_COL_CURSOR
+				+ " text)";
+		Log.d(TAG, "createDropboxMirrorTables() executing SQL: " + sqlCmd);
+		db.execSQL(sqlCmd);
+	}
+
+	private void createUploadJournalTable(SQLiteDatabase db) {
+		String sqlCmd = "CREATE TABLE IF NOT EXISTS " + DB_UPLOAD_JOURNAL_TABLE
+				+ " (" + DB_COL_ID + " integer primary key autoincrement, "
+				+ DB_COL_TYPE + " int, " + DB_COL_ROOT + " text not null, "
+				+ DB_COL_PATH + " text not null, " + DB_COL_STAGING_FILE
+				+ " text not null, " + DB_COL_SIZE + " int)";
+		Log.d(TAG, "createUploadJournalTable() executing SQL: " + sqlCmd);
+		db.execSQL(sqlCmd);
 	}
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		if (oldVersion < 3) {
+			db.execSQL("DROP TABLE IF EXISTS " + DB_TABLE);
+			db.execSQL("DROP TABLE IF EXISTS " + DB_DRIVE_ID_TABLE);
+			db.execSQL("DROP TABLE IF EXISTS " + DB_DROPBOX_MIRROR_TABLE);
+			db.execSQL("DROP TABLE IF EXISTS " + DB_DROPBOX_CURSOR_TABLE);
+			db.execSQL("DROP TABLE IF EXISTS " + DB_UPLOAD_JOURNAL_TABLE);
+			Log.d(TAG, "onUpgrade() recreating DB");
+			onCreate(db);
+			return;
+		}
+
 		// Adding column DB_COL_CONFIGPATH on upgrade
 		if (oldVersion == 3) {
 			Log.d(TAG, "onUpgrade() Upgrading DB");
 			db.execSQL("ALTER TABLE " + DB_TABLE + " ADD COLUMN "
 					+ DB_COL_CONFIGPATH + " TEXT");
-		} else {
-			db.execSQL("DROP TABLE IF EXISTS " + DB_TABLE);
-			Log.d(TAG, "onUpgrade() recreating DB");
-			onCreate(db);
+		}
+
+		// Adding Google Drive file ID cache table on upgrade
+		if (oldVersion <= 4) {
+			createDriveIdTable(db);
+		}
+
+		// Adding Dropbox metadata mirror tables on upgrade
+		if (oldVersion <= 5) {
+			createDropboxMirrorTables(db);
+		}
+
+		// Adding write-back upload journal table on upgrade
+		if (oldVersion <= 6) {
+			createUploadJournalTable(db);
 		}
 	}
 
@@ -231,4 +327,228 @@ public class DBHelper extends SQLiteOpenHelper {
 
 		return volumes;
 	}
-}
\ No newline at end of file
+
+	public Map<String, String> getDriveFileIds(String account) {
+		HashMap<String, String> result = new HashMap<String, String>();
+		SQLiteDatabase db = getReadableDatabase();
+
+		Cursor cursor = db.query(DB_DRIVE_ID_TABLE, new String[] {
+				DB_COL_PATH, DB_COL_FILE_ID }, DB_COL_ACCOUNT + "=?",
+				new String[] { account }, null, null, null);
+
+		int pathColId = cursor.getColumnIndex(DB_COL_PATH);
+		int fileIdColId = cursor.getColumnIndex(DB_COL_FILE_ID);
+
+		if (cursor.moveToFirst()) {
+			do {
+				result.put(cursor.getString(pathColId),
+						cursor.getString(fileIdColId));
+			} while (cursor.moveToNext());
+		}
+		cursor.close();
+
+		return result;
+	}
+
+	public void insertDriveFileId(String account, String path, String fileId) {
+		SQLiteDatabase db = getWritableDatabase();
+
+		ContentValues values = new ContentValues();
+		values.put(DB_COL_ACCOUNT, account);
+		values.put(DB_COL_PATH, path);
+		values.put(DB_COL_FILE_ID, fileId);
+
+		db.insertWithOnConflict(DB_DRIVE_ID_TABLE, null, values,
+				SQLiteDatabase.CONFLICT_REPLACE);
+	}
+
+	// Delete the cached file ID for the given path only
+	public void deleteDriveFileId(String account, String path) {
+		SQLiteDatabase db = getWritableDatabase();
+
+		db.delete(DB_DRIVE_ID_TABLE, DB_COL_ACCOUNT + "=? AND " + DB_COL_PATH
+				+ "=?", new String[] { account, path });
+	}
+
+	// Delete cached file ID's for the given path and all paths under it
+	public void deleteDriveFileIds(String account, String path) {
+		SQLiteDatabase db = getWritableDatabase();
+
+		String prefix = path.endsWith("/") ? path : path + "/";
+
+		db.delete(DB_DRIVE_ID_TABLE, DB_COL_ACCOUNT + "=? AND (" + DB_COL_PATH
+				+ "=? OR substr(" + DB_COL_PATH + ", 1, "
+				+ prefix.length() + ")=?)", new String[] { account, path,
+				prefix });
+	}
+
+	public void clearDriveFileIds(String account) {
+		SQLiteDatabase db = getWritableDatabase();
+
+		Log.d(TAG, "clearDriveFileIds() for account " + account);
+
+		db.delete(DB_DRIVE_ID_TABLE, DB_COL_ACCOUNT + "=?",
+				new String[] { account });
+	}
+
+	public String getDropboxCursor(String root) {
+		SQLiteDatabase db = getReadableDatabase();
+
+		Cursor cursor = db.query(DB_DROPBOX_CURSOR_TABLE,
+				new String[] { DB_COL_CURSOR }, DB_COL_ROOT + "=?",
+				new String[] { root }, null, null, null);
+
+		String result = null;
+		if (cursor.moveToFirst()) {
+			result = cursor.getString(0);
+		}
+		cursor.close();
+
+		return result;
+	}
+
+	public void setDropboxCursor(String root, String deltaCursor) {
+		SQLiteDatabase db = getWritableDatabase();
+
+		ContentValues values = new ContentValues();
+		values.put(DB_COL_ROOT, root);
+		values.put(DB_COL_CURSOR, deltaCursor);
+
+		db.insertWithOnConflict(DB_DROPBOX_CURSOR_TABLE, null, values,
+				SQLiteDatabase.CONFLICT_REPLACE);
+	}
+
+	public void insertDropboxMirrorEntry(String root, String lcPath,
+			String path, String lcParent, boolean isDir, long size,
+			long modified) {
+		SQLiteDatabase db = getWritableDatabase();
+
+		ContentValues values = new ContentValues();
+		values.put(DB_COL_ROOT, root);
+		values.put(DB_COL_LC_PATH, lcPath);
+		values.put(DB_COL_PATH, path);
+		values.put(DB_COL_LC_PARENT, lcParent);
+		values.put(DB_COL_IS_DIR, isDir ? 1 : 0);
+		values.put(DB_COL_SIZE, size);
+		values.put(DB_COL_MODIFIED, modified);
+
+		db.insertWithOnConflict(DB_DROPBOX_MIRROR_TABLE, null, values,
+				SQLiteDatabase.CONFLICT_REPLACE);
+	}
+
+	// Delete mirrored entries under the given path, and the path itself if set
+	public void deleteDropboxMirrorEntries(String root, String lcPath,
+			boolean includeSelf) {
+		SQLiteDatabase db = getWritableDatabase();
+
+		String prefix = lcPath.endsWith("/") ? lcPath : lcPath + "/";
+
+		String where = "substr(" + DB_COL_LC_PATH + ", 1, " + prefix.length()
+				+ ")=?";
+		if (includeSelf) {
+			where = "(" + DB_COL_LC_PATH + "=? OR " + where + ")";
+			db.delete(DB_DROPBOX_MIRROR_TABLE, DB_COL_ROOT + "=? AND " + where,
+					new String[] { root, lcPath, prefix });
+		} else {
+			db.delete(DB_DROPBOX_MIRROR_TABLE, DB_COL_ROOT + "=? AND " + where,
+					new String[] { root, prefix });
+		}
+	}
+
+	public ContentValues getDropboxMirrorEntry(String root, String lcPath) {
+		SQLiteDatabase db = getReadableDatabase();
+
+		Cursor cursor = db.query(DB_DROPBOX_MIRROR_TABLE, null, DB_COL_ROOT
+				+ "=? AND " + DB_COL_LC_PATH + "=?", new String[] { root,
+				lcPath }, null, null, null);
+
+		ContentValues result = null;
+		if (cursor.moveToFirst()) {
+			result = new ContentValues();
+			DatabaseUtils.cursorRowToContentValues(cursor, result);
+		}
+		cursor.close();
+
+		return result;
+	}
+
+	public List<ContentValues> getDropboxMirrorChildren(String root,
+			String lcParent) {
+		ArrayList<ContentValues> result = new ArrayList<ContentValues>();
+		SQLiteDatabase db = getReadableDatabase();
+
+		Cursor cursor = db.query(DB_DROPBOX_MIRROR_TABLE, null, DB_COL_ROOT
+				+ "=? AND " + DB_COL_LC_PARENT + "=?", new String[] { root,
+				lcParent }, null, null, null);
+
+		if (cursor.moveToFirst()) {
+			do {
+				ContentValues values = new ContentValues();
+				DatabaseUtils.cursorRowToContentValues(cursor, values);
+				result.add(values);
+			} while (cursor.moveToNext());
+		}
+		cursor.close();
+
+		return result;
+	}
+
+	// Drop the mirror and cursor for the given root, all roots if null
+	public void clearDropboxMirror(String root) {
+		SQLiteDatabase db = getWritableDatabase();
+
+		Log.d(TAG, "clearDropboxMirror() for root " + root);
+
+		if (root == null) {
+			db.delete(DB_DROPBOX_MIRROR_TABLE, null, null);
+			db.delete(DB_DROPBOX_CURSOR_TABLE, null, null);
+		} else {
+			db.delete(DB_DROPBOX_MIRROR_TABLE, DB_COL_ROOT + "=?",
+					new String[] { root });
+			db.delete(DB_DROPBOX_CURSOR_TABLE, DB_COL_ROOT + "=?",
+					new String[] { root });
+		}
+	}
+
+	// Add an upload to the journal, returns its ID
+	public long insertUploadJournalEntry(int fsType, String root, String path,
+			String stagingFile, long size) {
+		SQLiteDatabase db = getWritableDatabase();
+
+		ContentValues values = new ContentValues();
+		values.put(DB_COL_TYPE, fsType);
+		values.put(DB_COL_ROOT, root);
+		values.put(DB_COL_PATH, path);
+		values.put(DB_COL_STAGING_FILE, stagingFile);
+		values.put(DB_COL_SIZE, size);
+
+		return db.insert(DB_UPLOAD_JOURNAL_TABLE, null, values);
+	}
+
+	public void deleteUploadJournalEntry(long id) {
+		SQLiteDatabase db = getWritableDatabase();
+
+		db.delete(DB_UPLOAD_JOURNAL_TABLE, DB_COL_ID + "=?",
+				new String[] { Long.toString(id) });
+	}
+
+	// Return all journaled uploads in the order they were added
+	public List<ContentValues> getUploadJournal() {
+		ArrayList<ContentValues> result = new ArrayList<ContentValues>();
+		SQLiteDatabase db = getReadableDatabase();
+
+		Cursor cursor = db.query(DB_UPLOAD_JOURNAL_TABLE, null, null, null,
+				null, null, DB_COL_ID);
+
+		if (cursor.moveToFirst()) {
+			do {
+				ContentValues values = new ContentValues();
+				DatabaseUtils.cursorRowToContentValues(cursor, values);
+				result.add(values);
+			} while (cursor.moveToNext());
+		}
+		cursor.close();
+
+		return result;
+	}
+}
@@ -18,6 +18,9 @@
 
 package org.mrpdaemon.android.encdroid;
 
+import java.util.HashMap;
+
+import org.apache.http.client.HttpClient;
 import org.mrpdaemon.sec.encfs.EncFSFileProvider;
 
 import android.app.Activity;
@@ -25,9 +28,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.dropbox.client2.DropboxAPI;
+import com.dropbox.client2.SecureSSLSocketFactory;
 import com.dropbox.client2.android.AndroidAuthSession;
 import com.dropbox.client2.exception.DropboxException;
 import com.dropbox.client2.session.AccessTokenPair;
@@ -47,6 +52,10 @@ public class DropboxAccount extends Account {
 	// Log tag
 	private final static String TAG = "DropboxAccount";
 
+	// Sustained API request rate (per second) and burst size
+	private final static double REQUEST_RATE = 10;
+	private final static int REQUEST_BURST = 20;
+
 	// Preference keys
 	private final static String PREFS_KEY = "dropbox_prefs";
 	private final static String PREF_LINKED = "is_linked";
@@ -75,10 +84,51 @@ public class DropboxAccount extends Account {
 	// User name
 	private String userName;
 
+	// Directory listing cache shared by all file providers of this account
+	private DropboxListingCache listingCache = new DropboxListingCache();
+
+	// Metadata mirrors by volume root path
+	private HashMap<String, DropboxMirror> mirrors = new HashMap<String, DropboxMirror>();
+
+	// Application preferences
+	private SharedPreferences mAppPrefs;
+
+	// Scheduler for API requests of all file providers of this account
+	private RequestScheduler scheduler;
+
+	// Pool of HTTP connections to the Dropbox API, created with the session
+	private CloudConnectionPool connectionPool = null;
+
+	// Session sending its requests through the account's connection pool
+	private static class PooledSession extends AndroidAuthSession {
+		private final CloudConnectionPool pool;
+
+		PooledSession(CloudConnectionPool pool, AppKeyPair appKeyPair,
+				AccessType type) {
+			super(appKeyPair, type);
+			this.pool = pool;
+		}
+
+		PooledSession(CloudConnectionPool pool, AppKeyPair appKeyPair,
+				AccessType type, AccessTokenPair accessTokenPair) {
+			super(appKeyPair, type, accessTokenPair);
+			this.pool = pool;
+		}
+
+		@Override
+		public synchronized HttpClient getHttpClient() {
+			return pool.getHttpClient();
+		}
+	}
+
 	public DropboxAccount(EDApplication app) {
 		mApp = app;
 
 		mPrefs = mApp.getSharedPreferences(PREFS_KEY, 0);
+		mAppPrefs = PreferenceManager.getDefaultSharedPreferences(mApp);
+
+		scheduler = new RequestScheduler(DropboxFileProvider.RETRY_POLICY,
+				getApiConcurrency(mAppPrefs), REQUEST_RATE, REQUEST_BURST);
 
 		// Figure out whether we're linked to a Dropbox account
 		linked = mPrefs.getBoolean(PREF_LINKED, false);
@@ -105,12 +155,13 @@ public class DropboxAccount extends Account {
 
 		AppKeyPair appKeyPair = new AppKeyPair(APP_KEY, APP_SECRET);
 		AndroidAuthSession session;
+		CloudConnectionPool pool = getConnectionPool();
 
 		if (!linked) {
 			// need to link with the account
 			Log.d(TAG, "Linking with dropbox account");
 			linkInProgress = true;
-			session = new AndroidAuthSession(appKeyPair, ACCESS_TYPE);
+			session = new PooledSession(pool, appKeyPair, ACCESS_TYPE);
 		} else {
 			Log.d(TAG,
 					"Using existing access tokens to authenticate with Dropbox");
@@ -120,7 +171,7 @@ public class DropboxAccount extends Account {
 			String secret = mPrefs.getString(PREF_ACCESS_SECRET, null);
 
 			AccessTokenPair accessTokens = new AccessTokenPair(key, secret);
-			session = new AndroidAuthSession(appKeyPair, ACCESS_TYPE,
+			session = new PooledSession(pool, appKeyPair, ACCESS_TYPE,
 					accessTokens);
 
 			authenticated = true;
@@ -128,6 +179,11 @@ public class DropboxAccount extends Account {
 
 		mApi = new DropboxAPI<AndroidAuthSession>(session);
 
+		// Mirrors hold on to the API object, recreate them with the new one
+		synchronized (mirrors) {
+			mirrors.clear();
+		}
+
 		if (!linked) {
 			session.startAuthentication(context);
 		}
@@ -216,6 +272,11 @@ public class DropboxAccount extends Account {
 		linked = false;
 		userName = "";
 		mApi = null;
+		listingCache.clear();
+		synchronized (mirrors) {
+			mirrors.clear();
+		}
+		mApp.getDbHelper().clearDropboxMirror(null);
 
 		Log.d(TAG, "Dropbox account unlinked");
 	}
@@ -242,7 +303,54 @@ public class DropboxAccount extends Account {
 
 	@Override
 	public EncFSFileProvider getFileProvider(String path) {
-		return new DropboxFileProvider(mApi, path);
+		int concurrency = getApiConcurrency(mAppPrefs);
+		scheduler.setMaxConcurrency(concurrency);
+		getConnectionPool().setMaxPerHost(
+				CloudConnectionPool.connectionsFor(concurrency));
+		return new DropboxFileProvider(mApi, listingCache, getMirror(path),
+				scheduler, path);
+	}
+
+	/*
+	 * Return the connection pool, creating it on first use. HTTPS
+	 * connections use the SDK's socket factory, which only trusts the
+	 * certificates Dropbox is known to use.
+	 */
+	private synchronized CloudConnectionPool getConnectionPool() {
+		if (connectionPool == null) {
+			SecureSSLSocketFactory sslSocketFactory;
+			try {
+				sslSocketFactory = new SecureSSLSocketFactory();
+			} catch (Exception e) {
+				// Only fails if the bundled trust store is broken
+				throw new RuntimeException(e);
+			}
+
+			connectionPool = new CloudConnectionPool(TAG, sslSocketFactory,
+					"OfficialDropboxJavaSDK/" + DropboxAPI.SDK_VERSION,
+					CloudConnectionPool.connectionsFor(getApiConcurrency(mAppPrefs)));
+			// File contents are served from there
+			connectionPool.addContentHost("api-content.dropbox.com");
+		}
+		return connectionPool;
+	}
+
+	// Return the metadata mirror for the given volume root, null if disabled
+	private DropboxMirror getMirror(String path) {
+		// Mirroring the whole Dropbox isn't worth it
+		if (!mAppPrefs.getBoolean("dropbox_mirror", false) || path.equals("/")) {
+			return null;
+		}
+
+		synchronized (mirrors) {
+			DropboxMirror mirror = mirrors.get(path);
+			if (mirror == null) {
+				mirror = new DropboxMirror(mApp.getDbHelper(),
+						DropboxMirror.apiDeltaSource(mApi, scheduler), path);
+				mirrors.put(path, mirror);
+			}
+			return mirror;
+		}
 	}
 
 	@Override
@@ -18,7 +18,6 @@
 
 package org.mrpdaemon.android.encdroid;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -30,14 +29,20 @@ import org.mrpdaemon.sec.encfs.EncFSFileProvider;
 
 import android.util.Log;
 
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
 import com.dropbox.client2.DropboxAPI;
 import com.dropbox.client2.RESTUtility;
+import com.dropbox.client2.DropboxAPI.DropboxInputStream;
 import com.dropbox.client2.DropboxAPI.Entry;
 import com.dropbox.client2.android.AndroidAuthSession;
 import com.dropbox.client2.exception.DropboxException;
+import com.dropbox.client2.exception.DropboxIOException;
 import com.dropbox.client2.exception.DropboxServerException;
 
-public class DropboxFileProvider implements EncFSFileProvider {
+public class DropboxFileProvider implements EncFSFileProvider,
+		RangedFileProvider, BulkFileProvider {
 
 	// Logger tag
 	private final static String TAG = "DropboxFileProvider";
@@ -48,10 +53,58 @@ public class DropboxFileProvider implements EncFSFileProvider {
 	// Root path for this file provider
 	private String rootPath;
 
+	// Directory listing cache, shared across the account
+	private DropboxListingCache listingCache;
+
+	// Local metadata mirror of the volume, null if disabled
+	private DropboxMirror mirror;
+
+	// Files created but not uploaded yet
+	private PendingFileSet pendingFiles = new PendingFileSet();
+
+	// Scheduler for API requests, shared across the account
+	private RequestScheduler scheduler;
+
+	/*
+	 * Retry policy for Dropbox requests. Dropbox answers 429 or 503 when rate
+	 * limiting, which means the request wasn't acted upon. The SDK doesn't
+	 * expose the Retry-After header so these use the default backoff.
+	 */
+	public final static RequestScheduler.RetryPolicy RETRY_POLICY = new RequestScheduler.RetryPolicy() {
+		@Override
+		public long getRetryDelay(Exception e, boolean idempotent) {
+			if (e instanceof DropboxServerException) {
+				int error = ((DropboxServerException) e).error;
+				if (error == 429
+						|| error == DropboxServerException._503_SERVICE_UNAVAILABLE) {
+					return RequestScheduler.BACKOFF;
+				}
+				if (error >= 500 && idempotent) {
+					return RequestScheduler.BACKOFF;
+				}
+			} else if (e instanceof DropboxIOException && idempotent) {
+				return RequestScheduler.BACKOFF;
+			}
+			return RequestScheduler.NO_RETRY;
+		}
+	};
+
 	public DropboxFileProvider(DropboxAPI<AndroidAuthSession> api,
-			String rootPath) {
+			DropboxListingCache listingCache, DropboxMirror mirror,
+			RequestScheduler scheduler, String rootPath) {
 		this.api = api;
 		this.rootPath = rootPath;
+		this.mirror = mirror;
+		if (listingCache != null) {
+			this.listingCache = listingCache;
+		} else {
+			this.listingCache = new DropboxListingCache();
+		}
+		if (scheduler != null) {
+			this.scheduler = scheduler;
+		} else {
+			this.scheduler = new RequestScheduler(RETRY_POLICY, 1, 0, 1);
+		}
 	}
 
 	// Generate absolute path for a given relative path
@@ -68,6 +121,34 @@ public class DropboxFileProvider implements EncFSFileProvider {
 		}
 	}
 
+	// Return the mirror after bringing it up to date, null if not available
+	private DropboxMirror syncedMirror() {
+		if (mirror == null) {
+			return null;
+		}
+
+		try {
+			mirror.syncIfStale();
+			return mirror;
+		} catch (DropboxException e) {
+			// Fall back to querying Dropbox directly
+			Logger.logException(TAG, e);
+			return null;
+		}
+	}
+
+	// Fetch the metadata of the given absolute path
+	private Entry metadata(final String path, final int fileLimit,
+			final String hash, final boolean list) throws DropboxException {
+		return scheduler.execute(
+				new RequestScheduler.Request<Entry, DropboxException>() {
+					@Override
+					public Entry execute() throws DropboxException {
+						return api.metadata(path, fileLimit, hash, list, null);
+					}
+				}, true);
+	}
+
 	private void handleDropboxException(DropboxException e) throws IOException {
 		Logger.logException(TAG, e);
 		if (e.getMessage() != null) {
@@ -78,7 +159,17 @@ public class DropboxFileProvider implements EncFSFileProvider {
 	}
 
 	@Override
-	public boolean copy(String srcPath, String dstPath) throws IOException {
+	public boolean copy(final String srcPath, final String dstPath)
+			throws IOException {
+
+		// Copy of a file that hasn't been uploaded yet
+		if (pendingFiles.get(srcPath) != null) {
+			if (exists(dstPath)) {
+				delete(dstPath);
+			}
+			pendingFiles.add(dstPath, pendingFileInfo(dstPath));
+			return true;
+		}
 
 		/*
 		 * If destination path exists, delete it first. This is a workaround for
@@ -91,9 +182,24 @@ public class DropboxFileProvider implements EncFSFileProvider {
 		}
 
 		try {
-			api.copy(absPath(srcPath), absPath(dstPath));
+			Entry entry = scheduler.execute(
+					new RequestScheduler.Request<Entry, DropboxException>() {
+						@Override
+						public Entry execute() throws DropboxException {
+							return api.copy(absPath(srcPath), absPath(dstPath));
+						}
+					}, false);
+			if (mirror != null) {
+				mirror.applyEntry(entry);
+				if (entry.isDir) {
+					// Pick up the copied contents with the next delta
+					mirror.markStale();
+				}
+			}
 		} catch (DropboxException e) {
 			handleDropboxException(e);
+		} finally {
+			listingCache.invalidate(absPath(dstPath));
 		}
 
 		return true;
@@ -101,29 +207,42 @@ public class DropboxFileProvider implements EncFSFileProvider {
 
 	@Override
 	public EncFSFileInfo createFile(String path) throws IOException {
-		Entry entry;
-
-		try {
-			entry = api.putFileOverwrite(absPath(path), new FileInputStream(
-					"/dev/zero"), 0, null);
-		} catch (DropboxException e) {
-			handleDropboxException(e);
-			return null;
-		}
-
-		if (entry != null) {
-			return entryToFileInfo(entry);
-		}
+		/*
+		 * The file is created by the upload from openOutputStream(), which
+		 * encfs-java calls right after this. Until then it only exists here.
+		 */
+		EncFSFileInfo info = pendingFileInfo(path);
+		pendingFiles.add(path, info);
+		return info;
+	}
 
-		return null;
+	// Return the info reported for a pending file
+	private EncFSFileInfo pendingFileInfo(String path) {
+		return toFileInfo(absPath(path), false, System.currentTimeMillis(), 0);
 	}
 
 	@Override
-	public boolean delete(String path) throws IOException {
+	public boolean delete(final String path) throws IOException {
+		if (pendingFiles.remove(path) != null) {
+			return true;
+		}
+
 		try {
-			api.delete(absPath(path));
+			scheduler.execute(
+					new RequestScheduler.Request<Void, DropboxException>() {
+						@Override
+						public Void execute() throws DropboxException {
+							api.delete(absPath(path));
+							return null;
+						}
+					}, false);
+			if (mirror != null) {
+				mirror.remove(absPath(path));
+			}
 		} catch (DropboxException e) {
 			handleDropboxException(e);
+		} finally {
+			listingCache.invalidate(absPath(path));
 		}
 
 		return true;
@@ -132,8 +251,23 @@ public class DropboxFileProvider implements EncFSFileProvider {
 	@Override
 	public boolean exists(String path) throws IOException {
 
+		if (pendingFiles.get(path) != null) {
+			return true;
+		}
+
+		DropboxMirror synced = syncedMirror();
+		if (synced != null) {
+			return synced.lookup(absPath(path)) != null;
+		}
+
+		// Answer from a cached listing of the parent if possible
+		Entry cachedEntry = listingCache.lookup(absPath(path));
+		if (cachedEntry != null) {
+			return !cachedEntry.isDeleted;
+		}
+
 		try {
-			Entry entry = api.metadata(absPath(path), 1, null, false, null);
+			Entry entry = metadata(absPath(path), 1, null, false);
 
 			if (entry == null) {
 				return false;
@@ -155,30 +289,63 @@ public class DropboxFileProvider implements EncFSFileProvider {
 	}
 
 	private EncFSFileInfo entryToFileInfo(Entry entry) {
+		long modified = (entry.modified != null) ? RESTUtility.parseDate(
+				entry.modified).getTime() : 0;
+
+		return toFileInfo(entry.path, entry.isDir, modified, entry.bytes);
+	}
+
+	private EncFSFileInfo toFileInfo(String path, boolean isDir,
+			long modified, long size) {
+		// Same as Entry.fileName() and Entry.parentPath()
+		int idx = path.lastIndexOf('/');
+		String fileName = path.substring(idx + 1);
+		String parentPath = path.equals("/") ? "" : path.substring(0, idx + 1);
+
 		String relativePath;
-		if (entry.path.equals(rootPath)) {
+		if (path.equals(rootPath)) {
 			// we're dealing with the root dir
 			relativePath = "/";
 		} else if (rootPath.equals("/")) {
-			relativePath = entry.parentPath();
-		} else if (entry.parentPath().equals(rootPath)) {
+			relativePath = parentPath;
+		} else if (parentPath.equals(rootPath)) {
 			// File is child of the root path
 			relativePath = "/";
 		} else {
-			relativePath = entry.parentPath().substring(rootPath.length());
+			relativePath = parentPath.substring(rootPath.length());
 		}
 
-		long modified = (entry.modified != null) ? RESTUtility.parseDate(
-				entry.modified).getTime() : 0;
+		return new EncFSFileInfo(fileName, relativePath, isDir, modified,
+				size, true, true, true);
+	}
 
-		return new EncFSFileInfo(entry.fileName(), relativePath, entry.isDir,
-				modified, entry.bytes, true, true, true);
+	private EncFSFileInfo mirrorEntryToFileInfo(DropboxMirror.MirrorEntry entry) {
+		return toFileInfo(entry.path, entry.isDir, entry.modified, entry.size);
 	}
 
 	@Override
 	public EncFSFileInfo getFileInfo(String path) throws IOException {
+		EncFSFileInfo pendingInfo = pendingFiles.get(path);
+		if (pendingInfo != null) {
+			return pendingInfo;
+		}
+
+		DropboxMirror synced = syncedMirror();
+		if (synced != null) {
+			DropboxMirror.MirrorEntry mirrorEntry = synced
+					.lookup(absPath(path));
+			if (mirrorEntry != null) {
+				return mirrorEntryToFileInfo(mirrorEntry);
+			}
+		}
+
+		Entry cachedEntry = listingCache.lookup(absPath(path));
+		if (cachedEntry != null && !cachedEntry.isDeleted) {
+			return entryToFileInfo(cachedEntry);
+		}
+
 		try {
-			Entry entry = api.metadata(absPath(path), 1, null, false, null);
+			Entry entry = metadata(absPath(path), 1, null, false);
 
 			if (entry != null) {
 				return entryToFileInfo(entry);
@@ -193,8 +360,24 @@ public class DropboxFileProvider implements EncFSFileProvider {
 
 	@Override
 	public boolean isDirectory(String path) throws IOException {
+		if (pendingFiles.get(path) != null) {
+			return false;
+		}
+
+		DropboxMirror synced = syncedMirror();
+		if (synced != null) {
+			DropboxMirror.MirrorEntry mirrorEntry = synced
+					.lookup(absPath(path));
+			return mirrorEntry != null && mirrorEntry.isDir;
+		}
+
+		Entry cachedEntry = listingCache.lookup(absPath(path));
+		if (cachedEntry != null) {
+			return !cachedEntry.isDeleted && cachedEntry.isDir;
+		}
+
 		try {
-			Entry entry = api.metadata(absPath(path), 1, null, false, null);
+			Entry entry = metadata(absPath(path), 1, null, false);
 			return entry.isDir;
 		} catch (DropboxException e) {
 			handleDropboxException(e);
@@ -204,10 +387,56 @@ public class DropboxFileProvider implements EncFSFileProvider {
 
 	@Override
 	public List<EncFSFileInfo> listFiles(String path) throws IOException {
+		DropboxMirror synced = syncedMirror();
+		if (synced != null) {
+			DropboxMirror.MirrorEntry dirEntry = synced.lookup(absPath(path));
+
+			// Not mirrored directories are listed from Dropbox below
+			if (dirEntry != null) {
+				if (!dirEntry.isDir) {
+					IOException ioe = new IOException(path
+							+ " is not a directory");
+					Log.e(TAG,
+							ioe.toString() + "\n" + Log.getStackTraceString(ioe));
+					throw ioe;
+				}
+
+				List<EncFSFileInfo> list = new ArrayList<EncFSFileInfo>();
+				for (DropboxMirror.MirrorEntry child : synced
+						.listChildren(absPath(path))) {
+					try {
+						list.add(mirrorEntryToFileInfo(child));
+					} catch (IllegalArgumentException iae) {
+						// Illegal file name, skip as below
+					}
+				}
+				return list;
+			}
+		}
+
 		try {
 			List<EncFSFileInfo> list = new ArrayList<EncFSFileInfo>();
 
-			Entry dirEnt = api.metadata(absPath(path), 0, null, true, null);
+			String dirPath = absPath(path);
+			DropboxListingCache.Listing cachedListing = listingCache
+					.getListing(dirPath);
+
+			// Revalidate a cached listing with its hash
+			Entry dirEnt;
+			try {
+				dirEnt = metadata(dirPath, 0,
+						(cachedListing != null) ? cachedListing.getHash()
+								: null, true);
+				listingCache.putListing(dirPath, dirEnt);
+			} catch (DropboxServerException e) {
+				if (cachedListing != null
+						&& e.error == DropboxServerException._304_NOT_MODIFIED) {
+					Log.v(TAG, "Listing of '" + dirPath + "' not modified");
+					dirEnt = cachedListing.getDirEntry();
+				} else {
+					throw e;
+				}
+			}
 
 			if (!dirEnt.isDir) {
 				IOException ioe = new IOException(path + " is not a directory");
@@ -217,6 +446,9 @@ public class DropboxFileProvider implements EncFSFileProvider {
 
 			// Add entries to list
 			for (Entry childEnt : dirEnt.contents) {
+				if (childEnt.isDeleted) {
+					continue;
+				}
 				try {
 					list.add(entryToFileInfo(childEnt));
 				} catch (IllegalArgumentException iae) {
@@ -236,39 +468,266 @@ public class DropboxFileProvider implements EncFSFileProvider {
 	}
 
 	@Override
-	public boolean mkdir(String path) throws IOException {
+	public boolean mkdir(final String path) throws IOException {
 		try {
-			api.createFolder(absPath(path));
+			Entry entry = scheduler.execute(
+					new RequestScheduler.Request<Entry, DropboxException>() {
+						@Override
+						public Entry execute() throws DropboxException {
+							return api.createFolder(absPath(path));
+						}
+					}, false);
+			if (mirror != null && entry != null) {
+				mirror.applyEntry(entry);
+			}
 		} catch (DropboxException e) {
 			handleDropboxException(e);
+		} finally {
+			listingCache.invalidate(absPath(path));
 		}
 
 		return true;
 	}
 
+	/*
+	 * Create the given directory along with any missing parents. Dropbox
+	 * creates the missing parents of a folder itself, so this takes a single
+	 * request. Returns false if the directory already exists.
+	 */
 	@Override
 	public boolean mkdirs(String path) throws IOException {
-		// XXX: Not implemented
-		IOException ioe = new IOException("NOT IMPLEMENTED");
-		Log.e(TAG, ioe.toString() + "\n" + Log.getStackTraceString(ioe));
-		throw ioe;
+		if (pendingFiles.get(path) != null) {
+			return existingDir(path, false);
+		}
+
+		final String dirPath = absPath(path);
+
+		// Skip the request if the cached metadata already has the answer
+		DropboxMirror synced = syncedMirror();
+		if (synced != null) {
+			DropboxMirror.MirrorEntry mirrorEntry = synced.lookup(dirPath);
+			if (mirrorEntry != null) {
+				return existingDir(path, mirrorEntry.isDir);
+			}
+		} else {
+			Entry cachedEntry = listingCache.lookup(dirPath);
+			if (cachedEntry != null && !cachedEntry.isDeleted) {
+				return existingDir(path, cachedEntry.isDir);
+			}
+		}
+
+		try {
+			Entry entry = scheduler.execute(
+					new RequestScheduler.Request<Entry, DropboxException>() {
+						@Override
+						public Entry execute() throws DropboxException {
+							return api.createFolder(dirPath);
+						}
+					}, false);
+			if (mirror != null && entry != null) {
+				mirrorParents(path);
+				mirror.applyEntry(entry);
+			}
+			return true;
+		} catch (DropboxServerException e) {
+			if (e.error != DropboxServerException._403_FORBIDDEN) {
+				handleDropboxException(e);
+			}
+		} catch (DropboxException e) {
+			handleDropboxException(e);
+		} finally {
+			// Listings of all the parents may have changed
+			for (String dir = path; dir != null && !dir.equals("/");
+					dir = parentOf(dir)) {
+				listingCache.invalidate(absPath(dir));
+			}
+		}
+
+		// Something is in the way, which is fine if it's the directory
+		try {
+			Entry entry = metadata(dirPath, 1, null, false);
+			return existingDir(path, entry.isDir && !entry.isDeleted);
+		} catch (DropboxException e) {
+			handleDropboxException(e);
+			return false;
+		}
+	}
+
+	// Result of mkdirs() for a path that already exists
+	private boolean existingDir(String path, boolean isDir) throws IOException {
+		if (!isDir) {
+			IOException ioe = new IOException(path + " is not a directory");
+			Log.e(TAG, ioe.toString() + "\n" + Log.getStackTraceString(ioe));
+			throw ioe;
+		}
+		return false;
+	}
+
+	// Return the parent of the given relative path, null for the root
+	private static String parentOf(String path) {
+		int idx = path.lastIndexOf('/');
+		if (idx <= 0) {
+			return (path.length() > 1) ? "/" : null;
+		}
+		return path.substring(0, idx);
+	}
+
+	// Add the parents of a created folder that the mirror doesn't have yet
+	private void mirrorParents(String path) {
+		for (String dir = parentOf(path); dir != null && !dir.equals("/");
+				dir = parentOf(dir)) {
+			String dirPath = absPath(dir);
+			if (mirror.lookup(dirPath) != null) {
+				break;
+			}
+
+			Entry entry = new Entry();
+			entry.path = dirPath;
+			entry.isDir = true;
+			mirror.applyEntry(entry);
+		}
 	}
 
 	@Override
-	public boolean move(String srcPath, String dstPath) throws IOException {
+	public boolean move(final String srcPath, final String dstPath)
+			throws IOException {
+		// Move of a file that hasn't been uploaded yet
+		if (pendingFiles.remove(srcPath) != null) {
+			pendingFiles.add(dstPath, pendingFileInfo(dstPath));
+			return true;
+		}
+
 		try {
-			api.move(absPath(srcPath), absPath(dstPath));
+			Entry entry = scheduler.execute(
+					new RequestScheduler.Request<Entry, DropboxException>() {
+						@Override
+						public Entry execute() throws DropboxException {
+							return api.move(absPath(srcPath), absPath(dstPath));
+						}
+					}, false);
+			if (mirror != null) {
+				mirror.remove(absPath(srcPath));
+				mirror.applyEntry(entry);
+				if (entry.isDir) {
+					// Pick up the moved contents with the next delta
+					mirror.markStale();
+				}
+			}
 		} catch (DropboxException e) {
 			handleDropboxException(e);
+		} finally {
+			listingCache.invalidate(absPath(srcPath));
+			listingCache.invalidate(absPath(dstPath));
 		}
 
 		return true;
 	}
 
+	/*
+	 * Dropbox deletes, copies and moves folders along with their contents, so
+	 * the tree operations are single requests. Only files created under the
+	 * tree but not uploaded yet need to be taken care of here.
+	 */
+
+	@Override
+	public boolean isBulkSupported() {
+		return true;
+	}
+
+	@Override
+	public boolean deleteTree(String path) throws IOException {
+		for (String pendingPath : pendingFiles.pathsUnder(path)) {
+			pendingFiles.remove(pendingPath);
+		}
+		return delete(path);
+	}
+
 	@Override
-	public InputStream openInputStream(String path) throws IOException {
+	public boolean copyTree(String srcPath, String dstPath) throws IOException {
+		if (exists(dstPath)) {
+			throw new IOException("Can't copy: destination already exists");
+		}
+		return copy(srcPath, dstPath);
+	}
+
+	@Override
+	public boolean moveTree(String srcPath, String dstPath) throws IOException {
+		String srcPrefix = PendingFileSet.normalize(srcPath);
+		String dstPrefix = PendingFileSet.normalize(dstPath);
+		for (String pendingPath : pendingFiles.pathsUnder(srcPath)) {
+			String newPath = dstPrefix
+					+ pendingPath.substring(srcPrefix.length());
+			pendingFiles.remove(pendingPath);
+			pendingFiles.add(newPath, pendingFileInfo(newPath));
+		}
+		return move(srcPath, dstPath);
+	}
+
+	@Override
+	public InputStream openInputStream(final String path) throws IOException {
 		try {
-			return api.getFileStream(absPath(path), null);
+			return scheduler.execute(
+					new RequestScheduler.Request<InputStream, DropboxException>() {
+						@Override
+						public InputStream execute() throws DropboxException {
+							return api.getFileStream(absPath(path), null);
+						}
+					}, true);
+		} catch (DropboxException e) {
+			handleDropboxException(e);
+			return null;
+		}
+	}
+
+	@Override
+	public InputStream openInputStream(String path, final long offset,
+			final long length) throws IOException {
+
+		Log.v(TAG, "openInputStream '" + path + "' offset: " + offset
+				+ " length: " + length);
+
+		if (length == 0) {
+			return RangedInputStream.emptyStream();
+		}
+
+		/*
+		 * Same request as DropboxAPI.getFileStream() which doesn't let us add
+		 * a Range header.
+		 */
+		final AndroidAuthSession session = api.getSession();
+		final String url = RESTUtility.buildURL(session.getContentServer(),
+				DropboxAPI.VERSION, "/files/" + session.getAccessType()
+						+ absPath(path), new String[] { "locale",
+						session.getLocale().toString() });
+
+		try {
+			return scheduler.execute(
+					new RequestScheduler.Request<InputStream, DropboxException>() {
+						@Override
+						public InputStream execute() throws DropboxException {
+							HttpGet req = new HttpGet(url);
+							session.sign(req);
+							req.addHeader("Range", RangedInputStream
+									.rangeHeader(offset, length));
+
+							HttpResponse resp = RESTUtility.execute(session,
+									req);
+
+							// 206 Partial Content means the range was honored
+							long skip = (resp.getStatusLine().getStatusCode() == 206) ? 0
+									: offset;
+							return new RangedInputStream(
+									new DropboxInputStream(req, resp), skip,
+									length);
+						}
+					}, true);
+		} catch (DropboxServerException e) {
+			// 416 Requested Range Not Satisfiable: offset is past EOF
+			if (e.error == 416) {
+				return RangedInputStream.emptyStream();
+			}
+			handleDropboxException(e);
+			return null;
 		} catch (DropboxException e) {
 			handleDropboxException(e);
 			return null;
@@ -278,7 +737,12 @@ public class DropboxFileProvider implements EncFSFileProvider {
 	@Override
 	public OutputStream openOutputStream(String path, long length)
 			throws IOException {
-		return new DropboxOutputStream(api, absPath(path), length);
+		// The upload creates a pending file
+		pendingFiles.remove(path);
+
+		listingCache.invalidate(absPath(path));
+		return new DropboxOutputStream(api, listingCache, mirror, scheduler,
+				absPath(path), length);
 	}
 
 	@Override
@@ -41,4 +41,15 @@ public class DropboxFileSystem extends FileSystem {
 	public String getPathPrefix() {
 		return "[Dropbox]:";
 	}
+
+	@Override
+	protected String getParallelTransfersKey() {
+		return "parallel_transfers_dropbox";
+	}
+
+	// Cloud transfers mostly wait on the network
+	@Override
+	protected String getDefaultParallelTransfers() {
+		return "4";
+	}
 }
\ No newline at end of file
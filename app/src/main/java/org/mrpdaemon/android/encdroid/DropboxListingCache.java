@@ -0,0 +1,193 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.dropbox.client2.DropboxAPI.Entry;
+
+/*
+ * In-memory cache of Dropbox directory listings keyed by absolute path.
+ *
+ * Each listing is stored with the hash returned by the metadata call so that
+ * revisiting a directory can be revalidated with a conditional request, and
+ * its child entries answer exists()/getFileInfo()/isDirectory() without a
+ * request of their own. Dropbox paths are case insensitive so keys are
+ * normalized to lower case.
+ *
+ * A single instance is owned by the DropboxAccount and shared by every
+ * DropboxFileProvider created for it.
+ */
+public class DropboxListingCache {
+
+	// Logger tag
+	private final static String TAG = "DropboxListingCache";
+
+	// Default maximum number of cached directory listings
+	public final static int DEFAULT_CAPACITY = 256;
+
+	// A cached directory listing
+	public static class Listing {
+		// Directory entry including its contents
+		private final Entry dirEntry;
+
+		// Children by normalized name
+		private final HashMap<String, Entry> children;
+
+		public Listing(Entry dirEntry) {
+			this.dirEntry = dirEntry;
+			this.children = new HashMap<String, Entry>();
+			if (dirEntry.contents != null) {
+				for (Entry child : dirEntry.contents) {
+					if (!child.isDeleted) {
+						children.put(normalize(child.fileName()), child);
+					}
+				}
+			}
+		}
+
+		public Entry getDirEntry() {
+			return dirEntry;
+		}
+
+		public String getHash() {
+			return dirEntry.hash;
+		}
+	}
+
+	// Maximum number of cached directory listings
+	private final int capacity;
+
+	// Access ordered map (normalized absDirPath -> listing)
+	private final LinkedHashMap<String, Listing> listings;
+
+	public DropboxListingCache(int capacity) {
+		this.capacity = capacity;
+		this.listings = new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+				return size() > DropboxListingCache.this.capacity;
+			}
+		};
+	}
+
+	public DropboxListingCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	// Normalize a path or name for use as a key
+	private static String normalize(String path) {
+		String result = path.toLowerCase(Locale.US);
+		if (result.length() > 1 && result.endsWith("/")) {
+			result = result.substring(0, result.length() - 1);
+		}
+		return result;
+	}
+
+	// Return the parent of the given normalized path, null for the root
+	private static String parentOf(String path) {
+		if (path.equals("/")) {
+			return null;
+		}
+		int idx = path.lastIndexOf('/');
+		if (idx <= 0) {
+			return "/";
+		}
+		return path.substring(0, idx);
+	}
+
+	// Return the last element of the given normalized path
+	private static String nameOf(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	// Cache the listing of the given directory
+	public synchronized void putListing(String dirPath, Entry dirEntry) {
+		Log.v(TAG, "Caching listing of '" + dirPath + "' hash: "
+				+ dirEntry.hash);
+		listings.put(normalize(dirPath), new Listing(dirEntry));
+	}
+
+	// Return the cached listing for the given directory, null if none
+	public synchronized Listing getListing(String dirPath) {
+		return listings.get(normalize(dirPath));
+	}
+
+	/*
+	 * Return the cached entry for the given path. Returns null if the parent
+	 * listing isn't cached, and an entry with isDeleted set if the parent
+	 * listing is cached but doesn't contain the path.
+	 */
+	public synchronized Entry lookup(String path) {
+		String normPath = normalize(path);
+		String parent = parentOf(normPath);
+		if (parent == null) {
+			return null;
+		}
+
+		Listing listing = listings.get(parent);
+		if (listing == null) {
+			return null;
+		}
+
+		Entry child = listing.children.get(nameOf(normPath));
+		if (child == null) {
+			Entry missing = new Entry();
+			missing.path = path;
+			missing.isDeleted = true;
+			return missing;
+		}
+		return child;
+	}
+
+	/*
+	 * Drop the listing of the given path's parent along with any listings for
+	 * the path itself or anything under it. Called whenever the path changes.
+	 */
+	public synchronized void invalidate(String path) {
+		String normPath = normalize(path);
+
+		String parent = parentOf(normPath);
+		if (parent != null) {
+			listings.remove(parent);
+		}
+
+		Iterator<String> iter = listings.keySet().iterator();
+		while (iter.hasNext()) {
+			String key = iter.next();
+			if (key.equals(normPath) || normPath.equals("/")
+					|| key.startsWith(normPath + "/")) {
+				iter.remove();
+			}
+		}
+	}
+
+	// Drop all cached listings
+	public synchronized void clear() {
+		listings.clear();
+	}
+}
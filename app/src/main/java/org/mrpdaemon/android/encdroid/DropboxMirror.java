@@ -0,0 +1,372 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.dropbox.client2.DropboxAPI;
+import com.dropbox.client2.DropboxAPI.DeltaEntry;
+import com.dropbox.client2.DropboxAPI.DeltaPage;
+import com.dropbox.client2.DropboxAPI.Entry;
+import com.dropbox.client2.RESTUtility;
+import com.dropbox.client2.exception.DropboxException;
+import com.dropbox.client2.exception.DropboxParseException;
+import com.dropbox.client2.jsonextract.JsonExtractionException;
+import com.dropbox.client2.jsonextract.JsonThing;
+import com.dropbox.client2.session.Session;
+
+/*
+ * Local SQLite mirror of the metadata under a Dropbox volume root.
+ *
+ * The mirror is fed by the delta API restricted to the volume root, with the
+ * cursor persisted alongside the entries so that each sync only transfers
+ * what changed since the last one. Once synced, metadata queries for the
+ * volume are answered from the database without any requests.
+ *
+ * Deltas are obtained through a DeltaSource and entries are kept in a Store,
+ * so that the mirror can be fed canned pages and kept in memory in place of
+ * the Dropbox servers and the database.
+ */
+public class DropboxMirror {
+
+	// Logger tag
+	private final static String TAG = "DropboxMirror";
+
+	// Maximum age of the mirror before queries trigger a sync
+	public final static long DEFAULT_MAX_AGE_MS = 30 * 1000;
+
+	// Source of delta pages
+	public interface DeltaSource {
+		public DeltaPage<Entry> delta(String cursor, String pathPrefix)
+				throws DropboxException;
+	}
+
+	// Storage of mirrored entries and delta cursors by normalized root
+	public interface Store {
+		public String getCursor(String root);
+
+		public void setCursor(String root, String cursor);
+
+		public void insert(String root, String lcPath, String lcParent,
+				MirrorEntry entry);
+
+		// Delete entries under the given path, and the path itself if set
+		public void delete(String root, String lcPath, boolean includeSelf);
+
+		// Return the entry for the given path, null if there is none
+		public MirrorEntry get(String root, String lcPath);
+
+		public List<MirrorEntry> getChildren(String root, String lcParent);
+
+		// Drop all entries and the cursor
+		public void clear(String root);
+
+		// Run the given changes in a transaction
+		public void runInTransaction(Runnable changes);
+	}
+
+	// A mirrored entry
+	public static class MirrorEntry {
+		public final String path;
+		public final boolean isDir;
+		public final long size;
+		public final long modified;
+
+		public MirrorEntry(String path, boolean isDir, long size, long modified) {
+			this.path = path;
+			this.isDir = isDir;
+			this.size = size;
+			this.modified = modified;
+		}
+
+		private MirrorEntry(ContentValues values) {
+			this(values.getAsString(DBHelper.DB_COL_PATH), values
+					.getAsInteger(DBHelper.DB_COL_IS_DIR) == 1, values
+					.getAsLong(DBHelper.DB_COL_SIZE), values
+					.getAsLong(DBHelper.DB_COL_MODIFIED));
+		}
+	}
+
+	// Return a Store backed by the given DB helper
+	public static Store dbStore(final DBHelper dbHelper) {
+		return new Store() {
+			@Override
+			public String getCursor(String root) {
+				return dbHelper.getDropboxCursor(root);
+			}
+
+			@Override
+			public void setCursor(String root, String cursor) {
+				dbHelper.setDropboxCursor(root, cursor);
+			}
+
+			@Override
+			public void insert(String root, String lcPath, String lcParent,
+					MirrorEntry entry) {
+				dbHelper.insertDropboxMirrorEntry(root, lcPath, entry.path,
+						lcParent, entry.isDir, entry.size, entry.modified);
+			}
+
+			@Override
+			public void delete(String root, String lcPath, boolean includeSelf) {
+				dbHelper.deleteDropboxMirrorEntries(root, lcPath, includeSelf);
+			}
+
+			@Override
+			public MirrorEntry get(String root, String lcPath) {
+				ContentValues values = dbHelper.getDropboxMirrorEntry(root,
+						lcPath);
+				if (values == null) {
+					return null;
+				}
+				return new MirrorEntry(values);
+			}
+
+			@Override
+			public List<MirrorEntry> getChildren(String root, String lcParent) {
+				List<MirrorEntry> result = new ArrayList<MirrorEntry>();
+				for (ContentValues values : dbHelper.getDropboxMirrorChildren(
+						root, lcParent)) {
+					result.add(new MirrorEntry(values));
+				}
+				return result;
+			}
+
+			@Override
+			public void clear(String root) {
+				dbHelper.clearDropboxMirror(root);
+			}
+
+			@Override
+			public void runInTransaction(Runnable changes) {
+				SQLiteDatabase db = dbHelper.getWritableDatabase();
+				db.beginTransaction();
+				try {
+					changes.run();
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+			}
+		};
+	}
+
+	// Return a DeltaSource backed by the given API object and scheduler
+	public static DeltaSource apiDeltaSource(
+			final DropboxAPI<? extends Session> api,
+			final RequestScheduler scheduler) {
+		return new DeltaSource() {
+			@Override
+			public DeltaPage<Entry> delta(final String cursor,
+					final String pathPrefix) throws DropboxException {
+				return scheduler.execute(
+						new RequestScheduler.Request<DeltaPage<Entry>, DropboxException>() {
+							@Override
+							public DeltaPage<Entry> execute()
+									throws DropboxException {
+								return request(api, cursor, pathPrefix);
+							}
+						}, true);
+			}
+		};
+	}
+
+	// Fetch a page of the /delta results for the given path prefix
+	private static DeltaPage<Entry> request(DropboxAPI<? extends Session> api,
+			String cursor, String pathPrefix) throws DropboxException {
+		/*
+		 * DropboxAPI.delta() doesn't take a path prefix, which we need
+		 * to keep from mirroring the whole Dropbox.
+		 */
+		Session session = api.getSession();
+		String[] params = new String[] { "cursor", cursor,
+				"path_prefix", pathPrefix, "locale",
+				session.getLocale().toString() };
+
+		Object json = RESTUtility.request(
+				RESTUtility.RequestMethod.POST, session.getAPIServer(),
+				"/delta", DropboxAPI.VERSION, params, session);
+		try {
+			return DeltaPage.extractFromJson(new JsonThing(json),
+					Entry.JsonExtractor);
+		} catch (JsonExtractionException e) {
+			throw new DropboxParseException(
+					"Error parsing /delta results: " + e.getMessage());
+		}
+	}
+
+	// Storage holding the mirror
+	private final Store store;
+
+	// Source of delta pages
+	private final DeltaSource deltaSource;
+
+	// Volume root path as given
+	private final String root;
+
+	// Normalized volume root used as the DB key
+	private final String lcRoot;
+
+	// Maximum age before syncing again
+	private final long maxAgeMs;
+
+	// Time of the last successful sync, 0 to force a sync
+	private long lastSync = 0;
+
+	public DropboxMirror(Store store, DeltaSource deltaSource, String root,
+			long maxAgeMs) {
+		this.store = store;
+		this.deltaSource = deltaSource;
+		this.root = normalizeCase(root);
+		this.lcRoot = normalize(root);
+		this.maxAgeMs = maxAgeMs;
+	}
+
+	public DropboxMirror(DBHelper dbHelper, DeltaSource deltaSource, String root) {
+		this(dbStore(dbHelper), deltaSource, root, DEFAULT_MAX_AGE_MS);
+	}
+
+	// Drop a trailing '/' from a non-root path
+	private static String normalizeCase(String path) {
+		if (path.length() > 1 && path.endsWith("/")) {
+			return path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+
+	// Lower case path for lookups, Dropbox paths are case insensitive
+	private static String normalize(String path) {
+		return normalizeCase(path).toLowerCase(Locale.US);
+	}
+
+	// Return the parent of the given normalized path
+	private static String parentOf(String lcPath) {
+		int idx = lcPath.lastIndexOf('/');
+		if (idx <= 0) {
+			return "/";
+		}
+		return lcPath.substring(0, idx);
+	}
+
+	// Force a sync on the next query
+	public synchronized void markStale() {
+		lastSync = 0;
+	}
+
+	// Sync unless the mirror was synced recently
+	public synchronized void syncIfStale() throws DropboxException {
+		if (System.currentTimeMillis() - lastSync > maxAgeMs) {
+			sync();
+		}
+	}
+
+	// Apply all pending delta pages
+	public synchronized void sync() throws DropboxException {
+		String cursor = store.getCursor(lcRoot);
+		int numEntries = 0;
+		DeltaPage<Entry> page;
+
+		do {
+			page = deltaSource.delta(cursor, root);
+
+			final DeltaPage<Entry> changes = page;
+			store.runInTransaction(new Runnable() {
+				@Override
+				public void run() {
+					if (changes.reset) {
+						Log.d(TAG, "Delta reset for '" + root + "'");
+						store.clear(lcRoot);
+					}
+
+					for (DeltaEntry<Entry> entry : changes.entries) {
+						applyDeltaEntry(entry);
+					}
+
+					// Persist the cursor along with the entries it covers
+					store.setCursor(lcRoot, changes.cursor);
+				}
+			});
+			numEntries += page.entries.size();
+			cursor = page.cursor;
+		} while (page.hasMore);
+
+		if (numEntries > 0) {
+			Log.d(TAG, "Applied " + numEntries + " delta entries for '" + root
+					+ "'");
+		}
+
+		lastSync = System.currentTimeMillis();
+	}
+
+	private void applyDeltaEntry(DeltaEntry<Entry> entry) {
+		String lcPath = normalize(entry.lcPath);
+
+		if (entry.metadata == null || entry.metadata.isDeleted) {
+			// Deleted along with anything under it
+			store.delete(lcRoot, lcPath, true);
+		} else {
+			applyEntry(entry.metadata);
+		}
+	}
+
+	// Record the given entry, e.g. as returned by a mutation we made
+	public synchronized void applyEntry(Entry entry) {
+		String lcPath = normalize(entry.path);
+
+		if (!entry.isDir) {
+			// A file replaces any folder that was at this path
+			store.delete(lcRoot, lcPath, false);
+		}
+
+		long modified = (entry.modified != null) ? RESTUtility.parseDate(
+				entry.modified).getTime() : 0;
+
+		store.insert(lcRoot, lcPath, parentOf(lcPath), new MirrorEntry(
+				normalizeCase(entry.path), entry.isDir, entry.bytes, modified));
+	}
+
+	// Remove the given path and everything under it
+	public synchronized void remove(String path) {
+		store.delete(lcRoot, normalize(path), true);
+	}
+
+	// Return the entry for the given path, null if it doesn't exist
+	public synchronized MirrorEntry lookup(String path) {
+		return store.get(lcRoot, normalize(path));
+	}
+
+	// Return the children of the given directory
+	public synchronized MirrorEntry[] listChildren(String dirPath) {
+		List<MirrorEntry> children = store.getChildren(lcRoot,
+				normalize(dirPath));
+		return children.toArray(new MirrorEntry[children.size()]);
+	}
+
+	// Drop everything mirrored for this root
+	public synchronized void clear() {
+		store.clear(lcRoot);
+		lastSync = 0;
+	}
+}
@@ -19,6 +19,7 @@
 package org.mrpdaemon.android.encdroid;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
@@ -26,14 +27,35 @@ import java.io.PipedOutputStream;
 import android.util.Log;
 
 import com.dropbox.client2.DropboxAPI;
+import com.dropbox.client2.DropboxAPI.Entry;
 import com.dropbox.client2.android.AndroidAuthSession;
 import com.dropbox.client2.exception.DropboxException;
+import com.dropbox.client2.exception.DropboxServerException;
 
+/*
+ * Output stream uploading to Dropbox through the chunked upload API.
+ *
+ * Data written to the stream is handed to an upload thread through a pipe
+ * holding a full chunk, so encryption of the next chunk overlaps with the
+ * upload of the current one. ChunkedUploader keeps the current chunk and the
+ * last offset acknowledged by the server, so a failed chunk is retried from
+ * there rather than restarting the file. Retries are left to the account's
+ * RequestScheduler. Chunked uploads also lift the size limit of a single
+ * putFile() request.
+ *
+ * Each chunk is a separate request through the scheduler, and the next chunk
+ * is read from the pipe before its request starts. An upload waiting for
+ * data doesn't hold one of the account's request slots, so metadata requests
+ * aren't starved by long running transfers.
+ */
 public class DropboxOutputStream extends OutputStream {
 
 	private static final String TAG = "DropboxOutputStream";
 
-	// Pipe's input end to hand off to DropboxAPI.putFile()
+	// Size of each uploaded chunk
+	private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+	// Pipe's input end read by the upload thread
 	private PipedInputStream pipeDropbox;
 
 	// Pipe's output end that this class writes to
@@ -51,22 +73,162 @@ public class DropboxOutputStream extends OutputStream {
 	// Length
 	private final long fileLength;
 
+	// Listing cache to invalidate once the upload is done
+	private final DropboxListingCache listingCache;
+
+	// Metadata mirror to update once the upload is done, may be null
+	private final DropboxMirror mirror;
+
+	// Path being uploaded
+	private final String dstPath;
+
+	// Entry of the uploaded file once committed
+	private volatile Entry uploadedEntry;
+
+	/*
+	 * Input stream handing ChunkedUploader one chunk per upload() call.
+	 * fill() reads the next chunk from the pipe. Once the uploader has taken
+	 * it, reading again throws ChunkSentException so that upload() returns
+	 * after sending the chunk instead of waiting for the next one. The
+	 * uploader sends whatever a single read() returns as a chunk, so the
+	 * whole chunk is returned at once.
+	 */
+	private static class ChunkInputStream extends InputStream {
+
+		// Stream the chunks are read from
+		private final InputStream in;
+
+		// Current chunk
+		private final byte[] chunk = new byte[CHUNK_SIZE];
+
+		// Bytes in the current chunk and position of the next one to read
+		private int length = 0;
+		private int pos = 0;
+
+		// Whether the end of the stream has been reached
+		private boolean eof = false;
+
+		public ChunkInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		/*
+		 * Read the next chunk, up to CHUNK_SIZE bytes. Returns false if the
+		 * end of the stream was reached, in which case the chunk may be
+		 * partial or empty.
+		 */
+		public boolean fill() throws IOException {
+			length = 0;
+			pos = 0;
+			while (length < chunk.length) {
+				int bytesRead = in.read(chunk, length, chunk.length - length);
+				if (bytesRead < 0) {
+					eof = true;
+					break;
+				}
+				length += bytesRead;
+			}
+			return !eof;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count)
+				throws IOException {
+			if (count == 0) {
+				return 0;
+			}
+			if (pos == length) {
+				if (eof) {
+					return -1;
+				}
+				throw new ChunkSentException();
+			}
+			int toCopy = Math.min(count, length - pos);
+			System.arraycopy(chunk, pos, buffer, offset, toCopy);
+			pos += toCopy;
+			return toCopy;
+		}
+	}
+
+	// Thrown by ChunkInputStream when the uploader asks for the next chunk
+	private static class ChunkSentException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+
 	public DropboxOutputStream(final DropboxAPI<AndroidAuthSession> api,
-			final String dstPath, long length) throws IOException {
+			DropboxListingCache listingCache, DropboxMirror mirror,
+			final RequestScheduler scheduler, final String dstPath,
+			long length) throws IOException {
 		this.failed = false;
 		this.fileLength = length;
+		this.listingCache = listingCache;
+		this.mirror = mirror;
+		this.dstPath = dstPath;
 
 		Log.d(TAG, "Creating output stream for path " + dstPath);
 
 		// Create pipes
-		pipeDropbox = new PipedInputStream();
+		pipeDropbox = new PipedInputStream(CHUNK_SIZE);
 		pipeToWrite = new PipedOutputStream(pipeDropbox);
 
 		thread = new Thread(new Runnable() {
 			@Override
 			public void run() {
 				try {
-					api.putFileOverwrite(dstPath, pipeDropbox, fileLength, null);
+					final ChunkInputStream chunks = new ChunkInputStream(
+							pipeDropbox);
+					final DropboxAPI<AndroidAuthSession>.ChunkedUploader uploader = api
+							.getChunkedUploader(chunks, fileLength, CHUNK_SIZE);
+
+					/*
+					 * Upload one chunk per request, resuming from the
+					 * acknowledged offset if retried. The last request also
+					 * lets the uploader see the end of the data, which
+					 * catches a length mismatch, and an empty file still
+					 * takes one request to start the upload.
+					 */
+					RequestScheduler.Request<Void, Exception> uploadChunk = new RequestScheduler.Request<Void, Exception>() {
+						@Override
+						public Void execute() throws Exception {
+							try {
+								uploader.upload();
+							} catch (ChunkSentException e) {
+								// Chunk is uploaded, the next one isn't read yet
+							}
+							return null;
+						}
+					};
+					boolean more;
+					do {
+						// Read the chunk before taking a request slot
+						more = chunks.fill();
+						scheduler.execute(uploadChunk, true);
+					} while (more && !uploader.isComplete());
+
+					/*
+					 * Commit the upload, replacing the file touched by encfs.
+					 * Repeating a commit that went through would store a
+					 * conflicted copy, so it's only retried if rejected.
+					 */
+					Entry entry = scheduler.execute(
+							new RequestScheduler.Request<Entry, DropboxException>() {
+								@Override
+								public Entry execute() throws DropboxException {
+									return uploader.finish(dstPath,
+											getParentRev(api, dstPath));
+								}
+							}, false);
+					if (!entry.path.equalsIgnoreCase(dstPath)) {
+						throw new IOException("Upload of " + dstPath
+								+ " was stored as " + entry.path);
+					}
+					uploadedEntry = entry;
 				} catch (DropboxException e) {
 					Logger.logException(TAG, e);
 					// Propagate the error
@@ -75,6 +237,20 @@ public class DropboxOutputStream extends OutputStream {
 					} else {
 						DropboxOutputStream.this.fail(e.toString());
 					}
+				} catch (Exception e) {
+					/*
+					 * Reading from the pipe failed or the stream length didn't
+					 * match the declared length (IllegalStateException)
+					 */
+					Logger.logException(TAG, e);
+					DropboxOutputStream.this.fail(e.toString());
+				} finally {
+					// Unblock the writer if we bailed out early
+					try {
+						pipeDropbox.close();
+					} catch (IOException e) {
+						Logger.logException(TAG, e);
+					}
 				}
 			}
 		});
@@ -82,6 +258,23 @@ public class DropboxOutputStream extends OutputStream {
 		thread.start();
 	}
 
+	// Return the current revision of the given path, null if it doesn't exist
+	private static String getParentRev(DropboxAPI<AndroidAuthSession> api,
+			String path) throws DropboxException {
+		try {
+			Entry entry = api.metadata(path, 1, null, false, null);
+			if (entry == null || entry.isDeleted) {
+				return null;
+			}
+			return entry.rev;
+		} catch (DropboxServerException e) {
+			if (e.error == DropboxServerException._404_NOT_FOUND) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
 	private void fail(String message) {
 		failed = true;
 		failMessage = message;
@@ -95,6 +288,14 @@ public class DropboxOutputStream extends OutputStream {
 		return failMessage;
 	}
 
+	// Report the upload failure instead of a broken pipe, if any
+	private IOException translate(IOException e) {
+		if (getFailed()) {
+			return new IOException(getFailMessage());
+		}
+		return e;
+	}
+
 	@Override
 	public void close() throws IOException {
 		Log.v(TAG, "close() called");
@@ -103,7 +304,12 @@ public class DropboxOutputStream extends OutputStream {
 			throw new IOException(getFailMessage());
 		}
 
-		pipeToWrite.flush();
+		try {
+			pipeToWrite.flush();
+			pipeToWrite.close();
+		} catch (IOException e) {
+			throw translate(e);
+		}
 
 		try {
 			thread.join();
@@ -111,8 +317,16 @@ public class DropboxOutputStream extends OutputStream {
 			throw new IOException(e.getMessage());
 		}
 
-		pipeToWrite.close();
-		pipeDropbox.close();
+		// Parent listing may have been cached while uploading
+		listingCache.invalidate(dstPath);
+
+		if (mirror != null && uploadedEntry != null) {
+			mirror.applyEntry(uploadedEntry);
+		}
+
+		if (getFailed()) {
+			throw new IOException(getFailMessage());
+		}
 	}
 
 	@Override
@@ -122,7 +336,12 @@ public class DropboxOutputStream extends OutputStream {
 		if (getFailed()) {
 			throw new IOException(getFailMessage());
 		}
-		pipeToWrite.flush();
+
+		try {
+			pipeToWrite.flush();
+		} catch (IOException e) {
+			throw translate(e);
+		}
 	}
 
 	@Override
@@ -134,18 +353,16 @@ public class DropboxOutputStream extends OutputStream {
 			throw new IOException(getFailMessage());
 		}
 
-		pipeToWrite.write(buffer, offset, count);
+		try {
+			pipeToWrite.write(buffer, offset, count);
+		} catch (IOException e) {
+			throw translate(e);
+		}
 	}
 
 	@Override
 	public void write(byte[] buffer) throws IOException {
-		Log.v(TAG, "write() " + buffer.length + " bytes");
-
-		if (getFailed()) {
-			throw new IOException(getFailMessage());
-		}
-
-		pipeToWrite.write(buffer);
+		write(buffer, 0, buffer.length);
 	}
 
 	@Override
@@ -156,6 +373,10 @@ public class DropboxOutputStream extends OutputStream {
 			throw new IOException(getFailMessage());
 		}
 
-		pipeToWrite.write(oneByte);
+		try {
+			pipeToWrite.write(oneByte);
+		} catch (IOException e) {
+			throw translate(e);
+		}
 	}
-}
\ No newline at end of file
+}
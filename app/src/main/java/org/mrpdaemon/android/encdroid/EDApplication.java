@@ -18,10 +18,14 @@
 
 package org.mrpdaemon.android.encdroid;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
+import android.app.Activity;
 import android.app.Application;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 public class EDApplication extends Application {
@@ -41,12 +45,21 @@ public class EDApplication extends Application {
 	// Filesystem list
 	private ArrayList<FileSystem> mFileSystemList;
 
+	// Cache of encrypted contents of remote files
+	private CiphertextCache mCiphertextCache;
+
+	// Background uploader for write-back mode
+	private UploadQueue mUploadQueue;
+
 	// PBKDF2 provider
 	private NativePBKDF2Provider mNativePBKDF2Provider;
 
 	// Whether native PBKDF2 provider is available
 	private static boolean mNativePBKDF2ProviderAvailable;
 
+	// Number of started activities, zero while in the background
+	private int mStartedActivities = 0;
+
 	static {
 		try {
 			NativePBKDF2Provider.checkAvailable();
@@ -67,6 +80,12 @@ public class EDApplication extends Application {
 	public void onCreate() {
 		super.onCreate();
 
+		// Accounts persist caches through the DB helper so create it first
+		this.dbHelper = new DBHelper(this);
+
+		this.mCiphertextCache = new CiphertextCache(new File(getCacheDir(),
+				"ciphertext"), getCiphertextCacheCapacity());
+
 		DropboxAccount dropboxAccount = new DropboxAccount(this);
 		GoogleDriveAccount driveAccount = new GoogleDriveAccount(this);
 
@@ -88,18 +107,69 @@ public class EDApplication extends Application {
 		mFileSystemList.add(new ExtSDFileSystem(this));
 		mFileSystemList.add(new GoogleDriveFileSystem(driveAccount, this));
 
-		this.dbHelper = new DBHelper(this);
 		this.volumeList = dbHelper.getVolumes();
 
+		// Resume uploads journaled before we were last shut down
+		this.mUploadQueue = new UploadQueue(this, new File(getFilesDir(),
+				"upload-staging"));
+		mUploadQueue.start();
+
 		if (mNativePBKDF2ProviderAvailable) {
 			mNativePBKDF2Provider = new NativePBKDF2Provider();
 		} else {
 			mNativePBKDF2Provider = null;
 		}
 
+		// Tell accounts when we move to or from the foreground
+		registerActivityLifecycleCallbacks(new ActivityLifecycleCallbacks() {
+			@Override
+			public void onActivityStarted(Activity activity) {
+				if (mStartedActivities++ == 0) {
+					setForeground(true);
+				}
+			}
+
+			@Override
+			public void onActivityStopped(Activity activity) {
+				if (--mStartedActivities == 0) {
+					setForeground(false);
+				}
+			}
+
+			@Override
+			public void onActivityCreated(Activity activity,
+					Bundle savedInstanceState) {
+			}
+
+			@Override
+			public void onActivityResumed(Activity activity) {
+			}
+
+			@Override
+			public void onActivityPaused(Activity activity) {
+			}
+
+			@Override
+			public void onActivitySaveInstanceState(Activity activity,
+					Bundle outState) {
+			}
+
+			@Override
+			public void onActivityDestroyed(Activity activity) {
+			}
+		});
+
 		Log.d(TAG, "EDApplication initialized");
 	}
 
+	// Notify all accounts of a foreground change
+	private void setForeground(boolean foreground) {
+		Log.d(TAG, "Application foreground: " + foreground);
+		for (Account account : mAccountList) {
+			account.onForegroundChanged(foreground);
+		}
+	}
+
 	/**
 	 * @return the volumeList
 	 */
@@ -114,6 +184,28 @@ public class EDApplication extends Application {
 		return dbHelper;
 	}
 
+	/**
+	 * @return the cache of encrypted remote file contents
+	 */
+	public CiphertextCache getCiphertextCache() {
+		return mCiphertextCache;
+	}
+
+	/**
+	 * @return the write-back upload queue
+	 */
+	public UploadQueue getUploadQueue() {
+		return mUploadQueue;
+	}
+
+	/**
+	 * @return ciphertext cache capacity in bytes from the preferences
+	 */
+	public long getCiphertextCacheCapacity() {
+		return Long.parseLong(PreferenceManager.getDefaultSharedPreferences(
+				this).getString("ciphertext_cache_size", "100")) * 1024 * 1024;
+	}
+
 	/**
 	 * @return list of accounts
 	 */
@@ -26,6 +26,7 @@ import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Bundle;
 import android.preference.Preference;
+import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceManager;
 import android.util.Log;
@@ -100,6 +101,29 @@ public class EDPreferenceActivity extends Activity {
 					.getDefaultSharedPreferences(EDPreferenceActivity.this);
 
 			adjustExtSdScreen(prefs);
+
+			Preference purgePref = findPreference("ciphertext_cache_purge");
+			purgePref
+					.setOnPreferenceClickListener(new OnPreferenceClickListener() {
+						@Override
+						public boolean onPreferenceClick(Preference preference) {
+							mApp.getCiphertextCache().purge();
+							updateCacheStats();
+							return true;
+						}
+					});
+			updateCacheStats();
+		}
+
+		// Show ciphertext cache usage in the purge preference
+		private void updateCacheStats() {
+			CiphertextCache cache = mApp.getCiphertextCache();
+			findPreference("ciphertext_cache_purge").setSummary(
+					String.format(
+							getString(R.string.ciphertext_cache_purge_pref_sum_str),
+							cache.getFileCount(), cache.getSize() / 1024,
+							cache.getHitCount(), cache.getMissCount(),
+							cache.getEvictionCount()));
 		}
 
 		@Override
@@ -140,6 +164,11 @@ public class EDPreferenceActivity extends Activity {
 				} else {
 					Log.d(TAG, "Key caching enabled.");
 				}
+			} else if (key.equals("ciphertext_cache_size")) {
+				Log.d(TAG, "Ciphertext cache size changed");
+				mApp.getCiphertextCache().setCapacity(
+						mApp.getCiphertextCacheCapacity());
+				updateCacheStats();
 			} else if (key.equals("ext_sd_enabled")) {
 				adjustExtSdScreen(prefs);
 			} else if (key.equals("auto_import")) {
@@ -0,0 +1,352 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mrpdaemon.sec.encfs.EncFSConfig;
+import org.mrpdaemon.sec.encfs.EncFSFilenameEncryptionAlgorithm;
+import org.mrpdaemon.sec.encfs.EncFSVolume;
+
+/*
+ * Encrypts and decrypts the content blocks of EncFS files.
+ *
+ * This follows the block format of encfs-java's EncFSInputStream and
+ * EncFSOutputStream. Those streams go through the Cipher and Mac objects
+ * shared by the whole EncFSVolume, which aren't thread safe, so they can
+ * only process one block at a time. Each instance of this class has its own
+ * Cipher and Mac objects instead. Instances aren't thread safe either, each
+ * thread working on blocks needs its own.
+ *
+ * Every block of a file is encrypted with an IV derived from the file IV
+ * and the block number alone, so blocks can be processed in any order once
+ * the file IV is known.
+ */
+public class EncFSBlockCipher {
+
+	// Size of the per-file header holding the encrypted file IV
+	public final static int FILE_HEADER_SIZE = 8;
+
+	// Volume key
+	private final Key key;
+
+	// Volume IV
+	private final byte[] volumeIv;
+
+	// Ciphers for full blocks and for partial blocks
+	private final Cipher blockCipher;
+	private final Cipher streamCipher;
+
+	// MAC keyed with the volume key
+	private final Mac mac;
+
+	// Size of a ciphertext block
+	private final int blockSize;
+
+	// Number of MAC bytes in each block header
+	private final int macBytes;
+
+	// Number of random bytes in each block header
+	private final int randBytes;
+
+	// Whether all-zero blocks are holes that aren't encrypted
+	private final boolean holesAllowed;
+
+	// Whether file names are padded to whole cipher blocks
+	private final boolean blockNames;
+
+	public EncFSBlockCipher(EncFSVolume volume) throws IOException {
+		EncFSConfig config = volume.getConfig();
+
+		this.key = volume.getKey();
+		this.volumeIv = volume.getIV();
+		this.blockSize = config.getEncryptedFileBlockSizeInBytes();
+		this.macBytes = config.getNumberOfMACBytesForEachFileBlock();
+		this.randBytes = config.getNumberOfRandomBytesInEachMACHeader();
+		this.holesAllowed = config.isHolesAllowedInFiles();
+		this.blockNames = (config.getFilenameAlgorithm()
+				== EncFSFilenameEncryptionAlgorithm.BLOCK);
+
+		try {
+			blockCipher = Cipher.getInstance("AES/CBC/NoPadding");
+			streamCipher = Cipher.getInstance("AES/CFB/NoPadding");
+			mac = Mac.getInstance("HmacSHA1");
+			mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA1"));
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+
+	// Size of a ciphertext block
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	// Size of the header at the start of each block
+	public int getBlockHeaderSize() {
+		return macBytes + randBytes;
+	}
+
+	// Size of the plaintext in a full block
+	public int getPlainBlockSize() {
+		return blockSize - macBytes - randBytes;
+	}
+
+	/*
+	 * Return the IV chained from the names along the given volume path, like
+	 * StreamCrypto.computeChainIv() but without the volume's shared MAC.
+	 */
+	public byte[] computeChainIv(String volumePath) {
+		byte[] chainIv = new byte[8];
+		StringTokenizer st = new StringTokenizer(volumePath, "/");
+		while (st.hasMoreTokens()) {
+			byte[] name = st.nextToken().getBytes();
+			if (blockNames) {
+				// PKCS#7 style padding like the block name encoding
+				int padLen = 16 - name.length % 16;
+				byte[] padded = Arrays.copyOf(name, name.length + padLen);
+				Arrays.fill(padded, name.length, padded.length, (byte) padLen);
+				name = padded;
+			}
+
+			byte[] concat = Arrays.copyOf(name, name.length + 8);
+			for (int i = 0; i < 8; i++) {
+				concat[name.length + i] = chainIv[7 - i];
+			}
+			chainIv = mac64(concat, 0, concat.length);
+		}
+		return chainIv;
+	}
+
+	// Decrypt a file header into the file IV
+	public long decryptFileHeader(byte[] header, byte[] chainIv)
+			throws IOException {
+		return ByteBuffer.wrap(
+				streamDecrypt(chainIv, header, 0, FILE_HEADER_SIZE)).getLong();
+	}
+
+	/*
+	 * Decrypt the ciphertext block with the given number and write its
+	 * plaintext to the given buffer. A block shorter than the block size is
+	 * the last one of the file. Returns the number of plaintext bytes.
+	 */
+	public int decryptBlock(long fileIv, long blockNum, byte[] in, int inOff,
+			int inLen, byte[] out, int outOff) throws IOException {
+		byte[] ivSeed = blockIvSeed(fileIv, blockNum);
+		int headerSize = getBlockHeaderSize();
+
+		byte[] plain;
+		if (inLen == blockSize) {
+			if (holesAllowed && isZero(in, inOff, inLen)) {
+				// Holes read back as zeros without a header to check
+				int len = inLen - headerSize;
+				Arrays.fill(out, outOff, outOff + len, (byte) 0);
+				return len;
+			}
+			plain = blockDecrypt(ivSeed, in, inOff, inLen);
+		} else {
+			plain = streamDecrypt(ivSeed, in, inOff, inLen);
+		}
+
+		if (macBytes > 0) {
+			byte[] blockMac = mac64(plain, macBytes, plain.length - macBytes);
+			for (int i = 0; i < macBytes; i++) {
+				if (blockMac[7 - i] != plain[i]) {
+					throw new IOException("Block MAC mismatch in block "
+							+ blockNum);
+				}
+			}
+		}
+
+		int len = Math.max(0, plain.length - headerSize);
+		System.arraycopy(plain, headerSize, out, outOff, len);
+		return len;
+	}
+
+	/*
+	 * Encrypt the block with the given number in place. The block starts with
+	 * room for the block header, whose random bytes must already be filled
+	 * in, followed by the plaintext. A block shorter than the block size is
+	 * the last one of the file.
+	 */
+	public void encryptBlock(long fileIv, long blockNum, byte[] buf, int off,
+			int len) throws IOException {
+		if (len == 0) {
+			return;
+		}
+
+		if (macBytes > 0) {
+			byte[] blockMac = mac64(buf, off + macBytes, len - macBytes);
+			for (int i = 0; i < macBytes; i++) {
+				buf[off + i] = blockMac[7 - i];
+			}
+		}
+
+		byte[] ivSeed = blockIvSeed(fileIv, blockNum);
+		if (len == blockSize) {
+			if (holesAllowed && isZero(buf, off, len)) {
+				// Zero blocks are written as holes
+				return;
+			}
+			try {
+				cipherInit(blockCipher, Cipher.ENCRYPT_MODE, ivSeed);
+				blockCipher.doFinal(buf, off, len, buf, off);
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e);
+			}
+		} else {
+			byte[] encrypted = streamEncrypt(ivSeed, buf, off, len);
+			System.arraycopy(encrypted, 0, buf, off, len);
+		}
+	}
+
+	// Whether the given range is all zeros
+	private static boolean isZero(byte[] buf, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			if (buf[i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// IV seed of the block with the given number
+	public static byte[] blockIvSeed(long fileIv, long blockNum) {
+		return ByteBuffer.allocate(8).putLong(blockNum ^ fileIv).array();
+	}
+
+	// Initialize the given cipher with the IV derived from the given seed
+	private void cipherInit(Cipher cipher, int opMode, byte[] ivSeed)
+			throws GeneralSecurityException {
+		byte[] concat = new byte[24];
+		System.arraycopy(volumeIv, 0, concat, 0, 16);
+		for (int i = 0; i < 8; i++) {
+			concat[16 + i] = ivSeed[7 - i];
+		}
+		byte[] iv = Arrays.copyOfRange(mac.doFinal(concat), 0, 16);
+		cipher.init(opMode, key, new IvParameterSpec(iv));
+	}
+
+	public byte[] blockDecrypt(byte[] ivSeed, byte[] data, int off, int len)
+			throws IOException {
+		try {
+			cipherInit(blockCipher, Cipher.DECRYPT_MODE, ivSeed);
+			return blockCipher.doFinal(data, off, len);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+
+	public byte[] blockEncrypt(byte[] ivSeed, byte[] data, int off, int len)
+			throws IOException {
+		try {
+			cipherInit(blockCipher, Cipher.ENCRYPT_MODE, ivSeed);
+			return blockCipher.doFinal(data, off, len);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+
+	public byte[] streamDecrypt(byte[] ivSeed, byte[] data, int off, int len)
+			throws IOException {
+		try {
+			cipherInit(streamCipher, Cipher.DECRYPT_MODE, nextIvSeed(ivSeed));
+			byte[] first = streamCipher.doFinal(data, off, len);
+			unshuffleBytes(first);
+			byte[] flipped = flipBytes(first);
+			cipherInit(streamCipher, Cipher.DECRYPT_MODE, ivSeed);
+			byte[] result = streamCipher.doFinal(flipped);
+			unshuffleBytes(result);
+			return result;
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+
+	public byte[] streamEncrypt(byte[] ivSeed, byte[] data, int off, int len)
+			throws IOException {
+		try {
+			byte[] buf = Arrays.copyOfRange(data, off, off + len);
+			shuffleBytes(buf);
+			cipherInit(streamCipher, Cipher.ENCRYPT_MODE, ivSeed);
+			byte[] first = streamCipher.doFinal(buf);
+			byte[] flipped = flipBytes(first);
+			shuffleBytes(flipped);
+			cipherInit(streamCipher, Cipher.ENCRYPT_MODE, nextIvSeed(ivSeed));
+			return streamCipher.doFinal(flipped);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+
+	// 64-bit MAC of the given range, folded from the HMAC like EncFS does
+	public byte[] mac64(byte[] data, int off, int len) {
+		mac.reset();
+		mac.update(data, off, len);
+		byte[] full = mac.doFinal();
+		byte[] result = new byte[8];
+		for (int i = 0; i < 19; i++) {
+			result[i % 8] ^= full[i];
+		}
+		return result;
+	}
+
+	private static byte[] nextIvSeed(byte[] ivSeed) {
+		return ByteBuffer.allocate(8)
+				.putLong(ByteBuffer.wrap(ivSeed).getLong() + 1).array();
+	}
+
+	private static void shuffleBytes(byte[] buf) {
+		for (int i = 0; i < buf.length - 1; i++) {
+			buf[i + 1] ^= buf[i];
+		}
+	}
+
+	private static void unshuffleBytes(byte[] buf) {
+		for (int i = buf.length - 1; i > 0; i--) {
+			buf[i] ^= buf[i - 1];
+		}
+	}
+
+	// Reverse the bytes of each 64 byte chunk
+	private static byte[] flipBytes(byte[] input) {
+		byte[] result = new byte[input.length];
+		int offset = 0;
+		int bytesLeft = input.length;
+		while (bytesLeft > 0) {
+			int toFlip = Math.min(64, bytesLeft);
+			for (int i = 0; i < toFlip; i++) {
+				result[offset + i] = input[offset + toFlip - i - 1];
+			}
+			bytesLeft -= toFlip;
+			offset += toFlip;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import org.mrpdaemon.sec.encfs.EncFSConfig;
+
+/*
+ * Mapping of a plaintext byte range of an EncFS file to the whole ciphertext
+ * blocks that contain it.
+ *
+ * An encrypted file starts with an optional 8 byte IV header followed by
+ * blocks of the configured block size, each of which starts with the MAC and
+ * random bytes of its block header. Since blocks are encrypted independently
+ * (given the file IV), reading a range only requires the file header and the
+ * blocks overlapping the range.
+ */
+public class EncFSBlockRange {
+
+	// Size of the per file IV header when unique IV's are used
+	public final static int FILE_HEADER_SIZE = 8;
+
+	// Size of the file header, 0 if the volume doesn't use unique IV's
+	private final int fileHeaderSize;
+
+	// Size of a ciphertext block including its header
+	private final int cipherBlockSize;
+
+	// Size of the plaintext in a full block
+	private final int plainBlockSize;
+
+	// Index of the first block of the range
+	private final long firstBlock;
+
+	// Number of blocks in the range, -1 if unbounded
+	private final long numBlocks;
+
+	// Plaintext bytes to discard from the start of the first block
+	private final int skipBytes;
+
+	public EncFSBlockRange(EncFSConfig config, long plainOffset,
+			long plainLength) {
+		if (plainOffset < 0) {
+			throw new IllegalArgumentException("Negative offset");
+		}
+
+		this.fileHeaderSize = config.isUseUniqueIV() ? FILE_HEADER_SIZE : 0;
+		this.cipherBlockSize = config.getEncryptedFileBlockSizeInBytes();
+		this.plainBlockSize = cipherBlockSize
+				- config.getNumberOfMACBytesForEachFileBlock()
+				- config.getNumberOfRandomBytesInEachMACHeader();
+
+		this.firstBlock = plainOffset / plainBlockSize;
+		this.skipBytes = (int) (plainOffset % plainBlockSize);
+
+		if (plainLength < 0) {
+			this.numBlocks = -1;
+		} else if (plainLength == 0) {
+			this.numBlocks = 0;
+		} else {
+			long lastBlock = (plainOffset + plainLength - 1) / plainBlockSize;
+			this.numBlocks = lastBlock - firstBlock + 1;
+		}
+	}
+
+	// Size of the file header to read before any block
+	public int getFileHeaderSize() {
+		return fileHeaderSize;
+	}
+
+	// Size of a ciphertext block
+	public int getCipherBlockSize() {
+		return cipherBlockSize;
+	}
+
+	// Size of the plaintext in a full block
+	public int getPlainBlockSize() {
+		return plainBlockSize;
+	}
+
+	// Index of the first block covering the range
+	public long getFirstBlock() {
+		return firstBlock;
+	}
+
+	// Number of blocks covering the range, -1 if it extends to EOF
+	public long getNumBlocks() {
+		return numBlocks;
+	}
+
+	// Plaintext bytes to discard from the first decrypted block
+	public int getSkipBytes() {
+		return skipBytes;
+	}
+
+	// Offset of the first ciphertext block of the range
+	public long getCipherOffset() {
+		return fileHeaderSize + firstBlock * cipherBlockSize;
+	}
+
+	/*
+	 * Length of the ciphertext covering the range, -1 if it extends to EOF.
+	 * The last block of a file may be short, in which case reading stops early.
+	 */
+	public long getCipherLength() {
+		if (numBlocks < 0) {
+			return -1;
+		}
+		return numBlocks * cipherBlockSize;
+	}
+}
@@ -59,7 +59,12 @@ public class ExtSDFileSystem extends FileSystem {
 	}
 
 	@Override
-	public EncFSFileProvider getFileProvider(String path) {
+	protected String getParallelTransfersKey() {
+		return "parallel_transfers_ext_sd";
+	}
+
+	@Override
+	protected EncFSFileProvider createFileProvider(String path) {
 		return new EncFSLocalFileProvider(new File(mPrefs.getString(
 				"ext_sd_location", "/mnt/external1"), path));
 	}
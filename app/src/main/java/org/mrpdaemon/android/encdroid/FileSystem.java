@@ -21,6 +21,8 @@ package org.mrpdaemon.android.encdroid;
 import org.mrpdaemon.sec.encfs.EncFSFileProvider;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 
 // Base class for all file system types
 public abstract class FileSystem {
@@ -59,8 +61,84 @@ public abstract class FileSystem {
 		return mAccount;
 	}
 
-	// Return a file provider for this file system at a given path
+	// Preference key for the number of files transferred at once
+	protected abstract String getParallelTransfersKey();
+
+	// Default number of files transferred at once
+	protected String getDefaultParallelTransfers() {
+		return "2";
+	}
+
+	// Return the number of files to transfer at once from preferences
+	public int getParallelTransfers() {
+		SharedPreferences prefs = PreferenceManager
+				.getDefaultSharedPreferences(mContext);
+		try {
+			return Integer.parseInt(prefs.getString(getParallelTransfersKey(),
+					getDefaultParallelTransfers()));
+		} catch (NumberFormatException e) {
+			return Integer.parseInt(getDefaultParallelTransfers());
+		}
+	}
+
+	/*
+	 * Return a file provider for this file system at a given path, wrapped in
+	 * a metadata cache if enabled in the preferences. Contents of remote
+	 * files are cached on local storage and read ahead, and written back in
+	 * the background if enabled.
+	 */
 	public EncFSFileProvider getFileProvider(String path) {
+		return buildFileProvider(path, true);
+	}
+
+	// Return a file provider for uploading files queued for write-back
+	public EncFSFileProvider getUploadFileProvider(String path) {
+		return buildFileProvider(path, false);
+	}
+
+	private EncFSFileProvider buildFileProvider(String path,
+			boolean allowWriteBack) {
+		EncFSFileProvider provider = createFileProvider(path);
+		if (provider == null) {
+			return null;
+		}
+
+		EDApplication app = (EDApplication) mContext.getApplicationContext();
+		SharedPreferences prefs = PreferenceManager
+				.getDefaultSharedPreferences(mContext);
+
+		// Keep local copies of remote file contents and read ahead
+		if (mAccount != null) {
+			int prefetchWindow = 0;
+			try {
+				// Preference is in MB, 0 to disable
+				prefetchWindow = Integer.parseInt(prefs.getString(
+						"prefetch_window", "4")) * 1024 * 1024;
+			} catch (NumberFormatException e) {
+				Logger.logException(TAG, e);
+			}
+
+			provider = new ContentCachingFileProvider(provider,
+					app.getCiphertextCache(), getName() + ":"
+							+ mAccount.getUserName() + ":" + path,
+					prefetchWindow);
+
+			if (allowWriteBack && prefs.getBoolean("write_back", false)) {
+				provider = new WriteBackFileProvider(provider,
+						app.getUploadQueue(), app.getFSIndex(this), path);
+			}
+		}
+
+		// Outermost so that it sees completed writes of write-back streams
+		if (prefs.getBoolean("cache_metadata", false)) {
+			provider = new CachingFileProvider(provider);
+		}
+
+		return provider;
+	}
+
+	// Create the file provider for this file system at a given path
+	protected EncFSFileProvider createFileProvider(String path) {
 		if (mAccount != null) {
 			if (mAccount.isLinked() && mAccount.isAuthenticated()) {
 				return mAccount.getFileProvider(path);
@@ -0,0 +1,203 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/*
+ * Runs the file transfers of a recursive import or export several at a time.
+ *
+ * With thousands of small files on a cloud volume most of the time goes to
+ * request latency, so transferring one file after the other leaves the
+ * connection idle. Jobs submitted here run on a fixed number of worker
+ * threads instead. submit() blocks while every worker is busy and as many
+ * jobs are waiting, so the caller walking the directory tree doesn't get
+ * far ahead of the transfers.
+ *
+ * With POLICY_CANCEL the first failed job cancels the pool: jobs that
+ * haven't started are skipped and running ones should stop at their next
+ * isCancelled() check. With POLICY_RECORD the remaining jobs still run and
+ * every failure is recorded. Failures of jobs running after the pool was
+ * cancelled aren't recorded, they're usually caused by the cancellation.
+ */
+public class FileTransferPool {
+
+	// Logger tag
+	private final static String TAG = "FileTransferPool";
+
+	// Error policies
+	public final static int POLICY_CANCEL = 0;
+	public final static int POLICY_RECORD = 1;
+
+	// A file transfer, throws on failure
+	public interface Job {
+		public void run() throws Exception;
+	}
+
+	// A failed job
+	public static class Failure {
+		private final String name;
+		private final String message;
+
+		Failure(String name, String message) {
+			this.name = name;
+			this.message = message;
+		}
+
+		// Name the job was submitted with
+		public String getName() {
+			return name;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+	}
+
+	// Worker threads
+	private final ExecutorService executor;
+
+	// Permits for running and waiting jobs
+	private final Semaphore slots;
+
+	// Error policy
+	private final int policy;
+
+	// Recorded failures
+	private final List<Failure> failures = new ArrayList<Failure>();
+
+	// Number of jobs submitted but not finished
+	private int pending = 0;
+
+	// Whether the pool was cancelled
+	private volatile boolean cancelled = false;
+
+	public FileTransferPool(int parallelism, int policy) {
+		final int threads = Math.max(1, parallelism);
+		this.policy = policy;
+		this.slots = new Semaphore(2 * threads);
+		this.executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(r, "FileTransfer-"
+								+ count.incrementAndGet());
+					}
+				});
+	}
+
+	/*
+	 * Queue the given job, waiting for a free slot if needed. Returns false
+	 * without running the job if the pool was cancelled.
+	 */
+	public boolean submit(final String name, final Job job)
+			throws InterruptedException {
+		slots.acquire();
+		if (cancelled) {
+			slots.release();
+			return false;
+		}
+
+		synchronized (this) {
+			pending++;
+		}
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (!cancelled) {
+						job.run();
+					}
+				} catch (Exception e) {
+					recordFailure(name, e);
+				} finally {
+					slots.release();
+					synchronized (FileTransferPool.this) {
+						pending--;
+						FileTransferPool.this.notifyAll();
+					}
+				}
+			}
+		});
+
+		return true;
+	}
+
+	// Record a failed job, or a failure to queue one
+	public void recordFailure(String name, Exception e) {
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			Logger.logException(TAG, e);
+			failures.add(new Failure(name, e.getMessage()));
+			if (policy == POLICY_CANCEL) {
+				cancelled = true;
+			}
+		}
+	}
+
+	// Skip jobs that haven't started and ask running ones to stop
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/*
+	 * Wait for all submitted jobs to finish and stop the workers. Returns
+	 * the recorded failures. Interrupts are deferred until the jobs are done,
+	 * they may still be writing to files the caller is about to clean up.
+	 */
+	public List<Failure> awaitCompletion() {
+		boolean interrupted = false;
+		synchronized (this) {
+			while (pending > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+					cancelled = true;
+				}
+			}
+		}
+		executor.shutdown();
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (this) {
+			Log.d(TAG, "Transfers complete, " + failures.size() + " failed");
+			return new ArrayList<Failure>(failures);
+		}
+	}
+}
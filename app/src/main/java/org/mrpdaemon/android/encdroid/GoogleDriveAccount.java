@@ -25,8 +25,8 @@ import org.mrpdaemon.sec.encfs.EncFSFileProvider;
 
 import com.google.android.gms.auth.GoogleAuthException;
 import com.google.android.gms.auth.UserRecoverableAuthException;
-import com.google.api.client.extensions.android.http.AndroidHttp;
 import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
+import com.google.api.client.http.apache.ApacheHttpTransport;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveScopes;
@@ -38,6 +38,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -60,6 +61,10 @@ public class GoogleDriveAccount extends Account {
 	// Logger tag
 	private final static String TAG = "GoogleDriveAccount";
 
+	// Sustained API request rate (per second) and burst size
+	private final static double REQUEST_RATE = 10;
+	private final static int REQUEST_BURST = 10;
+
 	// Whether we're linked to an account
 	private boolean linked;
 
@@ -75,6 +80,9 @@ public class GoogleDriveAccount extends Account {
 	// Saved preferences
 	private SharedPreferences mPrefs;
 
+	// Application preferences
+	private SharedPreferences mAppPrefs;
+
 	// Account name
 	private String accountName = null;
 
@@ -84,12 +92,77 @@ public class GoogleDriveAccount extends Account {
 	// Drive API object
 	private Drive driveService = null;
 
+	// DB helper for persisting the file ID cache
+	private DBHelper dbHelper;
+
+	// File ID cache shared by all file providers of this account
+	private GoogleDriveFileIdCache fileIdCache = null;
+
+	// Directory listing cache shared by all file providers of this account
+	private GoogleDriveMetadataCache metadataCache = new GoogleDriveMetadataCache();
+
+	// Account name the file ID cache was created for
+	private String fileIdAccountName = null;
+
+	// Change feed poller keeping the caches coherent
+	private GoogleDriveChangePoller changePoller = null;
+
+	// Number of unlocked volumes on this account
+	private int openVolumes = 0;
+
+	// Whether the application is in the foreground
+	private boolean foreground = false;
+
+	// Scheduler for API requests of all file providers of this account
+	private RequestScheduler scheduler;
+
+	// Pool of HTTP connections to the Drive API
+	private CloudConnectionPool connectionPool;
+
+	/*
+	 * Poll the changes feed only while it's of use: authenticated, with a
+	 * volume open and the application in the foreground.
+	 */
+	private synchronized void updateChangePoller() {
+		boolean wanted = authenticated && openVolumes > 0 && foreground
+				&& driveService != null && fileIdCache != null;
+
+		if (!wanted) {
+			stopChangePoller();
+		} else if (changePoller == null) {
+			changePoller = new GoogleDriveChangePoller(driveService,
+					scheduler, fileIdCache, metadataCache, mPrefs,
+					fileIdAccountName);
+			changePoller.start();
+		}
+	}
+
+	// Stop polling the changes feed
+	private synchronized void stopChangePoller() {
+		if (changePoller != null) {
+			changePoller.stop();
+			changePoller = null;
+		}
+	}
+
 	// Create drive service
 	private void createDriveService(String accountName) {
 		credential.setSelectedAccountName(accountName);
 
-		driveService = new Drive.Builder(AndroidHttp.newCompatibleTransport(),
-				new GsonFactory(), credential).build();
+		// Poller holds on to the old service and caches
+		stopChangePoller();
+
+		// Only reset the file ID cache if the account changed
+		if (fileIdCache == null || fileIdAccountName == null
+				|| !fileIdAccountName.equals(accountName)) {
+			fileIdCache = new GoogleDriveFileIdCache(dbHelper, accountName);
+			fileIdAccountName = accountName;
+			metadataCache.clear();
+		}
+
+		driveService = new Drive.Builder(new ApacheHttpTransport(
+				connectionPool.getHttpClient()), new GsonFactory(), credential)
+				.build();
 
 		Log.v(TAG, "Drive service created: " + driveService.toString());
 	}
@@ -140,6 +213,7 @@ public class GoogleDriveAccount extends Account {
 					Log.v(TAG, "Already authenticated to Google API");
 					showLoginToast(activity, LoginResult.OK);
 					authenticated = true;
+					updateChangePoller();
 				} catch (UserRecoverableAuthException e) {
 					Logger.logException(TAG, e);
 					if (activity != null) {
@@ -167,6 +241,18 @@ public class GoogleDriveAccount extends Account {
 
 	public GoogleDriveAccount(EDApplication app) {
 		mPrefs = app.getSharedPreferences(PREFS_KEY, 0);
+		mAppPrefs = PreferenceManager.getDefaultSharedPreferences(app);
+		dbHelper = app.getDbHelper();
+
+		scheduler = new RequestScheduler(GoogleDriveFileProvider.RETRY_POLICY,
+				getApiConcurrency(mAppPrefs), REQUEST_RATE, REQUEST_BURST);
+
+		// The Drive client sets its own user agent
+		connectionPool = new CloudConnectionPool(TAG,
+				CloudConnectionPool.createSslSocketFactory(app), null,
+				CloudConnectionPool.connectionsFor(getApiConcurrency(mAppPrefs)));
+		// Downloads are served from there
+		connectionPool.addContentHost("googleusercontent.com");
 
 		linkInProgress = false;
 		authInProgress = false;
@@ -245,6 +331,8 @@ public class GoogleDriveAccount extends Account {
 
 	@Override
 	public void unLink() {
+		stopChangePoller();
+
 		// Clear preferences
 		Editor edit = mPrefs.edit();
 		edit.clear();
@@ -258,9 +346,37 @@ public class GoogleDriveAccount extends Account {
 		accountName = null;
 		driveService = null;
 
+		// Drop cached file ID's for the unlinked account
+		if (fileIdCache != null) {
+			fileIdCache.clear();
+			fileIdCache = null;
+			fileIdAccountName = null;
+		}
+		metadataCache.clear();
+
 		Log.d(TAG, "Google Drive account unlinked");
 	}
 
+	@Override
+	public synchronized void onVolumeUnlocked() {
+		openVolumes++;
+		updateChangePoller();
+	}
+
+	@Override
+	public synchronized void onVolumeLocked() {
+		if (openVolumes > 0) {
+			openVolumes--;
+		}
+		updateChangePoller();
+	}
+
+	@Override
+	public synchronized void onForegroundChanged(boolean foreground) {
+		this.foreground = foreground;
+		updateChangePoller();
+	}
+
 	@Override
 	public String getUserName() {
 		return accountName;
@@ -268,7 +384,22 @@ public class GoogleDriveAccount extends Account {
 
 	@Override
 	public EncFSFileProvider getFileProvider(String path) {
-		return new GoogleDriveFileProvider(driveService, path);
+		int concurrency = getApiConcurrency(mAppPrefs);
+		scheduler.setMaxConcurrency(concurrency);
+		connectionPool.setMaxPerHost(CloudConnectionPool
+				.connectionsFor(concurrency));
+		GoogleDriveFileProvider provider = new GoogleDriveFileProvider(
+				driveService, fileIdCache, metadataCache, scheduler, path);
+
+		// Preference is in KB, 0 for automatic
+		try {
+			provider.setUploadChunkSize(Integer.parseInt(mAppPrefs.getString(
+					"drive_chunk_size", "0")) * 1024);
+		} catch (NumberFormatException e) {
+			Logger.logException(TAG, e);
+		}
+
+		return provider;
 	}
 
 	@Override
@@ -305,6 +436,7 @@ public class GoogleDriveAccount extends Account {
 				Log.v(TAG, "Successfully authenticated to Google API");
 				showLoginToast(origin, LoginResult.OK);
 				authenticated = true;
+				updateChangePoller();
 				return true;
 			}
 			break;
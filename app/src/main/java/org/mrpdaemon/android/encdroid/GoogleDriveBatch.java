@@ -0,0 +1,267 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+
+/*
+ * Queue of Google Drive API requests sent as multipart batch requests.
+ *
+ * Any Drive request (delete, parent insert/delete, patch, get etc.) can be
+ * queued along with a callback that receives its result. The server doesn't
+ * guarantee any ordering between requests in the same batch, so dependent
+ * requests should be queued from the callback of the request they depend
+ * on; these are sent in a following round of the same execute() call.
+ *
+ * Batches are sent through the account's RequestScheduler. Requests in a
+ * batch that were rejected by the server's rate limiting are sent again in
+ * the next round after holding back the scheduler.
+ */
+public class GoogleDriveBatch {
+
+	// Logger tag
+	private final static String TAG = "GoogleDriveBatch";
+
+	// Maximum number of requests the server accepts in one batch
+	public final static int MAX_BATCH_SIZE = 100;
+
+	// Times a rate limited request is sent again
+	private final static int MAX_RESENDS = 5;
+
+	// Delay after a rate limited round, doubled for each following one
+	private final static long THROTTLE_DELAY_MS = 1000;
+
+	// Result callback for a queued request
+	public static abstract class Callback<T> {
+
+		// Called with the parsed response of a successful request
+		public abstract void onSuccess(T result);
+
+		/*
+		 * Called when the request failed. Returning true marks the failure as
+		 * expected so it isn't reported by execute().
+		 */
+		public boolean onFailure(GoogleJsonError error) {
+			return false;
+		}
+	}
+
+	// A request along with its callback
+	private class PendingRequest<T> {
+		private final DriveRequest<T> request;
+		private final Callback<T> callback;
+
+		// Number of times the request was rejected by rate limiting
+		private int resends = 0;
+
+		public PendingRequest(DriveRequest<T> request, Callback<T> callback) {
+			this.request = request;
+			this.callback = callback;
+		}
+
+		// Add this request to the given batch
+		public void queueTo(BatchRequest batch) throws IOException {
+			request.queue(batch, new JsonBatchCallback<T>() {
+				@Override
+				public void onSuccess(T result, HttpHeaders responseHeaders) {
+					callback.onSuccess(result);
+				}
+
+				@Override
+				public void onFailure(GoogleJsonError error,
+						HttpHeaders responseHeaders) {
+					handleFailure(PendingRequest.this, error);
+				}
+			});
+		}
+
+		// Send this request on its own
+		public void execute() throws IOException {
+			T result;
+			try {
+				result = scheduler.execute(
+						new RequestScheduler.Request<T, IOException>() {
+							@Override
+							public T execute() throws IOException {
+								return request.execute();
+							}
+						}, false);
+			} catch (GoogleJsonResponseException e) {
+				GoogleJsonError error = e.getDetails();
+				if (error == null) {
+					error = new GoogleJsonError();
+					error.setCode(e.getStatusCode());
+					error.setMessage(e.getStatusMessage());
+				}
+				handleFailure(this, error);
+				return;
+			}
+			callback.onSuccess(result);
+		}
+	}
+
+	// Drive API object
+	private final Drive driveService;
+
+	// Scheduler the batches are sent through
+	private final RequestScheduler scheduler;
+
+	// Whether a request was rejected by rate limiting in the current round
+	private boolean throttled;
+
+	// Requests waiting to be sent
+	private List<PendingRequest<?>> pending;
+
+	// Number of failed requests in the current execute() call
+	private int numFailures;
+
+	// Message of the first failure in the current execute() call
+	private String firstFailure;
+
+	public GoogleDriveBatch(Drive driveService, RequestScheduler scheduler) {
+		this.driveService = driveService;
+		this.scheduler = scheduler;
+		this.pending = new ArrayList<PendingRequest<?>>();
+	}
+
+	// Queue the given request
+	public synchronized <T> void queue(DriveRequest<T> request,
+			Callback<T> callback) {
+		pending.add(new PendingRequest<T>(request, callback));
+	}
+
+	// Number of requests waiting to be sent
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	private synchronized void handleFailure(PendingRequest<?> request,
+			GoogleJsonError error) {
+		// Send it again in the next round
+		if (GoogleDriveFileProvider.isRateLimited(error)
+				&& request.resends < MAX_RESENDS) {
+			request.resends++;
+			pending.add(request);
+			throttled = true;
+			return;
+		}
+
+		if (request.callback.onFailure(error)) {
+			return;
+		}
+
+		Log.e(TAG, "Batched request failed: " + error.getCode() + " "
+				+ error.getMessage());
+
+		if (numFailures == 0) {
+			firstFailure = error.getMessage();
+		}
+		numFailures++;
+	}
+
+	// Take the requests queued so far
+	private synchronized List<PendingRequest<?>> takePending() {
+		List<PendingRequest<?>> result = pending;
+		pending = new ArrayList<PendingRequest<?>>();
+		return result;
+	}
+
+	/*
+	 * Send all queued requests, including the ones queued by callbacks while
+	 * doing so. Throws an IOException if any of the requests failed.
+	 */
+	public void execute() throws IOException {
+		synchronized (this) {
+			numFailures = 0;
+			firstFailure = null;
+		}
+
+		long throttleDelay = THROTTLE_DELAY_MS;
+
+		List<PendingRequest<?>> round = takePending();
+		while (!round.isEmpty()) {
+			synchronized (this) {
+				throttled = false;
+			}
+
+			try {
+				for (int start = 0; start < round.size(); start += MAX_BATCH_SIZE) {
+					int end = Math.min(start + MAX_BATCH_SIZE, round.size());
+
+					if (end - start == 1) {
+						// No point in the multipart overhead
+						round.get(start).execute();
+						continue;
+					}
+
+					Log.v(TAG, "Sending batch of " + (end - start) + " requests");
+
+					final List<PendingRequest<?>> requests = round.subList(
+							start, end);
+					scheduler.execute(
+							new RequestScheduler.Request<Void, IOException>() {
+								@Override
+								public Void execute() throws IOException {
+									BatchRequest batch = driveService.batch();
+									for (PendingRequest<?> request : requests) {
+										request.queueTo(batch);
+									}
+									batch.execute();
+									return null;
+								}
+							}, false);
+				}
+			} catch (IOException e) {
+				// Whatever is left can't be sent reliably
+				takePending();
+				throw e;
+			}
+
+			synchronized (this) {
+				if (throttled) {
+					Log.d(TAG, "Rate limited, holding back for "
+							+ throttleDelay + " ms");
+					scheduler.throttle(throttleDelay);
+					throttleDelay *= 2;
+				}
+			}
+
+			round = takePending();
+		}
+
+		synchronized (this) {
+			if (numFailures > 0) {
+				throw new IOException(numFailures
+						+ " batched request(s) failed: " + firstFailure);
+			}
+		}
+	}
+}
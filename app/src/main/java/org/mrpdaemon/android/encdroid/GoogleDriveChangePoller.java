@@ -0,0 +1,390 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+import com.google.api.services.drive.model.About;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.ParentReference;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.util.Log;
+
+/*
+ * Background poller for the Google Drive changes feed.
+ *
+ * Keeps the account's file ID and directory listing caches coherent with
+ * modifications made by other clients. The largest change ID seen so far is
+ * persisted per account so polling resumes where it left off, and only the
+ * cache entries touched by a change are invalidated. If the feed can't be
+ * used (first run, invalid change ID or too many changes) both caches are
+ * cleared so that everything is re-listed on demand. Requests go through the
+ * account's RequestScheduler, so polls are paced and retried like the file
+ * providers' requests. A poll that still fails keeps the caches and is
+ * retried on the next interval.
+ *
+ * Changes name the folders a file is in by ID, so they're matched to cached
+ * listings through the file ID cache. The provider only refers to the root
+ * folder by the "root" alias, so its real ID is fetched from about.get. If a
+ * change names a folder or file whose ID isn't cached, any listings that
+ * can't be matched by ID (their directory or one of their children was
+ * evicted from the ID cache) are dropped since they might be stale.
+ *
+ * The poller only talks to the Drive object it's given, so pointing that at a
+ * different root URL (Drive.Builder.setRootUrl()) is enough to run it against
+ * a local stand-in for the changes endpoint. The account only runs it while
+ * a Drive volume is unlocked and the app is in the foreground.
+ */
+public class GoogleDriveChangePoller {
+
+	// Logger tag
+	private final static String TAG = "GoogleDriveChangePoller";
+
+	// Preference key prefix for the largest change ID of an account
+	private final static String PREF_LARGEST_CHANGE_ID = "largest_change_id_";
+
+	// Preference key prefix for the root folder ID of an account
+	private final static String PREF_ROOT_FOLDER_ID = "root_folder_id_";
+
+	// Default interval between polls
+	public final static long DEFAULT_INTERVAL_MS = 60 * 1000;
+
+	// Number of changes in one poll after which we just drop the caches
+	public final static int FULL_RELIST_THRESHOLD = 1000;
+
+	// Page size for change list requests
+	private final static int CHANGES_PAGE_SIZE = 500;
+
+	// Fields we need from the change list
+	private final static String CHANGES_FIELDS = "nextPageToken,largestChangeId,items(fileId,deleted,file(parents(id)))";
+
+	// Drive API object
+	private final Drive drive;
+
+	// Scheduler for API requests, shared across the account
+	private final RequestScheduler scheduler;
+
+	// Caches to keep coherent
+	private final GoogleDriveFileIdCache fileIdCache;
+	private final GoogleDriveMetadataCache metadataCache;
+
+	// Preferences to persist the largest change ID in
+	private final SharedPreferences prefs;
+
+	// Preference keys for this account
+	private final String prefKey;
+	private final String rootIdKey;
+
+	// ID of the root folder, null if not known yet
+	private String rootFolderId = null;
+
+	// Interval between polls
+	private final long intervalMs;
+
+	// Polling thread, null if not running
+	private Thread pollThread = null;
+
+	public GoogleDriveChangePoller(Drive drive, RequestScheduler scheduler,
+			GoogleDriveFileIdCache fileIdCache,
+			GoogleDriveMetadataCache metadataCache, SharedPreferences prefs,
+			String accountName, long intervalMs) {
+		this.drive = drive;
+		this.scheduler = scheduler;
+		this.fileIdCache = fileIdCache;
+		this.metadataCache = metadataCache;
+		this.prefs = prefs;
+		this.prefKey = PREF_LARGEST_CHANGE_ID + accountName;
+		this.rootIdKey = PREF_ROOT_FOLDER_ID + accountName;
+		this.intervalMs = intervalMs;
+	}
+
+	public GoogleDriveChangePoller(Drive drive, RequestScheduler scheduler,
+			GoogleDriveFileIdCache fileIdCache,
+			GoogleDriveMetadataCache metadataCache, SharedPreferences prefs,
+			String accountName) {
+		this(drive, scheduler, fileIdCache, metadataCache, prefs,
+				accountName, DEFAULT_INTERVAL_MS);
+	}
+
+	// Start polling in the background
+	public synchronized void start() {
+		if (pollThread != null) {
+			return;
+		}
+
+		pollThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!Thread.currentThread().isInterrupted()) {
+					try {
+						pollOnce();
+					} catch (IOException e) {
+						Logger.logException(TAG, e);
+					}
+
+					try {
+						Thread.sleep(intervalMs);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+				Log.d(TAG, "Change poller exiting");
+			}
+		});
+		pollThread.setDaemon(true);
+		pollThread.start();
+	}
+
+	// Stop polling
+	public synchronized void stop() {
+		if (pollThread != null) {
+			pollThread.interrupt();
+			pollThread = null;
+		}
+	}
+
+	// Send the given read-only request through the scheduler
+	private <T> T execute(final DriveRequest<T> request) throws IOException {
+		return scheduler.execute(
+				new RequestScheduler.Request<T, IOException>() {
+					@Override
+					public T execute() throws IOException {
+						return request.execute();
+					}
+				}, true);
+	}
+
+	private long getLargestChangeId() {
+		return prefs.getLong(prefKey, -1);
+	}
+
+	private void setLargestChangeId(long changeId) {
+		Editor edit = prefs.edit();
+		edit.putLong(prefKey, changeId);
+		edit.commit();
+	}
+
+	private void setRootFolderId(String fileId) {
+		rootFolderId = fileId;
+		Editor edit = prefs.edit();
+		edit.putString(rootIdKey, fileId);
+		edit.commit();
+	}
+
+	// Return the ID of the root folder, fetching it if not known yet
+	private String getRootFolderId() throws IOException {
+		if (rootFolderId == null) {
+			rootFolderId = prefs.getString(rootIdKey, null);
+		}
+		if (rootFolderId == null) {
+			String fileId = execute(
+					drive.about().get().setFields("rootFolderId"))
+					.getRootFolderId();
+			if (fileId != null) {
+				setRootFolderId(fileId);
+			}
+		}
+		return rootFolderId;
+	}
+
+	/*
+	 * Drop both caches and restart from the current head of the changes feed.
+	 * Subsequent accesses re-list directories from the server.
+	 */
+	private void fullInvalidate() throws IOException {
+		// Fetch the new baseline first so a failure leaves the caches alone
+		About about = execute(drive.about().get()
+				.setFields("largestChangeId,rootFolderId"));
+
+		Log.d(TAG, "Invalidating all cached Drive metadata");
+
+		fileIdCache.clear();
+		metadataCache.clear();
+
+		if (about.getRootFolderId() != null) {
+			setRootFolderId(about.getRootFolderId());
+		}
+		if (about.getLargestChangeId() != null) {
+			setLargestChangeId(about.getLargestChangeId());
+		}
+	}
+
+	// Return the cached paths of the file with the given ID
+	private List<String> pathsOf(String fileId) {
+		List<String> paths = fileIdCache.reverseLookup(fileId);
+		if (fileId.equals(rootFolderId)) {
+			paths.add("/");
+		}
+		return paths;
+	}
+
+	/*
+	 * Invalidate cache entries affected by the given change. Returns false if
+	 * the file's old location or one of its new parents couldn't be found by
+	 * ID.
+	 */
+	private boolean applyChange(Change change) {
+		String fileId = change.getFileId();
+		if (fileId == null) {
+			return true;
+		}
+
+		/*
+		 * Drop the file itself along with anything cached under it, and the
+		 * listing of the directory it used to be in.
+		 */
+		List<String> paths = fileIdCache.reverseLookup(fileId);
+		for (String path : paths) {
+			Log.v(TAG, "Change for '" + path + "', invalidating");
+			metadataCache.delete(path);
+			metadataCache.invalidateParent(path);
+			fileIdCache.delete(path);
+		}
+		boolean resolved = !paths.isEmpty();
+
+		// Drop listings of the directories it's now in
+		if (change.getFile() != null && change.getFile().getParents() != null) {
+			for (ParentReference parent : change.getFile().getParents()) {
+				List<String> parentPaths = pathsOf(parent.getId());
+				for (String path : parentPaths) {
+					metadataCache.invalidateListing(path);
+				}
+				if (parentPaths.isEmpty()) {
+					resolved = false;
+				}
+			}
+		}
+
+		return resolved;
+	}
+
+	/*
+	 * Drop the cached listings that changes can't be matched against: those
+	 * of directories, and those with children, whose ID isn't cached.
+	 */
+	private void invalidateUnresolvedListings() {
+		for (Map.Entry<String, List<String>> listing : metadataCache
+				.getListedPaths().entrySet()) {
+			String dirPath = listing.getKey();
+			boolean resolved = dirPath.equals("/") ? (rootFolderId != null)
+					: fileIdCache.contains(dirPath);
+			for (String childPath : listing.getValue()) {
+				if (!resolved) {
+					break;
+				}
+				resolved = fileIdCache.contains(childPath);
+			}
+
+			if (!resolved) {
+				Log.v(TAG, "Can't match changes to '" + dirPath
+						+ "', invalidating");
+				metadataCache.invalidateListing(dirPath);
+			}
+		}
+	}
+
+	/*
+	 * Fetch and apply all changes since the last poll. Can be called directly
+	 * to force a synchronous refresh.
+	 */
+	public void pollOnce() throws IOException {
+		long lastChangeId = getLargestChangeId();
+
+		if (lastChangeId < 0) {
+			// No baseline, persisted cache contents can't be trusted
+			fullInvalidate();
+			return;
+		}
+
+		getRootFolderId();
+
+		Drive.Changes.List request = drive.changes().list()
+				.setStartChangeId(lastChangeId + 1).setIncludeDeleted(true)
+				.setIncludeSubscribed(false).setMaxResults(CHANGES_PAGE_SIZE)
+				.setFields(CHANGES_FIELDS);
+
+		int numChanges = 0;
+		boolean unresolved = false;
+		long largestChangeId = lastChangeId;
+		ChangeList changes;
+
+		do {
+			try {
+				changes = execute(request);
+			} catch (HttpResponseException e) {
+				/*
+				 * Only a rejected change ID means the feed can't be used,
+				 * other failures are left for the next poll.
+				 */
+				int status = e.getStatusCode();
+				if (status != 400 && status != 404) {
+					throw e;
+				}
+				Log.w(TAG, "Change list request failed: " + status);
+				fullInvalidate();
+				return;
+			}
+
+			List<Change> items = changes.getItems();
+			if (items != null) {
+				numChanges += items.size();
+				if (numChanges > FULL_RELIST_THRESHOLD) {
+					Log.d(TAG, "Too many changes (" + numChanges + ")");
+					fullInvalidate();
+					return;
+				}
+
+				for (Change change : items) {
+					if (!applyChange(change)) {
+						unresolved = true;
+					}
+				}
+			}
+
+			if (changes.getLargestChangeId() != null) {
+				largestChangeId = Math.max(largestChangeId,
+						changes.getLargestChangeId());
+			}
+
+			request.setPageToken(changes.getNextPageToken());
+		} while (changes.getNextPageToken() != null
+				&& changes.getNextPageToken().length() > 0);
+
+		if (unresolved) {
+			invalidateUnresolvedListings();
+		}
+
+		if (numChanges > 0) {
+			Log.d(TAG, "Applied " + numChanges + " changes up to "
+					+ largestChangeId);
+		}
+
+		if (largestChangeId != lastChangeId) {
+			setLargestChangeId(largestChangeId);
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/*
+ * Bounded LRU cache mapping absolute Google Drive paths to file ID's.
+ *
+ * A single instance is owned by the GoogleDriveAccount and shared by every
+ * GoogleDriveFileProvider created for it. Entries are written through to the
+ * database so that path resolution survives process restarts.
+ */
+public class GoogleDriveFileIdCache {
+
+	// Logger tag
+	private final static String TAG = "GoogleDriveFileIdCache";
+
+	// Default maximum number of cached entries
+	public final static int DEFAULT_CAPACITY = 4096;
+
+	// Maximum number of entries
+	private final int capacity;
+
+	// DB helper for persistence, null for a memory-only cache
+	private final DBHelper dbHelper;
+
+	// Account name the cached ID's belong to
+	private final String accountName;
+
+	// Whether persisted entries have been loaded yet
+	private boolean loaded;
+
+	// Access ordered map (absPath -> fileId)
+	private final LinkedHashMap<String, String> cache;
+
+	public GoogleDriveFileIdCache(DBHelper dbHelper, String accountName,
+			int capacity) {
+		this.dbHelper = dbHelper;
+		this.accountName = accountName;
+		this.capacity = capacity;
+		this.loaded = (dbHelper == null || accountName == null);
+
+		this.cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				if (size() > GoogleDriveFileIdCache.this.capacity) {
+					// Only this entry, its descendants may still be cached
+					persistEvict(eldest.getKey());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public GoogleDriveFileIdCache(DBHelper dbHelper, String accountName) {
+		this(dbHelper, accountName, DEFAULT_CAPACITY);
+	}
+
+	/*
+	 * Load persisted entries on first use. This is deferred until the first
+	 * lookup since file providers are only used from background threads while
+	 * the account (and thus the cache) is created on the UI thread.
+	 */
+	private void ensureLoaded() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+
+		try {
+			Map<String, String> entries = dbHelper.getDriveFileIds(accountName);
+			for (Map.Entry<String, String> entry : entries.entrySet()) {
+				cache.put(entry.getKey(), entry.getValue());
+			}
+			Log.d(TAG, "Loaded " + cache.size() + " cached file ID's for "
+					+ accountName);
+		} catch (Exception e) {
+			Logger.logException(TAG, e);
+		}
+	}
+
+	// Whether the given path is equal to or a descendant of the given parent
+	private static boolean isSameOrChild(String path, String parent) {
+		if (path.equals(parent)) {
+			return true;
+		}
+		if (parent.endsWith("/")) {
+			return path.startsWith(parent);
+		}
+		return path.startsWith(parent + "/");
+	}
+
+	private void persistInsert(String path, String fileId) {
+		if (dbHelper != null && accountName != null) {
+			try {
+				dbHelper.insertDriveFileId(accountName, path, fileId);
+			} catch (Exception e) {
+				Logger.logException(TAG, e);
+			}
+		}
+	}
+
+	private void persistEvict(String path) {
+		if (dbHelper != null && accountName != null) {
+			try {
+				dbHelper.deleteDriveFileId(accountName, path);
+			} catch (Exception e) {
+				Logger.logException(TAG, e);
+			}
+		}
+	}
+
+	private void persistDelete(String path) {
+		if (dbHelper != null && accountName != null) {
+			try {
+				dbHelper.deleteDriveFileIds(accountName, path);
+			} catch (Exception e) {
+				Logger.logException(TAG, e);
+			}
+		}
+	}
+
+	// Lookup the file ID for the given path, returns null if not cached
+	public synchronized String lookup(String path) {
+		ensureLoaded();
+
+		String cachedId = cache.get(path);
+		if (cachedId == null) {
+			Log.v(TAG, "Cache lookup for path: '" + path + "' failed");
+		} else {
+			Log.v(TAG, "Cache lookup for path: '" + path + "' returning: '"
+					+ cachedId + "'");
+		}
+		return cachedId;
+	}
+
+	// Whether the given path is cached, without refreshing its entry
+	public synchronized boolean contains(String path) {
+		ensureLoaded();
+		return cache.containsKey(path);
+	}
+
+	// Insert the given file ID for the given path
+	public synchronized void insert(String path, String fileId) {
+		ensureLoaded();
+
+		Log.v(TAG, "Caching file ID: '" + fileId + "' for path '" + path + "'");
+
+		String oldId = cache.put(path, fileId);
+		if (!fileId.equals(oldId)) {
+			persistInsert(path, fileId);
+		}
+	}
+
+	// Delete the entry for the given path along with all of its descendants
+	public synchronized void delete(String path) {
+		ensureLoaded();
+
+		Log.v(TAG, "Deleting file ID cache entries under '" + path + "'");
+
+		Iterator<String> iter = cache.keySet().iterator();
+		while (iter.hasNext()) {
+			if (isSameOrChild(iter.next(), path)) {
+				iter.remove();
+			}
+		}
+
+		persistDelete(path);
+	}
+
+	/*
+	 * Re-key the entry for srcPath and all of its descendants under dstPath.
+	 * Drive file ID's are stable across moves and renames so the subtree
+	 * doesn't need to be resolved again.
+	 */
+	public synchronized void move(String srcPath, String dstPath) {
+		ensureLoaded();
+
+		Log.v(TAG, "Moving file ID cache entries from '" + srcPath + "' to '"
+				+ dstPath + "'");
+
+		List<String> movedPaths = new ArrayList<String>();
+		List<String> movedIds = new ArrayList<String>();
+		for (Map.Entry<String, String> entry : cache.entrySet()) {
+			if (isSameOrChild(entry.getKey(), srcPath)) {
+				movedPaths.add(entry.getKey());
+				movedIds.add(entry.getValue());
+			}
+		}
+
+		// Drop stale entries at both ends before re-keying
+		delete(dstPath);
+		delete(srcPath);
+
+		for (int i = 0; i < movedPaths.size(); i++) {
+			insert(dstPath + movedPaths.get(i).substring(srcPath.length()),
+					movedIds.get(i));
+		}
+	}
+
+	// Return all cached paths mapping to the given file ID
+	public synchronized List<String> reverseLookup(String fileId) {
+		ensureLoaded();
+
+		List<String> paths = new ArrayList<String>();
+		for (Map.Entry<String, String> entry : cache.entrySet()) {
+			if (fileId.equals(entry.getValue())) {
+				paths.add(entry.getKey());
+			}
+		}
+		return paths;
+	}
+
+	// Drop all cached entries for this account
+	public synchronized void clear() {
+		cache.clear();
+		loaded = true;
+
+		if (dbHelper != null && accountName != null) {
+			try {
+				dbHelper.clearDriveFileIds(accountName);
+			} catch (Exception e) {
+				Logger.logException(TAG, e);
+			}
+		}
+	}
+}
@@ -22,7 +22,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.StringTokenizer;
 
@@ -31,15 +30,21 @@ import org.mrpdaemon.sec.encfs.EncFSFileProvider;
 
 import android.util.Log;
 
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
 import com.google.api.services.drive.Drive.Files;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 import com.google.api.services.drive.model.ParentReference;
 
-public class GoogleDriveFileProvider implements EncFSFileProvider {
+public class GoogleDriveFileProvider implements EncFSFileProvider,
+		BatchingFileProvider, RangedFileProvider, BulkFileProvider {
 
 	// Logger tag
 	private final static String TAG = "GoogleDriveFileProvider";
@@ -56,8 +61,113 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 	// Standard search filter
 	private static String searchFilter = " and trashed=false";
 
-	// File ID caching (absPath -> fileId)
-	private HashMap<String, String> fileIdCache;
+	// File ID caching (absPath -> fileId), shared across the account
+	private GoogleDriveFileIdCache fileIdCache;
+
+	// Directory listing cache (absPath -> fileInfo), shared across the account
+	private GoogleDriveMetadataCache metadataCache;
+
+	// Files created but not uploaded yet
+	private PendingFileSet pendingFiles = new PendingFileSet();
+
+	// Fields requested when resolving a single path element
+	private final static String CHILD_LOOKUP_FIELDS = "nextPageToken,items(id,title)";
+
+	// Fields requested for directory listings
+	private final static String LIST_FIELDS = "nextPageToken,items(id,title,mimeType,fileSize,modifiedDate,editable)";
+
+	// Kinds of operations queued in a batch
+	private final static int BATCH_OP_NONE = 0;
+	private final static int BATCH_OP_DELETE = 1;
+	private final static int BATCH_OP_MOVE = 2;
+
+	/*
+	 * Batch of queued metadata operations, null if not batching. The batch
+	 * state is shared by all threads using the volume, so it's guarded by
+	 * the provider's lock. Only the thread that started the batch queues on
+	 * it, other threads' operations are sent right away.
+	 */
+	private GoogleDriveBatch pendingBatch = null;
+
+	// Thread that started the pending batch
+	private Thread batchThread = null;
+
+	// Kind of operations in the pending batch
+	private int pendingBatchOp = BATCH_OP_NONE;
+
+	// First error from sending the pending batch early
+	private IOException pendingBatchError = null;
+
+	// Scheduler for API requests, shared across the account
+	private RequestScheduler scheduler;
+
+	/*
+	 * Retry policy for Drive requests. Rate limited requests (429 or 403 with
+	 * a rate limit reason) weren't acted upon so they're always retried,
+	 * honoring Retry-After if given. Server and network errors are only
+	 * retried for idempotent requests.
+	 */
+	public final static RequestScheduler.RetryPolicy RETRY_POLICY = new RequestScheduler.RetryPolicy() {
+		@Override
+		public long getRetryDelay(Exception e, boolean idempotent) {
+			if (e instanceof HttpResponseException) {
+				HttpResponseException hre = (HttpResponseException) e;
+				int status = hre.getStatusCode();
+
+				boolean rateLimited = (status == 429);
+				if (status == 403 && e instanceof GoogleJsonResponseException) {
+					rateLimited = isRateLimited(((GoogleJsonResponseException) e)
+							.getDetails());
+				}
+
+				if (rateLimited || (status >= 500 && idempotent)) {
+					return retryAfter(hre);
+				}
+				return RequestScheduler.NO_RETRY;
+			}
+
+			if (e instanceof IOException && idempotent) {
+				return RequestScheduler.BACKOFF;
+			}
+			return RequestScheduler.NO_RETRY;
+		}
+	};
+
+	// Whether the given error means the request was rate limited
+	public static boolean isRateLimited(GoogleJsonError error) {
+		if (error == null) {
+			return false;
+		}
+		if (error.getCode() == 429) {
+			return true;
+		}
+		if (error.getCode() == 403 && error.getErrors() != null) {
+			for (GoogleJsonError.ErrorInfo info : error.getErrors()) {
+				if ("rateLimitExceeded".equals(info.getReason())
+						|| "userRateLimitExceeded".equals(info.getReason())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// Return the delay requested by the Retry-After header, if any
+	private static long retryAfter(HttpResponseException e) {
+		String value = (e.getHeaders() != null) ? e.getHeaders()
+				.getRetryAfter() : null;
+		if (value != null) {
+			try {
+				return Math.max(1, Long.parseLong(value.trim()) * 1000);
+			} catch (NumberFormatException nfe) {
+				// HTTP date form, use the default backoff
+			}
+		}
+		return RequestScheduler.BACKOFF;
+	}
+
+	// Upload chunk size in bytes, 0 to adapt to throughput
+	private int uploadChunkSize = 0;
 
 	// Generate absolute path for a given relative path
 	private String absPath(String relPath) {
@@ -105,6 +215,35 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 		return result;
 	}
 
+	// Send the given request through the scheduler
+	private <T> T execute(final DriveRequest<T> request, boolean idempotent)
+			throws IOException {
+		return scheduler.execute(
+				new RequestScheduler.Request<T, IOException>() {
+					@Override
+					public T execute() throws IOException {
+						return request.execute();
+					}
+				}, idempotent);
+	}
+
+	// Send a GET request for the given URL, with a Range header if not null
+	private HttpResponse get(final String url, final String range)
+			throws IOException {
+		return scheduler.execute(
+				new RequestScheduler.Request<HttpResponse, IOException>() {
+					@Override
+					public HttpResponse execute() throws IOException {
+						HttpRequest request = driveService.getRequestFactory()
+								.buildGetRequest(new GenericUrl(url));
+						if (range != null) {
+							request.getHeaders().setRange(range);
+						}
+						return request.execute();
+					}
+				}, true);
+	}
+
 	// Convert from a File to EncFSFileInfo
 	private EncFSFileInfo fileToEncFSFileInfo(String parentRelPath, File file) {
 		return new EncFSFileInfo(file.getTitle(), parentRelPath,
@@ -115,26 +254,47 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 
 	// Lookup the given path in the file ID cache
 	private String fileIdCacheLookup(String path) {
-		String cachedId = fileIdCache.get(path);
-		if (cachedId == null) {
-			Log.v(TAG, "Cache lookup for path: '" + path + "' failed");
-		} else {
-			Log.v(TAG, "Cache lookup for path: '" + path + " returning: '"
-					+ cachedId + "'");
-		}
-		return cachedId;
+		return fileIdCache.lookup(path);
 	}
 
 	// Insert the given file ID to the cache
 	private void fileIdCacheInsert(String path, String fileId) {
-		Log.v(TAG, "Caching file ID: '" + fileId + "' for path '" + path + "'");
-		fileIdCache.put(path, fileId);
+		fileIdCache.insert(path, fileId);
 	}
 
-	// Delete the cache entry for the given path
+	// Delete the cache entry for the given path and everything under it
 	private void fileIdCacheDelete(String path) {
-		Log.v(TAG, "Deleting file ID cache entry for '" + path + "'");
-		fileIdCache.remove(path);
+		fileIdCache.delete(path);
+	}
+
+	// Return cached file info for the given relative path, or null
+	private EncFSFileInfo metadataCacheLookup(String relPath) {
+		EncFSFileInfo info = metadataCache
+				.lookup(stripTrailingSlash(absPath(relPath)));
+		if (info == null) {
+			return null;
+		}
+
+		// Re-parent the cached info relative to this provider's root
+		return new EncFSFileInfo(info.getName(), parentPath(relPath),
+				info.isDirectory(), info.getLastModified(), info.getSize(),
+				info.isReadable(), info.isWritable(), info.isExecutable());
+	}
+
+	// Generate the absolute path of a child in the given absolute directory
+	private String childPath(String dirAbsPath, String name) {
+		if (dirAbsPath.endsWith("/")) {
+			return dirAbsPath + name;
+		}
+		return dirAbsPath + "/" + name;
+	}
+
+	// Drop trailing '/' from a non-root absolute path
+	private String stripTrailingSlash(String path) {
+		if (path.length() > 1 && path.charAt(path.length() - 1) == '/') {
+			return path.substring(0, path.length() - 1);
+		}
+		return path;
 	}
 
 	// Convert from a given path to file ID
@@ -175,55 +335,154 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 				continue;
 			}
 
-			// Not in cache, do API requests to find pathElement
-			File curFile = driveService.files().get(curFileId).execute();
-
-			if (fileIsDirectory(curFile)) {
-				// Get file list of current folder
-				FileList childList = driveService.files().list()
-						.setQ("'" + curFileId + "' in parents" + searchFilter)
-						.execute();
-
-				// Search pathElement in the list
-				boolean found = false;
-				for (File tmpFile : childList.getItems()) {
-					if (tmpFile.getTitle().equals(pathElement)) {
-						// Found pathElement
-						found = true;
-						curFileId = tmpFile.getId();
-						if (st.hasMoreTokens()) {
-							// Have more path elements, cache and continue
-							fileIdCacheInsert(curPath, curFileId);
-							break;
-						} else {
-							// Found the search target, cache and return
-							fileIdCacheInsert(path, curFileId);
-							return curFileId;
-						}
-					}
-				}
+			// A cached listing of the parent may already rule the path out
+			if (metadataCache.isKnownMissing(curPath)) {
+				return null;
+			}
 
-				if (found == false) {
-					// A path element was not found
-					return null;
-				}
-			} else {
-				// Better be the last element!
-				if (!st.hasMoreTokens()) {
-					// Cache and return
-					fileIdCacheInsert(path, curFileId);
-					return curFileId;
-				}
+			// Not in cache, query the parent folder for pathElement
+			curFileId = findChildId(curFileId, pathElement);
+			if (curFileId == null) {
+				// A path element was not found
+				return null;
 			}
+
+			fileIdCacheInsert(curPath, curFileId);
 		}
 
+		return curFileId;
+	}
+
+	// Escape a string for use within a quoted Drive query literal
+	private static String escapeQueryString(String str) {
+		return str.replace("\\", "\\\\").replace("'", "\\'");
+	}
+
+	/*
+	 * Return the file ID of the child with the given title under the given
+	 * parent folder or null if there is no such child. Uses a title-targeted
+	 * query so only matching entries are returned rather than the full
+	 * contents of the parent folder.
+	 */
+	private String findChildId(String parentId, String title)
+			throws IOException {
+		Files.List request = driveService
+				.files()
+				.list()
+				.setQ("title = '" + escapeQueryString(title) + "' and '"
+						+ parentId + "' in parents" + searchFilter)
+				.setFields(CHILD_LOOKUP_FIELDS);
+
+		do {
+			FileList childList = execute(request, true);
+
+			List<File> items = childList.getItems();
+			if (items != null) {
+				for (File child : items) {
+					// Double check since server side matching may be looser
+					if (title.equals(child.getTitle())) {
+						return child.getId();
+					}
+				}
+			}
+
+			request.setPageToken(childList.getNextPageToken());
+		} while (request.getPageToken() != null
+				&& request.getPageToken().length() > 0);
+
 		return null;
 	}
 
-	public GoogleDriveFileProvider(Drive driveService, String rootPath) {
+	public GoogleDriveFileProvider(Drive driveService,
+			GoogleDriveFileIdCache fileIdCache,
+			GoogleDriveMetadataCache metadataCache,
+			RequestScheduler scheduler, String rootPath) {
 		this.driveService = driveService;
 		this.rootPath = rootPath;
-		this.fileIdCache = new HashMap<String, String>();
+		if (fileIdCache != null) {
+			this.fileIdCache = fileIdCache;
+		} else {
+			this.fileIdCache = new GoogleDriveFileIdCache(null, null);
+		}
+		if (metadataCache != null) {
+			this.metadataCache = metadataCache;
+		} else {
+			this.metadataCache = new GoogleDriveMetadataCache();
+		}
+		if (scheduler != null) {
+			this.scheduler = scheduler;
+		} else {
+			this.scheduler = new RequestScheduler(RETRY_POLICY, 1, 0, 1);
+		}
+	}
+
+	@Override
+	public synchronized void beginBatch() {
+		if (pendingBatch == null) {
+			pendingBatch = new GoogleDriveBatch(driveService, scheduler);
+			batchThread = Thread.currentThread();
+			pendingBatchOp = BATCH_OP_NONE;
+			pendingBatchError = null;
+		}
+	}
+
+	@Override
+	public void endBatch() throws IOException {
+		IOException error;
+		synchronized (this) {
+			if (pendingBatch == null || batchThread != Thread.currentThread()) {
+				return;
+			}
+
+			flushBatch();
+
+			error = pendingBatchError;
+			pendingBatch = null;
+			batchThread = null;
+			pendingBatchError = null;
+		}
+
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/*
+	 * Send queued operations without ending the batch. Errors are held until
+	 * endBatch() so they're reported to whoever started the batch.
+	 */
+	private synchronized void flushBatch() {
+		if (pendingBatch == null || pendingBatch.size() == 0) {
+			return;
+		}
+
+		try {
+			pendingBatch.execute();
+		} catch (IOException e) {
+			Log.e(TAG, "An error occurred: " + e.getMessage());
+			if (pendingBatchError == null) {
+				pendingBatchError = e;
+			}
+		}
+		pendingBatchOp = BATCH_OP_NONE;
+	}
+
+	/*
+	 * Return the pending batch to queue an operation of the given kind on.
+	 * Since the server doesn't order requests within a batch, operations of a
+	 * different kind are sent first: a directory delete must not race with a
+	 * move of one of its children. Returns null if the calling thread isn't
+	 * batching. The caller must hold the lock until it's done queueing.
+	 */
+	private synchronized GoogleDriveBatch batchFor(int op) {
+		if (pendingBatch == null || batchThread != Thread.currentThread()) {
+			return null;
+		}
+		if (pendingBatchOp != op) {
+			flushBatch();
+			pendingBatchOp = op;
+		}
+		return pendingBatch;
 	}
 
 	@Override
@@ -231,6 +490,15 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 
 		Log.v(TAG, "Copy '" + srcPath + "' to '" + dstPath + "'");
 
+		// Copy of a file that hasn't been uploaded yet
+		if (pendingFiles.get(srcPath) != null) {
+			if (exists(dstPath)) {
+				delete(dstPath);
+			}
+			pendingFiles.add(dstPath, pendingFileInfo(dstPath));
+			return true;
+		}
+
 		/*
 		 * If destination path exists, delete it first. This is a workaround for
 		 * encfs-java behavior without chainedNameIV, the file is
@@ -266,10 +534,20 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 		copiedFile.setParents(parentList);
 
 		// API request for the copy
-		driveService.files().copy(fileId, copiedFile).execute();
-
-		// Invalidate old file ID cache entry
-		fileIdCacheDelete(absPath(srcPath));
+		File resultFile = execute(driveService.files()
+				.copy(fileId, copiedFile), false);
+
+		// Destination was (re)created so cache its new file ID
+		String dstAbsPath = stripTrailingSlash(absPath(dstPath));
+		fileIdCacheDelete(dstAbsPath);
+		metadataCache.delete(dstAbsPath);
+		if (resultFile != null && resultFile.getId() != null) {
+			fileIdCacheInsert(dstAbsPath, resultFile.getId());
+			metadataCache.insert(dstAbsPath,
+					fileToEncFSFileInfo(parentPath(dstPath), resultFile));
+		} else {
+			metadataCache.invalidateParent(dstAbsPath);
+		}
 
 		return true;
 	}
@@ -307,42 +585,112 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 			throw new IOException("Can't create file: already exists");
 		}
 
-		File newFile = prepareFileForCreation(path);
-
-		// API request
-		File createdFile = driveService.files().insert(newFile).execute();
+		/*
+		 * The file is created by the upload from openOutputStream(), which
+		 * encfs-java calls right after this. Until then it only exists here.
+		 */
+		EncFSFileInfo info = pendingFileInfo(path);
+		pendingFiles.add(path, info);
+		return info;
+	}
 
-		return fileToEncFSFileInfo(parentPath(path), createdFile);
+	// Return the info reported for a pending file
+	private EncFSFileInfo pendingFileInfo(String path) {
+		return new EncFSFileInfo(lastPathElement(path), parentPath(path),
+				false, System.currentTimeMillis(), 0, true, true, false);
 	}
 
 	@Override
 	public boolean delete(String path) throws IOException {
+		if (pendingFiles.remove(path) != null) {
+			return true;
+		}
+
 		String fileId = pathToFileId(absPath(path));
 		if (fileId == null) {
 			throw new IOException("Can't delete file: not found");
 		}
 
-		driveService.files().delete(fileId).execute();
+		final String deletedAbsPath = stripTrailingSlash(absPath(path));
+
+		boolean batched = false;
+		synchronized (this) {
+			GoogleDriveBatch batch = batchFor(BATCH_OP_DELETE);
+			if (batch != null) {
+				batch.queue(driveService.files().delete(fileId),
+						new GoogleDriveBatch.Callback<Void>() {
+							@Override
+							public void onSuccess(Void result) {
+								Log.v(TAG, "Deleted '" + deletedAbsPath
+										+ "'");
+							}
+
+							@Override
+							public boolean onFailure(GoogleJsonError error) {
+								/*
+								 * A parent directory deleted within the same
+								 * batch takes its children with it.
+								 */
+								if (error.getCode() == 404) {
+									return true;
+								}
+
+								// Listing is no longer known to be accurate
+								metadataCache.invalidateParent(deletedAbsPath);
+								return false;
+							}
+						});
+				batched = true;
+			}
+		}
+		if (!batched) {
+			execute(driveService.files().delete(fileId), false);
+		}
 
-		// Get rid of cache entry
-		fileIdCacheDelete(absPath(path));
+		// Get rid of cache entries for the path and anything under it
+		fileIdCacheDelete(deletedAbsPath);
+		metadataCache.delete(deletedAbsPath);
 
 		return true;
 	}
 
 	@Override
 	public boolean exists(String relPath) throws IOException {
-		return (pathToFileId(absPath(relPath)) != null);
+		if (pendingFiles.get(relPath) != null) {
+			return true;
+		}
+
+		String path = stripTrailingSlash(absPath(relPath));
+
+		// Answer from a cached listing of the parent if possible
+		if (metadataCache.lookup(path) != null) {
+			return true;
+		}
+		if (metadataCache.isKnownMissing(path)) {
+			return false;
+		}
+
+		return (pathToFileId(path) != null);
 	}
 
 	@Override
 	public EncFSFileInfo getFileInfo(String relPath) throws IOException {
+		EncFSFileInfo pendingInfo = pendingFiles.get(relPath);
+		if (pendingInfo != null) {
+			return pendingInfo;
+		}
+
+		EncFSFileInfo cachedInfo = metadataCacheLookup(relPath);
+		if (cachedInfo != null) {
+			return cachedInfo;
+		}
+
 		String fileId = pathToFileId(absPath(relPath));
 		if (fileId == null) {
 			return null;
 		}
 
-		File file = driveService.files().get(fileId).execute();
+		File file = execute(driveService.files().get(fileId), true);
 		if (file == null) {
 			return null;
 		}
@@ -362,12 +710,21 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 
 	@Override
 	public boolean isDirectory(String relPath) throws IOException {
+		if (pendingFiles.get(relPath) != null) {
+			return false;
+		}
+
+		EncFSFileInfo cachedInfo = metadataCacheLookup(relPath);
+		if (cachedInfo != null) {
+			return cachedInfo.isDirectory();
+		}
+
 		String fileId = pathToFileId(absPath(relPath));
 		if (fileId == null) {
 			return false;
 		}
 
-		File file = driveService.files().get(fileId).execute();
+		File file = execute(driveService.files().get(fileId), true);
 		if (file == null) {
 			return false;
 		}
@@ -380,6 +737,9 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 		List<EncFSFileInfo> result = new ArrayList<EncFSFileInfo>();
 		List<File> apiResult = new ArrayList<File>();
 
+		// Server state must reflect queued operations before listing
+		flushBatch();
+
 		// Get file ID for path
 		String fileId;
 		try {
@@ -389,22 +749,35 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 			return result;
 		}
 
+		// Nothing to list or cache for a missing directory
+		if (fileId == null) {
+			Log.d(TAG, "Directory not found: " + relPath);
+			return result;
+		}
+
 		Files.List request = driveService.files().list()
-				.setQ("'" + fileId + "' in parents" + searchFilter);
+				.setQ("'" + fileId + "' in parents" + searchFilter)
+				.setFields(LIST_FIELDS);
+
+		// Whether the full listing was retrieved
+		boolean complete = true;
 
 		do {
 			try {
-				FileList files = request.execute();
+				FileList files = execute(request, true);
 
 				apiResult.addAll(files.getItems());
 				request.setPageToken(files.getNextPageToken());
 			} catch (IOException e) {
 				Log.e(TAG, "An error occurred: " + e.getMessage());
 				request.setPageToken(null);
+				complete = false;
 			}
 		} while (request.getPageToken() != null
 				&& request.getPageToken().length() > 0);
 
+		String dirAbsPath = stripTrailingSlash(absPath(relPath));
+
 		// Convert API results into EncFSFileInfo's
 		for (File file : apiResult) {
 			if (file != null) {
@@ -414,6 +787,10 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 						|| !mimeType.startsWith("application/vnd.google-apps")) {
 					try {
 						result.add(fileToEncFSFileInfo(relPath, file));
+
+						// Warm the file ID cache with the child's ID
+						fileIdCacheInsert(childPath(dirAbsPath, file.getTitle()),
+								file.getId());
 					} catch (IllegalArgumentException iae) {
 						/*
 						 * Can happen if the file name is illegal, for example
@@ -425,6 +802,13 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 			}
 		}
 
+		// Only a complete listing can answer lookups for missing children
+		if (complete) {
+			metadataCache.putListing(dirAbsPath, result);
+		} else {
+			metadataCache.delete(dirAbsPath);
+		}
+
 		return result;
 	}
 
@@ -446,6 +830,18 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 			return false;
 		}
 
+		insertFolder(parentFileId, path);
+
+		return true;
+	}
+
+	/*
+	 * Create a folder at the given relative path under the parent folder with
+	 * the given ID and return its file ID. The folder starts out empty, so its
+	 * listing is cached right away.
+	 */
+	private String insertFolder(String parentFileId, String path)
+			throws IOException {
 		// Create a new file
 		File newFile = new File();
 		newFile.setTitle(lastPathElement(path));
@@ -461,15 +857,95 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 		newFile.setMimeType(DIRECTORY_MIME_TYPE);
 
 		// API request
-		driveService.files().insert(newFile).execute();
+		File createdDir = execute(driveService.files().insert(newFile), false);
 
-		return true;
+		String createdAbsPath = stripTrailingSlash(absPath(path));
+		fileIdCacheInsert(createdAbsPath, createdDir.getId());
+		metadataCache.insert(createdAbsPath,
+				fileToEncFSFileInfo(parentPath(path), createdDir));
+		metadataCache.putListing(createdAbsPath,
+				new ArrayList<EncFSFileInfo>());
+
+		return createdDir.getId();
 	}
 
+	/*
+	 * Create the given directory along with any missing parents. The path is
+	 * resolved once down to the deepest existing folder, then each missing
+	 * folder is created under the ID of the one created before it, so this
+	 * takes one request per missing folder. Returns false if the directory
+	 * already exists.
+	 */
 	@Override
 	public boolean mkdirs(String path) throws IOException {
-		Log.e(TAG, "NOT IMPLEMENTED: mkdirs");
-		return false;
+
+		Log.v(TAG, "mkdirs '" + path + "'");
+
+		if (pendingFiles.get(path) != null) {
+			throw new IOException(path + " is not a directory");
+		}
+
+		// Queued moves or deletes may affect the path
+		flushBatch();
+
+		// Find the deepest existing folder along the path
+		StringTokenizer st = new StringTokenizer(
+				stripTrailingSlash(absPath(path)), "/");
+		String curFileId = "root";
+		String curAbsPath = "";
+		String missingElement = null;
+
+		while (st.hasMoreTokens()) {
+			String pathElement = st.nextToken();
+			String nextAbsPath = curAbsPath + "/" + pathElement;
+
+			String nextFileId = fileIdCacheLookup(nextAbsPath);
+			if (nextFileId == null
+					&& !metadataCache.isKnownMissing(nextAbsPath)) {
+				nextFileId = findChildId(curFileId, pathElement);
+				if (nextFileId != null) {
+					fileIdCacheInsert(nextAbsPath, nextFileId);
+				}
+			}
+			if (nextFileId == null) {
+				missingElement = pathElement;
+				break;
+			}
+
+			curFileId = nextFileId;
+			curAbsPath = nextAbsPath;
+		}
+
+		if (missingElement == null) {
+			if (!isDirectory(path)) {
+				throw new IOException(path + " is not a directory");
+			}
+			return false;
+		}
+
+		// The volume root must exist, only folders under it are created
+		String rootAbsPath = stripTrailingSlash(absPath("/"));
+		if (rootAbsPath.equals("/")) {
+			rootAbsPath = "";
+		}
+		if (curAbsPath.length() < rootAbsPath.length()) {
+			throw new IOException("Root path '" + rootPath + "' not found");
+		}
+
+		// Create the missing folders, each under the one created before it
+		String relPath = curAbsPath.substring(rootAbsPath.length());
+		String pathElement = missingElement;
+		while (true) {
+			relPath += "/" + pathElement;
+			curFileId = insertFolder(curFileId, relPath);
+
+			if (!st.hasMoreTokens()) {
+				break;
+			}
+			pathElement = st.nextToken();
+		}
+
+		return true;
 	}
 
 	@Override
@@ -482,15 +958,21 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 			throw new IOException("Can't move: destination already exists");
 		}
 
+		// Move of a file that hasn't been uploaded yet
+		if (pendingFiles.remove(srcPath) != null) {
+			pendingFiles.add(dstPath, pendingFileInfo(dstPath));
+			return true;
+		}
+
 		// Get fileId for srcPath
-		String fileId = pathToFileId(absPath(srcPath));
+		final String fileId = pathToFileId(absPath(srcPath));
 		if (fileId == null) {
 			return false;
 		}
 		Log.v(TAG, "File ID for '" + absPath(srcPath) + "' is '" + fileId + "'");
 
 		// Get fileId of srcPath's parent
-		String srcParentFileId = pathToFileId(parentPath(absPath(srcPath)));
+		final String srcParentFileId = pathToFileId(parentPath(absPath(srcPath)));
 		if (srcParentFileId == null) {
 			return false;
 		}
@@ -505,58 +987,240 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 		Log.v(TAG, "File ID for '" + parentPath(absPath(dstPath)) + "' is '"
 				+ dstParentFileId + "'");
 
+		final String srcAbsPath = stripTrailingSlash(absPath(srcPath));
+		final String dstAbsPath = stripTrailingSlash(absPath(dstPath));
+
 		/*
-		 * If we're doing a simple rename then the src/dst parents are the same
-		 * so we don't need to do any metadata operations.
+		 * Queue requests on the pending batch if this thread is batching,
+		 * otherwise on a batch of our own that's sent before returning. The
+		 * lock keeps another thread from flushing the pending batch while the
+		 * move is half queued.
 		 */
-		if (!dstParentFileId.equals(srcParentFileId)) {
-			// API request to add dstParentFileId to parents
-			ParentReference newParent = new ParentReference();
-			newParent.setId(dstParentFileId);
-			try {
-				ParentReference result = driveService.parents()
-						.insert(fileId, newParent).execute();
-				Log.v(TAG, "Insert returned " + result.toPrettyString());
-			} catch (IOException e) {
-				Log.e(TAG, "An error occurred: " + e.getMessage());
-				return false;
-			}
+		final GoogleDriveBatch batch;
+		final boolean batching;
+		synchronized (this) {
+			GoogleDriveBatch pending = batchFor(BATCH_OP_MOVE);
+			batching = (pending != null);
+			batch = batching ? pending : new GoogleDriveBatch(driveService,
+					scheduler);
+
+			// Undo optimistic cache updates if any part of the move fails
+			final GoogleDriveBatch.Callback<Void> failureCallback = new GoogleDriveBatch.Callback<Void>() {
+				@Override
+				public void onSuccess(Void result) {
+				}
 
-			// API request to remove srcParentFileId from parents
-			try {
-				driveService.parents().delete(fileId, srcParentFileId)
-						.execute();
-			} catch (IOException e) {
-				Log.e(TAG, "An error occurred: " + e.getMessage());
-				return false;
+				@Override
+				public boolean onFailure(GoogleJsonError error) {
+					Log.e(TAG, "Moving '" + srcAbsPath + "' failed: "
+							+ error.getMessage());
+					moveFailed(srcAbsPath, dstAbsPath);
+					return false;
+				}
+			};
+
+			/*
+			 * If we're doing a simple rename then the src/dst parents are the same
+			 * so we don't need to do any metadata operations.
+			 */
+			if (!dstParentFileId.equals(srcParentFileId)) {
+				// API request to add dstParentFileId to parents
+				ParentReference newParent = new ParentReference();
+				newParent.setId(dstParentFileId);
+
+				batch.queue(driveService.parents().insert(fileId, newParent),
+						new GoogleDriveBatch.Callback<ParentReference>() {
+							@Override
+							public void onSuccess(ParentReference result) {
+								Log.v(TAG, "Insert returned " + result);
+
+								/*
+								 * API request to remove srcParentFileId from
+								 * parents, only once the file has its new parent
+								 * so it's never left without one.
+								 */
+								try {
+									batch.queue(driveService.parents().delete(
+											fileId, srcParentFileId),
+											failureCallback);
+								} catch (IOException e) {
+									Log.e(TAG,
+											"An error occurred: " + e.getMessage());
+									moveFailed(srcAbsPath, dstAbsPath);
+								}
+							}
+
+							@Override
+							public boolean onFailure(GoogleJsonError error) {
+								return failureCallback.onFailure(error);
+							}
+						});
 			}
-		}
 
-		// Rename file if needed
-		String newName = lastPathElement(dstPath);
-		if (!lastPathElement(srcPath).equals(newName)) {
-			Log.v(TAG, "Renaming '" + lastPathElement(srcPath) + "' to '"
-					+ newName + "'");
-			try {
+			// Rename file if needed
+			String newName = lastPathElement(dstPath);
+			if (!lastPathElement(srcPath).equals(newName)) {
+				Log.v(TAG, "Renaming '" + lastPathElement(srcPath) + "' to '"
+						+ newName + "'");
+
 				File file = new File();
 				file.setTitle(newName);
 
 				Files.Patch patchRequest = driveService.files().patch(fileId,
 						file);
 				patchRequest.setFields("title");
-				patchRequest.execute();
+
+				batch.queue(patchRequest, new GoogleDriveBatch.Callback<File>() {
+					@Override
+					public void onSuccess(File result) {
+					}
+
+					@Override
+					public boolean onFailure(GoogleJsonError error) {
+						return failureCallback.onFailure(error);
+					}
+				});
+			}
+
+			// File ID's survive moves, so re-key the cached subtree
+			fileIdCache.move(srcAbsPath, dstAbsPath);
+
+			// Cached metadata for both ends is stale now
+			metadataCache.delete(srcAbsPath);
+			metadataCache.invalidateParent(dstAbsPath);
+		}
+
+		if (!batching) {
+			try {
+				batch.execute();
 			} catch (IOException e) {
 				Log.e(TAG, "An error occurred: " + e.getMessage());
 				return false;
 			}
 		}
 
-		// Invalidate old file ID cache entry
-		fileIdCacheDelete(absPath(srcPath));
+		return true;
+	}
+
+	/*
+	 * Deleting or moving a folder takes its contents with it, so these are
+	 * single requests. Drive can't copy folders though, so copyTree()
+	 * recreates the directories and sends the file copies in batches.
+	 */
 
+	@Override
+	public boolean isBulkSupported() {
 		return true;
 	}
 
+	@Override
+	public boolean deleteTree(String path) throws IOException {
+		for (String pendingPath : pendingFiles.pathsUnder(path)) {
+			pendingFiles.remove(pendingPath);
+		}
+		return delete(path);
+	}
+
+	@Override
+	public boolean copyTree(String srcPath, String dstPath) throws IOException {
+
+		Log.v(TAG, "copyTree '" + srcPath + "' to '" + dstPath + "'");
+
+		if (!isDirectory(srcPath)) {
+			return copy(srcPath, dstPath);
+		}
+
+		if (exists(dstPath)) {
+			throw new IOException("Can't copy: destination already exists");
+		}
+
+		GoogleDriveBatch batch = new GoogleDriveBatch(driveService, scheduler);
+		queueTreeCopy(srcPath, dstPath, batch);
+		batch.execute();
+
+		return true;
+	}
+
+	// Create the given directory tree and queue copies of its files
+	private void queueTreeCopy(String srcPath, String dstPath,
+			GoogleDriveBatch batch) throws IOException {
+		if (!mkdir(dstPath)) {
+			throw new IOException("Can't create directory '" + dstPath + "'");
+		}
+
+		String dstFileId = pathToFileId(absPath(dstPath));
+		if (dstFileId == null) {
+			throw new IOException("Can't find directory '" + dstPath + "'");
+		}
+
+		for (EncFSFileInfo info : listFiles(srcPath)) {
+			String childSrcPath = childPath(srcPath, info.getName());
+			final String childDstPath = childPath(dstPath, info.getName());
+
+			if (info.isDirectory()) {
+				queueTreeCopy(childSrcPath, childDstPath, batch);
+				continue;
+			}
+
+			// Cached by the listing
+			String fileId = pathToFileId(absPath(childSrcPath));
+			if (fileId == null) {
+				throw new IOException("Can't find file '" + childSrcPath + "'");
+			}
+
+			File copiedFile = new File();
+			copiedFile.setTitle(info.getName());
+
+			ParentReference parent = new ParentReference();
+			parent.setId(dstFileId);
+			ArrayList<ParentReference> parentList = new ArrayList<ParentReference>();
+			parentList.add(parent);
+			copiedFile.setParents(parentList);
+
+			final String copiedAbsPath = absPath(childDstPath);
+
+			batch.queue(driveService.files().copy(fileId, copiedFile),
+					new GoogleDriveBatch.Callback<File>() {
+						@Override
+						public void onSuccess(File result) {
+							fileIdCacheInsert(copiedAbsPath, result.getId());
+							metadataCache.insert(copiedAbsPath,
+									fileToEncFSFileInfo(
+											parentPath(childDstPath), result));
+						}
+
+						@Override
+						public boolean onFailure(GoogleJsonError error) {
+							metadataCache.invalidateParent(copiedAbsPath);
+							return false;
+						}
+					});
+		}
+	}
+
+	@Override
+	public boolean moveTree(String srcPath, String dstPath) throws IOException {
+		String srcPrefix = PendingFileSet.normalize(srcPath);
+		String dstPrefix = PendingFileSet.normalize(dstPath);
+		for (String pendingPath : pendingFiles.pathsUnder(srcPath)) {
+			String newPath = dstPrefix
+					+ pendingPath.substring(srcPrefix.length());
+			pendingFiles.remove(pendingPath);
+			pendingFiles.add(newPath, pendingFileInfo(newPath));
+		}
+		return move(srcPath, dstPath);
+	}
+
+	// Drop cached state for both ends of a failed move
+	private void moveFailed(String srcAbsPath, String dstAbsPath) {
+		fileIdCacheDelete(srcAbsPath);
+		fileIdCacheDelete(dstAbsPath);
+		metadataCache.delete(srcAbsPath);
+		metadataCache.delete(dstAbsPath);
+		metadataCache.invalidateParent(srcAbsPath);
+		metadataCache.invalidateParent(dstAbsPath);
+	}
+
 	@Override
 	public InputStream openInputStream(String relPath) throws IOException {
 
@@ -565,27 +1229,96 @@ public class GoogleDriveFileProvider implements EncFSFileProvider {
 			return null;
 		}
 
-		File file = driveService.files().get(fileId).execute();
+		File file = execute(driveService.files().get(fileId), true);
 
 		if (file.getDownloadUrl() != null && file.getDownloadUrl().length() > 0) {
 
-			HttpResponse resp = driveService.getRequestFactory()
-					.buildGetRequest(new GenericUrl(file.getDownloadUrl()))
-					.execute();
+			HttpResponse resp = get(file.getDownloadUrl(), null);
 			return resp.getContent();
 		}
 
 		return null;
 	}
 
+	@Override
+	public InputStream openInputStream(String relPath, long offset, long length)
+			throws IOException {
+
+		Log.v(TAG, "openInputStream '" + relPath + "' offset: " + offset
+				+ " length: " + length);
+
+		if (length == 0) {
+			return RangedInputStream.emptyStream();
+		}
+
+		String fileId = pathToFileId(absPath(relPath));
+		if (fileId == null) {
+			return null;
+		}
+
+		File file = execute(
+				driveService.files().get(fileId).setFields("downloadUrl"), true);
+
+		if (file.getDownloadUrl() == null
+				|| file.getDownloadUrl().length() == 0) {
+			return null;
+		}
+
+		HttpResponse resp;
+		try {
+			resp = get(file.getDownloadUrl(),
+					RangedInputStream.rangeHeader(offset, length));
+		} catch (HttpResponseException e) {
+			// 416 Requested Range Not Satisfiable: offset is past EOF
+			if (e.getStatusCode() == 416) {
+				return RangedInputStream.emptyStream();
+			}
+			throw e;
+		}
+
+		// 206 Partial Content means the server honored the range
+		long skip = (resp.getStatusCode() == 206) ? 0 : offset;
+		return new RangedInputStream(resp.getContent(), skip, length);
+	}
+
+	// Set the upload chunk size in bytes, 0 to adapt to throughput
+	public void setUploadChunkSize(int uploadChunkSize) {
+		this.uploadChunkSize = uploadChunkSize;
+	}
+
+	public int getUploadChunkSize() {
+		return uploadChunkSize;
+	}
+
 	public Drive getDriveService() {
 		return driveService;
 	}
 
+	public RequestScheduler getScheduler() {
+		return scheduler;
+	}
+
+	// Called by GoogleDriveOutputStream once an upload has completed
+	void uploadComplete(String relPath, File uploadedFile) {
+		String path = stripTrailingSlash(absPath(relPath));
+
+		if (uploadedFile != null && uploadedFile.getId() != null) {
+			fileIdCacheInsert(path, uploadedFile.getId());
+			metadataCache.insert(path,
+					fileToEncFSFileInfo(parentPath(relPath), uploadedFile));
+		} else {
+			fileIdCacheDelete(path);
+			metadataCache.invalidateParent(path);
+		}
+	}
+
 	@Override
 	public OutputStream openOutputStream(String path, long length)
 			throws IOException {
-		return new GoogleDriveOutputStream(this, path, length);
+		// A pending file was checked not to exist by createFile()
+		boolean wasPending = (pendingFiles.remove(path) != null);
+
+		return new GoogleDriveOutputStream(this, path, length, !wasPending);
 	}
 
 }
@@ -41,4 +41,15 @@ public class GoogleDriveFileSystem extends FileSystem {
 		return "[Drive]:";
 	}
 
+	@Override
+	protected String getParallelTransfersKey() {
+		return "parallel_transfers_drive";
+	}
+
+	// Cloud transfers mostly wait on the network
+	@Override
+	protected String getDefaultParallelTransfers() {
+		return "4";
+	}
+
 }
@@ -0,0 +1,210 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mrpdaemon.sec.encfs.EncFSFileInfo;
+
+import android.util.Log;
+
+/*
+ * In-memory cache of Google Drive directory listings keyed by absolute path.
+ *
+ * Listings are filled by GoogleDriveFileProvider.listFiles() and used to
+ * answer getFileInfo()/isDirectory()/exists() for the children without any
+ * further API requests. Since a cached listing is a full snapshot of the
+ * directory, a name missing from it is known not to exist.
+ */
+public class GoogleDriveMetadataCache {
+
+	// Logger tag
+	private final static String TAG = "GoogleDriveMetadataCache";
+
+	// Default maximum number of cached directory listings
+	public final static int DEFAULT_CAPACITY = 256;
+
+	// Maximum number of cached directory listings
+	private final int capacity;
+
+	// Access ordered map (absDirPath -> (childName -> fileInfo))
+	private final LinkedHashMap<String, HashMap<String, EncFSFileInfo>> listings;
+
+	public GoogleDriveMetadataCache(int capacity) {
+		this.capacity = capacity;
+		this.listings = new LinkedHashMap<String, HashMap<String, EncFSFileInfo>>(
+				16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, HashMap<String, EncFSFileInfo>> eldest) {
+				return size() > GoogleDriveMetadataCache.this.capacity;
+			}
+		};
+	}
+
+	public GoogleDriveMetadataCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	// Return the parent of the given absolute path, null for the root
+	private static String parentOf(String path) {
+		if (path.equals("/")) {
+			return null;
+		}
+		int idx = path.lastIndexOf('/');
+		if (idx <= 0) {
+			return "/";
+		}
+		return path.substring(0, idx);
+	}
+
+	// Return the last element of the given absolute path
+	private static String nameOf(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	// Whether the given path is equal to or a descendant of the given parent
+	private static boolean isSameOrChild(String path, String parent) {
+		if (path.equals(parent) || parent.equals("/")) {
+			return true;
+		}
+		return path.startsWith(parent + "/");
+	}
+
+	// Cache the full listing of the given directory
+	public synchronized void putListing(String dirPath,
+			List<EncFSFileInfo> children) {
+		HashMap<String, EncFSFileInfo> listing = new HashMap<String, EncFSFileInfo>();
+		for (EncFSFileInfo info : children) {
+			listing.put(info.getName(), info);
+		}
+
+		Log.v(TAG, "Caching " + listing.size() + " entries for '" + dirPath
+				+ "'");
+		listings.put(dirPath, listing);
+	}
+
+	// Return cached info for the given path or null if not known
+	public synchronized EncFSFileInfo lookup(String path) {
+		String parent = parentOf(path);
+		if (parent == null) {
+			return null;
+		}
+
+		HashMap<String, EncFSFileInfo> listing = listings.get(parent);
+		if (listing == null) {
+			return null;
+		}
+
+		return listing.get(nameOf(path));
+	}
+
+	// Whether the given path is known not to exist from a cached listing
+	public synchronized boolean isKnownMissing(String path) {
+		String parent = parentOf(path);
+		if (parent == null) {
+			return false;
+		}
+
+		HashMap<String, EncFSFileInfo> listing = listings.get(parent);
+		if (listing == null) {
+			return false;
+		}
+
+		return !listing.containsKey(nameOf(path));
+	}
+
+	// Add or update an entry in its parent's cached listing, if any
+	public synchronized void insert(String path, EncFSFileInfo info) {
+		String parent = parentOf(path);
+		if (parent == null) {
+			return;
+		}
+
+		HashMap<String, EncFSFileInfo> listing = listings.get(parent);
+		if (listing != null) {
+			listing.put(nameOf(path), info);
+		}
+	}
+
+	/*
+	 * Remove the given path from its parent's listing and drop any cached
+	 * listings for the path itself or anything under it.
+	 */
+	public synchronized void delete(String path) {
+		String parent = parentOf(path);
+		if (parent != null) {
+			HashMap<String, EncFSFileInfo> listing = listings.get(parent);
+			if (listing != null) {
+				listing.remove(nameOf(path));
+			}
+		}
+
+		Iterator<String> iter = listings.keySet().iterator();
+		while (iter.hasNext()) {
+			if (isSameOrChild(iter.next(), path)) {
+				iter.remove();
+			}
+		}
+	}
+
+	// Drop the cached listing of the given path's parent directory
+	public synchronized void invalidateParent(String path) {
+		String parent = parentOf(path);
+		if (parent != null) {
+			listings.remove(parent);
+		}
+	}
+
+	// Drop the cached listing of the given directory itself
+	public synchronized void invalidateListing(String dirPath) {
+		listings.remove(dirPath);
+	}
+
+	/*
+	 * Return the directories with cached listings, each with the paths of the
+	 * children in its listing.
+	 */
+	public synchronized Map<String, List<String>> getListedPaths() {
+		Map<String, List<String>> result = new HashMap<String, List<String>>();
+		for (Map.Entry<String, HashMap<String, EncFSFileInfo>> entry : listings
+				.entrySet()) {
+			String dirPath = entry.getKey();
+			List<String> childPaths = new ArrayList<String>();
+			for (String name : entry.getValue().keySet()) {
+				childPaths.add(dirPath.equals("/") ? "/" + name : dirPath + "/"
+						+ name);
+			}
+			result.put(dirPath, childPaths);
+		}
+		return result;
+	}
+
+	// Drop all cached listings
+	public synchronized void clear() {
+		listings.clear();
+	}
+}
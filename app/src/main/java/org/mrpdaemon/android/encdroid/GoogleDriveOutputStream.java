@@ -20,124 +20,153 @@ package org.mrpdaemon.android.encdroid;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 
-import com.google.api.client.googleapis.media.MediaHttpUploader;
-import com.google.api.client.http.InputStreamContent;
-import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.model.File;
 
 import android.util.Log;
 
+/*
+ * Output stream uploading to a new Google Drive file.
+ *
+ * Written data is buffered until a full chunk is available, which is then sent
+ * through a GoogleDriveResumableUpload session. Bytes are only dropped from
+ * the buffer once the server has committed them, so a failed chunk is resent
+ * from the committed offset instead of restarting the file.
+ */
 public class GoogleDriveOutputStream extends OutputStream {
 
 	private static final String TAG = "GoogleDriveOutputStream";
 
-	// Pipe's input end to hand off to the drive service
-	private PipedInputStream pipeDrive;
+	// File provider that created this stream
+	private final GoogleDriveFileProvider fileProvider;
 
-	// Pipe's output end that this class writes to
-	private OutputStream pipeToWrite;
+	// Path being uploaded
+	private final String dstPath;
 
-	// Whether the upload failed
-	private volatile boolean failed;
+	// Upload session
+	private final GoogleDriveResumableUpload upload;
 
-	// Failure message
-	private volatile String failMessage;
+	// Data not yet committed by the server
+	private byte[] buffer;
 
-	// Thread for stopping
-	private Thread thread;
+	// Number of valid bytes in buffer
+	private int bufferLen;
 
-	public GoogleDriveOutputStream(final GoogleDriveFileProvider fileProvider,
-			final String dstPath, final long length) throws IOException {
-		this.failed = false;
+	// Error that failed the upload
+	private IOException failure = null;
 
-		Log.d(TAG, "Creating output stream for path " + dstPath);
+	// Whether the stream has been closed
+	private boolean closed = false;
+
+	/*
+	 * Create a stream uploading a new file at dstPath. If replace is set an
+	 * existing file at dstPath is deleted first.
+	 */
+	public GoogleDriveOutputStream(GoogleDriveFileProvider fileProvider,
+			String dstPath, long length, boolean replace) throws IOException {
+		this.fileProvider = fileProvider;
+		this.dstPath = dstPath;
 
-		// Create pipes
-		pipeDrive = new PipedInputStream();
-		pipeToWrite = new PipedOutputStream(pipeDrive);
+		Log.d(TAG, "Creating output stream for path " + dstPath);
 
-		// Delete file touched by encfs-java
-		if (fileProvider.exists(dstPath)) {
+		// Delete any existing file
+		if (replace && fileProvider.exists(dstPath)) {
 			fileProvider.delete(dstPath);
 		}
 
-		final File newFile = fileProvider.prepareFileForCreation(dstPath);
-
-		thread = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					InputStreamContent streamContent = new InputStreamContent(
-							"application/octet-stream", pipeDrive);
-					streamContent.setLength(length);
+		File newFile = fileProvider.prepareFileForCreation(dstPath);
+		if (newFile == null) {
+			throw new IOException("Can't create file: parent not found");
+		}
 
-					Drive.Files.Insert insert = fileProvider.getDriveService()
-							.files().insert(newFile, streamContent);
+		this.upload = new GoogleDriveResumableUpload(
+				fileProvider.getDriveService(), fileProvider.getScheduler(),
+				newFile, length, fileProvider.getUploadChunkSize());
+		this.buffer = new byte[upload.getChunkSize()];
+		this.bufferLen = 0;
+	}
 
-					// Use resumable upload to not time out for larger files
-					MediaHttpUploader uploader = insert.getMediaHttpUploader();
-					uploader.setDirectUploadEnabled(false);
-					uploader.setChunkSize(MediaHttpUploader.DEFAULT_CHUNK_SIZE);
+	private void checkState() throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
 
-					insert.execute();
+	// Drop the given number of committed bytes from the front of the buffer
+	private void consume(int count) {
+		System.arraycopy(buffer, count, buffer, 0, bufferLen - count);
+		bufferLen -= count;
+	}
 
-				} catch (IOException e) {
-					if (e.getMessage() != null) {
-						GoogleDriveOutputStream.this.fail(e.getMessage());
-					} else {
-						GoogleDriveOutputStream.this.fail(e.toString());
-					}
+	// Send full chunks from the buffer
+	private void sendChunks() throws IOException {
+		try {
+			while (bufferLen >= upload.getChunkSize()) {
+				int committed = upload.uploadChunk(buffer,
+						upload.getChunkSize(), false);
+				consume(committed);
+
+				if (committed == 0) {
+					// Try again once more data is buffered
+					break;
 				}
 			}
-		});
-
-		thread.start();
-	}
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		}
 
-	private void fail(String message) {
-		failed = true;
-		failMessage = message;
+		// Follow chunk size changes if the pending data allows
+		int chunkSize = upload.getChunkSize();
+		if (buffer.length != chunkSize && bufferLen < chunkSize) {
+			byte[] newBuffer = new byte[chunkSize];
+			System.arraycopy(buffer, 0, newBuffer, 0, bufferLen);
+			buffer = newBuffer;
+		}
 	}
 
-	private boolean getFailed() {
-		return failed;
-	}
+	// Send the remaining data and finalize the upload
+	private void finish() throws IOException {
+		try {
+			while (upload.getUploadedFile() == null) {
+				int committed = upload.uploadChunk(buffer, bufferLen, true);
+				consume(committed);
 
-	private String getFailMessage() {
-		return failMessage;
+				if (committed == 0 && upload.getUploadedFile() == null) {
+					throw new IOException("Upload of " + dstPath
+							+ " made no progress");
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		}
 	}
 
 	@Override
 	public void close() throws IOException {
 		Log.v(TAG, "close() called");
 
-		if (getFailed()) {
-			throw new IOException(getFailMessage());
+		if (closed) {
+			return;
 		}
+		checkState();
 
-		pipeToWrite.flush();
-
-		try {
-			thread.join();
-		} catch (InterruptedException e) {
-			throw new IOException(e.getMessage());
-		}
+		finish();
+		closed = true;
 
-		pipeToWrite.close();
-		pipeDrive.close();
+		fileProvider.uploadComplete(dstPath, upload.getUploadedFile());
 	}
 
 	@Override
 	public void flush() throws IOException {
 		Log.v(TAG, "flush() called");
 
-		if (getFailed()) {
-			throw new IOException(getFailMessage());
-		}
-		pipeToWrite.flush();
+		// Partial chunks can't be sent before the end of the file
+		checkState();
 	}
 
 	@Override
@@ -145,32 +174,36 @@ public class GoogleDriveOutputStream extends OutputStream {
 		Log.v(TAG, "write() " + buffer.length + " bytes offset: " + offset
 				+ " count: " + count);
 
-		if (getFailed()) {
-			throw new IOException(getFailMessage());
-		}
+		checkState();
 
-		pipeToWrite.write(buffer, offset, count);
-	}
+		while (count > 0) {
+			if (bufferLen == this.buffer.length) {
+				sendChunks();
 
-	@Override
-	public void write(byte[] buffer) throws IOException {
-		Log.v(TAG, "write() " + buffer.length + " bytes");
+				if (bufferLen == this.buffer.length) {
+					// Server committed less than a chunk, make room
+					byte[] newBuffer = new byte[bufferLen
+							+ upload.getChunkSize()];
+					System.arraycopy(this.buffer, 0, newBuffer, 0, bufferLen);
+					this.buffer = newBuffer;
+				}
+			}
 
-		if (getFailed()) {
-			throw new IOException(getFailMessage());
+			int toCopy = Math.min(count, this.buffer.length - bufferLen);
+			System.arraycopy(buffer, offset, this.buffer, bufferLen, toCopy);
+			bufferLen += toCopy;
+			offset += toCopy;
+			count -= toCopy;
 		}
+	}
 
-		pipeToWrite.write(buffer);
+	@Override
+	public void write(byte[] buffer) throws IOException {
+		write(buffer, 0, buffer.length);
 	}
 
 	@Override
 	public void write(int oneByte) throws IOException {
-		Log.v(TAG, "write() " + oneByte);
-
-		if (getFailed()) {
-			throw new IOException(getFailMessage());
-		}
-
-		pipeToWrite.write(oneByte);
+		write(new byte[] { (byte) oneByte }, 0, 1);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,418 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+
+import android.util.Log;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+/*
+ * Client side of a Google Drive resumable upload session.
+ *
+ * Keeps the session URI and the offset committed by the server so that a
+ * chunk that failed in transit can be resent from where the server left off
+ * instead of restarting the whole file. Failed requests are retried with
+ * exponential backoff, after which the committed offset is queried again.
+ * Requests go through the account's RequestScheduler so uploads count
+ * against the same concurrency and rate limits as other requests. Error
+ * responses are parsed like other Drive errors so that the scheduler's retry
+ * policy can tell rate limiting, including 403 rateLimitExceeded, from
+ * failures that can't be retried.
+ *
+ * When no fixed chunk size is given the chunk size adapts to the measured
+ * throughput so that each chunk takes roughly TARGET_CHUNK_MILLIS.
+ */
+public class GoogleDriveResumableUpload {
+
+	// Logger tag
+	private final static String TAG = "GoogleDriveResumableUpload";
+
+	// Chunks other than the last must be a multiple of this
+	public final static int CHUNK_GRANULARITY = 256 * 1024;
+
+	// Chunk size bounds when adapting
+	public final static int MIN_CHUNK_SIZE = CHUNK_GRANULARITY;
+	public final static int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+	// Initial chunk size when adapting
+	public final static int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+	// Desired duration of a chunk upload when adapting
+	private final static long TARGET_CHUNK_MILLIS = 5000;
+
+	// Give up on a chunk after retrying for this long
+	private final static int MAX_RETRY_MILLIS = 5 * 60 * 1000;
+
+	// HTTP status for an incomplete upload
+	private final static int STATUS_RESUME_INCOMPLETE = 308;
+
+	// Content type of uploaded files
+	private final static String CONTENT_TYPE = "application/octet-stream";
+
+	// Drive API object
+	private final Drive driveService;
+
+	// Scheduler the requests are sent through
+	private final RequestScheduler scheduler;
+
+	// Metadata of the file being created
+	private final File metadata;
+
+	// Total length of the upload, -1 if not known up front
+	private final long length;
+
+	// Whether the chunk size adapts to throughput
+	private final boolean adaptive;
+
+	// Current chunk size
+	private int chunkSize;
+
+	// Session URI returned by the server
+	private String sessionUri = null;
+
+	// Number of bytes committed by the server
+	private long committed = 0;
+
+	// Created file once the upload is complete
+	private File uploadedFile = null;
+
+	/*
+	 * Create an upload for a new file with the given metadata. A chunkSize of
+	 * 0 or less picks the chunk size based on throughput.
+	 */
+	public GoogleDriveResumableUpload(Drive driveService,
+			RequestScheduler scheduler, File metadata, long length,
+			int chunkSize) {
+		this.driveService = driveService;
+		this.scheduler = scheduler;
+		this.metadata = metadata;
+		this.length = length;
+
+		if (chunkSize <= 0) {
+			this.adaptive = true;
+			this.chunkSize = DEFAULT_CHUNK_SIZE;
+		} else {
+			this.adaptive = false;
+			this.chunkSize = roundToGranularity(chunkSize);
+		}
+	}
+
+	// Round the given size down to a valid chunk size
+	private static int roundToGranularity(long size) {
+		long result = (size / CHUNK_GRANULARITY) * CHUNK_GRANULARITY;
+		return (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, result));
+	}
+
+	// Current chunk size, may change after every chunk when adapting
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	// Number of bytes the server has committed
+	public long getCommittedOffset() {
+		return committed;
+	}
+
+	// Session URI, null if the session hasn't been started
+	public String getSessionUri() {
+		return sessionUri;
+	}
+
+	// Created file once the last chunk has been uploaded, null until then
+	public File getUploadedFile() {
+		return uploadedFile;
+	}
+
+	private ExponentialBackOff newBackOff() {
+		return new ExponentialBackOff.Builder()
+				.setMaxElapsedTimeMillis(MAX_RETRY_MILLIS).build();
+	}
+
+	// Sleep before the next retry, rethrow the given error if out of retries
+	private void backOff(BackOff backOff, IOException cause)
+			throws IOException {
+		long millis = backOff.nextBackOffMillis();
+		if (millis == BackOff.STOP) {
+			throw cause;
+		}
+
+		Log.d(TAG, "Retrying in " + millis + "ms after: " + cause.toString());
+
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new IOException("Upload interrupted");
+		}
+	}
+
+	/*
+	 * Send the given request through the scheduler. It's only repeated there
+	 * if rejected by rate limiting, other failures are handled by the resume
+	 * logic. Error responses other than an incomplete upload are thrown as
+	 * GoogleJsonResponseException carrying the error reason.
+	 */
+	private HttpResponse send(final HttpRequest request) throws IOException {
+		request.setThrowExceptionOnExecuteError(false);
+		request.setParser(driveService.getObjectParser());
+
+		return scheduler.execute(
+				new RequestScheduler.Request<HttpResponse, IOException>() {
+					@Override
+					public HttpResponse execute() throws IOException {
+						HttpResponse response = request.execute();
+						if (!response.isSuccessStatusCode()
+								&& response.getStatusCode() != STATUS_RESUME_INCOMPLETE) {
+							try {
+								throw GoogleJsonResponseException.from(
+										driveService.getJsonFactory(),
+										response);
+							} finally {
+								response.disconnect();
+							}
+						}
+						return response;
+					}
+				}, false);
+	}
+
+	/*
+	 * Whether the given error is worth retrying. Rate limited requests
+	 * weren't acted upon, so they're retried even once the scheduler gave up.
+	 */
+	private static boolean isTransient(HttpResponseException e) {
+		int status = e.getStatusCode();
+		if (status >= 500 || status == 429 || status == 408) {
+			return true;
+		}
+		return status == 403
+				&& e instanceof GoogleJsonResponseException
+				&& GoogleDriveFileProvider
+						.isRateLimited(((GoogleJsonResponseException) e)
+								.getDetails());
+	}
+
+	// Start the upload session
+	public void start() throws IOException {
+		GenericUrl url = new GenericUrl(driveService.getRootUrl() + "upload/"
+				+ driveService.getServicePath() + "files");
+		url.set("uploadType", "resumable");
+
+		ExponentialBackOff backOff = newBackOff();
+
+		while (true) {
+			HttpRequest request = driveService.getRequestFactory()
+					.buildPostRequest(url,
+							new JsonHttpContent(driveService.getJsonFactory(),
+									metadata));
+			request.getHeaders().set("X-Upload-Content-Type", CONTENT_TYPE);
+			if (length >= 0) {
+				request.getHeaders().set("X-Upload-Content-Length", length);
+			}
+
+			try {
+				HttpResponse response = send(request);
+				try {
+					sessionUri = response.getHeaders().getLocation();
+				} finally {
+					response.disconnect();
+				}
+				if (sessionUri == null) {
+					throw new IOException("No upload session URI returned");
+				}
+
+				Log.d(TAG, "Started upload session " + sessionUri);
+				return;
+			} catch (HttpResponseException e) {
+				if (!isTransient(e)) {
+					throw e;
+				}
+				backOff(backOff, e);
+			} catch (IOException e) {
+				backOff(backOff, e);
+			}
+		}
+	}
+
+	// Return the Content-Range total for a chunk ending at the given offset
+	private String totalLength(long end, boolean last) {
+		if (last) {
+			return Long.toString(end);
+		} else if (length >= 0) {
+			return Long.toString(length);
+		}
+		return "*";
+	}
+
+	/*
+	 * Handle a response to a chunk or status request. Returns true if the
+	 * upload is complete, otherwise updates the committed offset.
+	 */
+	private boolean handleResponse(HttpResponse response) throws IOException {
+		int status = response.getStatusCode();
+
+		if (status == 200 || status == 201) {
+			uploadedFile = response.parseAs(File.class);
+			return true;
+		}
+
+		try {
+			if (status == STATUS_RESUME_INCOMPLETE) {
+				// Range is "bytes=0-<last committed byte>", absent if none
+				String range = response.getHeaders().getRange();
+				if (range == null) {
+					committed = 0;
+				} else {
+					committed = Long.parseLong(range.substring(range
+							.lastIndexOf('-') + 1)) + 1;
+				}
+				return false;
+			}
+
+			throw GoogleJsonResponseException.from(
+					driveService.getJsonFactory(), response);
+		} finally {
+			response.disconnect();
+		}
+	}
+
+	// Ask the server how much of the upload it has committed
+	private boolean queryStatus(long end, boolean last) throws IOException {
+		HttpRequest request = driveService.getRequestFactory().buildPutRequest(
+				new GenericUrl(sessionUri), new EmptyContent());
+		request.getHeaders().setContentRange(
+				"bytes */" + totalLength(end, last));
+
+		return handleResponse(send(request));
+	}
+
+	// Adjust chunk size after a chunk of the given size took the given time
+	private void adaptChunkSize(int bytes, long millis) {
+		if (!adaptive || bytes < chunkSize) {
+			return;
+		}
+
+		long target = bytes * TARGET_CHUNK_MILLIS / Math.max(millis, 1);
+
+		// Don't swing more than a factor of 2 at a time
+		target = Math.max(chunkSize / 2, Math.min((long) chunkSize * 2, target));
+
+		int newSize = roundToGranularity(target);
+		if (newSize != chunkSize) {
+			Log.d(TAG, "Chunk size " + chunkSize + " -> " + newSize);
+			chunkSize = newSize;
+		}
+	}
+
+	/*
+	 * Upload len bytes of the given buffer, which start at the committed
+	 * offset. Unless last is set len must be a multiple of
+	 * CHUNK_GRANULARITY. Returns the number of bytes from the buffer that
+	 * the server committed; the rest must be passed again in the next call.
+	 */
+	public int uploadChunk(byte[] buffer, int len, boolean last)
+			throws IOException {
+		if (sessionUri == null) {
+			start();
+		}
+
+		final long start = committed;
+		final long end = start + len;
+		ExponentialBackOff backOff = newBackOff();
+		boolean needStatus = false;
+
+		while (true) {
+			try {
+				if (needStatus) {
+					if (queryStatus(end, last)) {
+						committed = end;
+						return len;
+					}
+					if (committed < start || committed > end) {
+						throw new IOException("Upload session at unexpected offset "
+								+ committed + ", expected " + start + "-" + end);
+					}
+					needStatus = false;
+				}
+
+				int offset = (int) (committed - start);
+				HttpContent content;
+				HttpRequest request;
+
+				if (offset < len) {
+					content = new ByteArrayContent(CONTENT_TYPE, buffer, offset,
+							len - offset);
+					request = driveService.getRequestFactory().buildPutRequest(
+							new GenericUrl(sessionUri), content);
+					request.getHeaders().setContentRange(
+							"bytes " + committed + "-" + (end - 1) + "/"
+									+ totalLength(end, last));
+				} else if (last) {
+					// Everything is committed, finalize the upload
+					content = new EmptyContent();
+					request = driveService.getRequestFactory().buildPutRequest(
+							new GenericUrl(sessionUri), content);
+					request.getHeaders().setContentRange(
+							"bytes */" + totalLength(end, last));
+				} else {
+					return len;
+				}
+
+				long startTime = System.currentTimeMillis();
+				if (handleResponse(send(request))) {
+					committed = end;
+					Log.d(TAG, "Upload complete, " + end + " bytes");
+					return len;
+				}
+
+				adaptChunkSize(len - offset, System.currentTimeMillis()
+						- startTime);
+
+				Log.v(TAG, "Committed offset " + committed);
+				return (int) (committed - start);
+			} catch (HttpResponseException e) {
+				// Session expired or upload rejected, can't recover from here
+				if (!isTransient(e)) {
+					throw e;
+				}
+				needStatus = true;
+				backOff(backOff, e);
+			} catch (IOException e) {
+				if (adaptive && chunkSize > MIN_CHUNK_SIZE) {
+					chunkSize = roundToGranularity(chunkSize / 2);
+				}
+				needStatus = true;
+				backOff(backOff, e);
+			}
+		}
+	}
+}
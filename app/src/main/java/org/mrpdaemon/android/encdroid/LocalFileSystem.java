@@ -49,7 +49,12 @@ public class LocalFileSystem extends FileSystem {
 	}
 
 	@Override
-	public EncFSFileProvider getFileProvider(String path) {
+	protected String getParallelTransfersKey() {
+		return "parallel_transfers_local";
+	}
+
+	@Override
+	protected EncFSFileProvider createFileProvider(String path) {
 		return new EncFSLocalFileProvider(new File(
 				Environment.getExternalStorageDirectory(), path));
 	}
@@ -0,0 +1,418 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mrpdaemon.sec.encfs.EncFSConfig;
+import org.mrpdaemon.sec.encfs.EncFSFile;
+import org.mrpdaemon.sec.encfs.EncFSFileProvider;
+import org.mrpdaemon.sec.encfs.EncFSVolume;
+
+/*
+ * Input stream decrypting the contents of an EncFS file on all cores.
+ *
+ * Drop-in replacement for encfs-java's EncFSFileInputStream, which decrypts
+ * one block at a time on the reading thread. Here the ciphertext is read
+ * ahead in batches of BLOCKS_PER_BATCH blocks and each batch is decrypted on
+ * the CryptoExecutor. Up to two batches per core are in flight, and their
+ * plaintext is returned in file order.
+ *
+ * Ciphertext is read on the thread calling read(). A batch's plaintext only
+ * has to be waited for if the workers fall behind.
+ *
+ * openRange() decrypts part of a file. Only the file header and the blocks
+ * overlapping the range are read, with range reads on providers supporting
+ * them, so previewing the tail of a large remote file costs a few blocks
+ * rather than the whole download.
+ */
+public class ParallelDecryptInputStream extends InputStream implements
+		TransferEngine.CryptoStage {
+
+	// Number of blocks decrypted by one task
+	private final static int BLOCKS_PER_BATCH = 16;
+
+	// Plaintext of a decrypted batch
+	private static class Batch {
+		final byte[] data;
+		final int length;
+
+		Batch(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	// Ciphertext stream
+	private final InputStream in;
+
+	// Volume the file belongs to
+	private final EncFSVolume volume;
+
+	// Cipher for the reading thread
+	private final EncFSBlockCipher cipher;
+
+	// Ciphers for the worker threads
+	private final ThreadLocal<EncFSBlockCipher> workerCiphers = new ThreadLocal<EncFSBlockCipher>();
+
+	// Size of a ciphertext block
+	private final int blockSize;
+
+	// Buffers for batches of ciphertext and plaintext
+	private final BufferPool cipherPool;
+	private final BufferPool plainPool;
+
+	// Maximum number of batches in flight
+	private final int maxPending;
+
+	// Batches in flight in file order
+	private final ArrayDeque<Future<Batch>> pending = new ArrayDeque<Future<Batch>>();
+
+	// File IV
+	private long fileIv = 0;
+
+	// Number of the next block to read
+	private long nextBlock = 0;
+
+	// Whether all ciphertext has been read
+	private boolean eof = false;
+
+	// Plaintext to drop from the first batch, before the start of the range
+	private int skipBytes;
+
+	// Plaintext left in the range, negative if unbounded
+	private long remaining;
+
+	// Batch being returned to the reader
+	private Batch current = null;
+
+	// Position in the current batch
+	private int currentPos = 0;
+
+	// Time the workers spent decrypting
+	private final AtomicLong cryptoNanos = new AtomicLong();
+
+	public ParallelDecryptInputStream(EncFSFile file) throws IOException {
+		this(file.getVolume(), file.getVolume().getFileProvider()
+				.openInputStream(file.getEncryptedPath()), file.getPath());
+	}
+
+	public ParallelDecryptInputStream(EncFSVolume volume, InputStream in,
+			String volumePath) throws IOException {
+		this(volume, volume.getConfig().isUseUniqueIV() ? in : null, in,
+				volumePath, new EncFSBlockRange(volume.getConfig(), 0, -1), -1);
+	}
+
+	/*
+	 * Decrypt the given range of a file, reading the file header from
+	 * headerIn, null if the volume has none, and the blocks of the range from
+	 * in. Both may be the same stream.
+	 */
+	private ParallelDecryptInputStream(EncFSVolume volume,
+			InputStream headerIn, InputStream in, String volumePath,
+			EncFSBlockRange range, long length) throws IOException {
+		this.in = in;
+		this.volume = volume;
+		this.cipher = new EncFSBlockCipher(volume);
+		this.blockSize = cipher.getBlockSize();
+		this.cipherPool = BufferPool.forSize(blockSize * BLOCKS_PER_BATCH);
+		this.plainPool = BufferPool.forSize(cipher.getPlainBlockSize()
+				* BLOCKS_PER_BATCH);
+		this.maxPending = 2 * CryptoExecutor.getParallelism();
+		this.nextBlock = range.getFirstBlock();
+		this.skipBytes = range.getSkipBytes();
+		this.remaining = length;
+
+		EncFSConfig config = volume.getConfig();
+		if (headerIn != null) {
+			byte[] header = new byte[EncFSBlockCipher.FILE_HEADER_SIZE];
+			int len;
+			try {
+				len = readFully(headerIn, header, header.length);
+			} finally {
+				if (headerIn != in) {
+					headerIn.close();
+				}
+			}
+
+			if (len == 0) {
+				// Empty file
+				eof = true;
+			} else if (len < header.length) {
+				in.close();
+				throw new IOException("Couldn't read file IV");
+			} else {
+				byte[] chainIv = config.isSupportedExternalIVChaining() ? cipher
+						.computeChainIv(volumePath) : new byte[8];
+				fileIv = cipher.decryptFileHeader(header, chainIv);
+			}
+		}
+	}
+
+	/*
+	 * Open a stream decrypting length bytes of the given file starting at
+	 * offset. A negative length reads until the end of the file, reading past
+	 * it returns an empty stream.
+	 */
+	public static ParallelDecryptInputStream openRange(EncFSFile file,
+			long offset, long length) throws IOException {
+		EncFSVolume volume = file.getVolume();
+		EncFSFileProvider provider = volume.getFileProvider();
+		String path = file.getEncryptedPath();
+		EncFSBlockRange range = new EncFSBlockRange(volume.getConfig(),
+				offset, length);
+
+		if (length == 0) {
+			return new ParallelDecryptInputStream(volume, null,
+					RangedInputStream.emptyStream(), file.getPath(), range, 0);
+		}
+
+		InputStream headerIn = null;
+		if (range.getFileHeaderSize() > 0) {
+			headerIn = openCipherRange(provider, path, 0,
+					range.getFileHeaderSize());
+		}
+
+		InputStream in;
+		try {
+			in = openCipherRange(provider, path, range.getCipherOffset(),
+					range.getCipherLength());
+		} catch (IOException e) {
+			if (headerIn != null) {
+				headerIn.close();
+			}
+			throw e;
+		}
+
+		return new ParallelDecryptInputStream(volume, headerIn, in,
+				file.getPath(), range, length);
+	}
+
+	// Open the given range of ciphertext, a range read if supported
+	private static InputStream openCipherRange(EncFSFileProvider provider,
+			String path, long offset, long length) throws IOException {
+		if (provider instanceof RangedFileProvider) {
+			return ((RangedFileProvider) provider).openInputStream(path,
+					offset, length);
+		}
+		return new RangedInputStream(provider.openInputStream(path), offset,
+				length);
+	}
+
+	// Read until the buffer is full or the stream ends, returns bytes read
+	private static int readFully(InputStream in, byte[] buf, int len)
+			throws IOException {
+		int total = 0;
+		while (total < len) {
+			int read = in.read(buf, total, len - total);
+			if (read < 0) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+
+	// Return the cipher for the calling worker thread
+	private EncFSBlockCipher workerCipher() throws IOException {
+		EncFSBlockCipher result = workerCiphers.get();
+		if (result == null) {
+			result = new EncFSBlockCipher(volume);
+			workerCiphers.set(result);
+		}
+		return result;
+	}
+
+	// Read ahead and queue batches until enough are in flight
+	private void fill() throws IOException {
+		while (!eof && pending.size() < maxPending) {
+			final byte[] cipherBuf = cipherPool.acquire();
+			final int len = readFully(in, cipherBuf, cipherBuf.length);
+			if (len < cipherBuf.length) {
+				eof = true;
+			}
+			if (len == 0) {
+				cipherPool.release(cipherBuf);
+				break;
+			}
+
+			final long firstBlock = nextBlock;
+			nextBlock += (len + blockSize - 1) / blockSize;
+
+			pending.addLast(CryptoExecutor.get().submit(new Callable<Batch>() {
+				@Override
+				public Batch call() throws IOException {
+					try {
+						return decryptBatch(cipherBuf, len, firstBlock);
+					} finally {
+						cipherPool.release(cipherBuf);
+					}
+				}
+			}));
+		}
+	}
+
+	// Decrypt the blocks of a batch
+	private Batch decryptBatch(byte[] cipherBuf, int len, long firstBlock)
+			throws IOException {
+		long start = System.nanoTime();
+		EncFSBlockCipher blockCipher = workerCipher();
+		byte[] plainBuf = plainPool.acquire();
+		int plainLen = 0;
+
+		try {
+			for (int off = 0; off < len; off += blockSize) {
+				plainLen += blockCipher.decryptBlock(fileIv, firstBlock + off
+						/ blockSize, cipherBuf, off,
+						Math.min(blockSize, len - off), plainBuf, plainLen);
+			}
+		} catch (IOException e) {
+			plainPool.release(plainBuf);
+			throw e;
+		}
+
+		cryptoNanos.addAndGet(System.nanoTime() - start);
+		return new Batch(plainBuf, plainLen);
+	}
+
+	// Move on to the next batch, returns false at the end of the file
+	private boolean nextBatch() throws IOException {
+		if (current != null) {
+			plainPool.release(current.data);
+			current = null;
+		}
+
+		fill();
+		Future<Batch> future = pending.pollFirst();
+		if (future == null) {
+			return false;
+		}
+
+		try {
+			current = future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Decryption interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		currentPos = 0;
+
+		// Drop the plaintext before the start of the range
+		if (skipBytes > 0) {
+			currentPos = Math.min(skipBytes, current.length);
+			skipBytes -= currentPos;
+		}
+
+		// Keep the workers busy while this batch is consumed
+		fill();
+
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] oneByte = new byte[1];
+		if (read(oneByte, 0, 1) == 1) {
+			return oneByte[0] & 0xFF;
+		}
+		return -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (remaining == 0) {
+			return -1;
+		}
+		if (remaining > 0 && len > remaining) {
+			len = (int) remaining;
+		}
+
+		int total = 0;
+		while (total < len) {
+			if (current == null || currentPos == current.length) {
+				if (!nextBatch()) {
+					break;
+				}
+				continue;
+			}
+
+			int toCopy = Math.min(len - total, current.length - currentPos);
+			System.arraycopy(current.data, currentPos, b, off + total, toCopy);
+			currentPos += toCopy;
+			total += toCopy;
+		}
+
+		if (remaining > 0) {
+			remaining -= total;
+		}
+		return (total == 0) ? -1 : total;
+	}
+
+	@Override
+	public long getCryptoMs() {
+		return cryptoNanos.get() / 1000000;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (current != null) {
+			plainPool.release(current.data);
+			current = null;
+		}
+
+		/*
+		 * Wait for the batches in flight rather than cancelling them so that
+		 * their buffers go back to the pools. Interrupts are deferred, it's at
+		 * most a few batches of decryption.
+		 */
+		boolean interrupted = false;
+		Future<Batch> future;
+		while ((future = pending.pollFirst()) != null) {
+			while (true) {
+				try {
+					plainPool.release(future.get().data);
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					// Failed batches release their own buffers
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		in.close();
+	}
+}
@@ -0,0 +1,352 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mrpdaemon.sec.encfs.EncFSConfig;
+import org.mrpdaemon.sec.encfs.EncFSFile;
+import org.mrpdaemon.sec.encfs.EncFSVolume;
+
+/*
+ * Output stream encrypting the contents of an EncFS file on all cores.
+ *
+ * Drop-in replacement for encfs-java's EncFSFileOutputStream, which computes
+ * the MAC of and encrypts one block at a time on the writing thread. Here
+ * plaintext is collected into batches of BLOCKS_PER_BATCH blocks and each
+ * batch is encrypted in place on the CryptoExecutor. Up to two batches per
+ * core are in flight, and their ciphertext is written in file order.
+ *
+ * The output is the same as EncFSOutputStream's for the same random bytes:
+ * the file header and the random bytes of each block header are drawn on the
+ * writing thread in the order EncFSOutputStream draws them, and close()
+ * always ends the file with a final, possibly empty, block. abort() skips the
+ * final block and aborts the ciphertext stream too if it supports it.
+ */
+public class ParallelEncryptOutputStream extends OutputStream implements
+		TransferEngine.CryptoStage, TransferEngine.Abortable {
+
+	// Number of blocks encrypted by one task
+	private final static int BLOCKS_PER_BATCH = 16;
+
+	// Source of file headers and block header random bytes
+	private final static SecureRandom secureRandom = new SecureRandom();
+
+	// Ciphertext of an encrypted batch
+	private static class Batch {
+		final byte[] data;
+		final int length;
+
+		Batch(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	// Ciphertext stream
+	private final OutputStream out;
+
+	// Volume the file belongs to
+	private final EncFSVolume volume;
+
+	// Ciphers for the worker threads
+	private final ThreadLocal<EncFSBlockCipher> workerCiphers = new ThreadLocal<EncFSBlockCipher>();
+
+	// Random bytes for the block headers
+	private final Random random;
+
+	// Size of a ciphertext block
+	private final int blockSize;
+
+	// Block header layout
+	private final int macBytes;
+	private final int randBytes;
+
+	// Buffers for batches, encrypted in place
+	private final BufferPool batchPool;
+
+	// Maximum number of batches in flight
+	private final int maxPending;
+
+	// Batches in flight in file order
+	private final ArrayDeque<Future<Batch>> pending = new ArrayDeque<Future<Batch>>();
+
+	// File header, not yet written if not null
+	private byte[] fileHeader = null;
+
+	// File IV
+	private long fileIv = 0;
+
+	// Number of the first block of the current batch
+	private long batchFirstBlock = 0;
+
+	// Batch being filled
+	private byte[] batch = null;
+
+	// Number of complete blocks in the current batch
+	private int batchBlocks = 0;
+
+	// Position in the current block, including its header
+	private int blockPos;
+
+	// Whether the stream was closed
+	private boolean closed = false;
+
+	// Time the workers spent encrypting
+	private final AtomicLong cryptoNanos = new AtomicLong();
+
+	public ParallelEncryptOutputStream(EncFSFile file, long inputLength)
+			throws IOException {
+		this(file.getVolume(), file
+				.getVolume()
+				.getFileProvider()
+				.openOutputStream(file.getEncryptedPath(),
+						file.getVolume().getEncryptedFileLength(inputLength)),
+				file.getPath());
+	}
+
+	public ParallelEncryptOutputStream(EncFSVolume volume, OutputStream out,
+			String volumePath) throws IOException {
+		this(volume, out, volumePath, secureRandom);
+	}
+
+	// Use the given random bytes instead of the secure ones, for testing
+	ParallelEncryptOutputStream(EncFSVolume volume, OutputStream out,
+			String volumePath, Random random) throws IOException {
+		this.out = out;
+		this.volume = volume;
+		this.random = random;
+
+		EncFSBlockCipher cipher = new EncFSBlockCipher(volume);
+		EncFSConfig config = volume.getConfig();
+		this.blockSize = cipher.getBlockSize();
+		this.macBytes = config.getNumberOfMACBytesForEachFileBlock();
+		this.randBytes = config.getNumberOfRandomBytesInEachMACHeader();
+		this.batchPool = BufferPool.forSize(blockSize * BLOCKS_PER_BATCH);
+		this.maxPending = 2 * CryptoExecutor.getParallelism();
+		this.blockPos = cipher.getBlockHeaderSize();
+
+		if (config.isUseUniqueIV()) {
+			fileHeader = new byte[EncFSBlockCipher.FILE_HEADER_SIZE];
+			random.nextBytes(fileHeader);
+			byte[] chainIv = config.isSupportedExternalIVChaining() ? cipher
+					.computeChainIv(volumePath) : new byte[8];
+			fileIv = cipher.decryptFileHeader(fileHeader, chainIv);
+		}
+	}
+
+	// Return the cipher for the calling worker thread
+	private EncFSBlockCipher workerCipher() throws IOException {
+		EncFSBlockCipher result = workerCiphers.get();
+		if (result == null) {
+			result = new EncFSBlockCipher(volume);
+			workerCiphers.set(result);
+		}
+		return result;
+	}
+
+	// Fill in the random bytes of the current block's header
+	private void finishBlock() {
+		if (randBytes > 0) {
+			byte[] randomBytes = new byte[randBytes];
+			random.nextBytes(randomBytes);
+			System.arraycopy(randomBytes, 0, batch, batchBlocks * blockSize
+					+ macBytes, randBytes);
+		}
+	}
+
+	// Queue the current batch for encryption, the last block may be partial
+	private void submitBatch(final int len) throws IOException {
+		final byte[] batchBuf = batch;
+		final long firstBlock = batchFirstBlock;
+
+		batch = null;
+		batchFirstBlock += BLOCKS_PER_BATCH;
+		batchBlocks = 0;
+
+		// Wait for the oldest batch if enough are in flight
+		while (pending.size() >= maxPending) {
+			writeBatch(pending.pollFirst());
+		}
+
+		pending.addLast(CryptoExecutor.get().submit(new Callable<Batch>() {
+			@Override
+			public Batch call() throws IOException {
+				long start = System.nanoTime();
+				try {
+					EncFSBlockCipher blockCipher = workerCipher();
+					for (int off = 0; off < len; off += blockSize) {
+						blockCipher.encryptBlock(fileIv, firstBlock + off
+								/ blockSize, batchBuf, off,
+								Math.min(blockSize, len - off));
+					}
+				} catch (IOException e) {
+					batchPool.release(batchBuf);
+					throw e;
+				}
+				cryptoNanos.addAndGet(System.nanoTime() - start);
+				return new Batch(batchBuf, len);
+			}
+		}));
+	}
+
+	// Wait for the given batch and write its ciphertext
+	private void writeBatch(Future<Batch> future) throws IOException {
+		Batch done;
+		try {
+			done = future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Encryption interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+
+		try {
+			if (fileHeader != null) {
+				out.write(fileHeader);
+				fileHeader = null;
+			}
+			out.write(done.data, 0, done.length);
+		} finally {
+			batchPool.release(done.data);
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+
+		while (len > 0) {
+			if (batch == null) {
+				batch = batchPool.acquire();
+			}
+
+			int toCopy = Math.min(len, blockSize - blockPos);
+			System.arraycopy(b, off, batch, batchBlocks * blockSize + blockPos,
+					toCopy);
+			blockPos += toCopy;
+			off += toCopy;
+			len -= toCopy;
+
+			if (blockPos == blockSize) {
+				finishBlock();
+				batchBlocks++;
+				blockPos = macBytes + randBytes;
+				if (batchBlocks == BLOCKS_PER_BATCH) {
+					submitBatch(BLOCKS_PER_BATCH * blockSize);
+				}
+			}
+		}
+	}
+
+	@Override
+	public long getCryptoMs() {
+		return cryptoNanos.get() / 1000000;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		try {
+			// Like EncFSOutputStream, always end with a final block
+			if (batch == null) {
+				batch = batchPool.acquire();
+			}
+			finishBlock();
+			submitBatch(batchBlocks * blockSize + blockPos);
+
+			Future<Batch> future;
+			while ((future = pending.pollFirst()) != null) {
+				writeBatch(future);
+			}
+		} finally {
+			discardPending();
+			out.close();
+		}
+	}
+
+	@Override
+	public void abort() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		if (batch != null) {
+			batchPool.release(batch);
+			batch = null;
+		}
+		discardPending();
+
+		if (out instanceof TransferEngine.Abortable) {
+			((TransferEngine.Abortable) out).abort();
+		} else {
+			out.close();
+		}
+	}
+
+	/*
+	 * Drop the batches in flight without writing them. They're waited for
+	 * rather than cancelled so that their buffers go back to the pool.
+	 * Interrupts are deferred, it's at most a few batches of encryption.
+	 */
+	private void discardPending() {
+		boolean interrupted = false;
+		Future<Batch> future;
+		while ((future = pending.pollFirst()) != null) {
+			while (true) {
+				try {
+					batchPool.release(future.get().data);
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					// Failed batches release their own buffers
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
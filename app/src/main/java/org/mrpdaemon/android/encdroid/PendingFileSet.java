@@ -0,0 +1,79 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.mrpdaemon.sec.encfs.EncFSFileInfo;
+
+/*
+ * Files that have been created but not yet written to a cloud provider.
+ *
+ * encfs-java calls createFile() right before opening an output stream for a
+ * new file. Rather than uploading an empty placeholder that the output stream
+ * then has to replace, cloud file providers record the file here and create
+ * it with the first upload. Until then exists() and getFileInfo() report the
+ * pending entry as an empty file.
+ */
+public class PendingFileSet {
+
+	// Pending entries by path
+	private final HashMap<String, EncFSFileInfo> pending = new HashMap<String, EncFSFileInfo>();
+
+	// Normalize a path for use as a key
+	public static String normalize(String path) {
+		if (path.length() > 1 && path.endsWith("/")) {
+			return path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+
+	// Record a pending file with the given info
+	public synchronized void add(String path, EncFSFileInfo info) {
+		pending.put(normalize(path), info);
+	}
+
+	// Return the info for the given pending file, null if it isn't pending
+	public synchronized EncFSFileInfo get(String path) {
+		return pending.get(normalize(path));
+	}
+
+	// Stop tracking the given file, returns its info or null if not pending
+	public synchronized EncFSFileInfo remove(String path) {
+		return pending.remove(normalize(path));
+	}
+
+	// Return the pending files under the given directory
+	public synchronized List<String> pathsUnder(String dirPath) {
+		String prefix = normalize(dirPath);
+		if (!prefix.endsWith("/")) {
+			prefix += "/";
+		}
+
+		List<String> result = new ArrayList<String>();
+		for (String path : pending.keySet()) {
+			if (path.startsWith(prefix)) {
+				result.add(path);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.Log;
+
+/*
+ * Input stream reading ahead of its consumer on a background thread.
+ *
+ * A fetcher thread keeps up to a window's worth of data from the source
+ * stream in a ring buffer, so that the small reads done while decrypting
+ * block by block are served from memory instead of each waiting on the
+ * network. If the source fails mid-stream and a Reopener is given, reading
+ * resumes from the current offset with a new (range) request.
+ *
+ * The number of times the consumer had to wait for data (underruns) is
+ * logged on close to help tune the window size.
+ */
+public class PrefetchInputStream extends InputStream {
+
+	// Logger tag
+	private final static String TAG = "PrefetchInputStream";
+
+	// Maximum size of a single read from the source
+	private final static int FETCH_SIZE = 64 * 1024;
+
+	// Times to reopen the source after a failure
+	private final static int MAX_REOPENS = 3;
+
+	// Reopens the source at a given offset
+	public interface Reopener {
+		public InputStream reopen(long offset) throws IOException;
+	}
+
+	// Source stream, replaced by the fetcher when reopening
+	private volatile InputStream source;
+
+	// Used to resume after a failure, may be null
+	private final Reopener reopener;
+
+	// Ring buffer
+	private final byte[] ring;
+
+	// Index of the next byte to return
+	private int head = 0;
+
+	// Number of buffered bytes
+	private int count = 0;
+
+	// Whether the source has hit EOF
+	private boolean eof = false;
+
+	// Error from the source, reported once the buffered data is consumed
+	private IOException error = null;
+
+	// Whether the stream has been closed
+	private volatile boolean closed = false;
+
+	// Number of bytes returned to the consumer
+	private long consumed = 0;
+
+	// Number of times the consumer waited for data
+	private int underruns = 0;
+
+	// Fetcher thread
+	private final Thread fetcher;
+
+	public PrefetchInputStream(InputStream source, int window, Reopener reopener) {
+		this.source = source;
+		this.reopener = reopener;
+		this.ring = new byte[window];
+
+		fetcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				fetch();
+			}
+		}, TAG);
+		fetcher.setDaemon(true);
+		fetcher.start();
+	}
+
+	// Fetcher thread body
+	private void fetch() {
+		byte[] chunk = new byte[Math.min(FETCH_SIZE, ring.length)];
+		long offset = 0;
+		int reopens = 0;
+
+		try {
+			while (true) {
+				int space;
+				synchronized (this) {
+					while (count == ring.length && !closed) {
+						wait();
+					}
+					if (closed) {
+						return;
+					}
+					space = Math.min(chunk.length, ring.length - count);
+				}
+
+				int bytesRead;
+				try {
+					bytesRead = source.read(chunk, 0, space);
+				} catch (IOException e) {
+					if (closed || reopener == null || reopens >= MAX_REOPENS) {
+						throw e;
+					}
+
+					Log.d(TAG, "Reopening at offset " + offset + " after: "
+							+ e.toString());
+					reopens++;
+					closeSource();
+					source = reopener.reopen(offset);
+					continue;
+				}
+
+				synchronized (this) {
+					if (bytesRead < 0) {
+						eof = true;
+						notifyAll();
+						return;
+					}
+
+					// Copy into the ring, possibly wrapping around
+					int tail = (head + count) % ring.length;
+					int first = Math.min(bytesRead, ring.length - tail);
+					System.arraycopy(chunk, 0, ring, tail, first);
+					System.arraycopy(chunk, first, ring, 0, bytesRead - first);
+					count += bytesRead;
+					offset += bytesRead;
+					notifyAll();
+				}
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				error = e;
+				notifyAll();
+			}
+		} catch (InterruptedException e) {
+			// Closed
+		} finally {
+			closeSource();
+		}
+	}
+
+	private void closeSource() {
+		try {
+			if (source != null) {
+				source.close();
+			}
+		} catch (IOException e) {
+			Logger.logException(TAG, e);
+		}
+	}
+
+	// Wait until data is available, returns false at EOF
+	private boolean waitForData() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+
+		if (count == 0 && !eof && error == null) {
+			underruns++;
+			try {
+				while (count == 0 && !eof && error == null && !closed) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Read interrupted");
+			}
+		}
+
+		if (count > 0) {
+			return true;
+		}
+		if (error != null) {
+			throw error;
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		if (!waitForData()) {
+			return -1;
+		}
+
+		int result = ring[head] & 0xff;
+		head = (head + 1) % ring.length;
+		count--;
+		consumed++;
+		notifyAll();
+
+		return result;
+	}
+
+	@Override
+	public synchronized int read(byte[] buffer, int offset, int length)
+			throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		if (!waitForData()) {
+			return -1;
+		}
+
+		// Copy out, possibly wrapping around
+		int total = Math.min(length, count);
+		int first = Math.min(total, ring.length - head);
+		System.arraycopy(ring, head, buffer, offset, first);
+		System.arraycopy(ring, 0, buffer, offset + first, total - first);
+
+		head = (head + total) % ring.length;
+		count -= total;
+		consumed += total;
+		notifyAll();
+
+		return total;
+	}
+
+	@Override
+	public synchronized int available() throws IOException {
+		return count;
+	}
+
+	// Number of times the consumer had to wait for data
+	public synchronized int getUnderrunCount() {
+		return underruns;
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			notifyAll();
+
+			Log.d(TAG, "Closed after " + consumed + " bytes with " + underruns
+					+ " underruns, window " + ring.length);
+		}
+
+		// Unblock the fetcher if it's stuck on the network
+		fetcher.interrupt();
+		closeSource();
+	}
+}
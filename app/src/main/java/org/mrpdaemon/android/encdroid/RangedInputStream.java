@@ -0,0 +1,139 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Input stream returning a byte range of an underlying HTTP response body.
+ *
+ * If the server honored the Range header the body already starts at the
+ * requested offset and only needs to be cut off at the requested length.
+ * Servers are allowed to ignore Range and send the whole file, in which case
+ * the bytes before the offset are skipped here.
+ */
+public class RangedInputStream extends FilterInputStream {
+
+	// Bytes still to skip before the range starts
+	private long toSkip;
+
+	// Bytes left in the range, negative if unbounded
+	private long remaining;
+
+	public RangedInputStream(InputStream in, long skip, long length) {
+		super(in);
+		this.toSkip = skip;
+		this.remaining = length;
+	}
+
+	// Return the HTTP Range header value for the given range
+	public static String rangeHeader(long offset, long length) {
+		if (length < 0) {
+			return "bytes=" + offset + "-";
+		}
+		return "bytes=" + offset + "-" + (offset + length - 1);
+	}
+
+	// Return an empty stream for zero length or past EOF reads
+	public static InputStream emptyStream() {
+		return new ByteArrayInputStream(new byte[0]);
+	}
+
+	// Skip to the start of the range if the server sent the whole file
+	private void skipToRange() throws IOException {
+		while (toSkip > 0) {
+			long skipped = in.skip(toSkip);
+			if (skipped <= 0) {
+				// skip() may legitimately return 0, fall back to read()
+				if (in.read() < 0) {
+					toSkip = 0;
+					remaining = 0;
+					return;
+				}
+				skipped = 1;
+			}
+			toSkip -= skipped;
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		skipToRange();
+		if (remaining == 0) {
+			return -1;
+		}
+
+		int result = in.read();
+		if (result >= 0 && remaining > 0) {
+			remaining--;
+		}
+		return result;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		skipToRange();
+		if (remaining == 0) {
+			return -1;
+		}
+		if (remaining > 0 && len > remaining) {
+			len = (int) remaining;
+		}
+
+		int result = in.read(b, off, len);
+		if (result > 0 && remaining > 0) {
+			remaining -= result;
+		}
+		return result;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		skipToRange();
+		if (remaining >= 0 && n > remaining) {
+			n = remaining;
+		}
+
+		long result = in.skip(n);
+		if (result > 0 && remaining > 0) {
+			remaining -= result;
+		}
+		return result;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (toSkip > 0) {
+			return 0;
+		}
+		int result = in.available();
+		if (remaining >= 0 && result > remaining) {
+			return (int) remaining;
+		}
+		return result;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.Random;
+
+import android.util.Log;
+
+/*
+ * Scheduler for requests to a cloud API, shared by all file providers of an
+ * account.
+ *
+ * Limits the number of requests in flight and paces them with a token
+ * bucket so that bursts (e.g. importing many files) stay within the API's
+ * rate limits. Failed requests are retried with exponential backoff and
+ * jitter as decided by a provider specific RetryPolicy. When the server asks
+ * to slow down with a Retry-After delay, all requests through the scheduler
+ * are held back for that long.
+ *
+ * Requests that aren't idempotent are only retried when the server rejected
+ * them without acting on them, such as when rate limiting.
+ */
+public class RequestScheduler {
+
+	// Logger tag
+	private final static String TAG = "RequestScheduler";
+
+	// RetryPolicy result for failures that must not be retried
+	public final static long NO_RETRY = -1;
+
+	// RetryPolicy result for failures to retry after the default backoff
+	public final static long BACKOFF = 0;
+
+	// Maximum number of attempts for a request
+	private final static int MAX_ATTEMPTS = 6;
+
+	// Initial and maximum backoff delays
+	private final static long MIN_BACKOFF_MS = 1000;
+	private final static long MAX_BACKOFF_MS = 64 * 1000;
+
+	// A request to run through the scheduler
+	public interface Request<T, E extends Exception> {
+		public T execute() throws E;
+	}
+
+	// Decides whether and when failed requests are retried
+	public interface RetryPolicy {
+		/*
+		 * Return NO_RETRY if the given failure is permanent or the request
+		 * can't be safely repeated, BACKOFF to retry it after the default
+		 * backoff, or a delay in milliseconds requested by the server.
+		 */
+		public long getRetryDelay(Exception e, boolean idempotent);
+	}
+
+	// Policy classifying failures
+	private final RetryPolicy policy;
+
+	// Maximum number of requests in flight
+	private int maxConcurrency;
+
+	// Number of requests in flight
+	private int active = 0;
+
+	// Token bucket refill rate per second, 0 for no pacing
+	private final double rate;
+
+	// Token bucket capacity
+	private final int burst;
+
+	// Tokens available
+	private double tokens;
+
+	// Time the bucket was last refilled
+	private long lastRefill;
+
+	// Time before which no requests are started
+	private long pausedUntil = 0;
+
+	// Statistics
+	private long retries = 0;
+	private long throttles = 0;
+
+	private final Random random = new Random();
+
+	public RequestScheduler(RetryPolicy policy, int maxConcurrency,
+			double rate, int burst) {
+		this.policy = policy;
+		this.maxConcurrency = Math.max(1, maxConcurrency);
+		this.rate = rate;
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+		this.lastRefill = System.currentTimeMillis();
+	}
+
+	// Change the number of requests allowed in flight
+	public synchronized void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = Math.max(1, maxConcurrency);
+		notifyAll();
+	}
+
+	public synchronized int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	// Number of retried requests
+	public synchronized long getRetryCount() {
+		return retries;
+	}
+
+	// Number of times the server asked us to slow down
+	public synchronized long getThrottleCount() {
+		return throttles;
+	}
+
+	// Add tokens accumulated since the last refill
+	private void refill(long now) {
+		if (rate > 0) {
+			tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1000);
+		}
+		lastRefill = now;
+	}
+
+	// Wait for a free slot and a token
+	private synchronized void acquire() {
+		try {
+			while (true) {
+				long delay = 0;
+
+				if (active < maxConcurrency) {
+					long now = System.currentTimeMillis();
+					refill(now);
+
+					if (now < pausedUntil) {
+						delay = pausedUntil - now;
+					} else if (rate <= 0 || tokens >= 1) {
+						if (rate > 0) {
+							tokens -= 1;
+						}
+						active++;
+						return;
+					} else {
+						delay = (long) Math.ceil((1 - tokens) * 1000 / rate);
+					}
+				}
+
+				wait(Math.max(delay, 0));
+			}
+		} catch (InterruptedException e) {
+			// Let the request run and notice the interrupt itself
+			Thread.currentThread().interrupt();
+			active++;
+		}
+	}
+
+	private synchronized void release() {
+		active--;
+		notifyAll();
+	}
+
+	// Hold back all requests for the given time after being rate limited
+	public synchronized void throttle(long delay) {
+		pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + delay);
+		throttles++;
+	}
+
+	/*
+	 * Run the given request, retrying it if it fails in a way the policy
+	 * considers retryable. Throws the last failure if it can't be retried.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T, E extends Exception> T execute(Request<T, E> request,
+			boolean idempotent) throws E {
+		long backoff = MIN_BACKOFF_MS;
+
+		for (int attempt = 1;; attempt++) {
+			Exception failure;
+
+			acquire();
+			try {
+				return request.execute();
+			} catch (Exception e) {
+				failure = e;
+			} finally {
+				release();
+			}
+
+			long delay = NO_RETRY;
+			if (attempt < MAX_ATTEMPTS) {
+				delay = policy.getRetryDelay(failure, idempotent);
+			}
+
+			if (delay == NO_RETRY) {
+				if (failure instanceof RuntimeException) {
+					throw (RuntimeException) failure;
+				}
+				throw (E) failure;
+			}
+
+			if (delay == BACKOFF) {
+				// Equal jitter: half the backoff plus a random part of the rest
+				delay = backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+				backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+			} else {
+				// Server asked everyone to slow down
+				throttle(delay);
+			}
+
+			synchronized (this) {
+				retries++;
+			}
+
+			Log.d(TAG, "Retrying in " + delay + " ms after attempt " + attempt
+					+ ": " + failure.toString());
+
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (failure instanceof RuntimeException) {
+					throw (RuntimeException) failure;
+				}
+				throw (E) failure;
+			}
+		}
+	}
+}
@@ -0,0 +1,530 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.mrpdaemon.sec.encfs.EncFSConfig;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Copies file contents between streams for imports, exports and syncs.
+ *
+ * Data is moved in chunks of whole EncFS blocks, so the EncFS streams on
+ * either end never have to split a chunk across a partial block. Chunk
+ * buffers come from a shared BufferPool.
+ *
+ * A transfer runs as a pipeline of three stages. A source thread reads
+ * chunks from the input stream while the calling thread writes earlier
+ * chunks to the output stream, and the EncFS stream on either end does its
+ * crypto on the CryptoExecutor in between. The source and sink stages are
+ * connected by a bounded queue of QUEUE_DEPTH chunks: when the sink falls
+ * behind the source waits for a free chunk, and when the source falls behind
+ * the sink waits for a full one. This way an export keeps the network busy
+ * while blocks are decrypted and written, instead of doing each step in
+ * turn.
+ *
+ * Progress is reported to the listener at most every PROGRESS_INTERVAL_MS
+ * instead of after every chunk, which keeps the UI thread from drowning in
+ * progress messages during large transfers. The listener is also asked
+ * between chunks whether the transfer was cancelled.
+ *
+ * Time spent in reads and writes is tracked for each transfer. Single reads
+ * or writes that take longer than STALL_THRESHOLD_MS count as stalls, which
+ * usually means the network or the storage stopped keeping up.
+ */
+public class TransferEngine {
+
+	// Logger tag
+	private final static String TAG = "TransferEngine";
+
+	// Preferred chunk size, rounded down to whole blocks
+	public final static int TARGET_CHUNK_SIZE = 64 * 1024;
+
+	// Chunk size used when the volume configuration isn't known
+	public final static int DEFAULT_CHUNK_SIZE = TARGET_CHUNK_SIZE;
+
+	// Minimum time between progress reports
+	private final static long PROGRESS_INTERVAL_MS = 250;
+
+	// Reads or writes taking longer than this count as stalls
+	private final static long STALL_THRESHOLD_MS = 500;
+
+	// Number of chunks between the source and sink stages
+	public final static int QUEUE_DEPTH = 4;
+
+	// Receiver of progress reports for a transfer
+	public interface Listener {
+		// Number of bytes transferred so far
+		public void onProgress(long bytes, long totalBytes);
+
+		// Whether the transfer should stop before the next chunk
+		public boolean isCancelled();
+	}
+
+	// Stream doing its crypto on the CryptoExecutor, for stage metrics
+	public interface CryptoStage {
+		// Total time the crypto threads spent on this stream
+		public long getCryptoMs();
+	}
+
+	/*
+	 * Output stream that can be closed without committing what was written,
+	 * e.g. without writing the final block or queueing an upload. A
+	 * destination that can't be aborted is closed instead.
+	 */
+	public interface Abortable {
+		// Close the stream, discarding anything not written out yet
+		public void abort() throws IOException;
+	}
+
+	// A chunk of data moving between the stages
+	private static class Chunk {
+		final byte[] buf;
+		int length;
+
+		Chunk(byte[] buf) {
+			this.buf = buf;
+		}
+	}
+
+	// Marks the end of the data from the source stage
+	private final static Chunk END = new Chunk(null);
+
+	/*
+	 * Statistics of a transfer. Each field is only updated by one stage: the
+	 * read and source wait fields by the source thread, the others by the
+	 * calling thread, which reads them all after joining the source.
+	 */
+	public static class Stats {
+		// Bytes transferred
+		private long bytes = 0;
+
+		// Total time of the transfer
+		private long elapsedMs = 0;
+
+		// Time spent reading and writing
+		private long readMs = 0;
+		private long writeMs = 0;
+
+		// Time spent in reads and writes that stalled
+		private long readStallMs = 0;
+		private long writeStallMs = 0;
+
+		// Number of stalled reads and writes
+		private int readStalls = 0;
+		private int writeStalls = 0;
+
+		// Number of progress reports sent to the listener
+		private int progressReports = 0;
+
+		// Time the crypto threads spent on the streams
+		private long cryptoMs = 0;
+
+		// Number of crypto threads
+		private int cryptoThreads = 1;
+
+		// Time the source waited for a free chunk
+		private long sourceWaitMs = 0;
+
+		// Time the sink waited for a full chunk
+		private long sinkWaitMs = 0;
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getElapsedMs() {
+			return elapsedMs;
+		}
+
+		public long getReadMs() {
+			return readMs;
+		}
+
+		public long getWriteMs() {
+			return writeMs;
+		}
+
+		public long getStallMs() {
+			return readStallMs + writeStallMs;
+		}
+
+		public int getStalls() {
+			return readStalls + writeStalls;
+		}
+
+		public int getProgressReports() {
+			return progressReports;
+		}
+
+		public long getCryptoMs() {
+			return cryptoMs;
+		}
+
+		public long getSourceWaitMs() {
+			return sourceWaitMs;
+		}
+
+		public long getSinkWaitMs() {
+			return sinkWaitMs;
+		}
+
+		// Percentage of the transfer the given busy time takes up
+		private int percentOf(long busyMs, int threads) {
+			if (elapsedMs == 0) {
+				return 0;
+			}
+			return (int) (busyMs * 100 / (elapsedMs * threads));
+		}
+
+		// Percentage of the transfer the source stage spent reading
+		public int getSourceUtilization() {
+			return percentOf(readMs, 1);
+		}
+
+		// Percentage of the crypto threads' time spent on the transfer
+		public int getCryptoUtilization() {
+			return percentOf(cryptoMs, cryptoThreads);
+		}
+
+		// Percentage of the transfer the sink stage spent writing
+		public int getSinkUtilization() {
+			return percentOf(writeMs, 1);
+		}
+
+		// Average throughput in bytes per second
+		public long getThroughput() {
+			if (elapsedMs == 0) {
+				return bytes * 1000;
+			}
+			return bytes * 1000 / elapsedMs;
+		}
+
+		@Override
+		public String toString() {
+			return bytes + " bytes in " + elapsedMs + " ms ("
+					+ (getThroughput() / 1024) + " KB/s), read " + readMs
+					+ " ms, write " + writeMs + " ms, " + getStalls()
+					+ " stalls for " + getStallMs() + " ms, " + progressReports
+					+ " progress reports, utilization source "
+					+ getSourceUtilization() + "% crypto "
+					+ getCryptoUtilization() + "% sink "
+					+ getSinkUtilization() + "%, source waited "
+					+ sourceWaitMs + " ms, sink waited " + sinkWaitMs
+					+ " ms";
+		}
+	}
+
+	// Buffers for the chunks
+	private final BufferPool bufferPool;
+
+	// Create an engine moving whole blocks of a volume with the given config
+	public TransferEngine(EncFSConfig config) {
+		this(chunkSizeFor(config));
+	}
+
+	public TransferEngine(int chunkSize) {
+		this.bufferPool = BufferPool.forSize(chunkSize);
+	}
+
+	/*
+	 * Return the largest multiple of the plaintext block size of a volume
+	 * with the given config that fits in TARGET_CHUNK_SIZE, at least one
+	 * block.
+	 */
+	public static int chunkSizeFor(EncFSConfig config) {
+		if (config == null) {
+			return DEFAULT_CHUNK_SIZE;
+		}
+
+		int blockSize = config.getEncryptedFileBlockSizeInBytes()
+				- config.getNumberOfMACBytesForEachFileBlock()
+				- config.getNumberOfRandomBytesInEachMACHeader();
+		if (blockSize <= 0) {
+			return DEFAULT_CHUNK_SIZE;
+		}
+
+		return blockSize * Math.max(1, TARGET_CHUNK_SIZE / blockSize);
+	}
+
+	public int getChunkSize() {
+		return bufferPool.getBufferSize();
+	}
+
+	/*
+	 * Copy everything from the given input stream to the given output stream
+	 * and close both. totalBytes is only passed on to the listener, which
+	 * may be null. Throws InterruptedIOException if the listener cancels the
+	 * transfer.
+	 *
+	 * If the transfer fails or is cancelled the output stream is aborted
+	 * rather than closed, so it doesn't commit a truncated file. The caller
+	 * is responsible for deleting whatever partial destination is left.
+	 *
+	 * The input stream is read and closed on a separate source thread, the
+	 * output stream is written and closed on the calling thread.
+	 */
+	public Stats transfer(final InputStream in, OutputStream out,
+			long totalBytes, Listener listener) throws IOException {
+		final Stats stats = new Stats();
+		final BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(
+				QUEUE_DEPTH);
+		// Room for every chunk and the end marker, so the source never blocks
+		// putting a chunk
+		final BlockingQueue<Chunk> full = new ArrayBlockingQueue<Chunk>(
+				QUEUE_DEPTH + 1);
+		final IOException[] sourceError = new IOException[1];
+		final AtomicBoolean stopped = new AtomicBoolean(false);
+
+		for (int i = 0; i < QUEUE_DEPTH; i++) {
+			free.add(new Chunk(bufferPool.acquire()));
+		}
+
+		long start = SystemClock.elapsedRealtime();
+
+		Thread source = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					readChunks(in, free, full, stats, stopped);
+				} catch (IOException e) {
+					sourceError[0] = e;
+				} catch (InterruptedException e) {
+					// Stopped by the sink
+				} finally {
+					try {
+						in.close();
+					} catch (IOException e) {
+						if (sourceError[0] == null) {
+							sourceError[0] = e;
+						}
+					}
+					full.add(END);
+				}
+			}
+		}, "TransferSource");
+
+		boolean completed = false;
+		try {
+			try {
+				source.start();
+				writeChunks(out, free, full, stats, totalBytes, listener);
+			} finally {
+				/*
+				 * Stop the source if the sink failed and wait for it. The
+				 * input stream may swallow the interrupt, so the source also
+				 * checks the flag while waiting for a free chunk.
+				 */
+				stopped.set(true);
+				source.interrupt();
+				joinUninterruptibly(source);
+			}
+			if (sourceError[0] != null) {
+				throw sourceError[0];
+			}
+
+			// Closing flushes the last block, count it as writing
+			long closeStart = SystemClock.elapsedRealtime();
+			out.close();
+			accountWrite(stats, SystemClock.elapsedRealtime() - closeStart);
+			completed = true;
+		} finally {
+			if (!completed) {
+				abortQuietly(out);
+			}
+
+			Chunk chunk;
+			while ((chunk = free.poll()) != null) {
+				bufferPool.release(chunk.buf);
+			}
+			while ((chunk = full.poll()) != null) {
+				bufferPool.release(chunk.buf);
+			}
+			stats.elapsedMs = SystemClock.elapsedRealtime() - start;
+			collectCryptoStats(stats, in, out);
+		}
+
+		report(listener, stats, totalBytes);
+
+		Log.d(TAG, "Transfer complete: " + stats);
+
+		return stats;
+	}
+
+	// Source stage, fill free chunks from the input stream until stopped
+	private static void readChunks(InputStream in, BlockingQueue<Chunk> free,
+			BlockingQueue<Chunk> full, Stats stats, AtomicBoolean stopped)
+			throws IOException, InterruptedException {
+		while (!stopped.get()) {
+			long waitStart = SystemClock.elapsedRealtime();
+			Chunk chunk = free.poll(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+			if (chunk == null) {
+				stats.sourceWaitMs += SystemClock.elapsedRealtime() - waitStart;
+				continue;
+			}
+			long readStart = SystemClock.elapsedRealtime();
+			stats.sourceWaitMs += readStart - waitStart;
+
+			chunk.length = readChunk(in, chunk.buf);
+			accountRead(stats, SystemClock.elapsedRealtime() - readStart);
+
+			if (chunk.length <= 0) {
+				free.add(chunk);
+				return;
+			}
+			full.add(chunk);
+		}
+	}
+
+	// Sink stage, write full chunks to the output stream until the end
+	private static void writeChunks(OutputStream out,
+			BlockingQueue<Chunk> free, BlockingQueue<Chunk> full, Stats stats,
+			long totalBytes, Listener listener) throws IOException {
+		long lastReport = SystemClock.elapsedRealtime();
+		report(listener, stats, totalBytes);
+
+		while (true) {
+			if (listener != null && listener.isCancelled()) {
+				throw new InterruptedIOException("Transfer cancelled");
+			}
+
+			long waitStart = SystemClock.elapsedRealtime();
+			Chunk chunk;
+			try {
+				// Wake up now and then to check for cancellation
+				chunk = full.poll(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Transfer interrupted");
+			}
+			long writeStart = SystemClock.elapsedRealtime();
+			stats.sinkWaitMs += writeStart - waitStart;
+
+			if (chunk == null) {
+				continue;
+			}
+			if (chunk == END) {
+				return;
+			}
+
+			try {
+				out.write(chunk.buf, 0, chunk.length);
+			} finally {
+				free.add(chunk);
+			}
+			long writeEnd = SystemClock.elapsedRealtime();
+			accountWrite(stats, writeEnd - writeStart);
+
+			stats.bytes += chunk.length;
+
+			if (writeEnd - lastReport >= PROGRESS_INTERVAL_MS) {
+				lastReport = writeEnd;
+				report(listener, stats, totalBytes);
+			}
+		}
+	}
+
+	// Abort or close the output stream of a failed transfer
+	static void abortQuietly(OutputStream out) {
+		try {
+			if (out instanceof Abortable) {
+				((Abortable) out).abort();
+			} else {
+				out.close();
+			}
+		} catch (IOException e) {
+			Log.d(TAG, "Error closing aborted output: " + e.getMessage());
+		}
+	}
+
+	private static void joinUninterruptibly(Thread thread) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Record the crypto time of the streams that do their own crypto
+	private static void collectCryptoStats(Stats stats, InputStream in,
+			OutputStream out) {
+		stats.cryptoThreads = CryptoExecutor.getParallelism();
+		if (in instanceof CryptoStage) {
+			stats.cryptoMs += ((CryptoStage) in).getCryptoMs();
+		}
+		if (out instanceof CryptoStage) {
+			stats.cryptoMs += ((CryptoStage) out).getCryptoMs();
+		}
+	}
+
+	// Fill the buffer from the stream, returns bytes read or -1 at the end
+	private static int readChunk(InputStream in, byte[] buf)
+			throws IOException {
+		int total = 0;
+		while (total < buf.length) {
+			int len = in.read(buf, total, buf.length - total);
+			if (len < 0) {
+				break;
+			}
+			total += len;
+		}
+		return (total == 0) ? -1 : total;
+	}
+
+	// Record time the source stage spent reading
+	private static void accountRead(Stats stats, long ms) {
+		stats.readMs += ms;
+		if (ms >= STALL_THRESHOLD_MS) {
+			stats.readStalls++;
+			stats.readStallMs += ms;
+		}
+	}
+
+	// Record time the sink stage spent writing
+	private static void accountWrite(Stats stats, long ms) {
+		stats.writeMs += ms;
+		if (ms >= STALL_THRESHOLD_MS) {
+			stats.writeStalls++;
+			stats.writeStallMs += ms;
+		}
+	}
+
+	private static void report(Listener listener, Stats stats, long totalBytes) {
+		if (listener != null) {
+			stats.progressReports++;
+			listener.onProgress(stats.bytes, totalBytes);
+		}
+	}
+}
@@ -0,0 +1,509 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.mrpdaemon.sec.encfs.EncFSFileProvider;
+
+import android.content.ContentValues;
+import android.util.Log;
+
+/*
+ * Background uploader for files written in write-back mode.
+ *
+ * Encrypted files are staged on local storage and recorded in a journal in
+ * the database before the writer is told they're done. A worker thread then
+ * uploads them in journal order, retrying failed uploads with exponential
+ * backoff. Uploads of the same path always happen in the order they were
+ * written, and a newer upload of a path replaces older ones still queued.
+ * The journal survives restarts, so uploads interrupted by the process going
+ * away are picked up the next time the application starts.
+ */
+public class UploadQueue {
+
+	// Logger tag
+	private final static String TAG = "UploadQueue";
+
+	// Retry delay bounds
+	private final static long MIN_RETRY_MILLIS = 5 * 1000;
+	private final static long MAX_RETRY_MILLIS = 10 * 60 * 1000;
+
+	// Size of the buffer used for copying staged files
+	private final static int COPY_BUFFER_SIZE = 64 * 1024;
+
+	// A journaled upload
+	public static class Entry {
+		// Journal ID
+		final long id;
+
+		// Index of the file system to upload to
+		final int fsIndex;
+
+		// Volume root path on the file system
+		final String root;
+
+		// Path of the file relative to the volume root
+		final String path;
+
+		// Staged encrypted contents
+		final File stagingFile;
+
+		// Size of the staged file
+		final long size;
+
+		// Don't retry before this time
+		long retryAt = 0;
+
+		// Delay before the next retry
+		long retryDelay = MIN_RETRY_MILLIS;
+
+		// Time of the last failure, 0 if none
+		long failedAt = 0;
+
+		// Error from the last failure
+		IOException lastError = null;
+
+		Entry(long id, int fsIndex, String root, String path,
+				File stagingFile, long size) {
+			this.id = id;
+			this.fsIndex = fsIndex;
+			this.root = root;
+			this.path = path;
+			this.stagingFile = stagingFile;
+			this.size = size;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public File getStagingFile() {
+			return stagingFile;
+		}
+
+		// Whether this entry uploads to the given volume and path
+		boolean matches(int fsIndex, String root, String path) {
+			return this.fsIndex == fsIndex && this.root.equals(root)
+					&& this.path.equals(path);
+		}
+
+		// Whether this entry uploads to the given volume under the given path
+		boolean isUnder(int fsIndex, String root, String dirPath) {
+			if (this.fsIndex != fsIndex || !this.root.equals(root)) {
+				return false;
+			}
+			return path.equals(dirPath) || dirPath.equals("/")
+					|| path.startsWith(dirPath + "/");
+		}
+	}
+
+	// Application object
+	private final EDApplication mApp;
+
+	// Directory holding staged files
+	private final File stagingDir;
+
+	// Pending uploads in journal order
+	private final ArrayList<Entry> entries = new ArrayList<Entry>();
+
+	// Entry currently being uploaded
+	private Entry activeEntry = null;
+
+	// Worker thread
+	private Thread worker = null;
+
+	public UploadQueue(EDApplication app, File stagingDir) {
+		this.mApp = app;
+		this.stagingDir = stagingDir;
+
+		if (!stagingDir.exists() && !stagingDir.mkdirs()) {
+			Log.e(TAG, "Failed to create staging directory " + stagingDir);
+		}
+
+		loadJournal();
+	}
+
+	// Load pending uploads from the journal and drop unreferenced files
+	private synchronized void loadJournal() {
+		HashSet<String> referenced = new HashSet<String>();
+
+		for (ContentValues values : mApp.getDbHelper().getUploadJournal()) {
+			File stagingFile = new File(
+					values.getAsString(DBHelper.DB_COL_STAGING_FILE));
+			long id = values.getAsLong(DBHelper.DB_COL_ID);
+
+			if (!stagingFile.exists()) {
+				Log.e(TAG, "Staged file " + stagingFile + " is gone, dropping");
+				mApp.getDbHelper().deleteUploadJournalEntry(id);
+				continue;
+			}
+
+			entries.add(new Entry(id, values.getAsInteger(DBHelper.DB_COL_TYPE),
+					values.getAsString(DBHelper.DB_COL_ROOT), values
+							.getAsString(DBHelper.DB_COL_PATH), stagingFile,
+					values.getAsLong(DBHelper.DB_COL_SIZE)));
+			referenced.add(stagingFile.getName());
+		}
+
+		// Staged by a writer that didn't get to journal its file
+		File[] files = stagingDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!referenced.contains(file.getName())) {
+					file.delete();
+				}
+			}
+		}
+
+		if (!entries.isEmpty()) {
+			Log.d(TAG, "Resuming " + entries.size() + " journaled uploads");
+		}
+	}
+
+	// Start the worker thread
+	public synchronized void start() {
+		if (worker != null) {
+			return;
+		}
+
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, TAG);
+		worker.setDaemon(true);
+		worker.setPriority(Thread.MIN_PRIORITY);
+		worker.start();
+	}
+
+	// Create a new file to stage an upload in
+	public File createStagingFile() throws IOException {
+		return File.createTempFile("upload", ".enc", stagingDir);
+	}
+
+	/*
+	 * Journal the given staged file for upload to the given volume path.
+	 * Queued uploads of the same path that haven't started are dropped.
+	 */
+	public synchronized void enqueue(int fsIndex, String root, String path,
+			File stagingFile) {
+		Iterator<Entry> iter = entries.iterator();
+		while (iter.hasNext()) {
+			Entry entry = iter.next();
+			if (entry != activeEntry && entry.matches(fsIndex, root, path)) {
+				Log.v(TAG, "Superseding queued upload of '" + path + "'");
+				discard(entry);
+				iter.remove();
+			}
+		}
+
+		long size = stagingFile.length();
+		long id = mApp.getDbHelper().insertUploadJournalEntry(fsIndex, root,
+				path, stagingFile.getAbsolutePath(), size);
+		entries.add(new Entry(id, fsIndex, root, path, stagingFile, size));
+
+		Log.d(TAG, "Queued upload of '" + path + "', " + size + " bytes");
+
+		notifyAll();
+	}
+
+	// Drop the journal record and staged file of the given entry
+	private void discard(Entry entry) {
+		mApp.getDbHelper().deleteUploadJournalEntry(entry.id);
+		entry.stagingFile.delete();
+	}
+
+	// Return the newest pending upload for the given path, null if none
+	public synchronized Entry getPending(int fsIndex, String root, String path) {
+		for (int i = entries.size() - 1; i >= 0; i--) {
+			if (entries.get(i).matches(fsIndex, root, path)) {
+				return entries.get(i);
+			}
+		}
+		return null;
+	}
+
+	// Return the newest pending uploads directly under the given directory
+	public synchronized List<Entry> getPendingChildren(int fsIndex,
+			String root, String dirPath) {
+		String prefix = dirPath.endsWith("/") ? dirPath : dirPath + "/";
+		ArrayList<Entry> result = new ArrayList<Entry>();
+
+		for (Entry entry : entries) {
+			if (entry.fsIndex != fsIndex || !entry.root.equals(root)
+					|| !entry.path.startsWith(prefix)
+					|| entry.path.indexOf('/', prefix.length()) >= 0) {
+				continue;
+			}
+
+			// Newer entries replace older ones for the same path
+			for (int i = 0; i < result.size(); i++) {
+				if (result.get(i).path.equals(entry.path)) {
+					result.remove(i);
+					break;
+				}
+			}
+			result.add(entry);
+		}
+
+		return result;
+	}
+
+	/*
+	 * Drop queued uploads of the given path that haven't started. Returns
+	 * whether anything was dropped.
+	 */
+	public synchronized boolean cancel(int fsIndex, String root, String path) {
+		boolean result = false;
+
+		Iterator<Entry> iter = entries.iterator();
+		while (iter.hasNext()) {
+			Entry entry = iter.next();
+			if (entry != activeEntry && entry.matches(fsIndex, root, path)) {
+				discard(entry);
+				iter.remove();
+				result = true;
+			}
+		}
+
+		return result;
+	}
+
+	// Drop queued uploads at or under the given path that haven't started
+	public synchronized boolean cancelTree(int fsIndex, String root,
+			String path) {
+		boolean result = false;
+
+		Iterator<Entry> iter = entries.iterator();
+		while (iter.hasNext()) {
+			Entry entry = iter.next();
+			if (entry != activeEntry && entry.isUnder(fsIndex, root, path)) {
+				discard(entry);
+				iter.remove();
+				result = true;
+			}
+		}
+
+		return result;
+	}
+
+	/*
+	 * Wait until all pending uploads at or under the given path are done, so
+	 * that other operations on the path happen after them. Throws if one of
+	 * them fails while waiting.
+	 */
+	public synchronized void waitFor(int fsIndex, String root, String path)
+			throws IOException {
+		long start = System.currentTimeMillis();
+		boolean waited = false;
+
+		while (true) {
+			Entry pending = null;
+			for (Entry entry : entries) {
+				if (entry.isUnder(fsIndex, root, path)) {
+					pending = entry;
+					break;
+				}
+			}
+
+			if (pending == null) {
+				return;
+			}
+
+			if (pending.failedAt >= start) {
+				throw new IOException("Pending upload of '" + pending.path
+						+ "' failed: " + pending.lastError.getMessage());
+			}
+
+			if (!waited) {
+				Log.d(TAG, "Waiting for pending uploads under '" + path + "'");
+				waited = true;
+
+				// Don't hold up the caller for backoff delays
+				for (Entry entry : entries) {
+					if (entry.isUnder(fsIndex, root, path)) {
+						entry.retryAt = 0;
+					}
+				}
+				notifyAll();
+			}
+
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted waiting for uploads");
+			}
+		}
+	}
+
+	// Number of pending uploads
+	public synchronized int getPendingCount() {
+		return entries.size();
+	}
+
+	/*
+	 * Return the next entry that is ready for upload, or null if none. An
+	 * entry is skipped while an earlier entry for the same path is pending.
+	 */
+	private Entry nextEntry(long now) {
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			if (entry.retryAt > now) {
+				continue;
+			}
+
+			boolean blocked = false;
+			for (int j = 0; j < i; j++) {
+				if (entries.get(j).matches(entry.fsIndex, entry.root,
+						entry.path)) {
+					blocked = true;
+					break;
+				}
+			}
+
+			if (!blocked) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	// Worker thread body
+	private void work() {
+		while (true) {
+			Entry entry;
+
+			synchronized (this) {
+				try {
+					while (true) {
+						long now = System.currentTimeMillis();
+						entry = nextEntry(now);
+						if (entry != null) {
+							break;
+						}
+
+						// Sleep until the earliest retry or new work
+						long wakeAt = Long.MAX_VALUE;
+						for (Entry other : entries) {
+							wakeAt = Math.min(wakeAt, other.retryAt);
+						}
+						if (wakeAt == Long.MAX_VALUE) {
+							wait();
+						} else {
+							wait(Math.max(wakeAt - now, 1));
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				activeEntry = entry;
+			}
+
+			IOException error = null;
+			try {
+				upload(entry);
+			} catch (IOException e) {
+				Logger.logException(TAG, e);
+				error = e;
+			} catch (RuntimeException e) {
+				// e.g. a provider that couldn't be created
+				Logger.logException(TAG, e);
+				error = new IOException(e.toString());
+			}
+
+			synchronized (this) {
+				activeEntry = null;
+
+				if (error == null) {
+					Log.d(TAG, "Uploaded '" + entry.path + "', "
+							+ entry.size + " bytes");
+					discard(entry);
+					entries.remove(entry);
+				} else {
+					entry.lastError = error;
+					entry.failedAt = System.currentTimeMillis();
+					entry.retryAt = entry.failedAt + entry.retryDelay;
+					entry.retryDelay = Math.min(entry.retryDelay * 2,
+							MAX_RETRY_MILLIS);
+					Log.d(TAG, "Upload of '" + entry.path + "' failed, retry in "
+							+ (entry.retryAt - entry.failedAt) + "ms");
+				}
+
+				notifyAll();
+			}
+		}
+	}
+
+	// Upload the staged file of the given entry
+	private void upload(Entry entry) throws IOException {
+		FileSystem fs = mApp.getFileSystemList().get(entry.fsIndex);
+
+		Account account = fs.getAccount();
+		if (account != null
+				&& (!account.isLinked() || !account.isAuthenticated())) {
+			throw new IOException(fs.getName() + " account not available");
+		}
+
+		EncFSFileProvider provider = fs.getUploadFileProvider(entry.root);
+		if (provider == null) {
+			throw new IOException("No file provider for " + fs.getName());
+		}
+
+		Log.v(TAG, "Uploading '" + entry.path + "' from "
+				+ entry.stagingFile);
+
+		InputStream in = new FileInputStream(entry.stagingFile);
+		try {
+			OutputStream out = provider.openOutputStream(entry.path,
+					entry.size);
+			boolean completed = false;
+			try {
+				byte[] buffer = new byte[COPY_BUFFER_SIZE];
+				int bytesRead;
+				while ((bytesRead = in.read(buffer)) >= 0) {
+					out.write(buffer, 0, bytesRead);
+				}
+				out.close();
+				completed = true;
+			} finally {
+				// Don't commit a partial upload
+				if (!completed) {
+					TransferEngine.abortQuietly(out);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -64,6 +64,9 @@ public class Volume {
 		if (this.isLocked) {
 			this.volume = volume;
 			this.isLocked = false;
+			if (fileSystem.getAccount() != null) {
+				fileSystem.getAccount().onVolumeUnlocked();
+			}
 		}
 	}
 
@@ -72,6 +75,9 @@ public class Volume {
 		if (!this.isLocked) {
 			this.volume = null;
 			this.isLocked = true;
+			if (fileSystem.getAccount() != null) {
+				fileSystem.getAccount().onVolumeLocked();
+			}
 		}
 	}
 
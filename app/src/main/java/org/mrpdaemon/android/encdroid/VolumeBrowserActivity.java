@@ -20,7 +20,6 @@ package org.mrpdaemon.android.encdroid;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -32,9 +31,10 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Stack;
 
+import org.mrpdaemon.sec.encfs.EncFSConfig;
+import org.mrpdaemon.sec.encfs.EncFSCrypto;
 import org.mrpdaemon.sec.encfs.EncFSFile;
-import org.mrpdaemon.sec.encfs.EncFSFileInputStream;
-import org.mrpdaemon.sec.encfs.EncFSFileOutputStream;
+import org.mrpdaemon.sec.encfs.EncFSFileProvider;
 import org.mrpdaemon.sec.encfs.EncFSVolume;
 
 import android.app.Activity;
@@ -52,12 +52,14 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.DialogInterface.OnShowListener;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.FileObserver;
+import android.preference.PreferenceManager;
 import android.text.Editable;
 import android.util.Log;
 import android.util.SparseBooleanArray;
@@ -1175,6 +1177,50 @@ public class VolumeBrowserActivity extends ListActivity implements
 				list.size());
 	}
 
+	// Start batching metadata operations on the volume's provider if supported
+	private static BatchingFileProvider beginBatch(EncFSVolume volume) {
+		EncFSFileProvider provider = volume.getFileProvider();
+		if (provider instanceof BatchingFileProvider) {
+			BatchingFileProvider batchingProvider = (BatchingFileProvider) provider;
+			batchingProvider.beginBatch();
+			return batchingProvider;
+		}
+		return null;
+	}
+
+	// Send batched operations on an error path where we're already failing
+	private static void endBatchQuietly(BatchingFileProvider provider) {
+		if (provider != null) {
+			try {
+				provider.endBatch();
+			} catch (IOException e) {
+				Logger.logException(TAG, e);
+			}
+		}
+	}
+
+	// Return the volume provider's bulk tree operations, null if unsupported
+	private static BulkFileProvider getBulkProvider(EncFSVolume volume) {
+		EncFSFileProvider provider = volume.getFileProvider();
+		if (provider instanceof BulkFileProvider
+				&& ((BulkFileProvider) provider).isBulkSupported()) {
+			return (BulkFileProvider) provider;
+		}
+		return null;
+	}
+
+	/*
+	 * Whether directory trees can be copied or moved on the provider as is.
+	 * With chained name IV's the encrypted name of everything under a
+	 * directory depends on its path, and external IV chaining ties file
+	 * contents to it too, so each child has to be rewritten.
+	 */
+	private static boolean canRelocateTrees(EncFSVolume volume) {
+		EncFSConfig config = volume.getConfig();
+		return !config.isChainedNameIV()
+				&& !config.isSupportedExternalIVChaining();
+	}
+
 	// Add a task fragment to the Activity state
 	private void addTaskFragment(TaskFragment fragment) {
 		FragmentManager fragmentManager = getFragmentManager();
@@ -1194,110 +1240,119 @@ public class VolumeBrowserActivity extends ListActivity implements
 		}
 	}
 
-	// Remove the task fragment from the Activity state
+	// Listener reporting the byte progress of a single file transfer
+	private TransferEngine.Listener progressListener(
+			final EDAsyncTask<?, ?, ?> task) {
+		return new TransferEngine.Listener() {
+			@Override
+			public void onProgress(long bytes, long totalBytes) {
+				task.getProgress().setCurrentBytes((int) bytes);
+				task.updateProgress();
+			}
 
-	private boolean copyStreams(InputStream is, OutputStream os,
-			EDAsyncTask<?, ?, ?> task) {
-		try {
-			byte[] buf = new byte[8192];
-			int bytesRead = 0;
-			try {
-				try {
-					bytesRead = is.read(buf);
-					while (bytesRead >= 0) {
-						os.write(buf, 0, bytesRead);
-						bytesRead = is.read(buf);
-						if (task != null) {
-							task.getProgress().incCurrentBytes(8192);
-							task.updateProgress();
-						}
-					}
-				} finally {
-					is.close();
-				}
-			} finally {
-				os.close();
+			@Override
+			public boolean isCancelled() {
+				return task.isCancelled();
 			}
+		};
+	}
+
+	// Listener stopping a pooled transfer if the task or pool is cancelled
+	private TransferEngine.Listener poolListener(
+			final EDAsyncTask<?, ?, ?> task, final FileTransferPool pool) {
+		return new TransferEngine.Listener() {
+			@Override
+			public void onProgress(long bytes, long totalBytes) {
+				// Progress of multi file transfers is counted in files
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return task.isCancelled() || pool.isCancelled();
+			}
+		};
+	}
+
+	// Decrypt the given EncFS file into the given local file
+	private void decryptFile(EncFSFile srcFile, File dstFile,
+			TransferEngine.Listener listener) throws IOException {
+		InputStream is = new ParallelDecryptInputStream(srcFile);
+
+		OutputStream os;
+		try {
+			os = new FileOutputStream(dstFile);
 		} catch (IOException e) {
-			Logger.logException(TAG, e);
-			task.getFragment().returnError(e.getMessage());
-			return false;
+			is.close();
+			throw e;
 		}
 
-		return true;
+		try {
+			new TransferEngine(mEncfsVolume.getConfig()).transfer(is, os,
+					srcFile.getLength(), listener);
+		} catch (IOException e) {
+			// Don't leave a truncated export behind
+			if (!dstFile.delete()) {
+				Log.d(TAG, "Couldn't delete partial export " + dstFile);
+			}
+			throw e;
+		}
 	}
 
-	private boolean exportFile(EncFSFile srcFile, File dstFile,
-			EDAsyncTask<?, ?, ?> task) {
-		EncFSFileInputStream efis = null;
+	// Encrypt the given local file into the given EncFS file
+	private void encryptFile(File srcFile, EncFSFile dstFile,
+			TransferEngine.Listener listener) throws IOException {
+		InputStream is = new FileInputStream(srcFile);
 
-		task.getProgress().setTotalBytes((int) srcFile.getLength());
-		task.updateProgress();
+		OutputStream os;
+		try {
+			os = new ParallelEncryptOutputStream(dstFile, srcFile.length());
+		} catch (IOException e) {
+			is.close();
+			throw e;
+		}
 
 		try {
-			efis = new EncFSFileInputStream(srcFile);
+			new TransferEngine(mEncfsVolume.getConfig()).transfer(is, os,
+					srcFile.length(), listener);
+		} catch (IOException e) {
+			deletePartialImport(dstFile);
+			throw e;
+		}
+	}
+
+	/*
+	 * Delete what a failed import left of the given EncFS file. A truncated
+	 * file would still decrypt, so it must not look like a finished import.
+	 * Aborted write-back uploads leave nothing behind.
+	 */
+	private void deletePartialImport(EncFSFile dstFile) {
+		try {
+			if (mEncfsVolume.pathExists(dstFile.getPath())) {
+				dstFile.delete();
+			}
 		} catch (Exception e) {
 			Logger.logException(TAG, e);
-			task.getFragment().returnError(e.getMessage());
-			return false;
 		}
+	}
 
-		FileOutputStream fos = null;
-		try {
-			fos = new FileOutputStream(dstFile);
-		} catch (FileNotFoundException e) {
+	// Report a failed transfer unless the task was cancelled, returns false
+	private boolean transferFailed(Exception e, EDAsyncTask<?, ?, ?> task) {
+		if (!task.isCancelled()) {
 			Logger.logException(TAG, e);
 			task.getFragment().returnError(e.getMessage());
-			try {
-				efis.close();
-			} catch (IOException ioe) {
-				task.getFragment().returnError(ioe.getMessage());
-			}
-			return false;
 		}
-
-		return copyStreams(efis, fos, task);
+		return false;
 	}
 
-	// Export all files/dirs under the EncFS dir to the given dir
-	private boolean recursiveExport(EncFSFile srcDir, File dstDir,
+	private boolean exportFile(EncFSFile srcFile, File dstFile,
 			EDAsyncTask<?, ?, ?> task) {
-		try {
-			int currentFileIdx = 0;
-			int totalFiles = EncFSVolume.countFiles(srcDir);
-
-			for (EncFSFile file : srcDir.listFiles()) {
-				task.getProgress().setTotalFiles(totalFiles);
-				task.getProgress().setCurrentFileIdx(currentFileIdx++);
-
-				File dstFile = new File(dstDir, file.getName());
-
-				task.getProgress().setCurrentFileName(file.getPath());
-				task.updateProgress();
+		task.getProgress().setTotalBytes((int) srcFile.getLength());
+		task.updateProgress();
 
-				if (file.isDirectory()) { // Directory
-					if (dstFile.mkdir()) {
-						// Export all files/folders under this dir
-						if (recursiveExport(file, dstFile, task) == false) {
-							return false;
-						}
-					} else {
-						task.getFragment().returnError(
-								String.format(
-										getString(R.string.error_mkdir_fail),
-										dstFile.getAbsolutePath()));
-						return false;
-					}
-				} else { // Export an individual file
-					if (exportFile(file, dstFile, task) == false) {
-						return false;
-					}
-				}
-			}
+		try {
+			decryptFile(srcFile, dstFile, progressListener(task));
 		} catch (Exception e) {
-			Logger.logException(TAG, e);
-			task.getFragment().returnError(e.getMessage());
-			return false;
+			return transferFailed(e, task);
 		}
 		return true;
 	}
@@ -1307,30 +1362,131 @@ public class VolumeBrowserActivity extends ListActivity implements
 		task.getProgress().setTotalBytes((int) srcFile.length());
 		task.updateProgress();
 
-		FileInputStream fis = null;
 		try {
-			fis = new FileInputStream(srcFile);
-		} catch (FileNotFoundException e) {
-			Logger.logException(TAG, e);
-			task.getFragment().returnError(e.getMessage());
+			encryptFile(srcFile, dstFile, progressListener(task));
+		} catch (Exception e) {
+			return transferFailed(e, task);
+		}
+		return true;
+	}
+
+	/*
+	 * Create a pool for the file transfers of a recursive import or export,
+	 * with the parallelism set for the file system of this volume and the
+	 * error policy from the preferences.
+	 */
+	private FileTransferPool createTransferPool() {
+		SharedPreferences prefs = PreferenceManager
+				.getDefaultSharedPreferences(this);
+		int policy = prefs.getBoolean("transfer_skip_errors", false) ? FileTransferPool.POLICY_RECORD
+				: FileTransferPool.POLICY_CANCEL;
+		return new FileTransferPool(mVolume.getFileSystem()
+				.getParallelTransfers(), policy);
+	}
+
+	// Show the given file as the one being transferred
+	private void fileStarted(EDAsyncTask<?, ?, ?> task, String path) {
+		task.getProgress().setCurrentFileName(path);
+		task.updateProgress();
+	}
+
+	// Count a finished file or directory, called from the pool's workers
+	private void fileDone(EDAsyncTask<?, ?, ?> task) {
+		TaskProgress progress = task.getProgress();
+		synchronized (progress) {
+			progress.incCurrentFileIdx();
+		}
+		task.updateProgress();
+	}
+
+	/*
+	 * Wait for the transfers of the given pool and report their failures.
+	 * Returns true if all of them succeeded.
+	 */
+	private boolean finishTransfers(FileTransferPool pool,
+			EDAsyncTask<?, ?, ?> task) {
+		List<FileTransferPool.Failure> failures = pool.awaitCompletion();
+		if (task.isCancelled()) {
 			return false;
 		}
+		if (failures.isEmpty()) {
+			return true;
+		}
+
+		FileTransferPool.Failure first = failures.get(0);
+		if (failures.size() == 1) {
+			task.getFragment().returnError(first.getMessage());
+		} else {
+			task.getFragment().returnError(
+					String.format(getString(R.string.error_transfers_failed),
+							failures.size(), first.getName(),
+							first.getMessage()));
+		}
+		return false;
+	}
 
-		EncFSFileOutputStream efos = null;
+	// Export all files/dirs under the EncFS dir to the given dir
+	private boolean recursiveExport(EncFSFile srcDir, File dstDir,
+			EDAsyncTask<?, ?, ?> task) {
+		FileTransferPool pool = createTransferPool();
 		try {
-			efos = new EncFSFileOutputStream(dstFile, srcFile.length());
+			// Everything under the directory, not counting itself
+			task.getProgress().setTotalFiles(
+					EncFSVolume.countFiles(srcDir) - 1);
+			task.getProgress().setCurrentFileIdx(0);
+			task.updateProgress();
+
+			queueExports(srcDir, dstDir, pool, task);
 		} catch (Exception e) {
-			Logger.logException(TAG, e);
-			task.getFragment().returnError(e.getMessage());
-			try {
-				fis.close();
-			} catch (IOException ioe) {
-				task.getFragment().returnError(ioe.getMessage());
-			}
-			return false;
+			pool.cancel();
+			pool.awaitCompletion();
+			return transferFailed(e, task);
 		}
+		return finishTransfers(pool, task);
+	}
+
+	/*
+	 * Create the directories under the given EncFS dir in the given local dir
+	 * and queue their files for export. Each directory is created before the
+	 * files in it are queued, and the pool starts on them while the rest of
+	 * the tree is still being listed. Directories that fail are recorded
+	 * with the pool like failed files.
+	 */
+	private void queueExports(EncFSFile srcDir, File dstDir,
+			final FileTransferPool pool, final EDAsyncTask<?, ?, ?> task)
+			throws Exception {
+		for (final EncFSFile file : srcDir.listFiles()) {
+			if (task.isCancelled() || pool.isCancelled()) {
+				return;
+			}
+
+			final File dstFile = new File(dstDir, file.getName());
+
+			if (file.isDirectory()) {
+				if (!dstFile.mkdir()) {
+					pool.recordFailure(file.getPath(), new IOException(
+							String.format(getString(R.string.error_mkdir_fail),
+									dstFile.getAbsolutePath())));
+					continue;
+				}
+				fileDone(task);
 
-		return copyStreams(fis, efos, task);
+				try {
+					queueExports(file, dstFile, pool, task);
+				} catch (IOException e) {
+					pool.recordFailure(file.getPath(), e);
+				}
+			} else {
+				pool.submit(file.getPath(), new FileTransferPool.Job() {
+					@Override
+					public void run() throws Exception {
+						fileStarted(task, file.getPath());
+						decryptFile(file, dstFile, poolListener(task, pool));
+						fileDone(task);
+					}
+				});
+			}
+		}
 	}
 
 	// Count files and directories under the given file
@@ -1346,49 +1502,114 @@ public class VolumeBrowserActivity extends ListActivity implements
 		}
 	}
 
+	/*
+	 * Create the directories under the given local directory at the given
+	 * EncFS path. Only the deepest ones are created explicitly, makeDirs()
+	 * brings the parents along with them.
+	 */
+	private boolean importDirs(File srcDir, String dstDirPath,
+			EDAsyncTask<?, ?, ?> task) throws Exception {
+		for (File file : srcDir.listFiles()) {
+			if (!file.isDirectory()) {
+				continue;
+			}
+
+			String dstPath = EncFSVolume.combinePath(dstDirPath,
+					file.getName());
+
+			if (hasSubDirs(file)) {
+				if (importDirs(file, dstPath, task) == false) {
+					return false;
+				}
+			} else if (mEncfsVolume.makeDirs(dstPath) == false) {
+				task.getFragment().returnError(
+						String.format(getString(R.string.error_mkdir_fail),
+								dstPath));
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Whether the given local directory has any subdirectories
+	private boolean hasSubDirs(File dir) {
+		for (File file : dir.listFiles()) {
+			if (file.isDirectory()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	// Import all files/dirs under the given file to the given EncFS dir
-	private boolean recursiveImport(File srcDir, EncFSFile dstDir,
+	private boolean recursiveImport(File srcDir, String dstDirPath,
 			EDAsyncTask<?, ?, ?> task) {
+		// Create the whole directory tree first
+		try {
+			if (importDirs(srcDir, dstDirPath, task) == false) {
+				return false;
+			}
+		} catch (Exception e) {
+			Logger.logException(TAG, e);
+			task.getFragment().returnError(e.getMessage());
+			return false;
+		}
 
-		int currentFileIdx = 0;
-		int totalFiles = countFiles(srcDir);
+		// Everything under the directory, not counting itself
+		task.getProgress().setTotalFiles(countFiles(srcDir) - 1);
+		task.getProgress().setCurrentFileIdx(0);
+		task.updateProgress();
 
-		for (File file : srcDir.listFiles()) {
-			task.getProgress().setTotalFiles(totalFiles);
-			task.getProgress().setCurrentFileIdx(currentFileIdx++);
+		FileTransferPool pool = createTransferPool();
+		try {
+			queueImports(srcDir, dstDirPath, pool, task);
+		} catch (Exception e) {
+			pool.cancel();
+			pool.awaitCompletion();
+			return transferFailed(e, task);
+		}
+		return finishTransfers(pool, task);
+	}
 
-			String dstPath = EncFSVolume.combinePath(dstDir, file.getName());
+	/*
+	 * Queue the files under the given local dir for import into the given
+	 * existing EncFS dir. The EncFS files are created here rather than on the
+	 * pool's workers since encrypting their names goes through the volume's
+	 * shared ciphers.
+	 */
+	private void queueImports(File srcDir, String dstDirPath,
+			final FileTransferPool pool, final EDAsyncTask<?, ?, ?> task)
+			throws Exception {
+		for (final File file : srcDir.listFiles()) {
+			if (task.isCancelled() || pool.isCancelled()) {
+				return;
+			}
 
-			task.getProgress().setCurrentFileName(file.getPath());
-			task.updateProgress();
+			String dstPath = EncFSVolume.combinePath(dstDirPath, file.getName());
+
+			if (file.isDirectory()) { // Directory, created already
+				fileDone(task);
+				queueImports(file, dstPath, pool, task);
+				continue;
+			}
 
+			final EncFSFile dstFile;
 			try {
-				if (file.isDirectory()) { // Directory
-					if (mEncfsVolume.makeDir(dstPath)) {
-						// Import all files/folders under this dir
-						if (recursiveImport(file,
-								mEncfsVolume.getFile(dstPath), task) == false) {
-							return false;
-						}
-					} else {
-						task.getFragment().returnError(
-								String.format(
-										getString(R.string.error_mkdir_fail),
-										dstPath));
-						return false;
-					}
-				} else { // Import an individual file
-					if (importFile(file, mEncfsVolume.createFile(dstPath), task) == false) {
-						return false;
-					}
-				}
-			} catch (Exception e) {
-				Logger.logException(TAG, e);
-				task.getFragment().returnError(e.getMessage());
-				return false;
+				dstFile = mEncfsVolume.createFile(dstPath);
+			} catch (IOException e) {
+				pool.recordFailure(file.getPath(), e);
+				continue;
 			}
+
+			pool.submit(file.getPath(), new FileTransferPool.Job() {
+				@Override
+				public void run() throws Exception {
+					fileStarted(task, file.getPath());
+					encryptFile(file, dstFile, poolListener(task, pool));
+					fileDone(task);
+				}
+			});
 		}
-		return true;
 	}
 
 	/*
@@ -1765,6 +1986,7 @@ public class VolumeBrowserActivity extends ListActivity implements
 			protected Boolean doInBackground(Void... args) {
 
 				EncFSFile dstFile;
+				String dstPath;
 
 				mTaskProgress.setNumJobs(mSrcFileList.size());
 
@@ -1784,12 +2006,13 @@ public class VolumeBrowserActivity extends ListActivity implements
 
 					// Create destination encFS file or directory
 					try {
-						String dstPath = EncFSVolume.combinePath(mCurEncFSDir,
+						dstPath = EncFSVolume.combinePath(mCurEncFSDir,
 								srcFile.getName());
 
 						if (srcFile.isDirectory()) {
 							if (mEncfsVolume.makeDir(dstPath)) {
-								dstFile = mEncfsVolume.getFile(dstPath);
+								// Everything under it is created by path
+								dstFile = null;
 							} else {
 								mTaskFragment
 										.returnError(String.format(
@@ -1809,7 +2032,7 @@ public class VolumeBrowserActivity extends ListActivity implements
 
 					if (srcFile.isDirectory()) {
 						mProgressDialogMultiFile = true;
-						if (recursiveImport(srcFile, dstFile, this) != true) {
+						if (recursiveImport(srcFile, dstPath, this) != true) {
 							return false;
 						}
 					} else {
@@ -1905,6 +2128,15 @@ public class VolumeBrowserActivity extends ListActivity implements
 			@Override
 			protected Boolean doInBackground(Void... args) {
 
+				// Group the per file metadata requests where possible
+				BatchingFileProvider batchingProvider = beginBatch(mEncfsVolume);
+
+				// Copy or move whole directories in one request if possible
+				BulkFileProvider bulkProvider = null;
+				if (canRelocateTrees(mEncfsVolume)) {
+					bulkProvider = getBulkProvider(mEncfsVolume);
+				}
+
 				try {
 					boolean result;
 
@@ -1917,15 +2149,27 @@ public class VolumeBrowserActivity extends ListActivity implements
 						updateProgress();
 
 						if (mPasteMode == PASTE_OP_CUT) {
-							result = mEncfsVolume.movePath(curFile.getPath(),
-									EncFSVolume.combinePath(mCurEncFSDir,
-											curFile),
-									new ProgressListener(this));
+							String dstPath = EncFSVolume.combinePath(
+									mCurEncFSDir, curFile);
+							if (bulkProvider != null && curFile.isDirectory()
+									&& !mEncfsVolume.pathExists(dstPath)) {
+								mTaskProgress.setTotalFiles(1);
+								updateProgress();
+								result = bulkProvider.moveTree(curFile
+										.getEncryptedPath(), EncFSCrypto
+										.encodePath(mEncfsVolume, dstPath, "/"));
+							} else {
+								result = mEncfsVolume.movePath(
+										curFile.getPath(), dstPath,
+										new ProgressListener(this));
+							}
 						} else {
 							// If destination path exists, use a duplicate name
 							String combinedPath = EncFSVolume.combinePath(
 									mCurEncFSDir, curFile);
-							if (mEncfsVolume.pathExists(combinedPath)) {
+							boolean duplicate = mEncfsVolume
+									.pathExists(combinedPath);
+							if (duplicate) {
 								// Bump up a counter until path doesn't exist
 								int counter = 0;
 								do {
@@ -1934,7 +2178,16 @@ public class VolumeBrowserActivity extends ListActivity implements
 											mCurEncFSDir, "(Copy " + counter
 													+ ") " + curFile.getName());
 								} while (mEncfsVolume.pathExists(combinedPath));
+							}
 
+							if (bulkProvider != null && curFile.isDirectory()) {
+								mTaskProgress.setTotalFiles(1);
+								updateProgress();
+								result = bulkProvider.copyTree(curFile
+										.getEncryptedPath(), EncFSCrypto
+										.encodePath(mEncfsVolume,
+												combinedPath, "/"));
+							} else if (duplicate) {
 								result = mEncfsVolume.copyPath(
 										curFile.getPath(), combinedPath,
 										new ProgressListener(this));
@@ -1963,10 +2216,16 @@ public class VolumeBrowserActivity extends ListActivity implements
 														.getPath()));
 							}
 
+							endBatchQuietly(batchingProvider);
 							return false;
 						}
 					}
+
+					if (batchingProvider != null) {
+						batchingProvider.endBatch();
+					}
 				} catch (Exception e) {
+					endBatchQuietly(batchingProvider);
 					if (e.getMessage() == null) {
 						mTaskFragment.returnError(mTaskFragment
 								.getStringSafe(R.string.paste_fail));
@@ -2092,6 +2351,12 @@ public class VolumeBrowserActivity extends ListActivity implements
 			protected Boolean doInBackground(Void... args) {
 				switch (mMode) {
 				case DELETE_FILE:
+					// Group the per file delete requests where possible
+					BatchingFileProvider batchingProvider = beginBatch(mEncfsVolume);
+
+					// Delete whole directories in one request if possible
+					BulkFileProvider bulkProvider = getBulkProvider(mEncfsVolume);
+
 					try {
 						mTaskProgress.setNumJobs(mSelectedFileList.size());
 
@@ -2101,9 +2366,17 @@ public class VolumeBrowserActivity extends ListActivity implements
 							mTaskProgress.setCurrentFileName(curFile.getName());
 							updateProgress();
 
-							boolean result = mEncfsVolume.deletePath(
-									curFile.getPath(), true,
-									new ProgressListener(this));
+							boolean result;
+							if (bulkProvider != null && curFile.isDirectory()) {
+								mTaskProgress.setTotalFiles(1);
+								updateProgress();
+								result = bulkProvider.deleteTree(curFile
+										.getEncryptedPath());
+							} else {
+								result = mEncfsVolume.deletePath(
+										curFile.getPath(), true,
+										new ProgressListener(this));
+							}
 
 							if (result == false) {
 								mTaskFragment
@@ -2111,10 +2384,16 @@ public class VolumeBrowserActivity extends ListActivity implements
 												mTaskFragment
 														.getStringSafe(R.string.error_delete_fail),
 												curFile.getName()));
+								endBatchQuietly(batchingProvider);
 								return false;
 							}
 						}
+
+						if (batchingProvider != null) {
+							batchingProvider.endBatch();
+						}
 					} catch (Exception e) {
+						endBatchQuietly(batchingProvider);
 						Logger.logException(TAG, e);
 						mTaskFragment.returnError(e.getMessage());
 						return false;
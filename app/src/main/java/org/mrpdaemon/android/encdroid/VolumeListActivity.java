@@ -790,6 +790,8 @@ public class VolumeListActivity extends ListActivity implements
 	}
 
 	private void deleteVolume(Volume volume) {
+		// Let the account know the volume is no longer open
+		volume.lock();
 		mApp.getVolumeList().remove(volume);
 		mApp.getDbHelper().deleteVolume(volume);
 		refreshList();
@@ -0,0 +1,347 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mrpdaemon.sec.encfs.EncFSFileInfo;
+import org.mrpdaemon.sec.encfs.EncFSFileProvider;
+
+/*
+ * File provider decorator implementing write-back uploads.
+ *
+ * Output streams write the encrypted data to a staging file which is handed
+ * to the UploadQueue when the stream is closed, so writers don't wait for
+ * the upload. Until the upload is done, metadata queries and reads of the
+ * path are answered from the staged file. Other modifications of a path with
+ * pending uploads wait for them first to keep operations on it in order.
+ */
+public class WriteBackFileProvider implements EncFSFileProvider,
+		BatchingFileProvider, RangedFileProvider, BulkFileProvider {
+
+	// Wrapped file provider
+	private final EncFSFileProvider provider;
+
+	// Queue uploading staged files
+	private final UploadQueue queue;
+
+	// Index of the file system the provider belongs to
+	private final int fsIndex;
+
+	// Volume root path the provider was created for
+	private final String root;
+
+	// Stream writing a staging file, queued for upload once closed
+	private class StagingOutputStream extends FileOutputStream implements
+			TransferEngine.Abortable {
+
+		// Path the staging file is uploaded to
+		private final String dstPath;
+
+		// Staging file written
+		private final File stagingFile;
+
+		private boolean closed = false;
+
+		StagingOutputStream(String dstPath, File stagingFile)
+				throws IOException {
+			super(stagingFile);
+			this.dstPath = dstPath;
+			this.stagingFile = stagingFile;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+
+			super.close();
+			queue.enqueue(fsIndex, root, dstPath, stagingFile);
+		}
+
+		// Close without queueing the upload and drop the staging file
+		@Override
+		public void abort() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+
+			try {
+				super.close();
+			} finally {
+				stagingFile.delete();
+			}
+		}
+	}
+
+	public WriteBackFileProvider(EncFSFileProvider provider, UploadQueue queue,
+			int fsIndex, String root) {
+		this.provider = provider;
+		this.queue = queue;
+		this.fsIndex = fsIndex;
+		this.root = root;
+	}
+
+	// Return the wrapped file provider
+	public EncFSFileProvider getProvider() {
+		return provider;
+	}
+
+	// Strip the trailing '/' from a non-root path
+	private static String normalize(String path) {
+		if (path.length() > 1 && path.endsWith("/")) {
+			return path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+
+	// Return the newest pending upload of the given path, null if none
+	private UploadQueue.Entry pending(String path) {
+		return queue.getPending(fsIndex, root, normalize(path));
+	}
+
+	// Return file info describing a file at the given path
+	private static EncFSFileInfo fileInfo(String path, long modified, long size) {
+		int idx = path.lastIndexOf('/');
+		String parentPath = (idx <= 0) ? "/" : path.substring(0, idx);
+
+		return new EncFSFileInfo(path.substring(idx + 1), parentPath, false,
+				modified, size, true, true, false);
+	}
+
+	// Return file info describing a pending upload
+	private static EncFSFileInfo pendingInfo(UploadQueue.Entry entry) {
+		return fileInfo(entry.getPath(), entry.getStagingFile().lastModified(),
+				entry.getSize());
+	}
+
+	// Wait for pending uploads at or under the given path
+	private void waitFor(String path) throws IOException {
+		queue.waitFor(fsIndex, root, normalize(path));
+	}
+
+	@Override
+	public boolean isDirectory(String path) throws IOException {
+		if (pending(path) != null) {
+			return false;
+		}
+		return provider.isDirectory(path);
+	}
+
+	@Override
+	public boolean exists(String path) throws IOException {
+		if (pending(path) != null) {
+			return true;
+		}
+		return provider.exists(path);
+	}
+
+	@Override
+	public String getFilesystemRootPath() {
+		return provider.getFilesystemRootPath();
+	}
+
+	@Override
+	public EncFSFileInfo getFileInfo(String path) throws IOException {
+		UploadQueue.Entry entry = pending(path);
+		if (entry != null) {
+			return pendingInfo(entry);
+		}
+		return provider.getFileInfo(path);
+	}
+
+	@Override
+	public List<EncFSFileInfo> listFiles(String path) throws IOException {
+		List<EncFSFileInfo> listing = provider.listFiles(path);
+		List<UploadQueue.Entry> children = queue.getPendingChildren(fsIndex,
+				root, normalize(path));
+		if (listing == null || children.isEmpty()) {
+			return listing;
+		}
+
+		// Pending uploads replace listed files of the same name
+		List<EncFSFileInfo> result = new ArrayList<EncFSFileInfo>();
+		for (EncFSFileInfo info : listing) {
+			boolean replaced = false;
+			for (UploadQueue.Entry entry : children) {
+				if (entry.getPath().endsWith("/" + info.getName())) {
+					replaced = true;
+					break;
+				}
+			}
+			if (!replaced) {
+				result.add(info);
+			}
+		}
+		for (UploadQueue.Entry entry : children) {
+			result.add(pendingInfo(entry));
+		}
+
+		return result;
+	}
+
+	@Override
+	public boolean move(String srcPath, String dstPath) throws IOException {
+		waitFor(srcPath);
+		waitFor(dstPath);
+		return provider.move(srcPath, dstPath);
+	}
+
+	@Override
+	public boolean delete(String path) throws IOException {
+		boolean cancelled = queue.cancel(fsIndex, root, normalize(path));
+		waitFor(path);
+
+		// The file may only have existed as a queued upload
+		if (cancelled && !provider.exists(path)) {
+			return true;
+		}
+		return provider.delete(path);
+	}
+
+	@Override
+	public boolean mkdir(String path) throws IOException {
+		return provider.mkdir(path);
+	}
+
+	@Override
+	public boolean mkdirs(String path) throws IOException {
+		return provider.mkdirs(path);
+	}
+
+	@Override
+	public EncFSFileInfo createFile(String path) throws IOException {
+		waitFor(path);
+
+		/*
+		 * The file is created by the upload of the stream encfs-java opens
+		 * right after this. Creating it through the wrapped provider would
+		 * leave cloud providers with a placeholder of their own that the
+		 * upload, running on a different provider, never clears.
+		 */
+		return fileInfo(normalize(path), System.currentTimeMillis(), 0);
+	}
+
+	@Override
+	public boolean copy(String srcPath, String dstPath) throws IOException {
+		waitFor(srcPath);
+		waitFor(dstPath);
+		return provider.copy(srcPath, dstPath);
+	}
+
+	@Override
+	public InputStream openInputStream(String path) throws IOException {
+		UploadQueue.Entry entry = pending(path);
+		if (entry != null) {
+			/*
+			 * The staged file may be deleted once uploaded, which doesn't
+			 * affect a stream that already has it open.
+			 */
+			return new FileInputStream(entry.getStagingFile());
+		}
+		return provider.openInputStream(path);
+	}
+
+	@Override
+	public InputStream openInputStream(String path, long offset, long length)
+			throws IOException {
+		if (length == 0) {
+			return RangedInputStream.emptyStream();
+		}
+
+		UploadQueue.Entry entry = pending(path);
+		if (entry != null) {
+			return new RangedInputStream(new FileInputStream(
+					entry.getStagingFile()), offset, length);
+		}
+
+		if (provider instanceof RangedFileProvider) {
+			return ((RangedFileProvider) provider).openInputStream(path,
+					offset, length);
+		}
+		return new RangedInputStream(provider.openInputStream(path), offset,
+				length);
+	}
+
+	@Override
+	public OutputStream openOutputStream(String path, long length)
+			throws IOException {
+		return new StagingOutputStream(normalize(path),
+				queue.createStagingFile());
+	}
+
+	@Override
+	public void beginBatch() {
+		if (provider instanceof BatchingFileProvider) {
+			((BatchingFileProvider) provider).beginBatch();
+		}
+	}
+
+	@Override
+	public void endBatch() throws IOException {
+		if (provider instanceof BatchingFileProvider) {
+			((BatchingFileProvider) provider).endBatch();
+		}
+	}
+
+	@Override
+	public boolean isBulkSupported() {
+		return (provider instanceof BulkFileProvider)
+				&& ((BulkFileProvider) provider).isBulkSupported();
+	}
+
+	// Return the wrapped provider's bulk operations
+	private BulkFileProvider bulkProvider() throws IOException {
+		if (!isBulkSupported()) {
+			throw new IOException("Bulk operations not supported");
+		}
+		return (BulkFileProvider) provider;
+	}
+
+	@Override
+	public boolean deleteTree(String path) throws IOException {
+		queue.cancelTree(fsIndex, root, normalize(path));
+		waitFor(path);
+		return bulkProvider().deleteTree(path);
+	}
+
+	@Override
+	public boolean copyTree(String srcPath, String dstPath) throws IOException {
+		waitFor(srcPath);
+		waitFor(dstPath);
+		return bulkProvider().copyTree(srcPath, dstPath);
+	}
+
+	@Override
+	public boolean moveTree(String srcPath, String dstPath) throws IOException {
+		waitFor(srcPath);
+		waitFor(dstPath);
+		return bulkProvider().moveTree(srcPath, dstPath);
+	}
+}
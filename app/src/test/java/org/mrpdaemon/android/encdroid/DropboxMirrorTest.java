@@ -0,0 +1,349 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dropbox.client2.DropboxAPI.DeltaEntry;
+import com.dropbox.client2.DropboxAPI.DeltaPage;
+import com.dropbox.client2.DropboxAPI.Entry;
+import com.dropbox.client2.exception.DropboxException;
+import com.dropbox.client2.exception.DropboxIOException;
+
+/*
+ * Checks that DropboxMirror applies delta pages to its store, using canned
+ * pages and an in-memory store in place of the Dropbox servers and the
+ * database.
+ */
+public class DropboxMirrorTest {
+
+	// Volume root the mirror is created for
+	private final static String ROOT = "/Volume";
+
+	// Store keeping the entries in memory, without transaction support
+	private static class MemoryStore implements DropboxMirror.Store {
+		// Entries by root, then lower case path
+		private final Map<String, TreeMap<String, DropboxMirror.MirrorEntry>> entries = new HashMap<String, TreeMap<String, DropboxMirror.MirrorEntry>>();
+
+		// Lower case parent of each entry by root, then lower case path
+		private final Map<String, Map<String, String>> parents = new HashMap<String, Map<String, String>>();
+
+		private final Map<String, String> cursors = new HashMap<String, String>();
+
+		private TreeMap<String, DropboxMirror.MirrorEntry> entries(String root) {
+			TreeMap<String, DropboxMirror.MirrorEntry> result = entries
+					.get(root);
+			if (result == null) {
+				result = new TreeMap<String, DropboxMirror.MirrorEntry>();
+				entries.put(root, result);
+				parents.put(root, new HashMap<String, String>());
+			}
+			return result;
+		}
+
+		@Override
+		public String getCursor(String root) {
+			return cursors.get(root);
+		}
+
+		@Override
+		public void setCursor(String root, String cursor) {
+			cursors.put(root, cursor);
+		}
+
+		@Override
+		public void insert(String root, String lcPath, String lcParent,
+				DropboxMirror.MirrorEntry entry) {
+			entries(root).put(lcPath, entry);
+			parents.get(root).put(lcPath, lcParent);
+		}
+
+		@Override
+		public void delete(String root, String lcPath, boolean includeSelf) {
+			String prefix = lcPath.endsWith("/") ? lcPath : lcPath + "/";
+			List<String> doomed = new ArrayList<String>();
+			for (String path : entries(root).keySet()) {
+				if (path.startsWith(prefix)
+						|| (includeSelf && path.equals(lcPath))) {
+					doomed.add(path);
+				}
+			}
+			for (String path : doomed) {
+				entries(root).remove(path);
+				parents.get(root).remove(path);
+			}
+		}
+
+		@Override
+		public DropboxMirror.MirrorEntry get(String root, String lcPath) {
+			return entries(root).get(lcPath);
+		}
+
+		@Override
+		public List<DropboxMirror.MirrorEntry> getChildren(String root,
+				String lcParent) {
+			List<DropboxMirror.MirrorEntry> result = new ArrayList<DropboxMirror.MirrorEntry>();
+			for (Map.Entry<String, DropboxMirror.MirrorEntry> entry : entries(
+					root).entrySet()) {
+				if (lcParent.equals(parents.get(root).get(entry.getKey()))) {
+					result.add(entry.getValue());
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public void clear(String root) {
+			entries(root).clear();
+			parents.get(root).clear();
+			cursors.remove(root);
+		}
+
+		@Override
+		public void runInTransaction(Runnable changes) {
+			changes.run();
+		}
+	}
+
+	// Delta source returning queued pages, recording the cursors asked for
+	private static class CannedDeltaSource implements DropboxMirror.DeltaSource {
+		final ArrayDeque<DeltaPage<Entry>> pages = new ArrayDeque<DeltaPage<Entry>>();
+
+		final List<String> cursors = new ArrayList<String>();
+
+		// Number of requests to fail before returning pages
+		int failures = 0;
+
+		@Override
+		public DeltaPage<Entry> delta(String cursor, String pathPrefix)
+				throws DropboxException {
+			assertEquals(ROOT, pathPrefix);
+			cursors.add(cursor);
+			if (failures > 0) {
+				failures--;
+				throw new DropboxIOException("Injected failure");
+			}
+			return pages.removeFirst();
+		}
+
+		void add(boolean reset, String cursor, boolean hasMore,
+				DeltaEntry<Entry>... entries) {
+			pages.add(new DeltaPage<Entry>(reset, Arrays.asList(entries),
+					cursor, hasMore));
+		}
+	}
+
+	private MemoryStore store;
+
+	private CannedDeltaSource source;
+
+	private DropboxMirror mirror;
+
+	@Before
+	public void setUp() {
+		store = new MemoryStore();
+		source = new CannedDeltaSource();
+		mirror = new DropboxMirror(store, source, ROOT, 60 * 1000);
+	}
+
+	private static Entry entry(String path, boolean isDir, long bytes) {
+		Entry entry = new Entry();
+		entry.path = path;
+		entry.isDir = isDir;
+		entry.bytes = bytes;
+		entry.modified = "Sat, 21 Aug 2010 22:31:20 +0000";
+		return entry;
+	}
+
+	private static DeltaEntry<Entry> added(String path, boolean isDir,
+			long bytes) {
+		return new DeltaEntry<Entry>(path.toLowerCase(), entry(path, isDir,
+				bytes));
+	}
+
+	private static DeltaEntry<Entry> deleted(String path) {
+		return new DeltaEntry<Entry>(path.toLowerCase(), null);
+	}
+
+	// Paths of the children of the given directory, in store order
+	private List<String> children(String path) {
+		List<String> result = new ArrayList<String>();
+		for (DropboxMirror.MirrorEntry child : mirror.listChildren(path)) {
+			result.add(child.path);
+		}
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void syncAppliesAllPages() throws Exception {
+		source.add(true, "c1", true, added(ROOT, true, 0),
+				added(ROOT + "/Dir", true, 0));
+		source.add(false, "c2", false, added(ROOT + "/Dir/File", false, 42));
+		mirror.sync();
+
+		DropboxMirror.MirrorEntry file = mirror.lookup(ROOT + "/Dir/File");
+		assertNotNull(file);
+		assertFalse(file.isDir);
+		assertEquals(42, file.size);
+		assertEquals(1282429880000L, file.modified);
+		assertEquals(Arrays.asList(ROOT + "/Dir/File"), children(ROOT + "/Dir"));
+		assertEquals(Arrays.asList(null, "c1"), source.cursors);
+		assertEquals("c2", store.getCursor(ROOT.toLowerCase()));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void syncResumesFromPersistedCursor() throws Exception {
+		source.add(true, "c1", false, added(ROOT + "/File", false, 1));
+		mirror.sync();
+
+		source.add(false, "c2", false, added(ROOT + "/Other", false, 2));
+		mirror.sync();
+
+		assertEquals(Arrays.asList(null, "c1"), source.cursors);
+		assertEquals(2, children(ROOT).size());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void failedSyncKeepsAppliedPages() throws Exception {
+		source.add(true, "c1", true, added(ROOT + "/File", false, 1));
+		source.add(false, "c2", false, added(ROOT + "/Other", false, 2));
+
+		// Fail fetching the second page
+		mirror = new DropboxMirror(store, new DropboxMirror.DeltaSource() {
+			@Override
+			public DeltaPage<Entry> delta(String cursor, String pathPrefix)
+					throws DropboxException {
+				if (cursor != null) {
+					throw new DropboxIOException("Injected failure");
+				}
+				return source.delta(cursor, pathPrefix);
+			}
+		}, ROOT, 60 * 1000);
+		try {
+			mirror.sync();
+			fail("Sync didn't fail");
+		} catch (DropboxIOException e) {
+			// Expected
+		}
+		assertNotNull(mirror.lookup(ROOT + "/File"));
+		assertEquals("c1", store.getCursor(ROOT.toLowerCase()));
+
+		// A fresh mirror picks up from the first page's cursor
+		mirror = new DropboxMirror(store, source, ROOT, 60 * 1000);
+		mirror.sync();
+		assertEquals(Arrays.asList(null, "c1"), source.cursors);
+		assertNotNull(mirror.lookup(ROOT + "/Other"));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void deletionRemovesSubtree() throws Exception {
+		source.add(true, "c1", false, added(ROOT + "/Dir", true, 0),
+				added(ROOT + "/Dir/Sub", true, 0),
+				added(ROOT + "/Dir/Sub/File", false, 1),
+				added(ROOT + "/Dirt", false, 1));
+		source.add(false, "c2", false, deleted(ROOT + "/Dir"));
+		mirror.sync();
+		mirror.sync();
+
+		assertNull(mirror.lookup(ROOT + "/Dir"));
+		assertNull(mirror.lookup(ROOT + "/Dir/Sub/File"));
+		assertNotNull("Sibling sharing the prefix",
+				mirror.lookup(ROOT + "/Dirt"));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void resetDropsEntriesMissingFromPages() throws Exception {
+		source.add(true, "c1", false, added(ROOT + "/Old", false, 1));
+		source.add(true, "c2", false, added(ROOT + "/New", false, 1));
+		mirror.sync();
+		mirror.sync();
+
+		assertNull(mirror.lookup(ROOT + "/Old"));
+		assertNotNull(mirror.lookup(ROOT + "/New"));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void lookupsIgnoreCase() throws Exception {
+		source.add(true, "c1", false, added(ROOT + "/MixedCase", false, 1));
+		mirror.sync();
+
+		DropboxMirror.MirrorEntry entry = mirror.lookup("/volume/MIXEDCASE");
+		assertNotNull(entry);
+		assertEquals("Original case is kept", ROOT + "/MixedCase", entry.path);
+	}
+
+	@Test
+	public void fileReplacesFolder() throws Exception {
+		mirror.applyEntry(entry(ROOT + "/Path", true, 0));
+		mirror.applyEntry(entry(ROOT + "/Path/Child", false, 1));
+		mirror.applyEntry(entry(ROOT + "/Path", false, 5));
+
+		assertFalse(mirror.lookup(ROOT + "/Path").isDir);
+		assertNull(mirror.lookup(ROOT + "/Path/Child"));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void syncIfStaleOnlySyncsWhenStale() throws Exception {
+		source.add(true, "c1", false);
+		source.add(false, "c2", false, added(ROOT + "/File", false, 1));
+		mirror.syncIfStale();
+		mirror.syncIfStale();
+		assertEquals(1, source.cursors.size());
+
+		mirror.markStale();
+		mirror.syncIfStale();
+		assertEquals(2, source.cursors.size());
+		assertTrue(children(ROOT).contains(ROOT + "/File"));
+	}
+
+	@Test
+	public void syncFailureIsPropagated() throws Exception {
+		source.failures = 1;
+		try {
+			mirror.sync();
+			fail("Sync didn't fail");
+		} catch (DropboxIOException e) {
+			// Expected
+		}
+		assertNull(store.getCursor(ROOT.toLowerCase()));
+	}
+}
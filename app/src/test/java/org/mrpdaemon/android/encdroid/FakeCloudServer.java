@@ -0,0 +1,333 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Base class for in-process stand-ins of cloud storage APIs.
+ *
+ * Runs an HTTP server on a loopback port and hands every exchange to
+ * handle(). The NetworkConditions are applied to each exchange: failures
+ * are injected before the request reaches the handler, and the response is
+ * held back for the latency plus the time its bodies take at the configured
+ * bandwidth. Traffic is counted in a TrafficStats.
+ */
+public abstract class FakeCloudServer {
+
+	// Request as seen by a handler
+	public static class Request {
+		public final String method;
+		public final String path;
+		public final Map<String, String> params;
+		public final Map<String, String> headers;
+		public final byte[] body;
+
+		public Request(String method, String path, Map<String, String> params,
+				Map<String, String> headers, byte[] body) {
+			this.method = method;
+			this.path = path;
+			this.params = params;
+			this.headers = headers;
+			this.body = body;
+		}
+
+		// Return the given header, header names are case insensitive
+		public String getHeader(String name) {
+			return headers.get(name.toLowerCase());
+		}
+
+		public String getParam(String name) {
+			return params.get(name);
+		}
+
+		public String getBodyString() {
+			return new String(body, UTF8);
+		}
+	}
+
+	// Response produced by a handler
+	public static class Response {
+		public final int status;
+		public final Map<String, String> headers = new LinkedHashMap<String, String>();
+		public final byte[] body;
+
+		public Response(int status, String contentType, byte[] body) {
+			this.status = status;
+			this.body = (body != null) ? body : new byte[0];
+			if (contentType != null) {
+				headers.put("Content-Type", contentType);
+			}
+		}
+
+		public Response(int status, String contentType, String body) {
+			this(status, contentType, body.getBytes(UTF8));
+		}
+
+		public Response(int status) {
+			this(status, null, (byte[]) null);
+		}
+
+		public Response setHeader(String name, String value) {
+			headers.put(name, value);
+			return this;
+		}
+	}
+
+	protected final static Charset UTF8 = Charset.forName("UTF-8");
+
+	static {
+		/*
+		 * The server writes headers and body separately, which without
+		 * TCP_NODELAY adds a delayed ACK timeout to every exchange.
+		 */
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	private final NetworkConditions conditions;
+
+	private final TrafficStats stats = new TrafficStats();
+
+	protected FakeCloudServer(NetworkConditions conditions) throws IOException {
+		this.conditions = conditions;
+
+		server = HttpServer.create(new InetSocketAddress(
+				InetAddress.getByName("127.0.0.1"), 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					exchange(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	// Handle a request and return the response to send
+	protected abstract Response handle(Request request) throws IOException;
+
+	// Response for a failure injected by the network conditions
+	protected abstract Response errorResponse(int status);
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public NetworkConditions getConditions() {
+		return conditions;
+	}
+
+	public TrafficStats getStats() {
+		return stats;
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	// Decode a URL encoded string
+	protected static String decode(String str) {
+		try {
+			return URLDecoder.decode(str, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Parse URL encoded parameters into the given map
+	protected static void parseParams(String encoded, Map<String, String> params) {
+		if (encoded == null || encoded.length() == 0) {
+			return;
+		}
+		for (String pair : encoded.split("&")) {
+			int idx = pair.indexOf('=');
+			if (idx < 0) {
+				params.put(decode(pair), "");
+			} else {
+				params.put(decode(pair.substring(0, idx)),
+						decode(pair.substring(idx + 1)));
+			}
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int len;
+		while ((len = in.read(buf)) >= 0) {
+			out.write(buf, 0, len);
+		}
+		return out.toByteArray();
+	}
+
+	// Whether the request bundles several API calls counted by the handler
+	protected boolean isBatch(Request request) {
+		return false;
+	}
+
+	// Count an API call bundled in a batch request
+	protected void countCall() {
+		stats.addCall();
+	}
+
+	private void exchange(HttpExchange exchange) throws IOException {
+		byte[] body = readFully(exchange.getRequestBody());
+
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		parseParams(exchange.getRequestURI().getRawQuery(), params);
+
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		for (String name : exchange.getRequestHeaders().keySet()) {
+			headers.put(name.toLowerCase(), exchange.getRequestHeaders()
+					.getFirst(name));
+		}
+
+		// Clients may compress request bodies like the real servers allow
+		if ("gzip".equalsIgnoreCase(headers.get("content-encoding"))) {
+			body = readFully(new GZIPInputStream(new ByteArrayInputStream(
+					body)));
+		}
+
+		String contentType = headers.get("content-type");
+		if (contentType != null
+				&& contentType.startsWith("application/x-www-form-urlencoded")) {
+			parseParams(new String(body, UTF8), params);
+		}
+
+		Request request = new Request(exchange.getRequestMethod(), exchange
+				.getRequestURI().getPath(), params, headers, body);
+
+		Response response;
+		if (conditions.shouldFail()) {
+			stats.addError();
+			response = errorResponse(conditions.getErrorStatus());
+		} else {
+			if (!isBatch(request)) {
+				stats.addCall();
+			}
+			try {
+				response = handle(request);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				response = errorResponse(500);
+			}
+		}
+
+		stats.addRoundTrip(body.length, response.body.length);
+
+		long delay = conditions.getDelay(body.length + response.body.length);
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		for (Map.Entry<String, String> header : response.headers.entrySet()) {
+			exchange.getResponseHeaders().set(header.getKey(),
+					header.getValue());
+		}
+
+		// A length of -1 means no body
+		exchange.sendResponseHeaders(response.status,
+				(response.body.length == 0) ? -1 : response.body.length);
+
+		if (response.body.length > 0) {
+			OutputStream out = exchange.getResponseBody();
+			out.write(response.body);
+			out.flush();
+		}
+	}
+
+	/*
+	 * Parse an HTTP Range header value of the form "bytes=start-[end]" for
+	 * content of the given length. Returns {start, end} with an exclusive
+	 * end, null if there's no usable range, or {-1, -1} if it can't be
+	 * satisfied.
+	 */
+	protected static long[] parseRange(String range, long length) {
+		if (range == null || !range.startsWith("bytes=")) {
+			return null;
+		}
+		String spec = range.substring("bytes=".length());
+		int idx = spec.indexOf('-');
+		if (idx <= 0 || spec.indexOf(',') >= 0) {
+			return null;
+		}
+		long start = Long.parseLong(spec.substring(0, idx).trim());
+		long end = length;
+		if (idx + 1 < spec.length()) {
+			end = Math.min(length,
+					Long.parseLong(spec.substring(idx + 1).trim()) + 1);
+		}
+		if (start >= length || start >= end) {
+			return new long[] { -1, -1 };
+		}
+		return new long[] { start, end };
+	}
+
+	// Response for a possibly ranged read of the given content
+	protected static Response contentResponse(byte[] content, String range,
+			String contentType) {
+		long[] bounds = parseRange(range, content.length);
+		if (bounds == null) {
+			return new Response(200, contentType, content);
+		}
+		if (bounds[0] < 0) {
+			return new Response(416, contentType, (byte[]) null).setHeader(
+					"Content-Range", "bytes */" + content.length);
+		}
+
+		byte[] part = new byte[(int) (bounds[1] - bounds[0])];
+		System.arraycopy(content, (int) bounds[0], part, 0, part.length);
+		return new Response(206, contentType, part).setHeader(
+				"Content-Range",
+				"bytes " + bounds[0] + "-" + (bounds[1] - 1) + "/"
+						+ content.length);
+	}
+}
@@ -0,0 +1,1130 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.ParentReference;
+
+/*
+ * In-process stand-in for the parts of the Google Drive v2 API used by
+ * GoogleDriveFileProvider and GoogleDriveChangePoller:
+ * files.get/list/insert/patch/update/copy/delete,
+ * parents.list/get/insert/delete, about.get, changes.list, resumable uploads,
+ * downloads through downloadUrl with Range support and multipart batch
+ * requests.
+ *
+ * The root folder has an ID of its own which requests can also refer to by
+ * the "root" alias, like on Drive. Every modification is recorded as a
+ * change, changes.list returns the latest change of each file since the
+ * given change ID.
+ *
+ * Queries support the title, parents, mimeType and trashed terms joined with
+ * "and", and responses honor the fields parameter so partial responses show
+ * up in the byte counts. Folders can't be copied and trash isn't modeled;
+ * deleting a folder deletes everything only reachable through it.
+ */
+public class FakeDriveServer extends FakeCloudServer {
+
+	// Path prefixes of the API
+	private final static String SERVICE_PATH = "/drive/v2/";
+	private final static String UPLOAD_PATH = "/upload/drive/v2/files";
+	private final static String DOWNLOAD_PATH = "/download/";
+	private final static String BATCH_PATH = "/batch";
+
+	// File ID of the root folder and the alias requests may use for it
+	public final static String ROOT_ID = "0AroOtFoLdEr";
+	private final static String ROOT_ALIAS = "root";
+
+	private final static String JSON_TYPE = "application/json; charset=UTF-8";
+
+	// Page size of file listings
+	private final static int DEFAULT_PAGE_SIZE = 100;
+	private final static int MAX_PAGE_SIZE = 1000;
+
+	// Byte preserving charset for parsing multipart bodies
+	private final static Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	// A file or folder
+	private static class Node {
+		final String id;
+		String title;
+		String mimeType;
+		final Set<String> parents = new LinkedHashSet<String>();
+		byte[] content = new byte[0];
+		long modified = System.currentTimeMillis();
+
+		Node(String id) {
+			this.id = id;
+		}
+
+		boolean isFolder() {
+			return GoogleDriveFileProvider.DIRECTORY_MIME_TYPE.equals(mimeType);
+		}
+	}
+
+	// A resumable upload in progress
+	private static class UploadSession {
+		final File metadata;
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+		UploadSession(File metadata) {
+			this.metadata = metadata;
+		}
+	}
+
+	// A recorded modification of a file
+	private static class ChangeRecord {
+		final long id;
+		final String fileId;
+
+		ChangeRecord(long id, String fileId) {
+			this.id = id;
+			this.fileId = fileId;
+		}
+	}
+
+	// Parsed files.list query
+	private static class Query {
+		String title = null;
+		String parent = null;
+		String mimeType = null;
+		boolean mimeTypeNegated = false;
+		Boolean trashed = null;
+
+		boolean matches(Node node) {
+			if (title != null && !title.equals(node.title)) {
+				return false;
+			}
+			if (parent != null && !node.parents.contains(parent)) {
+				return false;
+			}
+			if (mimeType != null
+					&& mimeType.equals(node.mimeType) == mimeTypeNegated) {
+				return false;
+			}
+			// Nothing is ever in the trash
+			return trashed == null || !trashed;
+		}
+	}
+
+	private final static Pattern TITLE_TERM = Pattern
+			.compile("title\\s*=\\s*'(.*)'");
+	private final static Pattern PARENT_TERM = Pattern
+			.compile("'(.*)'\\s+in\\s+parents");
+	private final static Pattern MIME_TYPE_TERM = Pattern
+			.compile("mimeType\\s*(=|!=)\\s*'(.*)'");
+	private final static Pattern TRASHED_TERM = Pattern
+			.compile("trashed\\s*=\\s*(true|false)");
+
+	private final JsonFactory jsonFactory = new GsonFactory();
+
+	// All files by ID, in creation order
+	private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+
+	// Resumable upload sessions by ID
+	private final Map<String, UploadSession> uploads = new HashMap<String, UploadSession>();
+
+	// Counter for generating IDs
+	private long nextId = 1;
+
+	// Number of modifications, reported as the largest change ID
+	private long changeId = 1;
+
+	// Modifications in order
+	private final List<ChangeRecord> changes = new ArrayList<ChangeRecord>();
+
+	public FakeDriveServer(NetworkConditions conditions) throws IOException {
+		super(conditions);
+
+		Node root = new Node(ROOT_ID);
+		root.title = "My Drive";
+		root.mimeType = GoogleDriveFileProvider.DIRECTORY_MIME_TYPE;
+		nodes.put(ROOT_ID, root);
+	}
+
+	public String getRootUrl() {
+		return "http://127.0.0.1:" + getPort() + "/";
+	}
+
+	// Create a Drive service talking to this server
+	public Drive createDriveService() {
+		return new Drive.Builder(new NetHttpTransport(), new GsonFactory(),
+				null).setRootUrl(getRootUrl())
+				.setApplicationName("encdroid-test").build();
+	}
+
+	// Resolve the root folder alias
+	private static String resolveId(String fileId) {
+		return ROOT_ALIAS.equals(fileId) ? ROOT_ID : fileId;
+	}
+
+	// Record a modification of the given file
+	private void recordChange(String fileId) {
+		changeId++;
+		changes.add(new ChangeRecord(changeId, fileId));
+	}
+
+	/*
+	 * Methods for setting up and inspecting the server's contents directly.
+	 * These don't count as traffic, but are recorded as changes like
+	 * modifications through the API.
+	 */
+
+	// Return the child of the given folder with the given title, null if none
+	private Node findChild(String parentId, String title) {
+		for (Node node : nodes.values()) {
+			if (node.parents.contains(parentId) && title.equals(node.title)) {
+				return node;
+			}
+		}
+		return null;
+	}
+
+	// Return the node at the given path, null if not found
+	private Node findPath(String path) {
+		Node cur = nodes.get(ROOT_ID);
+		StringTokenizer st = new StringTokenizer(path, "/");
+		while (cur != null && st.hasMoreTokens()) {
+			cur = findChild(cur.id, st.nextToken());
+		}
+		return cur;
+	}
+
+	private Node createNode(String title, String mimeType, String parentId) {
+		Node node = new Node("id" + (nextId++));
+		node.title = title;
+		node.mimeType = mimeType;
+		if (parentId != null) {
+			node.parents.add(parentId);
+		}
+		nodes.put(node.id, node);
+		recordChange(node.id);
+		return node;
+	}
+
+	// Create the folder at the given path and any missing parents
+	public synchronized String mkdirs(String path) {
+		Node cur = nodes.get(ROOT_ID);
+		StringTokenizer st = new StringTokenizer(path, "/");
+		while (st.hasMoreTokens()) {
+			String title = st.nextToken();
+			Node child = findChild(cur.id, title);
+			if (child == null) {
+				child = createNode(title,
+						GoogleDriveFileProvider.DIRECTORY_MIME_TYPE, cur.id);
+			}
+			cur = child;
+		}
+		return cur.id;
+	}
+
+	// Create or replace the file at the given path
+	public synchronized String putFile(String path, byte[] content) {
+		int idx = path.lastIndexOf('/');
+		String parentId = mkdirs(path.substring(0, Math.max(idx, 0)));
+		String title = path.substring(idx + 1);
+
+		Node node = findChild(parentId, title);
+		if (node == null) {
+			node = createNode(title, "application/octet-stream", parentId);
+		}
+		node.content = content.clone();
+		node.modified = System.currentTimeMillis();
+		recordChange(node.id);
+		return node.id;
+	}
+
+	// Delete the file or folder at the given path, false if not found
+	public synchronized boolean deletePath(String path) {
+		Node node = findPath(path);
+		if (node == null || node.id.equals(ROOT_ID)) {
+			return false;
+		}
+		delete(node);
+		return true;
+	}
+
+	// Return the contents of the file at the given path, null if not found
+	public synchronized byte[] getContent(String path) {
+		Node node = findPath(path);
+		if (node == null || node.isFolder()) {
+			return null;
+		}
+		return node.content.clone();
+	}
+
+	public synchronized boolean exists(String path) {
+		return findPath(path) != null;
+	}
+
+	// Number of files and folders, not counting the root
+	public synchronized int getFileCount() {
+		return nodes.size() - 1;
+	}
+
+	/*
+	 * Request handling.
+	 */
+
+	@Override
+	protected boolean isBatch(Request request) {
+		return request.path.equals(BATCH_PATH);
+	}
+
+	@Override
+	protected Response errorResponse(int status) {
+		String reason;
+		if (status == 403 || status == 429) {
+			reason = "rateLimitExceeded";
+		} else if (status >= 500) {
+			reason = "backendError";
+		} else {
+			reason = "invalid";
+		}
+		return error(status, reason, "Injected failure");
+	}
+
+	private Response error(int status, String reason, String message) {
+		Map<String, Object> info = new LinkedHashMap<String, Object>();
+		info.put("domain", "global");
+		info.put("reason", reason);
+		info.put("message", message);
+
+		List<Object> errors = new ArrayList<Object>();
+		errors.add(info);
+
+		Map<String, Object> error = new LinkedHashMap<String, Object>();
+		error.put("errors", errors);
+		error.put("code", status);
+		error.put("message", message);
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("error", error);
+		return json(status, result, null);
+	}
+
+	private Response notFound(String id) {
+		return error(404, "notFound", "File not found: " + id);
+	}
+
+	private Response json(int status, Object value, String fields) {
+		try {
+			return new Response(status, JSON_TYPE,
+					jsonFactory.toString(select(value, parseFields(fields))));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private <T> T parse(Request request, Class<T> clazz) throws IOException {
+		if (request.body.length == 0) {
+			return null;
+		}
+		return jsonFactory.fromString(request.getBodyString(), clazz);
+	}
+
+	// Resource representation of a parent reference
+	private static Map<String, Object> parentResource(String parentId) {
+		Map<String, Object> parent = new LinkedHashMap<String, Object>();
+		parent.put("kind", "drive#parentReference");
+		parent.put("id", parentId);
+		parent.put("isRoot", ROOT_ID.equals(parentId));
+		return parent;
+	}
+
+	// Resource representation of a file
+	private Map<String, Object> fileResource(Node node) {
+		Map<String, Object> file = new LinkedHashMap<String, Object>();
+		file.put("kind", "drive#file");
+		file.put("id", node.id);
+		file.put("title", node.title);
+		file.put("mimeType", node.mimeType);
+
+		List<Object> parents = new ArrayList<Object>();
+		for (String parentId : node.parents) {
+			parents.add(parentResource(parentId));
+		}
+		file.put("parents", parents);
+
+		Map<String, Object> labels = new LinkedHashMap<String, Object>();
+		labels.put("trashed", false);
+		file.put("labels", labels);
+
+		String modified = new DateTime(node.modified).toStringRfc3339();
+		file.put("createdDate", modified);
+		file.put("modifiedDate", modified);
+		file.put("editable", true);
+
+		if (!node.isFolder()) {
+			file.put("fileSize", Long.toString(node.content.length));
+			file.put("downloadUrl", getRootUrl() + DOWNLOAD_PATH.substring(1)
+					+ node.id);
+		}
+		return file;
+	}
+
+	@Override
+	protected synchronized Response handle(Request request) throws IOException {
+		String method = request.method;
+		String override = request.getHeader("X-HTTP-Method-Override");
+		if (override != null) {
+			method = override;
+		}
+
+		String path = request.path;
+		if (path.equals(BATCH_PATH)) {
+			return batch(request);
+		} else if (path.startsWith(DOWNLOAD_PATH)) {
+			return download(request, path.substring(DOWNLOAD_PATH.length()));
+		} else if (path.equals(UPLOAD_PATH)) {
+			return upload(method, request);
+		} else if (!path.startsWith(SERVICE_PATH)) {
+			return error(404, "notFound", "Unknown path " + path);
+		}
+
+		String[] parts = path.substring(SERVICE_PATH.length()).split("/");
+		String fields = request.getParam("fields");
+
+		if (parts[0].equals("about") && parts.length == 1) {
+			Map<String, Object> about = new LinkedHashMap<String, Object>();
+			about.put("kind", "drive#about");
+			about.put("rootFolderId", ROOT_ID);
+			about.put("largestChangeId", Long.toString(changeId));
+			return json(200, about, fields);
+		}
+
+		if (parts[0].equals("changes") && parts.length == 1
+				&& method.equals("GET")) {
+			return listChanges(request, fields);
+		}
+
+		if (!parts[0].equals("files")) {
+			return error(404, "notFound", "Unknown path " + path);
+		}
+
+		if (parts.length == 1) {
+			if (method.equals("GET")) {
+				return list(request, fields);
+			} else if (method.equals("POST")) {
+				return insert(request, fields);
+			}
+		} else {
+			Node node = nodes.get(resolveId(parts[1]));
+			if (node == null) {
+				return notFound(parts[1]);
+			}
+
+			if (parts.length == 2) {
+				if (method.equals("GET")) {
+					return json(200, fileResource(node), fields);
+				} else if (method.equals("PATCH") || method.equals("PUT")) {
+					return update(node, request, fields);
+				} else if (method.equals("DELETE")) {
+					delete(node);
+					return new Response(204);
+				}
+			} else if (parts[2].equals("copy") && parts.length == 3
+					&& method.equals("POST")) {
+				return copy(node, request, fields);
+			} else if (parts[2].equals("parents")) {
+				return parents(node, method, parts, request, fields);
+			}
+		}
+
+		return error(405, "methodNotAllowed", method + " " + path);
+	}
+
+	// Split a query into the terms joined by "and", respecting quotes
+	private static List<String> splitQuery(String q) {
+		List<String> terms = new ArrayList<String>();
+		boolean quoted = false;
+		int start = 0;
+		for (int i = 0; i < q.length(); i++) {
+			char c = q.charAt(i);
+			if (quoted && c == '\\') {
+				i++;
+			} else if (c == '\'') {
+				quoted = !quoted;
+			} else if (!quoted && q.regionMatches(true, i, " and ", 0, 5)) {
+				terms.add(q.substring(start, i).trim());
+				start = i + 5;
+				i += 4;
+			}
+		}
+		terms.add(q.substring(start).trim());
+		return terms;
+	}
+
+	// Undo escaping of a quoted query literal
+	private static String unescape(String literal) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < literal.length(); i++) {
+			char c = literal.charAt(i);
+			if (c == '\\' && i + 1 < literal.length()) {
+				c = literal.charAt(++i);
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	// Parse a files.list query, null if it isn't supported
+	private static Query parseQuery(String q) {
+		Query query = new Query();
+		if (q == null || q.trim().length() == 0) {
+			return query;
+		}
+
+		for (String term : splitQuery(q)) {
+			Matcher m;
+			if ((m = TITLE_TERM.matcher(term)).matches()) {
+				query.title = unescape(m.group(1));
+			} else if ((m = PARENT_TERM.matcher(term)).matches()) {
+				query.parent = resolveId(unescape(m.group(1)));
+			} else if ((m = MIME_TYPE_TERM.matcher(term)).matches()) {
+				query.mimeTypeNegated = m.group(1).equals("!=");
+				query.mimeType = unescape(m.group(2));
+			} else if ((m = TRASHED_TERM.matcher(term)).matches()) {
+				query.trashed = Boolean.valueOf(m.group(1));
+			} else {
+				return null;
+			}
+		}
+		return query;
+	}
+
+	private Response list(Request request, String fields) {
+		Query query = parseQuery(request.getParam("q"));
+		if (query == null) {
+			return error(400, "invalid", "Invalid query: "
+					+ request.getParam("q"));
+		}
+
+		int pageSize = DEFAULT_PAGE_SIZE;
+		if (request.getParam("maxResults") != null) {
+			pageSize = Math.min(MAX_PAGE_SIZE,
+					Integer.parseInt(request.getParam("maxResults")));
+		}
+		int start = 0;
+		if (request.getParam("pageToken") != null) {
+			start = Integer.parseInt(request.getParam("pageToken"));
+		}
+
+		List<Node> matches = new ArrayList<Node>();
+		for (Node node : nodes.values()) {
+			if (!node.id.equals(ROOT_ID) && query.matches(node)) {
+				matches.add(node);
+			}
+		}
+
+		List<Object> items = new ArrayList<Object>();
+		int end = Math.min(matches.size(), start + pageSize);
+		for (int i = start; i < end; i++) {
+			items.add(fileResource(matches.get(i)));
+		}
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("kind", "drive#fileList");
+		if (end < matches.size()) {
+			result.put("nextPageToken", Integer.toString(end));
+		}
+		result.put("items", items);
+		return json(200, result, fields);
+	}
+
+	// Check that the given parents exist and are folders
+	private String checkParents(List<ParentReference> parents) {
+		if (parents != null) {
+			for (ParentReference parent : parents) {
+				Node node = nodes.get(resolveId(parent.getId()));
+				if (node == null || !node.isFolder()) {
+					return parent.getId();
+				}
+			}
+		}
+		return null;
+	}
+
+	// Create a file from the given metadata
+	private Node create(File metadata, byte[] content) {
+		String mimeType = metadata.getMimeType();
+		if (mimeType == null) {
+			mimeType = "application/octet-stream";
+		}
+		String title = metadata.getTitle();
+		if (title == null) {
+			title = "Untitled";
+		}
+
+		Node node = createNode(title, mimeType, null);
+		if (metadata.getParents() != null) {
+			for (ParentReference parent : metadata.getParents()) {
+				node.parents.add(resolveId(parent.getId()));
+			}
+		}
+		if (node.parents.isEmpty()) {
+			node.parents.add(ROOT_ID);
+		}
+		if (content != null) {
+			node.content = content;
+		}
+		return node;
+	}
+
+	private Response insert(Request request, String fields) throws IOException {
+		if (request.getParam("uploadType") != null) {
+			return error(400, "invalid",
+					"Only resumable uploads are supported");
+		}
+
+		File metadata = parse(request, File.class);
+		if (metadata == null) {
+			metadata = new File();
+		}
+		String missing = checkParents(metadata.getParents());
+		if (missing != null) {
+			return notFound(missing);
+		}
+
+		return json(200, fileResource(create(metadata, null)), fields);
+	}
+
+	private Response update(Node node, Request request, String fields)
+			throws IOException {
+		File metadata = parse(request, File.class);
+		if (metadata != null) {
+			String missing = checkParents(metadata.getParents());
+			if (missing != null) {
+				return notFound(missing);
+			}
+
+			if (metadata.getTitle() != null) {
+				node.title = metadata.getTitle();
+			}
+			if (metadata.getMimeType() != null) {
+				node.mimeType = metadata.getMimeType();
+			}
+			if (metadata.getParents() != null) {
+				node.parents.clear();
+				for (ParentReference parent : metadata.getParents()) {
+					node.parents.add(resolveId(parent.getId()));
+				}
+			}
+		}
+
+		String addParents = request.getParam("addParents");
+		if (addParents != null) {
+			for (String parentId : addParents.split(",")) {
+				Node parent = nodes.get(resolveId(parentId));
+				if (parent == null || !parent.isFolder()) {
+					return notFound(parentId);
+				}
+				node.parents.add(parent.id);
+			}
+		}
+		String removeParents = request.getParam("removeParents");
+		if (removeParents != null) {
+			for (String parentId : removeParents.split(",")) {
+				node.parents.remove(resolveId(parentId));
+			}
+		}
+
+		node.modified = System.currentTimeMillis();
+		recordChange(node.id);
+		return json(200, fileResource(node), fields);
+	}
+
+	// Delete the given node and everything only reachable through it
+	private void delete(Node node) {
+		nodes.remove(node.id);
+		recordChange(node.id);
+
+		if (node.isFolder()) {
+			List<Node> children = new ArrayList<Node>();
+			for (Node child : nodes.values()) {
+				if (child.parents.contains(node.id)) {
+					children.add(child);
+				}
+			}
+			for (Node child : children) {
+				child.parents.remove(node.id);
+				if (child.parents.isEmpty()) {
+					delete(child);
+				}
+			}
+		}
+	}
+
+	private Response copy(Node node, Request request, String fields)
+			throws IOException {
+		if (node.isFolder()) {
+			return error(400, "invalid", "Folders can't be copied");
+		}
+
+		File metadata = parse(request, File.class);
+		if (metadata == null) {
+			metadata = new File();
+		}
+		if (metadata.getTitle() == null) {
+			metadata.setTitle(node.title);
+		}
+		if (metadata.getMimeType() == null) {
+			metadata.setMimeType(node.mimeType);
+		}
+		if (metadata.getParents() == null) {
+			List<ParentReference> parents = new ArrayList<ParentReference>();
+			for (String parentId : node.parents) {
+				parents.add(new ParentReference().setId(parentId));
+			}
+			metadata.setParents(parents);
+		}
+		String missing = checkParents(metadata.getParents());
+		if (missing != null) {
+			return notFound(missing);
+		}
+
+		return json(200, fileResource(create(metadata, node.content.clone())),
+				fields);
+	}
+
+	private Response parents(Node node, String method, String[] parts,
+			Request request, String fields) throws IOException {
+		if (parts.length == 3) {
+			if (method.equals("GET")) {
+				List<Object> items = new ArrayList<Object>();
+				for (String parentId : node.parents) {
+					items.add(parentResource(parentId));
+				}
+				Map<String, Object> result = new LinkedHashMap<String, Object>();
+				result.put("kind", "drive#parentList");
+				result.put("items", items);
+				return json(200, result, fields);
+			} else if (method.equals("POST")) {
+				ParentReference parent = parse(request, ParentReference.class);
+				if (parent == null || parent.getId() == null) {
+					return error(400, "required", "Parent ID required");
+				}
+				Node parentNode = nodes.get(resolveId(parent.getId()));
+				if (parentNode == null || !parentNode.isFolder()) {
+					return notFound(parent.getId());
+				}
+				node.parents.add(parentNode.id);
+				recordChange(node.id);
+				return json(200, parentResource(parentNode.id), fields);
+			}
+		} else if (parts.length == 4) {
+			String parentId = resolveId(parts[3]);
+			if (!node.parents.contains(parentId)) {
+				return notFound(parts[3]);
+			}
+			if (method.equals("GET")) {
+				return json(200, parentResource(parentId), fields);
+			} else if (method.equals("DELETE")) {
+				node.parents.remove(parentId);
+				recordChange(node.id);
+				return new Response(204);
+			}
+		}
+		return error(405, "methodNotAllowed", method + " " + request.path);
+	}
+
+	// Latest change of each file after startChangeId, paged like files.list
+	private Response listChanges(Request request, String fields) {
+		long startChangeId = 0;
+		if (request.getParam("startChangeId") != null) {
+			startChangeId = Long.parseLong(request.getParam("startChangeId"));
+		}
+		boolean includeDeleted = !"false".equals(request
+				.getParam("includeDeleted"));
+		int pageSize = DEFAULT_PAGE_SIZE;
+		if (request.getParam("maxResults") != null) {
+			pageSize = Math.min(MAX_PAGE_SIZE,
+					Integer.parseInt(request.getParam("maxResults")));
+		}
+		int start = 0;
+		if (request.getParam("pageToken") != null) {
+			start = Integer.parseInt(request.getParam("pageToken"));
+		}
+
+		Map<String, ChangeRecord> latest = new LinkedHashMap<String, ChangeRecord>();
+		for (ChangeRecord change : changes) {
+			if (change.id >= startChangeId) {
+				latest.remove(change.fileId);
+				latest.put(change.fileId, change);
+			}
+		}
+		List<ChangeRecord> matches = new ArrayList<ChangeRecord>();
+		for (ChangeRecord change : latest.values()) {
+			if (includeDeleted || nodes.containsKey(change.fileId)) {
+				matches.add(change);
+			}
+		}
+
+		List<Object> items = new ArrayList<Object>();
+		int end = Math.min(matches.size(), start + pageSize);
+		for (int i = start; i < end; i++) {
+			ChangeRecord change = matches.get(i);
+			Node node = nodes.get(change.fileId);
+
+			Map<String, Object> item = new LinkedHashMap<String, Object>();
+			item.put("kind", "drive#change");
+			item.put("id", Long.toString(change.id));
+			item.put("fileId", change.fileId);
+			item.put("deleted", node == null);
+			if (node != null) {
+				item.put("file", fileResource(node));
+			}
+			items.add(item);
+		}
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("kind", "drive#changeList");
+		result.put("largestChangeId", Long.toString(changeId));
+		if (end < matches.size()) {
+			result.put("nextPageToken", Integer.toString(end));
+		}
+		result.put("items", items);
+		return json(200, result, fields);
+	}
+
+	private Response download(Request request, String id) {
+		Node node = nodes.get(id);
+		if (node == null || node.isFolder()) {
+			return notFound(id);
+		}
+		return contentResponse(node.content, request.getHeader("Range"),
+				"application/octet-stream");
+	}
+
+	private Response uploadStatus(UploadSession session) {
+		Response response = new Response(308);
+		int committed = session.data.size();
+		if (committed > 0) {
+			response.setHeader("Range", "bytes=0-" + (committed - 1));
+		}
+		return response;
+	}
+
+	private Response upload(String method, Request request) throws IOException {
+		if (!"resumable".equals(request.getParam("uploadType"))) {
+			return error(400, "invalid",
+					"Only resumable uploads are supported");
+		}
+
+		String uploadId = request.getParam("upload_id");
+		if (uploadId == null) {
+			if (!method.equals("POST")) {
+				return error(405, "methodNotAllowed", method);
+			}
+
+			File metadata = parse(request, File.class);
+			if (metadata == null) {
+				metadata = new File();
+			}
+			String missing = checkParents(metadata.getParents());
+			if (missing != null) {
+				return notFound(missing);
+			}
+
+			uploadId = "upload" + (nextId++);
+			uploads.put(uploadId, new UploadSession(metadata));
+			return new Response(200).setHeader("Location", getRootUrl()
+					+ UPLOAD_PATH.substring(1)
+					+ "?uploadType=resumable&upload_id=" + uploadId);
+		}
+
+		UploadSession session = uploads.get(uploadId);
+		if (session == null) {
+			return error(404, "notFound", "Upload session not found");
+		}
+		if (!method.equals("PUT")) {
+			return error(405, "methodNotAllowed", method);
+		}
+
+		// Content-Range is "bytes first-last/total" or "bytes */total"
+		String range = request.getHeader("Content-Range");
+		if (range == null || !range.startsWith("bytes ")) {
+			return error(400, "invalid", "Content-Range required");
+		}
+		String spec = range.substring("bytes ".length());
+		int slash = spec.indexOf('/');
+		String total = spec.substring(slash + 1);
+
+		if (!spec.startsWith("*")) {
+			long first = Long.parseLong(spec.substring(0, spec.indexOf('-')));
+			if (first != session.data.size()) {
+				// Not where we are, the client has to ask for the status
+				return uploadStatus(session);
+			}
+			session.data.write(request.body);
+		}
+
+		if (total.equals("*")
+				|| Long.parseLong(total) != session.data.size()) {
+			return uploadStatus(session);
+		}
+
+		uploads.remove(uploadId);
+		Node node = create(session.metadata, session.data.toByteArray());
+		return json(200, fileResource(node), null);
+	}
+
+	// Extract the boundary parameter of a multipart content type
+	private static String boundary(String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		for (String param : contentType.split(";")) {
+			param = param.trim();
+			if (param.startsWith("boundary=")) {
+				String value = param.substring("boundary=".length());
+				if (value.startsWith("\"") && value.endsWith("\"")) {
+					value = value.substring(1, value.length() - 1);
+				}
+				return value;
+			}
+		}
+		return null;
+	}
+
+	// Parse HTTP header lines into a map with lower case names
+	private static Map<String, String> parseHeaders(String block) {
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		for (String line : block.split("\r\n")) {
+			int idx = line.indexOf(':');
+			if (idx > 0) {
+				headers.put(line.substring(0, idx).trim().toLowerCase(), line
+						.substring(idx + 1).trim());
+			}
+		}
+		return headers;
+	}
+
+	// Split a string at the first blank line, the second part may be empty
+	private static String[] splitHead(String message) {
+		int idx = message.indexOf("\r\n\r\n");
+		if (idx < 0) {
+			return new String[] { message, "" };
+		}
+		return new String[] { message.substring(0, idx),
+				message.substring(idx + 4) };
+	}
+
+	private static String reasonPhrase(int status) {
+		switch (status) {
+		case 200:
+			return "OK";
+		case 204:
+			return "No Content";
+		case 400:
+			return "Bad Request";
+		case 403:
+			return "Forbidden";
+		case 404:
+			return "Not Found";
+		case 429:
+			return "Too Many Requests";
+		case 503:
+			return "Service Unavailable";
+		default:
+			return "Status " + status;
+		}
+	}
+
+	// Handle a multipart batch request, each part is an API call
+	private Response batch(Request request) throws IOException {
+		String boundary = boundary(request.getHeader("Content-Type"));
+		if (boundary == null) {
+			return error(400, "invalid", "Multipart boundary required");
+		}
+
+		String body = new String(request.body, LATIN1);
+		String delimiter = "--" + boundary;
+		String responseBoundary = "batch_" + (nextId++);
+		StringBuilder out = new StringBuilder();
+
+		int pos = body.indexOf(delimiter);
+		while (pos >= 0) {
+			int start = pos + delimiter.length();
+			if (body.startsWith("--", start)) {
+				break;
+			}
+			if (body.startsWith("\r\n", start)) {
+				start += 2;
+			}
+			int next = body.indexOf("\r\n" + delimiter, start);
+			if (next < 0) {
+				break;
+			}
+			String part = body.substring(start, next);
+			pos = next + 2;
+
+			String[] partHead = splitHead(part);
+			String contentId = parseHeaders(partHead[0]).get("content-id");
+
+			String[] head = splitHead(partHead[1]);
+			int lineEnd = head[0].indexOf("\r\n");
+			String requestLine = (lineEnd < 0) ? head[0] : head[0].substring(
+					0, lineEnd);
+			Map<String, String> headers = parseHeaders((lineEnd < 0) ? ""
+					: head[0].substring(lineEnd + 2));
+
+			StringTokenizer st = new StringTokenizer(requestLine, " ");
+			String method = st.nextToken();
+			URI uri;
+			try {
+				uri = new URI(st.nextToken());
+			} catch (URISyntaxException e) {
+				return error(400, "invalid", "Bad batch part: " + requestLine);
+			}
+
+			Map<String, String> params = new LinkedHashMap<String, String>();
+			parseParams(uri.getRawQuery(), params);
+
+			// Rate limiting applies to every call in the batch
+			countCall();
+			Response response;
+			if (getConditions().shouldFail()) {
+				getStats().addError();
+				response = errorResponse(getConditions().getErrorStatus());
+			} else {
+				response = handle(new Request(method, uri.getPath(), params,
+						headers, head[1].getBytes(LATIN1)));
+			}
+
+			out.append("--").append(responseBoundary).append("\r\n");
+			out.append("Content-Type: application/http\r\n");
+			if (contentId != null) {
+				out.append("Content-ID: response-")
+						.append(contentId.replace("<", "").replace(">", ""))
+						.append("\r\n");
+			}
+			out.append("\r\n");
+			out.append("HTTP/1.1 ").append(response.status).append(' ')
+					.append(reasonPhrase(response.status)).append("\r\n");
+			for (Iterator<Map.Entry<String, String>> it = response.headers
+					.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, String> header = it.next();
+				out.append(header.getKey()).append(": ")
+						.append(header.getValue()).append("\r\n");
+			}
+			out.append("Content-Length: ").append(response.body.length)
+					.append("\r\n\r\n");
+			out.append(new String(response.body, LATIN1)).append("\r\n");
+		}
+		out.append("--").append(responseBoundary).append("--\r\n");
+
+		return new Response(200, "multipart/mixed; boundary="
+				+ responseBoundary, out.toString().getBytes(LATIN1));
+	}
+
+	/*
+	 * Parse a partial response selection such as
+	 * "nextPageToken,items(id,title)" into a tree of selected fields, where a
+	 * null subtree selects the whole value. Returns null to select
+	 * everything.
+	 */
+	private static Map<String, Object> parseFields(String fields) {
+		if (fields == null || fields.trim().length() == 0
+				|| fields.trim().equals("*")) {
+			return null;
+		}
+		return parseFieldList(fields, new int[] { 0 });
+	}
+
+	private static Map<String, Object> parseFieldList(String fields, int[] pos) {
+		Map<String, Object> result = new HashMap<String, Object>();
+		while (pos[0] < fields.length()) {
+			int start = pos[0];
+			while (pos[0] < fields.length()
+					&& ",()".indexOf(fields.charAt(pos[0])) < 0) {
+				pos[0]++;
+			}
+			String name = fields.substring(start, pos[0]).trim();
+
+			Map<String, Object> subtree = null;
+			if (pos[0] < fields.length() && fields.charAt(pos[0]) == '(') {
+				pos[0]++;
+				subtree = parseFieldList(fields, pos);
+				pos[0]++;
+			}
+			if (name.length() > 0) {
+				result.put(name, subtree);
+			}
+
+			if (pos[0] < fields.length()) {
+				char c = fields.charAt(pos[0]);
+				if (c == ')') {
+					break;
+				}
+				pos[0]++;
+			}
+		}
+		return result;
+	}
+
+	// Apply a field selection to a resource
+	@SuppressWarnings("unchecked")
+	private static Object select(Object value, Map<String, Object> fields) {
+		if (fields == null) {
+			return value;
+		}
+		if (value instanceof List) {
+			List<Object> result = new ArrayList<Object>();
+			for (Object item : (List<Object>) value) {
+				result.add(select(item, fields));
+			}
+			return result;
+		}
+		if (value instanceof Map) {
+			Map<String, Object> map = (Map<String, Object>) value;
+			Map<String, Object> result = new LinkedHashMap<String, Object>();
+			for (Map.Entry<String, Object> entry : map.entrySet()) {
+				if (fields.containsKey(entry.getKey())) {
+					result.put(entry.getKey(), select(entry.getValue(),
+							(Map<String, Object>) fields.get(entry.getKey())));
+				}
+			}
+			return result;
+		}
+		return value;
+	}
+}
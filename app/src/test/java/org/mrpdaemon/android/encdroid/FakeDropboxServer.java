@@ -0,0 +1,587 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import com.dropbox.client2.DropboxAPI;
+import com.dropbox.client2.android.AndroidAuthSession;
+import com.dropbox.client2.session.AccessTokenPair;
+import com.dropbox.client2.session.AppKeyPair;
+import com.dropbox.client2.session.Session.AccessType;
+
+/*
+ * In-process stand-in for the parts of the Dropbox v1 API used by
+ * DropboxFileProvider: metadata (with listing hashes), files (with Range
+ * support), files_put, chunked_upload, commit_chunked_upload and the
+ * copy/move/create_folder/delete file operations.
+ *
+ * The SDK always talks HTTPS to fixed hosts, so createApi() returns an API
+ * object whose HTTP client connects every host to this server over plain
+ * HTTP. Paths are case insensitive like on Dropbox. The delta API isn't
+ * modeled, so the metadata mirror can't be used against this server.
+ */
+public class FakeDropboxServer extends FakeCloudServer {
+
+	private final static String JSON_TYPE = "text/javascript";
+
+	// Maximum number of entries returned by a listing
+	private final static int MAX_FILE_LIMIT = 25000;
+
+	// A file or folder
+	private static class Node {
+		String path;
+		final boolean isDir;
+		byte[] content = new byte[0];
+		long modified = System.currentTimeMillis();
+		long rev;
+
+		Node(String path, boolean isDir, long rev) {
+			this.path = path;
+			this.isDir = isDir;
+			this.rev = rev;
+		}
+	}
+
+	// All files by lower case path
+	private final TreeMap<String, Node> nodes = new TreeMap<String, Node>();
+
+	// Chunked uploads in progress by ID
+	private final Map<String, ByteArrayOutputStream> uploads = new HashMap<String, ByteArrayOutputStream>();
+
+	// Counter for revisions and upload IDs
+	private long nextRev = 1;
+
+	public FakeDropboxServer(NetworkConditions conditions) throws IOException {
+		super(conditions);
+		nodes.put("/", new Node("/", true, nextRev++));
+	}
+
+	// Connects sockets for any host to this server
+	private class LoopbackSocketFactory implements SocketFactory {
+		@Override
+		public Socket createSocket() {
+			return new Socket();
+		}
+
+		@Override
+		public Socket connectSocket(Socket sock, String host, int port,
+				InetAddress localAddress, int localPort, HttpParams params)
+				throws IOException {
+			if (sock == null) {
+				sock = createSocket();
+			}
+			sock.connect(new InetSocketAddress("127.0.0.1", getPort()),
+					HttpConnectionParams.getConnectionTimeout(params));
+			sock.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+			return sock;
+		}
+
+		@Override
+		public boolean isSecure(Socket sock) {
+			return false;
+		}
+	}
+
+	// Create a Dropbox API object talking to this server
+	public DropboxAPI<AndroidAuthSession> createApi() {
+		HttpParams params = new BasicHttpParams();
+		ConnManagerParams.setMaxTotalConnections(params, 20);
+		ConnManagerParams.setMaxConnectionsPerRoute(params,
+				new ConnPerRouteBean(20));
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("https", new LoopbackSocketFactory(), 443));
+
+		final HttpClient client = new DefaultHttpClient(
+				new ThreadSafeClientConnManager(params, registry), params);
+
+		AndroidAuthSession session = new AndroidAuthSession(new AppKeyPair(
+				"key", "secret"), AccessType.DROPBOX, new AccessTokenPair(
+				"token", "secret")) {
+			@Override
+			public synchronized HttpClient getHttpClient() {
+				return client;
+			}
+		};
+		return new DropboxAPI<AndroidAuthSession>(session);
+	}
+
+	/*
+	 * Methods for setting up and inspecting the server's contents directly.
+	 * These don't count as traffic.
+	 */
+
+	// Normalize a path and turn it into a lookup key
+	private static String key(String path) {
+		return normalize(path).toLowerCase(Locale.US);
+	}
+
+	private static String normalize(String path) {
+		if (!path.startsWith("/")) {
+			path = "/" + path;
+		}
+		if (path.length() > 1 && path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+
+	private static String parentPath(String path) {
+		int idx = path.lastIndexOf('/');
+		return (idx <= 0) ? "/" : path.substring(0, idx);
+	}
+
+	// Return the nodes strictly under the given key
+	private SortedMap<String, Node> subtree(String key) {
+		String prefix = key.equals("/") ? "/" : key + "/";
+		return nodes.subMap(prefix, prefix + Character.MAX_VALUE);
+	}
+
+	// Return the direct children of the given folder
+	private List<Node> children(String key) {
+		List<Node> result = new ArrayList<Node>();
+		int depth = key.equals("/") ? 1 : key.length() + 1;
+		for (Map.Entry<String, Node> entry : subtree(key).entrySet()) {
+			if (entry.getKey().indexOf('/', depth) < 0) {
+				result.add(entry.getValue());
+			}
+		}
+		return result;
+	}
+
+	// Create the folder at the given path and any missing parents
+	private Node mkdirsInternal(String path) {
+		Node node = nodes.get(key(path));
+		if (node != null) {
+			return node.isDir ? node : null;
+		}
+		if (mkdirsInternal(parentPath(path)) == null) {
+			return null;
+		}
+		node = new Node(normalize(path), true, nextRev++);
+		nodes.put(key(path), node);
+		return node;
+	}
+
+	// Store a file at the given path, null if a parent is a file
+	private Node store(String path, byte[] content) {
+		if (mkdirsInternal(parentPath(normalize(path))) == null) {
+			return null;
+		}
+		Node node = nodes.get(key(path));
+		if (node == null) {
+			node = new Node(normalize(path), false, nextRev);
+			nodes.put(key(path), node);
+		}
+		node.rev = nextRev++;
+		node.content = content;
+		node.modified = System.currentTimeMillis();
+		return node;
+	}
+
+	public synchronized void mkdirs(String path) {
+		mkdirsInternal(path);
+	}
+
+	// Create or replace the file at the given path
+	public synchronized void putFile(String path, byte[] content) {
+		store(path, content.clone());
+	}
+
+	// Return the contents of the file at the given path, null if not found
+	public synchronized byte[] getContent(String path) {
+		Node node = nodes.get(key(path));
+		if (node == null || node.isDir) {
+			return null;
+		}
+		return node.content.clone();
+	}
+
+	public synchronized boolean exists(String path) {
+		return nodes.containsKey(key(path));
+	}
+
+	// Number of files and folders, not counting the root
+	public synchronized int getFileCount() {
+		return nodes.size() - 1;
+	}
+
+	/*
+	 * Request handling.
+	 */
+
+	@Override
+	protected Response errorResponse(int status) {
+		if (status == 429) {
+			return error(status, "Too many requests");
+		}
+		return error(status, "Injected failure");
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Response error(int status, String message) {
+		JSONObject error = new JSONObject();
+		error.put("error", message);
+		return new Response(status, JSON_TYPE, error.toJSONString());
+	}
+
+	private static Response notFound(String path) {
+		return error(404, "Path '" + path + "' not found");
+	}
+
+	private static Response json(JSONObject value) {
+		return new Response(200, JSON_TYPE, value.toJSONString());
+	}
+
+	private static String formatDate(long time) {
+		SimpleDateFormat format = new SimpleDateFormat(
+				"EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
+		return format.format(new Date(time));
+	}
+
+	// Hash of a folder's listing, changing whenever a child changes
+	private String listingHash(String key) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			for (Node child : children(key)) {
+				md.update((child.path + ":" + child.rev + "\n").getBytes(UTF8));
+			}
+			StringBuilder sb = new StringBuilder();
+			for (byte b : md.digest()) {
+				sb.append(String.format("%02x", b & 0xff));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Metadata entry of a node, with the folder's contents if list is set
+	@SuppressWarnings("unchecked")
+	private JSONObject entry(Node node, boolean list) {
+		JSONObject entry = new JSONObject();
+		long bytes = node.isDir ? 0 : node.content.length;
+		entry.put("size", bytes + " bytes");
+		entry.put("bytes", bytes);
+		entry.put("is_dir", node.isDir);
+		entry.put("path", node.path);
+		entry.put("root", "dropbox");
+		entry.put("rev", Long.toHexString(node.rev));
+		entry.put("revision", node.rev);
+		entry.put("thumb_exists", false);
+		entry.put("modified", formatDate(node.modified));
+
+		if (node.isDir) {
+			entry.put("icon", "folder");
+		} else {
+			entry.put("icon", "page_white");
+			entry.put("mime_type", "application/octet-stream");
+			entry.put("client_mtime", formatDate(node.modified));
+		}
+
+		if (node.isDir && list) {
+			String key = key(node.path);
+			entry.put("hash", listingHash(key));
+
+			JSONArray contents = new JSONArray();
+			for (Node child : children(key)) {
+				contents.add(entry(child, false));
+			}
+			entry.put("contents", contents);
+		}
+		return entry;
+	}
+
+	@Override
+	protected synchronized Response handle(Request request) throws IOException {
+		String path = request.path;
+		if (!path.startsWith("/1/")) {
+			return error(404, "Unknown path " + path);
+		}
+		path = path.substring(2);
+
+		if (path.equals("/chunked_upload") || path.equals("/chunked_upload/")) {
+			return chunkedUpload(request);
+		} else if (path.startsWith("/fileops/")) {
+			return fileOp(path.substring("/fileops/".length()), request);
+		}
+
+		// Remaining calls are of the form /<call>/<root>/<path>
+		String[] parts = path.split("/", 4);
+		if (parts.length < 3) {
+			return error(404, "Unknown path " + path);
+		}
+		String call = parts[1];
+		String filePath = normalize((parts.length > 3) ? parts[3] : "");
+
+		if (call.equals("metadata") && request.method.equals("GET")) {
+			return metadata(filePath, request);
+		} else if (call.equals("files") && request.method.equals("GET")) {
+			return download(filePath, request);
+		} else if (call.equals("files_put") && request.method.equals("PUT")) {
+			return commit(filePath, request.body, request);
+		} else if (call.equals("commit_chunked_upload")
+				&& request.method.equals("POST")) {
+			ByteArrayOutputStream data = uploads.remove(request
+					.getParam("upload_id"));
+			if (data == null) {
+				return error(400, "Invalid upload_id");
+			}
+			return commit(filePath, data.toByteArray(), request);
+		}
+
+		return error(405, request.method + " " + request.path);
+	}
+
+	private Response metadata(String path, Request request) {
+		Node node = nodes.get(key(path));
+		if (node == null) {
+			return notFound(path);
+		}
+
+		boolean list = !"false".equals(request.getParam("list"));
+		if (node.isDir && list) {
+			int fileLimit = MAX_FILE_LIMIT;
+			if (request.getParam("file_limit") != null) {
+				fileLimit = Math.min(fileLimit,
+						Integer.parseInt(request.getParam("file_limit")));
+			}
+			if (children(key(path)).size() > fileLimit) {
+				return error(406, "Too many files in folder");
+			}
+
+			String hash = request.getParam("hash");
+			if (hash != null && hash.equals(listingHash(key(path)))) {
+				return new Response(304);
+			}
+		}
+
+		return json(entry(node, list));
+	}
+
+	private Response download(String path, Request request) {
+		Node node = nodes.get(key(path));
+		if (node == null || node.isDir) {
+			return notFound(path);
+		}
+
+		Response response = contentResponse(node.content,
+				request.getHeader("Range"), "application/octet-stream");
+		response.setHeader("x-dropbox-metadata", entry(node, false)
+				.toJSONString());
+		return response;
+	}
+
+	// Name for a file that conflicts with an existing one
+	private String conflictPath(String path) {
+		String parent = parentPath(path);
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		int dot = name.lastIndexOf('.');
+		String base = (dot > 0) ? name.substring(0, dot) : name;
+		String ext = (dot > 0) ? name.substring(dot) : "";
+
+		for (int i = 1;; i++) {
+			String candidate = (parent.equals("/") ? "" : parent) + "/" + base
+					+ " (" + i + ")" + ext;
+			if (!nodes.containsKey(key(candidate))) {
+				return candidate;
+			}
+		}
+	}
+
+	// Store an uploaded file
+	private Response commit(String path, byte[] content, Request request) {
+		Node existing = nodes.get(key(path));
+		if (existing != null) {
+			String parentRev = request.getParam("parent_rev");
+			boolean overwrite = !"false".equals(request.getParam("overwrite"));
+			boolean matchesRev = parentRev != null && parentRev.length() > 0
+					&& parentRev.equals(Long.toHexString(existing.rev));
+
+			if (existing.isDir || !(overwrite || matchesRev)) {
+				if ("false".equals(request.getParam("autorename"))) {
+					return error(409, "Conflict at '" + path + "'");
+				}
+				path = conflictPath(path);
+			}
+		}
+
+		Node node = store(path, content);
+		if (node == null) {
+			return error(403, "Parent of '" + path + "' is a file");
+		}
+		return json(entry(node, false));
+	}
+
+	@SuppressWarnings("unchecked")
+	private Response chunkedUpload(Request request) {
+		if (!request.method.equals("PUT")) {
+			return error(405, request.method + " " + request.path);
+		}
+
+		String uploadId = request.getParam("upload_id");
+		ByteArrayOutputStream data;
+		if (uploadId == null) {
+			uploadId = "upload" + (nextRev++);
+			data = new ByteArrayOutputStream();
+			uploads.put(uploadId, data);
+		} else {
+			data = uploads.get(uploadId);
+			if (data == null) {
+				return error(404, "Upload not found");
+			}
+		}
+
+		JSONObject result = new JSONObject();
+		result.put("upload_id", uploadId);
+		result.put("expires", formatDate(System.currentTimeMillis()
+				+ 24 * 3600 * 1000L));
+
+		String offset = request.getParam("offset");
+		if (offset != null && Long.parseLong(offset) != data.size()) {
+			// Tell the client where the upload actually is
+			result.put("offset", (long) data.size());
+			result.put("error", "Submitted input out of alignment");
+			return new Response(400, JSON_TYPE, result.toJSONString());
+		}
+
+		data.write(request.body, 0, request.body.length);
+		result.put("offset", (long) data.size());
+		return json(result);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Response fileOp(String op, Request request) {
+		if (!request.method.equals("POST")) {
+			return error(405, request.method + " " + request.path);
+		}
+
+		if (op.equals("create_folder")) {
+			String path = normalize(request.getParam("path"));
+			if (nodes.containsKey(key(path))) {
+				return error(403, "A file or folder already exists at path '"
+						+ path + "'");
+			}
+			Node node = mkdirsInternal(path);
+			if (node == null) {
+				return error(403, "Parent of '" + path + "' is a file");
+			}
+			return json(entry(node, false));
+		} else if (op.equals("delete")) {
+			String path = normalize(request.getParam("path"));
+			Node node = nodes.get(key(path));
+			if (node == null || path.equals("/")) {
+				return notFound(path);
+			}
+			subtree(key(path)).clear();
+			nodes.remove(key(path));
+
+			JSONObject entry = entry(node, false);
+			entry.put("is_deleted", true);
+			return json(entry);
+		} else if (op.equals("copy") || op.equals("move")) {
+			String fromPath = normalize(request.getParam("from_path"));
+			String toPath = normalize(request.getParam("to_path"));
+
+			Node node = nodes.get(key(fromPath));
+			if (node == null) {
+				return notFound(fromPath);
+			}
+			if (nodes.containsKey(key(toPath))) {
+				// Case only renames of the same file are allowed
+				if (!(op.equals("move") && key(toPath).equals(key(fromPath)))) {
+					return error(403,
+							"A file with that name already exists at path '"
+									+ toPath + "'");
+				}
+			}
+			if (key(toPath).startsWith(key(fromPath) + "/")) {
+				return error(403, "Can't " + op + " a folder into itself");
+			}
+			if (mkdirsInternal(parentPath(toPath)) == null) {
+				return error(403, "Parent of '" + toPath + "' is a file");
+			}
+
+			// Collect the tree before modifying the map
+			List<Node> tree = new ArrayList<Node>();
+			tree.add(node);
+			tree.addAll(subtree(key(fromPath)).values());
+
+			if (op.equals("move")) {
+				subtree(key(fromPath)).clear();
+				nodes.remove(key(fromPath));
+			}
+
+			Node result = null;
+			for (Node src : tree) {
+				String dstPath = toPath
+						+ src.path.substring(node.path.length());
+				Node dst;
+				if (op.equals("move")) {
+					dst = src;
+					dst.path = dstPath;
+				} else {
+					dst = new Node(dstPath, src.isDir, 0);
+					dst.content = src.content;
+				}
+				dst.rev = nextRev++;
+				nodes.put(key(dstPath), dst);
+				if (result == null) {
+					result = dst;
+				}
+			}
+			return json(entry(result, false));
+		}
+
+		return error(404, "Unknown file operation " + op);
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.SharedPreferences;
+
+/*
+ * Checks that GoogleDriveChangePoller keeps the caches of a provider coherent
+ * with modifications made directly on a FakeDriveServer, as another client
+ * would.
+ */
+public class GoogleDriveChangePollerTest {
+
+	// Contents of every test file
+	private final static byte[] DATA = { 1, 2, 3 };
+
+	// In-memory preferences
+	private static class MemoryPreferences implements SharedPreferences {
+		private final Map<String, Object> values = new HashMap<String, Object>();
+
+		@Override
+		public Map<String, ?> getAll() {
+			return new HashMap<String, Object>(values);
+		}
+
+		@Override
+		public String getString(String key, String defValue) {
+			return values.containsKey(key) ? (String) values.get(key)
+					: defValue;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public Set<String> getStringSet(String key, Set<String> defValues) {
+			return values.containsKey(key) ? (Set<String>) values.get(key)
+					: defValues;
+		}
+
+		@Override
+		public int getInt(String key, int defValue) {
+			return values.containsKey(key) ? (Integer) values.get(key)
+					: defValue;
+		}
+
+		@Override
+		public long getLong(String key, long defValue) {
+			return values.containsKey(key) ? (Long) values.get(key) : defValue;
+		}
+
+		@Override
+		public float getFloat(String key, float defValue) {
+			return values.containsKey(key) ? (Float) values.get(key)
+					: defValue;
+		}
+
+		@Override
+		public boolean getBoolean(String key, boolean defValue) {
+			return values.containsKey(key) ? (Boolean) values.get(key)
+					: defValue;
+		}
+
+		@Override
+		public boolean contains(String key) {
+			return values.containsKey(key);
+		}
+
+		@Override
+		public Editor edit() {
+			return new Editor() {
+				@Override
+				public Editor putString(String key, String value) {
+					values.put(key, value);
+					return this;
+				}
+
+				@Override
+				public Editor putStringSet(String key, Set<String> value) {
+					values.put(key, value);
+					return this;
+				}
+
+				@Override
+				public Editor putInt(String key, int value) {
+					values.put(key, value);
+					return this;
+				}
+
+				@Override
+				public Editor putLong(String key, long value) {
+					values.put(key, value);
+					return this;
+				}
+
+				@Override
+				public Editor putFloat(String key, float value) {
+					values.put(key, value);
+					return this;
+				}
+
+				@Override
+				public Editor putBoolean(String key, boolean value) {
+					values.put(key, value);
+					return this;
+				}
+
+				@Override
+				public Editor remove(String key) {
+					values.remove(key);
+					return this;
+				}
+
+				@Override
+				public Editor clear() {
+					values.clear();
+					return this;
+				}
+
+				@Override
+				public boolean commit() {
+					return true;
+				}
+
+				@Override
+				public void apply() {
+				}
+			};
+		}
+
+		@Override
+		public void registerOnSharedPreferenceChangeListener(
+				OnSharedPreferenceChangeListener listener) {
+		}
+
+		@Override
+		public void unregisterOnSharedPreferenceChangeListener(
+				OnSharedPreferenceChangeListener listener) {
+		}
+	}
+
+	private FakeDriveServer server;
+
+	private GoogleDriveFileIdCache fileIdCache;
+
+	private GoogleDriveMetadataCache metadataCache;
+
+	private GoogleDriveFileProvider provider;
+
+	private GoogleDriveChangePoller poller;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeDriveServer(new NetworkConditions());
+		server.mkdirs("/dir");
+		server.putFile("/dir/file", DATA);
+		for (int i = 0; i < 4; i++) {
+			server.putFile("/other" + i, DATA);
+		}
+	}
+
+	// Create the provider and poller sharing caches of the given capacity
+	private void connect(int idCacheCapacity) throws Exception {
+		fileIdCache = new GoogleDriveFileIdCache(null, null, idCacheCapacity);
+		metadataCache = new GoogleDriveMetadataCache();
+		provider = new GoogleDriveFileProvider(server.createDriveService(),
+				fileIdCache, metadataCache, null, "/");
+		poller = new GoogleDriveChangePoller(server.createDriveService(),
+				new RequestScheduler(GoogleDriveFileProvider.RETRY_POLICY, 1,
+						0, 1), fileIdCache, metadataCache,
+				new MemoryPreferences(), "test");
+
+		// The first poll only establishes where the feed starts
+		poller.pollOnce();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void changeInRootInvalidatesRootListing() throws Exception {
+		connect(GoogleDriveFileIdCache.DEFAULT_CAPACITY);
+		provider.listFiles("/");
+
+		server.putFile("/new", DATA);
+		assertFalse("Cached root listing", provider.exists("/new"));
+
+		poller.pollOnce();
+		assertTrue(provider.exists("/new"));
+	}
+
+	@Test
+	public void changeInFolderWithEvictedIdInvalidatesListing()
+			throws Exception {
+		connect(2);
+		provider.listFiles("/dir");
+
+		// Listing the root caches its children's ID's, evicting /dir's
+		provider.listFiles("/");
+		assertFalse(fileIdCache.contains("/dir"));
+
+		server.putFile("/dir/new", DATA);
+		assertFalse("Cached listing", provider.exists("/dir/new"));
+
+		poller.pollOnce();
+		assertTrue(provider.exists("/dir/new"));
+	}
+
+	@Test
+	public void deletionDropsFileFromListing() throws Exception {
+		connect(GoogleDriveFileIdCache.DEFAULT_CAPACITY);
+		provider.listFiles("/dir");
+		assertTrue(provider.exists("/dir/file"));
+
+		server.deletePath("/dir/file");
+		poller.pollOnce();
+		assertFalse(provider.exists("/dir/file"));
+	}
+
+	@Test
+	public void unrelatedChangeKeepsListing() throws Exception {
+		connect(GoogleDriveFileIdCache.DEFAULT_CAPACITY);
+		provider.listFiles("/dir");
+
+		server.putFile("/elsewhere/file", DATA);
+		poller.pollOnce();
+		assertTrue(metadataCache.getListedPaths().containsKey("/dir"));
+	}
+}
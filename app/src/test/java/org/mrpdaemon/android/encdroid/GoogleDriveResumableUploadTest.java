@@ -0,0 +1,97 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.ParentReference;
+
+/*
+ * Checks that GoogleDriveResumableUpload gets a file through a server that
+ * rejects some of its requests, resuming from the committed offset.
+ */
+public class GoogleDriveResumableUploadTest {
+
+	// Chunk size of the uploads
+	private final static int CHUNK_SIZE = GoogleDriveResumableUpload.CHUNK_GRANULARITY;
+
+	private NetworkConditions conditions;
+
+	private FakeDriveServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		conditions = new NetworkConditions();
+		server = new FakeDriveServer(conditions);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	// Upload the data in chunks the way GoogleDriveOutputStream does
+	private void upload(String title, byte[] data) throws Exception {
+		File metadata = new File();
+		metadata.setTitle(title);
+		metadata.setParents(Collections.singletonList(new ParentReference()
+				.setId(server.mkdirs("/dir"))));
+
+		GoogleDriveResumableUpload upload = new GoogleDriveResumableUpload(
+				server.createDriveService(), new RequestScheduler(
+						GoogleDriveFileProvider.RETRY_POLICY, 1, 0, 1),
+				metadata, data.length, CHUNK_SIZE);
+
+		byte[] buffer = new byte[CHUNK_SIZE];
+		int pos = 0;
+		while (true) {
+			int len = Math.min(CHUNK_SIZE, data.length - pos);
+			boolean last = (pos + len == data.length);
+			System.arraycopy(data, pos, buffer, 0, len);
+			pos += upload.uploadChunk(buffer, len, last);
+			if (last && pos == data.length) {
+				break;
+			}
+		}
+	}
+
+	@Test
+	public void uploadsThroughRateLimiting() throws Exception {
+		byte[] data = new byte[5 * CHUNK_SIZE + 1000];
+		new Random(1).nextBytes(data);
+
+		// Injected failures are 403 rateLimitExceeded
+		conditions.setErrorStatus(403).setErrorRate(0.2);
+		upload("file", data);
+		conditions.setErrorRate(0);
+
+		assertTrue("No requests were rejected",
+				server.getStats().getErrors() > 0);
+		assertArrayEquals(data, server.getContent("/dir/file"));
+	}
+}
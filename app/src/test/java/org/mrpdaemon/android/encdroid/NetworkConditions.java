@@ -0,0 +1,134 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import java.util.Random;
+
+/*
+ * Simulated network and server behavior applied by a FakeCloudServer to
+ * every HTTP exchange: a fixed round trip latency, a bandwidth limit shared
+ * by request and response bodies, and a rate of requests failed with a given
+ * status code before the server acts on them.
+ *
+ * The random source is seeded so that a single threaded run injects the same
+ * failures every time.
+ */
+public class NetworkConditions {
+
+	// Round trip latency added to every exchange in milliseconds
+	private volatile long latencyMs = 0;
+
+	// Transfer rate in bytes per second, 0 for unlimited
+	private volatile long bandwidth = 0;
+
+	// Fraction of exchanges that fail, between 0 and 1
+	private volatile double errorRate = 0;
+
+	// Status code of injected failures
+	private volatile int errorStatus = 503;
+
+	private final Random random;
+
+	public NetworkConditions(long seed) {
+		this.random = new Random(seed);
+	}
+
+	public NetworkConditions() {
+		this(1);
+	}
+
+	/*
+	 * Create conditions from the benchmark.latency, benchmark.bandwidth,
+	 * benchmark.errorRate, benchmark.errorStatus and benchmark.seed system
+	 * properties.
+	 */
+	public static NetworkConditions fromSystemProperties() {
+		NetworkConditions conditions = new NetworkConditions(Long.getLong(
+				"benchmark.seed", 1));
+		conditions.setLatency(Long.getLong("benchmark.latency", 0));
+		conditions.setBandwidth(Long.getLong("benchmark.bandwidth", 0));
+		conditions.setErrorRate(Double.parseDouble(System.getProperty(
+				"benchmark.errorRate", "0")));
+		conditions.setErrorStatus(Integer.getInteger("benchmark.errorStatus",
+				503));
+		return conditions;
+	}
+
+	public NetworkConditions setLatency(long latencyMs) {
+		this.latencyMs = latencyMs;
+		return this;
+	}
+
+	public long getLatency() {
+		return latencyMs;
+	}
+
+	public NetworkConditions setBandwidth(long bandwidth) {
+		this.bandwidth = bandwidth;
+		return this;
+	}
+
+	public long getBandwidth() {
+		return bandwidth;
+	}
+
+	public NetworkConditions setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+		return this;
+	}
+
+	public double getErrorRate() {
+		return errorRate;
+	}
+
+	public NetworkConditions setErrorStatus(int errorStatus) {
+		this.errorStatus = errorStatus;
+		return this;
+	}
+
+	public int getErrorStatus() {
+		return errorStatus;
+	}
+
+	// Decide whether the next exchange should fail
+	public boolean shouldFail() {
+		if (errorRate <= 0) {
+			return false;
+		}
+		synchronized (random) {
+			return random.nextDouble() < errorRate;
+		}
+	}
+
+	// Time in milliseconds an exchange moving the given bytes takes
+	public long getDelay(long bytes) {
+		long delay = latencyMs;
+		if (bandwidth > 0) {
+			delay += bytes * 1000 / bandwidth;
+		}
+		return delay;
+	}
+
+	@Override
+	public String toString() {
+		return "latency=" + latencyMs + "ms bandwidth="
+				+ (bandwidth > 0 ? bandwidth + "B/s" : "unlimited")
+				+ " errorRate=" + errorRate + " errorStatus=" + errorStatus;
+	}
+}
@@ -0,0 +1,321 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.mrpdaemon.sec.encfs.EncFSConfig;
+import org.mrpdaemon.sec.encfs.EncFSConfigFactory;
+import org.mrpdaemon.sec.encfs.EncFSFile;
+import org.mrpdaemon.sec.encfs.EncFSFileOutputStream;
+import org.mrpdaemon.sec.encfs.EncFSLocalFileProvider;
+import org.mrpdaemon.sec.encfs.EncFSOutputStream;
+import org.mrpdaemon.sec.encfs.EncFSVolume;
+import org.mrpdaemon.sec.encfs.EncFSVolumeBuilder;
+
+/*
+ * Checks that ParallelDecryptInputStream decrypts what encfs-java's
+ * EncFSOutputStream writes.
+ *
+ * Random plaintexts, sometimes with runs of zeros to exercise holes, are
+ * encrypted with EncFSOutputStream and read back in chunks of random sizes.
+ * Range reads go through a local provider counting the ciphertext it
+ * returns. Failure messages include the seed of the run so failures can be
+ * reproduced with the test.seed system property.
+ */
+@RunWith(Parameterized.class)
+public class ParallelDecryptInputStreamTest {
+
+	// Number of random files per volume configuration
+	private final static int ROUNDS = Integer.getInteger("test.rounds", 25);
+
+	// Largest random file size
+	private final static int MAX_SIZE = 256 * 1024;
+
+	// Path the files are encrypted for, used for IV chaining
+	private final static String PATH = "/dir/file";
+
+	// Local file provider with range reads, counting the bytes it returns
+	private static class RangedLocalProvider extends EncFSLocalFileProvider
+			implements RangedFileProvider {
+
+		// Directory the volume is in
+		private final File root;
+
+		// Ciphertext bytes returned by range reads
+		long rangeBytes = 0;
+
+		// Number of whole file reads
+		int wholeReads = 0;
+
+		RangedLocalProvider(File root) {
+			super(root);
+			this.root = root;
+		}
+
+		@Override
+		public InputStream openInputStream(String path)
+				throws FileNotFoundException {
+			wholeReads++;
+			return super.openInputStream(path);
+		}
+
+		@Override
+		public InputStream openInputStream(String path, long offset,
+				long length) throws IOException {
+			// FileInputStream skips by seeking, nothing before offset is read
+			return new FilterInputStream(new RangedInputStream(
+					new FileInputStream(new File(root, path)), offset, length)) {
+				@Override
+				public int read() throws IOException {
+					int result = super.read();
+					if (result >= 0) {
+						rangeBytes++;
+					}
+					return result;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int result = super.read(b, off, len);
+					if (result > 0) {
+						rangeBytes += result;
+					}
+					return result;
+				}
+			};
+		}
+	}
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	// Block size, MAC bytes, random bytes, unique IV, IV chaining, holes
+	private final int[] params;
+
+	private RangedLocalProvider provider;
+
+	private EncFSVolume volume;
+
+	// Seed of the random number generator
+	private long seed;
+
+	private Random random;
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> configs() {
+		List<Object[]> result = new ArrayList<Object[]>();
+		int[][] configs = { { 1024, 0, 0, 1, 1, 1 }, { 1024, 8, 0, 1, 1, 1 },
+				{ 4096, 8, 8, 1, 0, 0 }, { 512, 0, 0, 0, 0, 1 },
+				{ 2048, 4, 2, 1, 1, 1 }, { 64, 8, 8, 1, 1, 0 } };
+		for (int[] config : configs) {
+			result.add(new Object[] { Arrays.toString(config), config });
+		}
+		return result;
+	}
+
+	public ParallelDecryptInputStreamTest(String name, int[] params) {
+		this.params = params;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EncFSConfig config = EncFSConfigFactory.createDefault();
+		config.setEncryptedFileBlockSizeInBytes(params[0]);
+		config.setNumberOfMACBytesForEachFileBlock(params[1]);
+		config.setNumberOfRandomBytesInEachMACHeader(params[2]);
+		config.setUseUniqueIV(params[3] == 1);
+		config.setSupportedExternalIVChaining(params[4] == 1);
+		config.setChainedNameIV(params[4] == 1);
+		config.setHolesAllowedInFiles(params[5] == 1);
+		config.setIterationForPasswordKeyDerivationCount(1000);
+
+		provider = new RangedLocalProvider(tempFolder.getRoot());
+		new EncFSVolumeBuilder().withFileProvider(provider).withConfig(config)
+				.withPassword("password").writeVolumeConfig();
+		volume = new EncFSVolumeBuilder().withFileProvider(provider)
+				.withPassword("password").buildVolume();
+
+		seed = Long.getLong("test.seed", System.nanoTime());
+		random = new Random(seed);
+	}
+
+	// Describe the failed round for assertion messages
+	private String describe(int round, byte[] data) {
+		return "Volume " + Arrays.toString(params) + ", seed " + seed
+				+ ", round " + round + ", " + data.length + " bytes";
+	}
+
+	// Random plaintext, sometimes with runs of zeros to exercise holes
+	private byte[] randomPlaintext() throws IOException {
+		int plainBlockSize = new EncFSBlockCipher(volume).getPlainBlockSize();
+		int size;
+		switch (random.nextInt(4)) {
+		case 0:
+			// Around a block boundary
+			size = Math.max(0, random.nextInt(40) * plainBlockSize
+					+ random.nextInt(3) - 1);
+			break;
+		case 1:
+			size = random.nextInt(16);
+			break;
+		default:
+			size = random.nextInt(MAX_SIZE);
+			break;
+		}
+
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+		if (size > 0 && random.nextBoolean()) {
+			int start = random.nextInt(size);
+			int end = start + random.nextInt(size - start + 1);
+			Arrays.fill(data, start, end, (byte) 0);
+		}
+		return data;
+	}
+
+	// Encrypt the data with encfs-java
+	private byte[] encrypt(byte[] data) throws Exception {
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		OutputStream out = new EncFSOutputStream(volume, encrypted, PATH);
+		out.write(data);
+		out.close();
+		return encrypted.toByteArray();
+	}
+
+	// Read the stream in chunks of random sizes, at most limit bytes
+	private byte[] readChunked(InputStream in, int limit) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buf = new byte[20000];
+		while (result.size() < limit) {
+			if (random.nextInt(8) == 0) {
+				int b = in.read();
+				if (b < 0) {
+					break;
+				}
+				result.write(b);
+				continue;
+			}
+			int len = in.read(buf, 0,
+					Math.min(limit - result.size(), random.nextInt(buf.length)));
+			if (len < 0) {
+				break;
+			}
+			result.write(buf, 0, len);
+		}
+		return result.toByteArray();
+	}
+
+	@Test
+	public void decryptsEncFSOutputStream() throws Exception {
+		for (int round = 0; round < ROUNDS; round++) {
+			byte[] data = randomPlaintext();
+
+			InputStream in = new ParallelDecryptInputStream(volume,
+					new ByteArrayInputStream(encrypt(data)), PATH);
+			byte[] decrypted = readChunked(in, Integer.MAX_VALUE);
+			in.close();
+
+			assertArrayEquals(describe(round, data), data, decrypted);
+		}
+	}
+
+	@Test
+	public void closesPartiallyRead() throws Exception {
+		for (int round = 0; round < ROUNDS; round++) {
+			byte[] data = randomPlaintext();
+			int limit = random.nextInt(data.length + 1);
+
+			InputStream in = new ParallelDecryptInputStream(volume,
+					new ByteArrayInputStream(encrypt(data)), PATH);
+			byte[] decrypted = readChunked(in, limit);
+			in.close();
+
+			String msg = describe(round, data) + ", read " + limit;
+			assertEquals(msg, limit, decrypted.length);
+			assertArrayEquals(msg, Arrays.copyOf(data, limit), decrypted);
+		}
+	}
+
+	@Test
+	public void readsOnlyBlocksOfRange() throws Exception {
+		EncFSBlockCipher cipher = new EncFSBlockCipher(volume);
+		int plainBlockSize = cipher.getPlainBlockSize();
+
+		for (int round = 0; round < ROUNDS; round++) {
+			byte[] data = randomPlaintext();
+			EncFSFile file = volume.createFile("/file" + round);
+			OutputStream out = new EncFSFileOutputStream(file, data.length);
+			out.write(data);
+			out.close();
+
+			long offset = random.nextInt(data.length + 2 * plainBlockSize);
+			long length = random.nextInt(4) == 0 ? -1 : random
+					.nextInt(3 * plainBlockSize);
+			int end = (int) Math.min(data.length, length < 0 ? data.length
+					: offset + length);
+			byte[] expected = (offset >= end) ? new byte[0] : Arrays
+					.copyOfRange(data, (int) offset, end);
+
+			file = volume.getFile("/file" + round);
+			provider.rangeBytes = 0;
+			provider.wholeReads = 0;
+			InputStream in = ParallelDecryptInputStream.openRange(file,
+					offset, length);
+			byte[] decrypted = readChunked(in, Integer.MAX_VALUE);
+			in.close();
+
+			String msg = describe(round, data) + ", " + length + " at "
+					+ offset;
+			assertArrayEquals(msg, expected, decrypted);
+			assertEquals(msg, 0, provider.wholeReads);
+
+			// File header, the blocks of the range and one block of slack
+			long blocks = (expected.length + plainBlockSize - 1)
+					/ plainBlockSize + 1;
+			assertTrue(msg + ", read " + provider.rangeBytes,
+					provider.rangeBytes <= EncFSBlockCipher.FILE_HEADER_SIZE
+							+ blocks * cipher.getBlockSize());
+		}
+	}
+}
@@ -0,0 +1,302 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.mrpdaemon.sec.encfs.EncFSConfig;
+import org.mrpdaemon.sec.encfs.EncFSConfigFactory;
+import org.mrpdaemon.sec.encfs.EncFSFilenameEncryptionAlgorithm;
+import org.mrpdaemon.sec.encfs.EncFSInputStream;
+import org.mrpdaemon.sec.encfs.EncFSOutputStream;
+import org.mrpdaemon.sec.encfs.EncFSVolume;
+import org.mrpdaemon.sec.encfs.EncFSVolumeBuilder;
+import org.mrpdaemon.sec.encfs.StreamCrypto;
+
+/*
+ * Checks that ParallelEncryptOutputStream writes the same bytes as
+ * encfs-java's EncFSOutputStream.
+ *
+ * Random plaintexts are encrypted with EncFSOutputStream first. The file
+ * header and block header random bytes it drew are recovered from its
+ * output and replayed to ParallelEncryptOutputStream, whose output must then
+ * match byte for byte. Both streams are fed in chunks of random sizes.
+ * Failure messages include the seed of the run so failures can be reproduced
+ * with the test.seed system property.
+ */
+@RunWith(Parameterized.class)
+public class ParallelEncryptOutputStreamTest {
+
+	// Number of random files per volume configuration
+	private final static int ROUNDS = Integer.getInteger("test.rounds", 25);
+
+	// Largest random file size
+	private final static int MAX_SIZE = 256 * 1024;
+
+	// Path the files are encrypted for, used for IV chaining
+	private final static String PATH = "/dir/file";
+
+	// Random source replaying recorded byte arrays in order
+	private static class ReplayRandom extends Random {
+		private static final long serialVersionUID = 1L;
+
+		private final ArrayDeque<byte[]> recorded;
+
+		ReplayRandom(List<byte[]> recorded) {
+			this.recorded = new ArrayDeque<byte[]>(recorded);
+		}
+
+		@Override
+		public void nextBytes(byte[] bytes) {
+			byte[] next = recorded.pollFirst();
+			if (next == null || next.length != bytes.length) {
+				throw new IllegalStateException("Unexpected random draw of "
+						+ bytes.length + " bytes");
+			}
+			System.arraycopy(next, 0, bytes, 0, bytes.length);
+		}
+
+		int remaining() {
+			return recorded.size();
+		}
+	}
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	// Block size, MAC bytes, random bytes, unique IV, IV chaining, holes
+	private final int[] params;
+
+	private EncFSVolume volume;
+
+	// Seed of the random number generator
+	private long seed;
+
+	private Random random;
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> configs() {
+		List<Object[]> result = new ArrayList<Object[]>();
+		int[][] configs = { { 1024, 0, 0, 1, 1, 1 }, { 1024, 8, 0, 1, 1, 1 },
+				{ 4096, 8, 8, 1, 0, 0 }, { 512, 0, 0, 0, 0, 1 },
+				{ 2048, 4, 2, 1, 1, 1 }, { 64, 8, 8, 1, 1, 0 } };
+		for (int[] config : configs) {
+			result.add(new Object[] { Arrays.toString(config), config });
+		}
+		return result;
+	}
+
+	public ParallelEncryptOutputStreamTest(String name, int[] params) {
+		this.params = params;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		EncFSConfig config = EncFSConfigFactory.createDefault();
+		config.setEncryptedFileBlockSizeInBytes(params[0]);
+		config.setNumberOfMACBytesForEachFileBlock(params[1]);
+		config.setNumberOfRandomBytesInEachMACHeader(params[2]);
+		config.setUseUniqueIV(params[3] == 1);
+		config.setSupportedExternalIVChaining(params[4] == 1);
+		config.setChainedNameIV(params[4] == 1);
+		config.setHolesAllowedInFiles(params[5] == 1);
+		config.setIterationForPasswordKeyDerivationCount(1000);
+
+		String root = tempFolder.getRoot().getAbsolutePath();
+		new EncFSVolumeBuilder().withRootPath(root).withConfig(config)
+				.withPassword("password").writeVolumeConfig();
+		volume = new EncFSVolumeBuilder().withRootPath(root)
+				.withPassword("password").buildVolume();
+
+		seed = Long.getLong("test.seed", System.nanoTime());
+		random = new Random(seed);
+	}
+
+	// Random plaintext, sometimes with runs of zeros to exercise holes
+	private byte[] randomPlaintext() throws IOException {
+		int plainBlockSize = new EncFSBlockCipher(volume).getPlainBlockSize();
+		int size;
+		switch (random.nextInt(4)) {
+		case 0:
+			// Around a block boundary
+			size = Math.max(0, random.nextInt(40) * plainBlockSize
+					+ random.nextInt(3) - 1);
+			break;
+		case 1:
+			size = random.nextInt(16);
+			break;
+		default:
+			size = random.nextInt(MAX_SIZE);
+			break;
+		}
+
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+		if (size > 0 && random.nextBoolean()) {
+			int start = random.nextInt(size);
+			int end = start + random.nextInt(size - start + 1);
+			Arrays.fill(data, start, end, (byte) 0);
+		}
+		return data;
+	}
+
+	// Describe the failed round for assertion messages
+	private String describe(int round, byte[] data) {
+		return "Volume " + Arrays.toString(params) + ", seed " + seed
+				+ ", round " + round + ", " + data.length + " bytes";
+	}
+
+	// Write the data in chunks of random sizes and close the stream
+	private void writeChunked(OutputStream out, byte[] data) throws IOException {
+		int off = 0;
+		while (off < data.length) {
+			if (random.nextInt(8) == 0) {
+				out.write(data[off++]);
+				continue;
+			}
+			int len = Math.min(data.length - off, random.nextInt(20000));
+			out.write(data, off, len);
+			off += len;
+		}
+		out.close();
+	}
+
+	// Recover the random bytes EncFSOutputStream drew for the given output
+	private List<byte[]> recoverRandomBytes(byte[] encrypted)
+			throws IOException {
+		EncFSConfig config = volume.getConfig();
+		EncFSBlockCipher cipher = new EncFSBlockCipher(volume);
+		int macBytes = config.getNumberOfMACBytesForEachFileBlock();
+		int randBytes = config.getNumberOfRandomBytesInEachMACHeader();
+		int blockSize = cipher.getBlockSize();
+		List<byte[]> result = new ArrayList<byte[]>();
+
+		int off = 0;
+		long fileIv = 0;
+		if (config.isUseUniqueIV()) {
+			byte[] header = Arrays.copyOf(encrypted,
+					EncFSBlockCipher.FILE_HEADER_SIZE);
+			result.add(header);
+			byte[] chainIv = config.isSupportedExternalIVChaining() ? StreamCrypto
+					.computeChainIv(volume, PATH) : new byte[8];
+			fileIv = cipher.decryptFileHeader(header, chainIv);
+			off = header.length;
+		}
+
+		if (randBytes == 0) {
+			return result;
+		}
+
+		for (long blockNum = 0; off < encrypted.length; blockNum++) {
+			int len = Math.min(blockSize, encrypted.length - off);
+			byte[] ivSeed = EncFSBlockCipher.blockIvSeed(fileIv, blockNum);
+			byte[] plain = (len == blockSize) ? cipher.blockDecrypt(ivSeed,
+					encrypted, off, len) : cipher.streamDecrypt(ivSeed,
+					encrypted, off, len);
+			result.add(Arrays.copyOfRange(plain, macBytes, macBytes
+					+ randBytes));
+			off += len;
+		}
+		return result;
+	}
+
+	@Test
+	public void matchesSerialEncryption() throws Exception {
+		for (int round = 0; round < ROUNDS; round++) {
+			byte[] data = randomPlaintext();
+
+			ByteArrayOutputStream serial = new ByteArrayOutputStream();
+			writeChunked(new EncFSOutputStream(volume, serial, PATH), data);
+			byte[] expected = serial.toByteArray();
+
+			ReplayRandom replay = new ReplayRandom(recoverRandomBytes(expected));
+			ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+			writeChunked(new ParallelEncryptOutputStream(volume, parallel, PATH,
+					replay), data);
+
+			assertArrayEquals(describe(round, data), expected,
+					parallel.toByteArray());
+			assertEquals("Unused random bytes, " + describe(round, data), 0,
+					replay.remaining());
+		}
+	}
+
+	@Test
+	public void chainIvMatchesEncFS() throws Exception {
+		String[] paths = { "/", "/file", "/dir/file",
+				"/a/much/longer/path/with/exactly16chars/x",
+				"/names with spaces/\u00e9t\u00e9" };
+		for (EncFSFilenameEncryptionAlgorithm algorithm : EncFSFilenameEncryptionAlgorithm
+				.values()) {
+			volume.getConfig().setFilenameAlgorithm(algorithm);
+			EncFSBlockCipher cipher = new EncFSBlockCipher(volume);
+			for (String path : paths) {
+				assertArrayEquals("Volume " + Arrays.toString(params) + ", "
+						+ algorithm + " " + path,
+						StreamCrypto.computeChainIv(volume, path),
+						cipher.computeChainIv(path));
+			}
+		}
+	}
+
+	@Test
+	public void decryptsWithEncFSInputStream() throws Exception {
+		for (int round = 0; round < ROUNDS; round++) {
+			byte[] data = randomPlaintext();
+
+			ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+			writeChunked(
+					new ParallelEncryptOutputStream(volume, encrypted, PATH),
+					data);
+
+			InputStream in = new EncFSInputStream(volume,
+					new ByteArrayInputStream(encrypted.toByteArray()), PATH);
+			ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf)) >= 0) {
+				decrypted.write(buf, 0, len);
+			}
+			in.close();
+
+			assertArrayEquals(describe(round, data), data,
+					decrypted.toByteArray());
+		}
+	}
+}
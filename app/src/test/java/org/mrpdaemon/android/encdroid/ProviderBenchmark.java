@@ -0,0 +1,450 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.mrpdaemon.sec.encfs.EncFSFileInfo;
+import org.mrpdaemon.sec.encfs.EncFSFileProvider;
+
+/*
+ * Benchmark of the cloud file providers against FakeDriveServer and
+ * FakeDropboxServer.
+ *
+ * Runs listing, path resolution, import and export workloads on each
+ * provider, both bare and behind a CachingFileProvider, and prints the round
+ * trips, API calls, injected errors, body bytes and wall time of each. The
+ * cold and warm passes of the metadata workloads run on the same provider
+ * instance so the effect of its caches shows up in the second pass.
+ *
+ * The workloads issue the same provider calls encfs-java makes when
+ * browsing, importing and exporting, on files of opaque bytes. Network
+ * conditions come from the benchmark.* system properties described in
+ * NetworkConditions, the volume shape from benchmark.dirs, benchmark.files,
+ * benchmark.fileSize, benchmark.depth and benchmark.importFiles.
+ */
+@RunWith(Parameterized.class)
+public class ProviderBenchmark {
+
+	// Volume shape
+	private final static int DIRS = Integer.getInteger("benchmark.dirs", 4);
+	private final static int FILES_PER_DIR = Integer.getInteger(
+			"benchmark.files", 25);
+	private final static int FILE_SIZE = Integer.getInteger(
+			"benchmark.fileSize", 64 * 1024);
+	private final static int DEPTH = Integer.getInteger("benchmark.depth", 8);
+	private final static int IMPORT_FILES = Integer.getInteger(
+			"benchmark.importFiles", 10);
+
+	// Volume root on the server
+	private final static String VOLUME = "/Benchmark";
+
+	// Provider stacks under test
+	private final static String STACK_BARE = "bare";
+	private final static String STACK_CACHED = "cached";
+	private final static String[] STACKS = { STACK_BARE, STACK_CACHED };
+
+	// Scheduler settings, matching the defaults of the accounts
+	private final static int API_CONCURRENCY = 4;
+
+	// A fake server and the provider talking to it
+	private static abstract class Backend {
+		private final String name;
+
+		Backend(String name) {
+			this.name = name;
+		}
+
+		abstract void start(NetworkConditions conditions) throws IOException;
+
+		abstract void stop();
+
+		abstract FakeCloudServer getServer();
+
+		// Store a file on the server without counting traffic
+		abstract void putFile(String path, byte[] content);
+
+		abstract void mkdirs(String path);
+
+		abstract byte[] getContent(String path);
+
+		// Create a provider for the volume with empty caches
+		abstract EncFSFileProvider createProvider();
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private static class DriveBackend extends Backend {
+		private FakeDriveServer server;
+
+		DriveBackend() {
+			super("Drive");
+		}
+
+		@Override
+		void start(NetworkConditions conditions) throws IOException {
+			server = new FakeDriveServer(conditions);
+		}
+
+		@Override
+		void stop() {
+			server.stop();
+		}
+
+		@Override
+		FakeCloudServer getServer() {
+			return server;
+		}
+
+		@Override
+		void putFile(String path, byte[] content) {
+			server.putFile(path, content);
+		}
+
+		@Override
+		void mkdirs(String path) {
+			server.mkdirs(path);
+		}
+
+		@Override
+		byte[] getContent(String path) {
+			return server.getContent(path);
+		}
+
+		@Override
+		EncFSFileProvider createProvider() {
+			return new GoogleDriveFileProvider(server.createDriveService(),
+					null, null, new RequestScheduler(
+							GoogleDriveFileProvider.RETRY_POLICY,
+							API_CONCURRENCY, 0, 1), VOLUME);
+		}
+	}
+
+	private static class DropboxBackend extends Backend {
+		private FakeDropboxServer server;
+
+		DropboxBackend() {
+			super("Dropbox");
+		}
+
+		@Override
+		void start(NetworkConditions conditions) throws IOException {
+			server = new FakeDropboxServer(conditions);
+		}
+
+		@Override
+		void stop() {
+			server.stop();
+		}
+
+		@Override
+		FakeCloudServer getServer() {
+			return server;
+		}
+
+		@Override
+		void putFile(String path, byte[] content) {
+			server.putFile(path, content);
+		}
+
+		@Override
+		void mkdirs(String path) {
+			server.mkdirs(path);
+		}
+
+		@Override
+		byte[] getContent(String path) {
+			return server.getContent(path);
+		}
+
+		@Override
+		EncFSFileProvider createProvider() {
+			return new DropboxFileProvider(server.createApi(), null, null,
+					new RequestScheduler(DropboxFileProvider.RETRY_POLICY,
+							API_CONCURRENCY, 0, 1), VOLUME);
+		}
+	}
+
+	// Measurements of one workload run
+	private static class Result {
+		final String backend;
+		final String stack;
+		final String workload;
+		final TrafficStats stats;
+		final long millis;
+
+		Result(String backend, String stack, String workload,
+				TrafficStats stats, long millis) {
+			this.backend = backend;
+			this.stack = stack;
+			this.workload = workload;
+			this.stats = stats;
+			this.millis = millis;
+		}
+	}
+
+	// A measured piece of work
+	private interface Workload {
+		public void run() throws IOException;
+	}
+
+	private final static List<Result> results = new ArrayList<Result>();
+
+	private final static NetworkConditions conditions = NetworkConditions
+			.fromSystemProperties();
+
+	private final Backend backend;
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> backends() {
+		return Arrays.asList(new Object[][] { { new DriveBackend() },
+				{ new DropboxBackend() } });
+	}
+
+	public ProviderBenchmark(Backend backend) {
+		this.backend = backend;
+	}
+
+	// Deterministic contents of the given file
+	private static byte[] content(int seed, int size) {
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private static String dirPath(int dir) {
+		return "/dir" + dir;
+	}
+
+	private static String filePath(int dir, int file) {
+		return dirPath(dir) + "/file" + file;
+	}
+
+	private static String deepPath() {
+		StringBuilder sb = new StringBuilder("/deep");
+		for (int i = 1; i <= DEPTH; i++) {
+			sb.append("/level").append(i);
+		}
+		return sb.append("/leaf").toString();
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		backend.start(conditions);
+
+		for (int dir = 0; dir < DIRS; dir++) {
+			for (int file = 0; file < FILES_PER_DIR; file++) {
+				backend.putFile(VOLUME + filePath(dir, file),
+						content(dir * FILES_PER_DIR + file, FILE_SIZE));
+			}
+		}
+		backend.putFile(VOLUME + deepPath(), content(-1, FILE_SIZE));
+	}
+
+	@After
+	public void tearDown() {
+		backend.stop();
+	}
+
+	@AfterClass
+	public static void report() {
+		System.out.println("Provider benchmark: " + conditions + ", " + DIRS
+				+ "x" + FILES_PER_DIR + " files of " + FILE_SIZE + " bytes");
+		System.out.println(String.format("%-8s %-7s %-22s %7s %7s %7s %12s %12s %9s",
+				"backend", "stack", "workload", "trips", "calls", "errors",
+				"bytes up", "bytes down", "wall ms"));
+		synchronized (results) {
+			for (Result result : results) {
+				System.out.println(String.format(
+						"%-8s %-7s %-22s %7d %7d %7d %12d %12d %9d",
+						result.backend, result.stack, result.workload,
+						result.stats.getRoundTrips(),
+						result.stats.getCalls(), result.stats.getErrors(),
+						result.stats.getBytesUp(),
+						result.stats.getBytesDown(), result.millis));
+			}
+		}
+	}
+
+	private EncFSFileProvider createStack(String stack) {
+		EncFSFileProvider provider = backend.createProvider();
+		if (stack.equals(STACK_CACHED)) {
+			provider = new CachingFileProvider(provider);
+		}
+		return provider;
+	}
+
+	// Run the given workload and record its traffic and wall time
+	private void measure(String stack, String name, Workload workload)
+			throws IOException {
+		FakeCloudServer server = backend.getServer();
+		server.getStats().reset();
+
+		long start = System.nanoTime();
+		workload.run();
+		long millis = (System.nanoTime() - start) / 1000000;
+
+		synchronized (results) {
+			results.add(new Result(backend.toString(), stack, name,
+					new TrafficStats(server.getStats()), millis));
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int len;
+		try {
+			while ((len = in.read(buf)) >= 0) {
+				out.write(buf, 0, len);
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void listing() throws IOException {
+		for (String stack : STACKS) {
+			final EncFSFileProvider provider = createStack(stack);
+
+			Workload workload = new Workload() {
+				@Override
+				public void run() throws IOException {
+					List<EncFSFileInfo> root = provider.listFiles("/");
+					assertEquals(DIRS + 1, root.size());
+
+					for (int dir = 0; dir < DIRS; dir++) {
+						List<EncFSFileInfo> files = provider
+								.listFiles(dirPath(dir));
+						assertEquals(FILES_PER_DIR, files.size());
+						for (EncFSFileInfo info : files) {
+							assertEquals(FILE_SIZE, info.getSize());
+						}
+					}
+				}
+			};
+
+			measure(stack, "listing (cold)", workload);
+			measure(stack, "listing (warm)", workload);
+		}
+	}
+
+	@Test
+	public void pathResolution() throws IOException {
+		for (String stack : STACKS) {
+			final EncFSFileProvider provider = createStack(stack);
+
+			Workload workload = new Workload() {
+				@Override
+				public void run() throws IOException {
+					for (int dir = 0; dir < DIRS; dir++) {
+						for (int file = 0; file < FILES_PER_DIR; file++) {
+							EncFSFileInfo info = provider
+									.getFileInfo(filePath(dir, file));
+							assertNotNull(info);
+							assertFalse(info.isDirectory());
+						}
+						assertFalse(provider.exists(dirPath(dir) + "/missing"));
+					}
+
+					assertTrue(provider.exists(deepPath()));
+					assertFalse(provider.isDirectory(deepPath()));
+				}
+			};
+
+			measure(stack, "resolution (cold)", workload);
+			measure(stack, "resolution (warm)", workload);
+		}
+	}
+
+	@Test
+	public void importFiles() throws IOException {
+		for (final String stack : STACKS) {
+			final EncFSFileProvider provider = createStack(stack);
+			final String dstDir = "/import-" + stack;
+			backend.mkdirs(VOLUME + dstDir);
+
+			measure(stack, "import", new Workload() {
+				@Override
+				public void run() throws IOException {
+					for (int i = 0; i < IMPORT_FILES; i++) {
+						String path = dstDir + "/file" + i;
+						byte[] data = content(1000 + i, FILE_SIZE);
+
+						assertFalse(provider.exists(path));
+						provider.createFile(path);
+						OutputStream out = provider.openOutputStream(path,
+								data.length);
+						out.write(data);
+						out.close();
+					}
+				}
+			});
+
+			for (int i = 0; i < IMPORT_FILES; i++) {
+				assertArrayEquals(content(1000 + i, FILE_SIZE),
+						backend.getContent(VOLUME + dstDir + "/file" + i));
+			}
+		}
+	}
+
+	@Test
+	public void exportFiles() throws IOException {
+		for (String stack : STACKS) {
+			final EncFSFileProvider provider = createStack(stack);
+
+			measure(stack, "export", new Workload() {
+				@Override
+				public void run() throws IOException {
+					for (int file = 0; file < FILES_PER_DIR; file++) {
+						byte[] data = readFully(provider
+								.openInputStream(filePath(0, file)));
+						assertArrayEquals(content(file, FILE_SIZE), data);
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * encdroid - EncFS client application for Android
+ * Copyright (C) 2013  Mark R. Pariente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mrpdaemon.android.encdroid;
+
+/*
+ * Traffic counters of a FakeCloudServer.
+ *
+ * A round trip is one HTTP exchange, while an API call is one operation on
+ * the server; a batch request is a single round trip carrying many calls.
+ * Byte counts only include request and response bodies.
+ */
+public class TrafficStats {
+
+	private long roundTrips = 0;
+	private long calls = 0;
+	private long bytesUp = 0;
+	private long bytesDown = 0;
+	private long errors = 0;
+
+	public TrafficStats() {
+	}
+
+	// Copy of the given counters
+	public TrafficStats(TrafficStats other) {
+		synchronized (other) {
+			roundTrips = other.roundTrips;
+			calls = other.calls;
+			bytesUp = other.bytesUp;
+			bytesDown = other.bytesDown;
+			errors = other.errors;
+		}
+	}
+
+	public synchronized void addRoundTrip(long up, long down) {
+		roundTrips++;
+		bytesUp += up;
+		bytesDown += down;
+	}
+
+	public synchronized void addCall() {
+		calls++;
+	}
+
+	public synchronized void addError() {
+		errors++;
+	}
+
+	public synchronized void reset() {
+		roundTrips = calls = bytesUp = bytesDown = errors = 0;
+	}
+
+	public synchronized long getRoundTrips() {
+		return roundTrips;
+	}
+
+	public synchronized long getCalls() {
+		return calls;
+	}
+
+	// Bytes sent to the server
+	public synchronized long getBytesUp() {
+		return bytesUp;
+	}
+
+	// Bytes sent by the server
+	public synchronized long getBytesDown() {
+		return bytesDown;
+	}
+
+	// Number of injected failures
+	public synchronized long getErrors() {
+		return errors;
+	}
+}